@@ -1,6 +1,7 @@
 plugins {
     id("java")
     id("application")
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 group = "xyz.jxmm"
@@ -32,6 +33,25 @@ sourceSets {
             srcDirs("src/main/resources")
         }
     }
+    // 压力测试工具 (src/loadtest/java)，不打进应用
+    create("loadtest") {
+        compileClasspath += sourceSets["main"].output
+        runtimeClasspath += sourceSets["main"].output
+    }
+}
+
+configurations["loadtestImplementation"].extendsFrom(configurations.implementation.get())
+configurations["loadtestRuntimeOnly"].extendsFrom(configurations.runtimeOnly.get())
+
+// 热点路径的 JMH 基准 (src/jmh/java)，gradle jmh 运行，结果在 build/results/jmh
+jmh {
+    warmupIterations.set(3)
+    iterations.set(5)
+    fork.set(1)
+    // 图像相关的基准不需要显示器
+    jvmArgs.add("-Djava.awt.headless=true")
+    // gradle jmh -Pjmh.includes=<类名正则> 只运行匹配的基准
+    (findProperty("jmh.includes") as String?)?.let { includes.add(it) }
 }
 
 application {
@@ -48,4 +68,12 @@ tasks.register<JavaExec>("runInvitationManager") {
     description = "运行邀请码管理工具"
     classpath = sourceSets["main"].runtimeClasspath
     mainClass.set("xyz.jxmm.screenshare.util.InvitationCodeManager")
-}
\ No newline at end of file
+}
+
+// 对本机运行的 ServerApplication 做压力测试，例如 gradle loadTest --args="--shares=10 --viewers=50"
+tasks.register<JavaExec>("loadTest") {
+    group = "verification"
+    description = "对本机服务器做压力测试"
+    classpath = sourceSets["loadtest"].runtimeClasspath
+    mainClass.set("xyz.jxmm.screenshare.loadtest.LoadTest")
+}
@@ -0,0 +1,132 @@
+package xyz.jxmm.screenshare.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Control line handling in {@link ClientHandler}: every line is split with
+ * {@code String.split(" ", 3)}, metered and dispatched. The handler is connected over loopback
+ * to a client that discards everything, so replies go through its outbox and writer thread as
+ * they would in production; commands that print are left out. {@code splitScreenData} is the split alone on a legacy {@code SCREEN_DATA} line,
+ * whose Base64 image makes the line as long as the frame. The {@code parse} benchmarks read the
+ * same request from a text line and from a binary frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ControlCommandBenchmark {
+    private static final String VIEW_SHARE = "VIEW_SHARE alice correct horse battery";
+    private static final byte[] VIEW_SHARE_FRAME = ControlMessage.frame(VIEW_SHARE, 42);
+
+    private final ConcurrentHashMap<String, String> sharingUsers = new ConcurrentHashMap<>();
+    private Socket client;
+    private ClientHandler handler;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        for (int i = 0; i < 20; i++) sharingUsers.put("user" + i, "password" + i);
+        ConcurrentHashMap<String, ClientHandler> clients = new ConcurrentHashMap<>();
+        Socket server;
+        try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            client = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+            server = listener.accept();
+        }
+        ShareListDispatcher shareList = new ShareListDispatcher(sharingUsers, clients, 50);
+        handler = new ClientHandler(server, clients, sharingUsers, new ShareRegistry(sharingUsers, shareList, 1),
+                new EdgeRegistry(), shareList);
+        ServerThreads.start("ControlCommandBenchmark-Handler", true, handler);
+        ServerThreads.start("ControlCommandBenchmark-Drain", true, () -> {
+            byte[] buf = new byte[64 * 1024];
+            try (InputStream in = client.getInputStream()) {
+                while (in.read(buf) >= 0) {
+                    // replies are discarded
+                }
+            } catch (IOException ignored) {
+            }
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        client.close();
+    }
+
+    @Benchmark
+    public void getShares() {
+        handler.handleCommand("GET_SHARES");
+    }
+
+    @Benchmark
+    public void leaveView() {
+        handler.handleCommand("LEAVE_VIEW user7");
+    }
+
+    /**
+     * From a connection that is not an edge, parsed and ignored.
+     */
+    @Benchmark
+    public void edgeLoad() {
+        handler.handleCommand("EDGE_LOAD 12");
+    }
+
+    @Benchmark
+    public void parseTextViewShare(Blackhole bh) {
+        read(ControlMessage.text(VIEW_SHARE), bh);
+    }
+
+    @Benchmark
+    public void parseBinaryViewShare(Blackhole bh) {
+        read(ControlMessage.binary(VIEW_SHARE_FRAME, 4, VIEW_SHARE_FRAME.length - 4), bh);
+    }
+
+    private static void read(ControlMessage message, Blackhole bh) {
+        switch (message.command()) {
+            case "VIEW_SHARE":
+                bh.consume(message.has(2));
+                bh.consume(message.arg(1));
+                bh.consume(message.rest(2));
+                break;
+            default:
+                throw new IllegalStateException(message.command());
+        }
+    }
+
+    @Benchmark
+    public String[] splitScreenData(ScreenData data) {
+        return data.line.split(" ", 3);
+    }
+
+    @State(Scope.Benchmark)
+    public static class ScreenData {
+        @Param({"64", "512"})
+        public int imageKb;
+
+        String line;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            byte[] image = new byte[imageKb * 1024];
+            new Random(1).nextBytes(image);
+            line = "SCREEN_DATA " + Base64.getEncoder().encodeToString(image);
+        }
+    }
+}
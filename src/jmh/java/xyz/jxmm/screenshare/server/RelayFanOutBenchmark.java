@@ -0,0 +1,199 @@
+package xyz.jxmm.screenshare.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import xyz.jxmm.screenshare.metrics.Meter;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * One video frame through the relay's forwarding path, as {@code StreamServer} runs it for every
+ * tag a publisher sends: demux from a pooled chunk, join cache, layer selection and the send
+ * queue of every viewer, then each viewer's gathering write. Viewer sockets are replaced by a
+ * channel that accepts everything, so the numbers are the relay's own CPU cost per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RelayFanOutBenchmark {
+    private static final int KEYFRAME_INTERVAL = 50;
+
+    @Param({"1", "10", "100"})
+    public int viewers;
+
+    @Param({"8192"})
+    public int frameBytes;
+
+    private final BufferPool pool = BufferPool.shared();
+    private final List<FlvTag> tags = new ArrayList<>();
+    private final TagWriter writer = new TagWriter();
+    private final FlvTag[] batch = new FlvTag[ViewerSendQueue.MAX_BATCH];
+    private final SinkChannel channel = new SinkChannel();
+    private FlvDemuxer demuxer;
+    private FlvStreamCache cache;
+    private Simulcast group;
+    private ViewerSendQueue[] queues;
+    private LayerSelector[] layers;
+    private List<Consumer<FlvTag>> sinks;
+    private Consumer<FlvTag> fanOut;
+    private byte[] frame;
+    private int frameNo;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        demuxer = new FlvDemuxer("bench");
+        cache = new FlvStreamCache();
+        group = new Simulcast();
+        group.attach(0, cache, new Meter());
+        queues = new ViewerSendQueue[viewers];
+        layers = new LayerSelector[viewers];
+        sinks = new ArrayList<>();
+        for (int i = 0; i < viewers; i++) {
+            // no coalescing delay, every frame is written right away
+            queues[i] = new ViewerSendQueue(1024 * 1024, ServerConfig.OverflowPolicy.RESYNC, 1000, 64 * 1024, 0);
+            layers[i] = new LayerSelector(1000);
+            ViewerSendQueue queue = queues[i];
+            sinks.add(queue::offer);
+        }
+        fanOut = tag -> {
+            for (int i = 0; i < viewers; i++) layers[i].accept(tag, 0, group, sinks.get(i));
+        };
+        frame = videoTag(frameBytes);
+        byte[] config = new byte[]{0x17, 0, 0, 0, 0, 1, 0x42, 0, 0x1e, (byte) 0xff, (byte) 0xe0, 0, 0, 1, 0};
+        forward(concat(new byte[]{'F', 'L', 'V', 1, 1, 0, 0, 0, 9, 0, 0, 0, 0}, tag(9, config)));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (ViewerSendQueue queue : queues) queue.close();
+        cache.close();
+        demuxer.close();
+    }
+
+    @Benchmark
+    public long forwardFrame() throws Exception {
+        int ts = frameNo * 40;
+        frame[4] = (byte) (ts >> 16);
+        frame[5] = (byte) (ts >> 8);
+        frame[6] = (byte) ts;
+        frame[7] = (byte) (ts >> 24);
+        boolean keyframe = frameNo++ % KEYFRAME_INTERVAL == 0;
+        frame[11] = (byte) (keyframe ? 0x17 : 0x27);
+        frame[20] = (byte) (keyframe ? 0x65 : 0x41);
+        forward(frame);
+        long written = 0;
+        for (ViewerSendQueue queue : queues) {
+            int count = queue.acquireBatch(batch);
+            try {
+                long n = writer.write(channel, batch, count, queue.headOffset());
+                queue.advance((int) n);
+                written += n;
+            } finally {
+                for (int i = 0; i < count; i++) {
+                    batch[i].release();
+                    batch[i] = null;
+                }
+            }
+        }
+        return written;
+    }
+
+    private void forward(byte[] bytes) {
+        PooledBuffer chunk = pool.acquire();
+        try {
+            chunk.buffer().put(bytes);
+            tags.clear();
+            demuxer.feed(chunk, 0, bytes.length, tags::add);
+        } finally {
+            chunk.release();
+        }
+        for (FlvTag tag : tags) {
+            cache.publish(tag, fanOut);
+            tag.release();
+        }
+    }
+
+    private static byte[] videoTag(int payload) {
+        byte[] body = new byte[10 + payload];
+        body[0] = 0x27;
+        body[1] = 1;
+        int nal = 1 + payload;
+        body[5] = (byte) (nal >> 24);
+        body[6] = (byte) (nal >> 16);
+        body[7] = (byte) (nal >> 8);
+        body[8] = (byte) nal;
+        body[9] = 0x41;
+        return tag(9, body);
+    }
+
+    private static byte[] tag(int type, byte[] body) {
+        byte[] tag = new byte[11 + body.length + 4];
+        tag[0] = (byte) type;
+        tag[1] = (byte) (body.length >> 16);
+        tag[2] = (byte) (body.length >> 8);
+        tag[3] = (byte) body.length;
+        System.arraycopy(body, 0, tag, 11, body.length);
+        int previous = 11 + body.length;
+        tag[tag.length - 4] = (byte) (previous >> 24);
+        tag[tag.length - 3] = (byte) (previous >> 16);
+        tag[tag.length - 2] = (byte) (previous >> 8);
+        tag[tag.length - 1] = (byte) previous;
+        return tag;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] both = new byte[a.length + b.length];
+        System.arraycopy(a, 0, both, 0, a.length);
+        System.arraycopy(b, 0, both, a.length, b.length);
+        return both;
+    }
+
+    /**
+     * Viewer socket that takes every byte at once.
+     */
+    private static final class SinkChannel implements GatheringByteChannel {
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long n = 0;
+            for (int i = offset; i < offset + length; i++) {
+                n += srcs[i].remaining();
+                srcs[i].position(srcs[i].limit());
+            }
+            return n;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
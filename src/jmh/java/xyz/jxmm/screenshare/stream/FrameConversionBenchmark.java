@@ -0,0 +1,89 @@
+package xyz.jxmm.screenshare.stream;
+
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.Java2DFrameConverter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 两端每帧都要做的 {@link Java2DFrameConverter} 转换：发布端编码前把采集的图像转为帧
+ * ({@link H264Publisher#publishFrame})，观看端把解码出的 BGR24 帧转为图像显示 ({@link H264Viewer})。
+ * 屏幕采集得到 TYPE_INT_RGB，同播的缩放层是 TYPE_3BYTE_BGR。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FrameConversionBenchmark {
+    @Param({"1280x720", "1920x1080"})
+    public String size;
+
+    @Param({"INT_RGB", "3BYTE_BGR"})
+    public String capture;
+
+    // 各自一个转换器，和发布端、观看端一样复用它们缓存的帧与图像
+    private final Java2DFrameConverter publisher = new Java2DFrameConverter();
+    private final Java2DFrameConverter viewer = new Java2DFrameConverter();
+    private BufferedImage image;
+    private Frame decoded;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int x = size.indexOf('x');
+        int width = Integer.parseInt(size.substring(0, x));
+        int height = Integer.parseInt(size.substring(x + 1));
+        image = screen(width, height, "INT_RGB".equals(capture) ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_3BYTE_BGR);
+        // 解码器输出的是 BGR24，与 TYPE_3BYTE_BGR 图像转换得到的帧布局相同
+        decoded = new Java2DFrameConverter().convert(screen(width, height, BufferedImage.TYPE_3BYTE_BGR));
+    }
+
+    @Benchmark
+    public Frame publisherImageToFrame() {
+        return publisher.convert(image);
+    }
+
+    @Benchmark
+    public BufferedImage viewerFrameToImage() {
+        return viewer.convert(decoded);
+    }
+
+    /**
+     * 类似桌面的画面：纯色背景、窗口和文字
+     */
+    public static BufferedImage screen(int width, int height, int type) {
+        BufferedImage img = new BufferedImage(width, height, type);
+        Graphics2D g = img.createGraphics();
+        try {
+            g.setColor(new Color(0x2d5f8b));
+            g.fillRect(0, 0, width, height);
+            g.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 14));
+            for (int w = 0; w < 4; w++) {
+                int left = width / 10 + w * width / 6;
+                int top = height / 10 + w * height / 8;
+                g.setColor(Color.WHITE);
+                g.fillRect(left, top, width / 2, height / 2);
+                g.setColor(new Color(0x3c3c3c));
+                g.fillRect(left, top, width / 2, 24);
+                g.setColor(Color.BLACK);
+                for (int line = 0; line < height / 2 / 18 - 2; line++) {
+                    g.drawString("public void run() { int line = " + line * (w + 1) + "; }", left + 8, top + 44 + line * 18);
+                }
+            }
+        } finally {
+            g.dispose();
+        }
+        return img;
+    }
+}
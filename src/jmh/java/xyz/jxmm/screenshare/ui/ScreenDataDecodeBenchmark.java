@@ -0,0 +1,53 @@
+package xyz.jxmm.screenshare.ui;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import xyz.jxmm.screenshare.stream.FrameConversionBenchmark;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 旧的 SCREEN_DATA 机制在观看端每帧的开销：{@link ViewingFrame} 对消息做 Base64 解码，再用
+ * ImageIO 解出图像。与 H264 路径 (FrameConversionBenchmark) 对比用。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ScreenDataDecodeBenchmark {
+    @Param({"1280x720", "1920x1080"})
+    public String size;
+
+    @Param({"jpg", "png"})
+    public String format;
+
+    private String imageData;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        int x = size.indexOf('x');
+        BufferedImage img = FrameConversionBenchmark.screen(Integer.parseInt(size.substring(0, x)),
+                Integer.parseInt(size.substring(x + 1)), BufferedImage.TYPE_INT_RGB);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if (!ImageIO.write(img, format, bytes)) throw new IOException("no ImageIO writer for " + format);
+        imageData = Base64.getEncoder().encodeToString(bytes.toByteArray());
+    }
+
+    @Benchmark
+    public BufferedImage decode() throws IOException {
+        byte[] imageBytes = Base64.getDecoder().decode(imageData);
+        return ImageIO.read(new ByteArrayInputStream(imageBytes));
+    }
+}
@@ -0,0 +1,119 @@
+package xyz.jxmm.screenshare.loadtest;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One control connection speaking the server's line protocol. A reader thread takes every line
+ * off the socket, so broadcasts never back up the server, and hands replies to {@link #await}
+ * callers. {@code SHARES} lists are dropped, they are not replies: the server sends one on login
+ * and one to every client after each change to the share list. A {@code PING} is answered right
+ * there, like the real client does, so idle connections of a long run are not closed.
+ */
+final class ControlClient implements Closeable {
+    // identity compared, the server may send empty lines
+    private static final String CLOSED = new String();
+
+    private final Socket socket;
+    private final PrintWriter out;
+    private final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+    // how long connecting and LOGIN took
+    final long loginNanos;
+
+    private ControlClient(Socket socket, long startNanos, String user, long timeoutMs) throws IOException {
+        this.socket = socket;
+        this.out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        Thread reader = new Thread(null, () -> readLoop(in), "LoadTest-Control-" + user, 256 * 1024);
+        reader.setDaemon(true);
+        reader.start();
+        send("LOGIN " + user);
+        await("LOGIN_", timeoutMs);
+        this.loginNanos = System.nanoTime() - startNanos;
+    }
+
+    static ControlClient login(String host, int port, String user, long timeoutMs) throws IOException {
+        long start = System.nanoTime();
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), (int) timeoutMs);
+            return new ControlClient(socket, start, user, timeoutMs);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    void send(String line) {
+        out.println(line);
+    }
+
+    /**
+     * Next line starting with {@code prefix}, skipping everything else.
+     *
+     * @throws IOException on timeout, or if the server closed the connection
+     */
+    String await(String prefix, long timeoutMs) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        try {
+            while (true) {
+                String line = lines.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if (line == null) throw new IOException("no " + prefix + " within " + timeoutMs + " ms");
+                if (line == CLOSED) throw new IOException("control connection closed");
+                if (line.startsWith(prefix)) return line;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted waiting for " + prefix);
+        }
+    }
+
+    /**
+     * Whether a line starting with {@code prefix} arrived, without waiting. Discards every other
+     * line received so far, for connections that no longer wait for replies.
+     */
+    boolean poll(String prefix) {
+        boolean found = false;
+        String line;
+        while ((line = lines.poll()) != null) {
+            if (line == CLOSED) {
+                lines.add(CLOSED);
+                break;
+            }
+            if (line.startsWith(prefix)) found = true;
+        }
+        return found;
+    }
+
+    private void readLoop(BufferedReader in) {
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.equals("PING")) {
+                    send("PONG");
+                } else if (!line.startsWith("SHARES ")) {
+                    lines.add(line);
+                }
+            }
+        } catch (IOException ignored) {
+            // closed by us or by the server
+        } finally {
+            lines.add(CLOSED);
+        }
+    }
+
+    @Override
+    public void close() {
+        try { socket.close(); } catch (IOException ignored) {}
+    }
+}
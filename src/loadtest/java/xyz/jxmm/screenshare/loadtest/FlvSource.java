@@ -0,0 +1,193 @@
+package xyz.jxmm.screenshare.loadtest;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * FLV a load test publisher sends: one synthetic GOP or the media tags of a recorded file, played
+ * in a loop with timestamps continuing across iterations. Tags are complete FLV tags including
+ * their trailing PreviousTagSize; every publisher has its own instance.
+ */
+final class FlvSource {
+    static final byte[] HEADER = {'F', 'L', 'V', 1, 1, 0, 0, 0, 9, 0, 0, 0, 0};
+    static final int SCRIPT = 18;
+    static final int VIDEO = 9;
+    static final int AUDIO = 8;
+
+    private final List<byte[]> init;
+    private final List<byte[]> media;
+    // media time one iteration of the loop covers
+    private final int loopMillis;
+    private final boolean synthetic;
+    private int position;
+    private int loopBase;
+
+    private FlvSource(List<byte[]> init, List<byte[]> media, int loopMillis, boolean synthetic) {
+        if (media.isEmpty()) throw new IllegalArgumentException("no media tags to send");
+        this.init = init;
+        this.media = media;
+        this.loopMillis = Math.max(1, loopMillis);
+        this.synthetic = synthetic;
+    }
+
+    /**
+     * Video only stream of {@code fps} frames per second, a keyframe every {@code gopFrames}.
+     * Frames are shaped like H264 so the relay recognises keyframes and reference frames.
+     */
+    static FlvSource synthetic(int fps, int frameBytes, int gopFrames) {
+        List<byte[]> init = new ArrayList<>();
+        init.add(tag(SCRIPT, 0, new byte[]{2, 0, 10, 'o', 'n', 'M', 'e', 't', 'a', 'D', 'a', 't', 'a'}));
+        // AVCDecoderConfigurationRecord, baseline profile
+        init.add(tag(VIDEO, 0, new byte[]{0x17, 0, 0, 0, 0, 1, 0x42, 0, 0x1e, (byte) 0xff, (byte) 0xe0, 0, 0, 1, 0}));
+        List<byte[]> media = new ArrayList<>();
+        for (int i = 0; i < gopFrames; i++) {
+            // keyframes of screen content are several times larger than the frames in between
+            media.add(frame(i * 1000 / fps, i == 0, i == 0 ? frameBytes * 4 : frameBytes));
+        }
+        return new FlvSource(init, media, gopFrames * 1000 / fps, true);
+    }
+
+    /**
+     * Tags of an FLV file, e.g. a screen capture saved with ffmpeg. onMetaData and sequence
+     * headers are sent once, the rest loops.
+     */
+    static FlvSource recorded(Path file) throws IOException {
+        List<byte[]> init = new ArrayList<>();
+        List<byte[]> media = new ArrayList<>();
+        int first = -1;
+        int last = 0;
+        int videoFrames = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            byte[] header = new byte[9];
+            in.readFully(header);
+            if (header[0] != 'F' || header[1] != 'L' || header[2] != 'V') throw new IOException(file + " is not an FLV file");
+            in.skipBytes(readInt(header, 5) - 9 + 4);
+            while (true) {
+                byte[] tag;
+                try {
+                    byte[] head = new byte[11];
+                    in.readFully(head);
+                    int size = (head[1] & 0xFF) << 16 | (head[2] & 0xFF) << 8 | head[3] & 0xFF;
+                    tag = Arrays.copyOf(head, 11 + size + 4);
+                    in.readFully(tag, 11, size + 4);
+                } catch (EOFException e) {
+                    break;
+                }
+                if (isConfig(tag)) {
+                    init.add(tag);
+                    continue;
+                }
+                int ts = timestamp(tag);
+                if (first < 0) first = ts;
+                setTimestamp(tag, ts - first);
+                last = ts - first;
+                if ((tag[0] & 0x1F) == VIDEO) videoFrames++;
+                media.add(tag);
+            }
+        }
+        // the loop continues one frame interval after the last tag
+        int interval = videoFrames > 1 ? last / (videoFrames - 1) : 40;
+        return new FlvSource(init, media, last + interval, false);
+    }
+
+    List<byte[]> init() {
+        return init;
+    }
+
+    /**
+     * Next media tag, a copy the caller owns with its timestamp set to milliseconds since the
+     * stream started.
+     */
+    byte[] next() {
+        byte[] tag = media.get(position).clone();
+        setTimestamp(tag, loopBase + timestamp(tag));
+        if (++position == media.size()) {
+            position = 0;
+            loopBase += loopMillis;
+        }
+        return tag;
+    }
+
+    /**
+     * Turns a synthetic frame into an IDR frame, what a publisher does for
+     * {@code REQUEST_KEYFRAME}. Recorded tags are left alone, they carry real H264.
+     */
+    boolean forceKeyframe(byte[] tag) {
+        if (!synthetic || !isVideoFrame(tag)) return false;
+        tag[11] = 0x17;
+        tag[20] = 0x65;
+        return true;
+    }
+
+    static int timestamp(byte[] tag) {
+        return (tag[7] & 0xFF) << 24 | (tag[4] & 0xFF) << 16 | (tag[5] & 0xFF) << 8 | tag[6] & 0xFF;
+    }
+
+    static void setTimestamp(byte[] tag, int ts) {
+        tag[4] = (byte) (ts >> 16);
+        tag[5] = (byte) (ts >> 8);
+        tag[6] = (byte) ts;
+        tag[7] = (byte) (ts >> 24);
+    }
+
+    /**
+     * AVC video tag carrying a picture, not a sequence header.
+     */
+    static boolean isVideoFrame(byte[] tag) {
+        return (tag[0] & 0x1F) == VIDEO && tag.length > 16 && (tag[11] & 0x0F) == 7 && tag[12] == 1;
+    }
+
+    static boolean isKeyframe(byte[] tag) {
+        return isVideoFrame(tag) && (tag[11] & 0xF0) == 0x10;
+    }
+
+    private static boolean isConfig(byte[] tag) {
+        int type = tag[0] & 0x1F;
+        if (type == SCRIPT) return true;
+        if (tag.length < 17) return false;
+        // AVC sequence header, AAC AudioSpecificConfig
+        if (type == VIDEO) return (tag[11] & 0x0F) == 7 && tag[12] == 0;
+        return type == AUDIO && (tag[11] & 0xF0) == 0xA0 && tag[12] == 0;
+    }
+
+    private static byte[] frame(int ts, boolean keyframe, int payload) {
+        byte[] body = new byte[5 + 4 + 1 + payload];
+        body[0] = (byte) (keyframe ? 0x17 : 0x27);
+        body[1] = 1;
+        int nal = 1 + payload;
+        body[5] = (byte) (nal >> 24);
+        body[6] = (byte) (nal >> 16);
+        body[7] = (byte) (nal >> 8);
+        body[8] = (byte) nal;
+        // IDR slice, or a non-IDR slice other frames reference
+        body[9] = (byte) (keyframe ? 0x65 : 0x41);
+        return tag(VIDEO, ts, body);
+    }
+
+    private static byte[] tag(int type, int ts, byte[] body) {
+        byte[] tag = new byte[11 + body.length + 4];
+        tag[0] = (byte) type;
+        tag[1] = (byte) (body.length >> 16);
+        tag[2] = (byte) (body.length >> 8);
+        tag[3] = (byte) body.length;
+        setTimestamp(tag, ts);
+        System.arraycopy(body, 0, tag, 11, body.length);
+        int previous = 11 + body.length;
+        tag[tag.length - 4] = (byte) (previous >> 24);
+        tag[tag.length - 3] = (byte) (previous >> 16);
+        tag[tag.length - 2] = (byte) (previous >> 8);
+        tag[tag.length - 1] = (byte) previous;
+        return tag;
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return (b[off] & 0xFF) << 24 | (b[off + 1] & 0xFF) << 16 | (b[off + 2] & 0xFF) << 8 | b[off + 3] & 0xFF;
+    }
+}
@@ -0,0 +1,96 @@
+package xyz.jxmm.screenshare.loadtest;
+
+import xyz.jxmm.screenshare.server.StreamHandshake;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One share: a control connection that started it and a stream connection sending
+ * {@link FlvSource} tags in real time. Remembers when each recent tag was written, keyed by its
+ * timestamp, so viewers in the same process can tell how long the relay took to deliver it.
+ */
+final class LoadPublisher {
+    // ~65 s of tags at millisecond timestamps
+    private static final int SENT_SLOTS = 1 << 16;
+
+    final String share;
+    private final ControlClient control;
+    private final FlvSource source;
+    private final Socket socket;
+    private final AtomicIntegerArray sentTimestamps = new AtomicIntegerArray(SENT_SLOTS);
+    private final AtomicLongArray sentNanos = new AtomicLongArray(SENT_SLOTS);
+    final LongAdder bytesSent = new LongAdder();
+    final LongAdder keyframeRequests = new LongAdder();
+    private volatile boolean running = true;
+    private Thread thread;
+
+    LoadPublisher(String share, ControlClient control, FlvSource source, String host, int port,
+                  String token, long timeoutMs) throws IOException {
+        this.share = share;
+        this.control = control;
+        this.source = source;
+        this.socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(host, port), (int) timeoutMs);
+        socket.getOutputStream().write(StreamHandshake.encode(StreamHandshake.Role.PUBLISH, token));
+    }
+
+    void start() {
+        thread = new Thread(null, this::sendLoop, "LoadTest-Publisher-" + share, 256 * 1024);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * {@link System#nanoTime()} the tag with timestamp {@code ts} was written, -1 if it is unknown.
+     */
+    long sentAt(int ts) {
+        int slot = ts & (SENT_SLOTS - 1);
+        // the timestamp is stored last, a match means the time next to it belongs to it
+        if (sentTimestamps.get(slot) != ts) return -1;
+        long nanos = sentNanos.get(slot);
+        return nanos != 0 && sentTimestamps.get(slot) == ts ? nanos : -1;
+    }
+
+    private void sendLoop() {
+        try {
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+            out.write(FlvSource.HEADER);
+            for (byte[] tag : source.init()) out.write(tag);
+            out.flush();
+            long start = System.nanoTime();
+            while (running) {
+                byte[] tag = source.next();
+                int ts = FlvSource.timestamp(tag);
+                long wait = start + ts * 1_000_000L - System.nanoTime();
+                if (wait > 0) Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                // the relay asks for an IDR when viewers join or fall behind, answered like H264Publisher does
+                if (control.poll("REQUEST_KEYFRAME") && source.forceKeyframe(tag)) keyframeRequests.increment();
+                int slot = ts & (SENT_SLOTS - 1);
+                sentNanos.set(slot, System.nanoTime());
+                sentTimestamps.set(slot, ts);
+                out.write(tag);
+                out.flush();
+                bytesSent.add(tag.length);
+            }
+        } catch (IOException e) {
+            if (running) System.out.println("[LoadTest] Publisher " + share + " failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void stop() {
+        running = false;
+        control.send("STOP_SHARE");
+        try { socket.close(); } catch (IOException ignored) {}
+        control.close();
+    }
+}
@@ -0,0 +1,276 @@
+package xyz.jxmm.screenshare.loadtest;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Headless load generator for a running {@code ServerApplication}. Starts {@code shares}
+ * publishers over the control protocol ({@code LOGIN}, {@code START_SHARE}) that stream synthetic
+ * or recorded FLV in real time, attaches {@code viewers} viewers to each ({@code VIEW_SHARE})
+ * spread over {@code ramp.seconds}, optionally opens {@code idle} control connections that only
+ * log in, and reports:
+ * <ul>
+ * <li>control connect + LOGIN latency, and VIEW_SHARE until the first keyframe arrives</li>
+ * <li>delay from a publisher writing a frame to a viewer reading it</li>
+ * <li>publisher and viewer throughput once every viewer is attached</li>
+ * <li>the server's threads, heap and client counts from its metrics endpoint</li>
+ * </ul>
+ * Publishers and viewers run in this process, their timestamps share one clock. Options are
+ * {@code --name=value}, see {@link #DEFAULTS}; {@code gradle loadTest --args="--shares=10 --viewers=50"}.
+ */
+public final class LoadTest {
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+    static {
+        DEFAULTS.put("host", "localhost");
+        DEFAULTS.put("control.port", "9999");
+        DEFAULTS.put("stream.port", "10002");
+        // 0 leaves the server side out of the report
+        DEFAULTS.put("metrics.port", "9180");
+        DEFAULTS.put("shares", "1");
+        DEFAULTS.put("viewers", "10");
+        DEFAULTS.put("idle", "0");
+        DEFAULTS.put("seconds", "30");
+        DEFAULTS.put("ramp.seconds", "5");
+        DEFAULTS.put("fps", "25");
+        DEFAULTS.put("frame.kb", "10");
+        DEFAULTS.put("gop.seconds", "2");
+        // FLV file to send instead of synthetic frames
+        DEFAULTS.put("flv", "");
+        DEFAULTS.put("password", "loadtest");
+        DEFAULTS.put("timeout.ms", "10000");
+        // threads opening connections during the ramp
+        DEFAULTS.put("connectors", "16");
+    }
+
+    private final Map<String, String> options;
+    private final String host;
+    private final long timeoutMs;
+    private final List<ControlClient> controls = Collections.synchronizedList(new ArrayList<>());
+    private final List<LoadPublisher> publishers = new ArrayList<>();
+    private final List<LoadViewer> viewers = Collections.synchronizedList(new ArrayList<>());
+    private final Samples logins = new Samples();
+    private final Samples joins = new Samples();
+    private final Samples delays = new Samples();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final AtomicInteger failedConnections = new AtomicInteger();
+    private ServerProbe probe;
+
+    private LoadTest(Map<String, String> options) {
+        this.options = options;
+        this.host = options.get("host");
+        this.timeoutMs = intOption("timeout.ms");
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            String name = arg.startsWith("--") && eq > 2 ? arg.substring(2, eq) : null;
+            if (name == null || !DEFAULTS.containsKey(name)) {
+                System.err.println("[LoadTest] Unknown option " + arg + ", known: " + DEFAULTS.keySet());
+                System.exit(2);
+            }
+            options.put(name, arg.substring(eq + 1));
+        }
+        new LoadTest(options).run();
+        // viewer and control reader threads are daemons, nothing left to wait for
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        System.out.println("[LoadTest] " + options);
+        int metricsPort = intOption("metrics.port");
+        if (metricsPort > 0) {
+            probe = new ServerProbe(host, metricsPort);
+            if (!probe.sample()) {
+                System.out.println("[LoadTest] No metrics on port " + metricsPort + ", server threads and heap are not reported");
+                probe = null;
+            }
+        }
+
+        int shares = intOption("shares");
+        for (int i = 0; i < shares; i++) {
+            try {
+                publishers.add(startShare("lt-pub-" + i));
+            } catch (IOException e) {
+                failedConnections.incrementAndGet();
+                System.out.println("[LoadTest] Share " + i + " failed: " + e.getMessage());
+            }
+        }
+        if (publishers.isEmpty()) {
+            System.out.println("[LoadTest] No share could be started, is the server running on " + host + "?");
+            return;
+        }
+        // lets every share get past its first keyframe, viewers then join a running stream
+        Thread.sleep(500);
+
+        long rampStart = System.nanoTime();
+        ramp();
+        long rampNanos = System.nanoTime() - rampStart;
+        long sentAtSteady = bytesSent();
+        long receivedAtSteady = bytesReceived.sum();
+        long steadyStart = System.nanoTime();
+
+        long end = steadyStart + Math.max(0, intOption("seconds") * 1_000_000_000L - rampNanos);
+        while (System.nanoTime() < end) {
+            Thread.sleep(Math.min(1000, Math.max(1, (end - System.nanoTime()) / 1_000_000)));
+            progress(steadyStart);
+        }
+        double steadySeconds = (System.nanoTime() - steadyStart) / 1e9;
+        long sent = bytesSent() - sentAtSteady;
+        long received = bytesReceived.sum() - receivedAtSteady;
+        if (probe != null) probe.sample();
+
+        for (LoadViewer viewer : viewers) viewer.stop();
+        for (LoadPublisher publisher : publishers) publisher.stop();
+        for (ControlClient control : controls) control.close();
+        report(rampNanos, steadySeconds, sent, received);
+    }
+
+    private LoadPublisher startShare(String user) throws IOException {
+        ControlClient control = login(user);
+        control.send("START_SHARE " + options.get("password"));
+        String[] started = control.await("SHARE_STARTED", timeoutMs).split(" ");
+        if (started.length < 2) throw new IOException("the server issued no stream token");
+        LoadPublisher publisher = new LoadPublisher(user, control, newSource(), host, intOption("stream.port"), started[1], timeoutMs);
+        publisher.start();
+        return publisher;
+    }
+
+    private FlvSource newSource() throws IOException {
+        String flv = options.get("flv");
+        if (!flv.isEmpty()) return FlvSource.recorded(Paths.get(flv));
+        int fps = Math.max(1, intOption("fps"));
+        return FlvSource.synthetic(fps, intOption("frame.kb") * 1024, Math.max(1, fps * intOption("gop.seconds")));
+    }
+
+    /**
+     * Opens the viewers and idle control connections, evenly spread over {@code ramp.seconds}.
+     */
+    private void ramp() throws InterruptedException {
+        int perShare = intOption("viewers");
+        int idle = intOption("idle");
+        int total = publishers.size() * perShare + idle;
+        if (total == 0) return;
+        long rampNanos = intOption("ramp.seconds") * 1_000_000_000L;
+        long start = System.nanoTime();
+        ExecutorService connectors = Executors.newFixedThreadPool(Math.max(1, intOption("connectors")));
+        for (int k = 0; k < total; k++) {
+            long due = start + rampNanos * k / total;
+            int n = k;
+            connectors.execute(() -> {
+                long wait = due - System.nanoTime();
+                try {
+                    if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+                    if (n < publishers.size() * perShare) {
+                        // round robin, so every share has viewers early on
+                        attachViewer(publishers.get(n % publishers.size()), "lt-view-" + n);
+                    } else {
+                        login("lt-idle-" + n);
+                    }
+                } catch (IOException e) {
+                    failedConnections.incrementAndGet();
+                    System.out.println("[LoadTest] Connection " + n + " failed: " + e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        connectors.shutdown();
+        connectors.awaitTermination(rampNanos / 1_000_000 + total * timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void attachViewer(LoadPublisher publisher, String user) throws IOException {
+        ControlClient control = login(user);
+        long joinStart = System.nanoTime();
+        control.send("VIEW_SHARE " + publisher.share + " " + options.get("password"));
+        String reply = control.await("VIEW_", timeoutMs);
+        String[] parts = reply.split(" ");
+        if (!parts[0].equals("VIEW_ACCEPTED") || parts.length < 3) throw new IOException(reply);
+        // an origin with edges names the edge to connect to
+        String streamHost = host;
+        int streamPort = intOption("stream.port");
+        if (parts.length > 3) {
+            int colon = parts[3].lastIndexOf(':');
+            streamHost = parts[3].substring(0, colon);
+            streamPort = Integer.parseInt(parts[3].substring(colon + 1));
+        }
+        LoadViewer viewer = new LoadViewer(publisher, streamHost, streamPort, parts[2], joinStart, timeoutMs,
+                delays, joins, bytesReceived);
+        viewers.add(viewer);
+        viewer.start(user);
+    }
+
+    private ControlClient login(String user) throws IOException {
+        ControlClient control = ControlClient.login(host, intOption("control.port"), user, timeoutMs);
+        controls.add(control);
+        logins.add(control.loginNanos);
+        return control;
+    }
+
+    private long bytesSent() {
+        long sum = 0;
+        for (LoadPublisher publisher : publishers) sum += publisher.bytesSent.sum();
+        return sum;
+    }
+
+    private void progress(long steadyStart) {
+        StringBuilder line = new StringBuilder("[LoadTest] ")
+                .append((System.nanoTime() - steadyStart) / 1_000_000_000L).append("s viewers=").append(viewers.size())
+                .append(" received=").append(bytesReceived.sum() / (1024 * 1024)).append("MB delay samples=").append(delays.count());
+        if (probe != null && probe.sample()) {
+            line.append(" server threads=").append((long) probe.latest(ServerProbe.THREADS))
+                    .append(" heap=").append((long) (probe.latest(ServerProbe.HEAP) / (1024 * 1024))).append("MB");
+        }
+        System.out.println(line);
+    }
+
+    private void report(long rampNanos, double steadySeconds, long sent, long received) {
+        int failedViewers = 0;
+        long keyframeRequests = 0;
+        for (LoadViewer viewer : viewers) {
+            if (viewer.failed) failedViewers++;
+        }
+        for (LoadPublisher publisher : publishers) keyframeRequests += publisher.keyframeRequests.sum();
+        double sentMbit = sent * 8 / steadySeconds / 1e6;
+        double receivedMbit = received * 8 / steadySeconds / 1e6;
+        // every viewer of a share should receive what its publisher sent
+        double expected = sentMbit / publishers.size() * viewers.size();
+        System.out.println();
+        System.out.println("==== Load test report ====");
+        System.out.printf("shares %d, viewers %d, control connections %d, failed connections %d, streams lost %d%n",
+                publishers.size(), viewers.size(), controls.size(), failedConnections.get(), failedViewers);
+        System.out.printf("ramp %.1f s, steady state %.1f s, keyframes requested by the server %d%n",
+                rampNanos / 1e9, steadySeconds, keyframeRequests);
+        System.out.println("control connect + LOGIN:        " + logins.summary());
+        System.out.println("VIEW_SHARE to first keyframe:   " + joins.summary());
+        System.out.println("publisher write to viewer read: " + delays.summary());
+        System.out.printf("throughput: publishers %.1f Mbit/s, viewers %.1f Mbit/s (%.0f%% of %.1f expected)%n",
+                sentMbit, receivedMbit, expected > 0 ? receivedMbit * 100 / expected : 0, expected);
+        if (probe != null) {
+            System.out.println("server threads:         " + probe.growth(ServerProbe.THREADS, 1));
+            System.out.println("server heap used (MB):  " + probe.growth(ServerProbe.HEAP, 1024 * 1024));
+            System.out.println("server control clients: " + probe.growth(ServerProbe.CONTROL_CLIENTS, 1));
+            System.out.println("server stream viewers:  " + probe.growth(ServerProbe.VIEWERS, 1));
+        }
+    }
+
+    private int intOption(String name) {
+        try {
+            return Integer.parseInt(options.get(name).trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("--" + name + " must be a number: " + options.get(name));
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package xyz.jxmm.screenshare.loadtest;
+
+import xyz.jxmm.screenshare.server.StreamHandshake;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One viewer stream connection. Parses the FLV it receives just far enough to recognise video
+ * frames and records, per frame, how long after its publisher wrote it the frame arrived.
+ */
+final class LoadViewer {
+    private final LoadPublisher publisher;
+    private final Socket socket;
+    // System.nanoTime() of VIEW_SHARE, frames written before it come from the join cache
+    private final long joinStart;
+    private final Samples delays;
+    private final Samples joins;
+    final LongAdder bytesReceived;
+    // written by the reader thread only
+    volatile long frames;
+    private volatile boolean running = true;
+    // the stream ended before the test did
+    volatile boolean failed;
+
+    LoadViewer(LoadPublisher publisher, String host, int port, String token, long joinStart, long timeoutMs,
+               Samples delays, Samples joins, LongAdder bytesReceived) throws IOException {
+        this.publisher = publisher;
+        this.joinStart = joinStart;
+        this.delays = delays;
+        this.joins = joins;
+        this.bytesReceived = bytesReceived;
+        this.socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port), (int) timeoutMs);
+        socket.getOutputStream().write(StreamHandshake.encode(StreamHandshake.Role.VIEW, token));
+    }
+
+    void start(String name) {
+        Thread thread = new Thread(null, this::readLoop, "LoadTest-Viewer-" + name, 256 * 1024);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void readLoop() {
+        byte[] tag = new byte[64 * 1024];
+        boolean decodable = false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024))) {
+            in.readFully(tag, 0, FlvSource.HEADER.length);
+            bytesReceived.add(FlvSource.HEADER.length);
+            while (running) {
+                in.readFully(tag, 0, 11);
+                int size = (tag[1] & 0xFF) << 16 | (tag[2] & 0xFF) << 8 | tag[3] & 0xFF;
+                if (11 + size + 4 > tag.length) tag = Arrays.copyOf(tag, 11 + size + 4);
+                in.readFully(tag, 11, size + 4);
+                long now = System.nanoTime();
+                bytesReceived.add(11 + size + 4);
+                if (!FlvSource.isVideoFrame(tag)) continue;
+                frames++;
+                if (!decodable && FlvSource.isKeyframe(tag)) {
+                    decodable = true;
+                    joins.add(now - joinStart);
+                }
+                long sent = publisher.sentAt(FlvSource.timestamp(tag));
+                if (sent >= joinStart) delays.add(now - sent);
+            }
+        } catch (IOException e) {
+            if (running) {
+                failed = true;
+                System.out.println("[LoadTest] Viewer of " + publisher.share + " lost its stream: " + e.getMessage());
+            }
+        }
+    }
+
+    void stop() {
+        running = false;
+        try { socket.close(); } catch (IOException ignored) {}
+    }
+}
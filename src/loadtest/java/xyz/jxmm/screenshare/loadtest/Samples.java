@@ -0,0 +1,38 @@
+package xyz.jxmm.screenshare.loadtest;
+
+import java.util.Arrays;
+
+/**
+ * Latency samples in nanoseconds with exact percentiles, the server's {@code Histogram} buckets
+ * are too coarse to compare runs. Thread safe.
+ */
+final class Samples {
+    private long[] values = new long[1024];
+    private int count;
+
+    synchronized void add(long nanos) {
+        if (count == values.length) values = Arrays.copyOf(values, count * 2);
+        values[count++] = nanos;
+    }
+
+    synchronized int count() {
+        return count;
+    }
+
+    /**
+     * {@code p50 / p90 / p99 / p99.9 / max} in milliseconds, or "none".
+     */
+    synchronized String summary() {
+        if (count == 0) return "none";
+        long[] sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+        return String.format("p50 %s  p90 %s  p99 %s  p99.9 %s  max %s ms  (%d samples)",
+                millis(sorted, 0.5), millis(sorted, 0.9), millis(sorted, 0.99), millis(sorted, 0.999),
+                millis(sorted, 1), count);
+    }
+
+    private static String millis(long[] sorted, double q) {
+        int rank = (int) Math.ceil(q * sorted.length) - 1;
+        return String.format("%.1f", sorted[Math.max(0, rank)] / 1_000_000.0);
+    }
+}
@@ -0,0 +1,86 @@
+package xyz.jxmm.screenshare.loadtest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the server's own view of the load off its metrics endpoint ({@code metrics.port}):
+ * JVM threads and heap, connected control clients and viewers. Tracks the first, largest and
+ * latest value of each.
+ */
+final class ServerProbe {
+    static final String THREADS = "jvm_threads_live";
+    static final String HEAP = "jvm_heap_used_bytes";
+    static final String CONTROL_CLIENTS = "control_clients_active";
+    static final String VIEWERS = "stream_viewers_active";
+    private static final String[] TRACKED = {THREADS, HEAP, CONTROL_CLIENTS, VIEWERS};
+
+    private final URL url;
+    private final Map<String, double[]> values = new HashMap<>();
+
+    ServerProbe(String host, int port) throws IOException {
+        this.url = URI.create("http://" + host + ":" + port + "/metrics").toURL();
+    }
+
+    /**
+     * Takes a sample. Returns false if the endpoint cannot be read, the report then leaves the
+     * server side out.
+     */
+    synchronized boolean sample() {
+        Map<String, Double> current = new HashMap<>();
+        try {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(1000);
+            connection.setReadTimeout(2000);
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    // unlabelled series only: "<name> <value>"
+                    int space = line.indexOf(' ');
+                    if (line.startsWith("#") || space < 0) continue;
+                    String name = line.substring(0, space);
+                    for (String tracked : TRACKED) {
+                        if (tracked.equals(name)) current.put(name, Double.parseDouble(line.substring(space + 1).trim()));
+                    }
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            return false;
+        }
+        for (Map.Entry<String, Double> e : current.entrySet()) {
+            double v = e.getValue();
+            double[] seen = values.get(e.getKey());
+            if (seen == null) {
+                values.put(e.getKey(), new double[]{v, v, v});
+            } else {
+                seen[1] = Math.max(seen[1], v);
+                seen[2] = v;
+            }
+        }
+        return !current.isEmpty();
+    }
+
+    /**
+     * Latest value, NaN if never sampled.
+     */
+    synchronized double latest(String name) {
+        double[] seen = values.get(name);
+        return seen != null ? seen[2] : Double.NaN;
+    }
+
+    /**
+     * {@code first -> peak -> latest} of {@code name}, divided by {@code unit}.
+     */
+    synchronized String growth(String name, double unit) {
+        double[] seen = values.get(name);
+        if (seen == null) return "n/a";
+        return String.format("%.0f -> peak %.0f -> %.0f", seen[0] / unit, seen[1] / unit, seen[2] / unit);
+    }
+}
@@ -0,0 +1,23 @@
+package xyz.jxmm.screenshare.metrics;
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * Value sampled when it is read, e.g. a queue depth or a connection count.
+ */
+public final class Gauge implements GaugeMBean {
+    private final DoubleSupplier supplier;
+
+    Gauge(DoubleSupplier supplier) {
+        this.supplier = supplier;
+    }
+
+    @Override
+    public double getValue() {
+        try {
+            return supplier.getAsDouble();
+        } catch (RuntimeException e) {
+            return Double.NaN;
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package xyz.jxmm.screenshare.metrics;
+
+/**
+ * JMX view of a {@link Gauge}.
+ */
+public interface GaugeMBean {
+    double getValue();
+}
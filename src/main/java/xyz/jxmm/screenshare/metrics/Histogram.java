@@ -0,0 +1,98 @@
+package xyz.jxmm.screenshare.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with power-of-two microsecond buckets (1 µs .. ~16 s). Recording is lock
+ * free; percentiles are reported as the upper bound of the bucket they fall in.
+ */
+public final class Histogram implements HistogramMBean {
+    static final int BUCKETS = 25;
+
+    // bucket i counts values <= 2^i µs, the last slot everything above
+    private final LongAdder[] buckets = new LongAdder[BUCKETS + 1];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public Histogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        long micros = (nanos + 999) / 1000;
+        int bucket = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+        buckets[Math.min(bucket, BUCKETS)].increment();
+        count.increment();
+        sumNanos.add(nanos);
+        long max;
+        while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+            // retry
+        }
+    }
+
+    /**
+     * Upper bound of bucket {@code i} in seconds, infinite for the overflow bucket.
+     */
+    static double upperBoundSeconds(int i) {
+        return i < BUCKETS ? (1L << i) / 1_000_000.0 : Double.POSITIVE_INFINITY;
+    }
+
+    long[] bucketCounts() {
+        long[] counts = new long[buckets.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    double sumSeconds() {
+        return sumNanos.sum() / 1_000_000_000.0;
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public double getMean() {
+        long c = count.sum();
+        return c == 0 ? 0 : sumNanos.sum() / 1_000_000.0 / c;
+    }
+
+    @Override
+    public double get50thPercentile() {
+        return percentileMillis(0.5);
+    }
+
+    @Override
+    public double get99thPercentile() {
+        return percentileMillis(0.99);
+    }
+
+    @Override
+    public double getMax() {
+        return maxNanos.get() / 1_000_000.0;
+    }
+
+    private double percentileMillis(double q) {
+        long[] counts = bucketCounts();
+        long total = 0;
+        for (long c : counts) total += c;
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return i < BUCKETS ? (1L << i) / 1000.0 : getMax();
+            }
+        }
+        return getMax();
+    }
+}
@@ -0,0 +1,16 @@
+package xyz.jxmm.screenshare.metrics;
+
+/**
+ * JMX view of a {@link Histogram}, values in milliseconds.
+ */
+public interface HistogramMBean {
+    long getCount();
+
+    double getMean();
+
+    double get50thPercentile();
+
+    double get99thPercentile();
+
+    double getMax();
+}
@@ -0,0 +1,48 @@
+package xyz.jxmm.screenshare.metrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Mirrors the registry into the platform MBean server, one MBean per series, e.g.
+ * {@code xyz.jxmm.screenshare:type=Meter,name=stream_ingest_bytes,share="alice"}.
+ */
+public final class JmxExporter implements MetricsRegistry.Listener {
+    private static final String DOMAIN = "xyz.jxmm.screenshare";
+
+    private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+    @Override
+    public void added(MetricId id, Object metric) {
+        try {
+            ObjectName name = objectName(id, metric);
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+            server.registerMBean(metric, name);
+        } catch (JMException e) {
+            System.err.println("[JmxExporter] 注册 " + id + " 失败: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void removed(MetricId id, Object metric) {
+        try {
+            ObjectName name = objectName(id, metric);
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+        } catch (JMException e) {
+            System.err.println("[JmxExporter] 注销 " + id + " 失败: " + e.getMessage());
+        }
+    }
+
+    private static ObjectName objectName(MetricId id, Object metric) throws JMException {
+        StringBuilder sb = new StringBuilder(DOMAIN)
+                .append(":type=").append(metric.getClass().getSimpleName())
+                .append(",name=").append(id.name);
+        for (int i = 0; i < id.labels.length; i += 2) {
+            // values such as viewer addresses contain ':', so they are always quoted
+            sb.append(',').append(id.labels[i]).append('=').append(ObjectName.quote(id.labels[i + 1]));
+        }
+        return new ObjectName(sb.toString());
+    }
+}
@@ -0,0 +1,38 @@
+package xyz.jxmm.screenshare.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonic event counter with the rate of the last tick, e.g. bytes forwarded per second.
+ * {@link #mark(long)} is cheap enough for per-write hot paths.
+ */
+public final class Meter implements MeterMBean {
+    private final LongAdder count = new LongAdder();
+    // only touched by the registry tick
+    private long lastCount;
+    private long lastTick = System.nanoTime();
+    private volatile double rate;
+
+    public void mark(long n) {
+        count.add(n);
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public double getRate() {
+        return rate;
+    }
+
+    void tick(long now) {
+        long c = count.sum();
+        long elapsed = now - lastTick;
+        if (elapsed <= 0) return;
+        rate = (c - lastCount) * 1_000_000_000.0 / elapsed;
+        lastCount = c;
+        lastTick = now;
+    }
+}
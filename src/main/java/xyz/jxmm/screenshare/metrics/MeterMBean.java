@@ -0,0 +1,13 @@
+package xyz.jxmm.screenshare.metrics;
+
+/**
+ * JMX view of a {@link Meter}.
+ */
+public interface MeterMBean {
+    long getCount();
+
+    /**
+     * Events per second over the last tick.
+     */
+    double getRate();
+}
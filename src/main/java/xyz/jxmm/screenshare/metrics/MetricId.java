@@ -0,0 +1,77 @@
+package xyz.jxmm.screenshare.metrics;
+
+import java.util.Arrays;
+
+/**
+ * Metric name plus label pairs, e.g. {@code stream_ingest_bytes{share="alice"}}.
+ * Ids order by name first so the series of one metric sit next to each other.
+ */
+public final class MetricId implements Comparable<MetricId> {
+    final String name;
+    // alternating label names and values
+    final String[] labels;
+    private final String text;
+
+    MetricId(String name, String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("labels must be name/value pairs: " + Arrays.toString(labels));
+        }
+        this.name = name;
+        this.labels = labels.clone();
+        StringBuilder sb = new StringBuilder(name);
+        if (labels.length > 0) {
+            sb.append('{');
+            for (int i = 0; i < labels.length; i += 2) {
+                if (i > 0) sb.append(',');
+                sb.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+            }
+            sb.append('}');
+        }
+        this.text = sb.toString();
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * The label block with {@code extra} appended, as used in the text exposition format.
+     */
+    String labelsWith(String extraName, String extraValue) {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2) {
+            sb.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append("\",");
+        }
+        sb.append(extraName).append("=\"").append(extraValue).append("\"}");
+        return sb.toString();
+    }
+
+    String labelBlock() {
+        return text.substring(name.length());
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    @Override
+    public int compareTo(MetricId o) {
+        int c = name.compareTo(o.name);
+        return c != 0 ? c : text.compareTo(o.text);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof MetricId && text.equals(((MetricId) o).text);
+    }
+
+    @Override
+    public int hashCode() {
+        return text.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
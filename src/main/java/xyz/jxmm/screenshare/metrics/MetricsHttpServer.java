@@ -0,0 +1,51 @@
+package xyz.jxmm.screenshare.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Scrape endpoint serving {@link MetricsRegistry#writeText} on {@code GET /metrics}.
+ * Binds to the loopback interface only.
+ */
+public final class MetricsHttpServer {
+    private final HttpServer server;
+
+    public MetricsHttpServer(MetricsRegistry registry, int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> handle(registry, exchange));
+    }
+
+    private static void handle(MetricsRegistry registry, HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            StringBuilder sb = new StringBuilder(8192);
+            registry.writeText(sb);
+            byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    public void start() {
+        server.start();
+        System.out.println("[MetricsHttpServer] Serving metrics on http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/metrics");
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,209 @@
+package xyz.jxmm.screenshare.metrics;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+import java.util.function.Function;
+
+/**
+ * Process wide set of {@link Meter}s, {@link Histogram}s and {@link Gauge}s.
+ * Metrics are created on first use and live until {@link #remove}d; exporters
+ * ({@link JmxExporter}, {@link MetricsHttpServer}) follow additions and removals through
+ * {@link Listener}s.
+ */
+public final class MetricsRegistry {
+
+    public interface Listener {
+        void added(MetricId id, Object metric);
+
+        void removed(MetricId id, Object metric);
+    }
+
+    private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+    private static final MathContext SIGNIFICANT = new MathContext(6);
+
+    private final ConcurrentSkipListMap<MetricId, Object> metrics = new ConcurrentSkipListMap<>();
+    private final Map<String, String> help = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Metrics-Tick");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private MetricsRegistry() {
+        // meter rates are per second
+        ticker.scheduleAtFixedRate(this::tick, 1, 1, TimeUnit.SECONDS);
+    }
+
+    public static MetricsRegistry get() {
+        return DEFAULT;
+    }
+
+    /**
+     * One line description shown by the HTTP endpoint.
+     */
+    public void describe(String name, String text) {
+        help.put(name, text);
+    }
+
+    public Meter meter(String name, String... labels) {
+        return getOrAdd(new MetricId(name, labels), Meter.class, id -> new Meter());
+    }
+
+    public Histogram histogram(String name, String... labels) {
+        return getOrAdd(new MetricId(name, labels), Histogram.class, id -> new Histogram());
+    }
+
+    /**
+     * Registers a gauge, replacing an earlier one with the same id.
+     */
+    public Gauge gauge(DoubleSupplier supplier, String name, String... labels) {
+        MetricId id = new MetricId(name, labels);
+        Gauge gauge = new Gauge(supplier);
+        Object old = metrics.put(id, gauge);
+        if (old != null) fire(id, old, false);
+        fire(id, gauge, true);
+        return gauge;
+    }
+
+    public void remove(String name, String... labels) {
+        MetricId id = new MetricId(name, labels);
+        Object old = metrics.remove(id);
+        if (old != null) fire(id, old, false);
+    }
+
+    /**
+     * Adds {@code listener} and replays every metric registered so far to it.
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+        for (Map.Entry<MetricId, Object> e : metrics.entrySet()) {
+            listener.added(e.getKey(), e.getValue());
+        }
+    }
+
+    private <T> T getOrAdd(MetricId id, Class<T> type, Function<MetricId, T> factory) {
+        Object metric = metrics.get(id);
+        if (metric == null) {
+            T created = factory.apply(id);
+            metric = metrics.putIfAbsent(id, created);
+            if (metric == null) {
+                fire(id, created, true);
+                return created;
+            }
+        }
+        if (!type.isInstance(metric)) {
+            throw new IllegalArgumentException(id + " is already registered as " + metric.getClass().getSimpleName());
+        }
+        return type.cast(metric);
+    }
+
+    private void fire(MetricId id, Object metric, boolean added) {
+        for (Listener listener : listeners) {
+            try {
+                if (added) {
+                    listener.added(id, metric);
+                } else {
+                    listener.removed(id, metric);
+                }
+            } catch (RuntimeException e) {
+                System.err.println("[MetricsRegistry] 导出器处理 " + id + " 失败: " + e);
+            }
+        }
+    }
+
+    private void tick() {
+        long now = System.nanoTime();
+        for (Object metric : metrics.values()) {
+            if (metric instanceof Meter) ((Meter) metric).tick(now);
+        }
+    }
+
+    /**
+     * Writes every metric in the Prometheus text exposition format. Meters become a
+     * {@code _total} counter plus a {@code _rate} gauge (per second over the last tick).
+     */
+    public void writeText(Appendable out) throws IOException {
+        List<Map.Entry<MetricId, Object>> family = new ArrayList<>();
+        for (Map.Entry<MetricId, Object> e : metrics.entrySet()) {
+            if (!family.isEmpty() && !family.get(0).getKey().name.equals(e.getKey().name)) {
+                writeFamily(out, family);
+                family.clear();
+            }
+            family.add(e);
+        }
+        if (!family.isEmpty()) writeFamily(out, family);
+    }
+
+    /**
+     * Series sharing one name, the exposition format wants them in one block.
+     */
+    private void writeFamily(Appendable out, List<Map.Entry<MetricId, Object>> family) throws IOException {
+        String name = family.get(0).getKey().name;
+        Object sample = family.get(0).getValue();
+        if (sample instanceof Meter) {
+            header(out, name, name + "_total", "counter");
+            for (Map.Entry<MetricId, Object> e : family) {
+                if (!(e.getValue() instanceof Meter)) continue;
+                out.append(name).append("_total").append(e.getKey().labelBlock()).append(' ')
+                        .append(Long.toString(((Meter) e.getValue()).getCount())).append('\n');
+            }
+            header(out, name, name + "_rate", "gauge");
+            for (Map.Entry<MetricId, Object> e : family) {
+                if (!(e.getValue() instanceof Meter)) continue;
+                out.append(name).append("_rate").append(e.getKey().labelBlock()).append(' ')
+                        .append(format(((Meter) e.getValue()).getRate())).append('\n');
+            }
+        } else if (sample instanceof Histogram) {
+            header(out, name, name, "histogram");
+            for (Map.Entry<MetricId, Object> e : family) {
+                if (!(e.getValue() instanceof Histogram)) continue;
+                MetricId id = e.getKey();
+                Histogram h = (Histogram) e.getValue();
+                long[] counts = h.bucketCounts();
+                long cumulative = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    cumulative += counts[i];
+                    // empty low buckets add nothing but noise
+                    if (cumulative == 0 && i < counts.length - 1) continue;
+                    double le = Histogram.upperBoundSeconds(i);
+                    out.append(name).append("_bucket").append(id.labelsWith("le", Double.isInfinite(le) ? "+Inf" : format(le)))
+                            .append(' ').append(Long.toString(cumulative)).append('\n');
+                }
+                out.append(name).append("_sum").append(id.labelBlock()).append(' ').append(format(h.sumSeconds())).append('\n');
+                out.append(name).append("_count").append(id.labelBlock()).append(' ').append(Long.toString(cumulative)).append('\n');
+            }
+        } else {
+            header(out, name, name, "gauge");
+            for (Map.Entry<MetricId, Object> e : family) {
+                if (!(e.getValue() instanceof Gauge)) continue;
+                out.append(name).append(e.getKey().labelBlock()).append(' ')
+                        .append(format(((Gauge) e.getValue()).getValue())).append('\n');
+            }
+        }
+    }
+
+    private void header(Appendable out, String name, String series, String type) throws IOException {
+        String text = help.get(name);
+        if (text != null) out.append("# HELP ").append(series).append(' ').append(text).append('\n');
+        out.append("# TYPE ").append(series).append(' ').append(type).append('\n');
+    }
+
+    private static String format(double v) {
+        if (Double.isNaN(v)) return "NaN";
+        if (v == Math.rint(v) && Math.abs(v) < 1e15) return Long.toString((long) v);
+        if (Double.isInfinite(v)) return v > 0 ? "+Inf" : "-Inf";
+        return new BigDecimal(v).round(SIGNIFICANT).stripTrailingZeros().toPlainString();
+    }
+}
@@ -0,0 +1,141 @@
+package xyz.jxmm.screenshare.server;
+
+/**
+ * Closed loop rate control of one publishing session. Once a second the relay reports what it
+ * sees of the share; the controller turns congestion into a lower bitrate (and, far down, a lower
+ * frame rate) for the publisher's encoder and probes back up while everything is calm. Hints go
+ * to the publisher as {@code BITRATE_HINT <kbps> <fps>} on its control connection.
+ * <p>
+ * Two signals count as congestion:
+ * <ul>
+ * <li>the publisher's uplink: media time falling behind wall clock means tags wait in the
+ * publisher's socket, the encoder produces more than the link carries</li>
+ * <li>the viewers: the slowest viewer's queued media time, or frames its queue had to drop</li>
+ * </ul>
+ * Not thread safe, each relay mode calls it from the thread that forwards the share.
+ */
+final class BitrateController {
+    // publisher queuing delay that counts as a congested uplink, and as a calm one
+    private static final long UPLINK_CONGESTED_MS = 250;
+    private static final long UPLINK_CLEAR_MS = 50;
+    // calm seconds before probing up, seconds a decrease is given to take effect
+    private static final int CLEAR_TICKS_TO_INCREASE = 3;
+    private static final int HOLD_TICKS_AFTER_DECREASE = 2;
+    // below this share of the maximum bitrate the frame rate is reduced as well
+    private static final double FPS_REDUCTION_THRESHOLD = 0.5;
+    private static final int MIN_FPS = 5;
+
+    private final String share;
+    private final int maxKbps;
+    private final int minKbps;
+    // how far (media time) a viewer may lag before it counts as congested, and as calm
+    private final long viewerCongestedMs;
+    private final long viewerClearMs;
+
+    private int targetKbps;
+    private int sentKbps;
+    private int sentFps;
+    private int peakFps;
+    private int clearTicks;
+    private int holdTicks;
+    private long ingestBytes;
+    private int frames;
+    // smallest wall clock minus media time seen, the publisher's delay without queuing
+    private long baseDelay = Long.MAX_VALUE;
+    private long maxQueuingMs;
+    private long lastDrops;
+    private long lastTick = System.currentTimeMillis();
+
+    BitrateController(String share, int maxKbps, int minKbps, long viewerLatencyBudgetMs) {
+        this.share = share;
+        this.maxKbps = maxKbps;
+        this.minKbps = Math.min(minKbps, maxKbps);
+        this.viewerCongestedMs = viewerLatencyBudgetMs / 4;
+        this.viewerClearMs = viewerLatencyBudgetMs / 10;
+        this.targetKbps = maxKbps;
+        this.sentKbps = maxKbps;
+    }
+
+    /**
+     * Null when adaptive bitrate is disabled, and on an edge: its publishers are the origin.
+     */
+    static BitrateController fromConfig(String share) {
+        if (!ServerConfig.bitrateAdaptive() || ServerConfig.edgeOrigin() != null) return null;
+        return new BitrateController(share, ServerConfig.bitrateMaxKbps(), ServerConfig.bitrateMinKbps(),
+                ServerConfig.viewerLatencyBudgetMs());
+    }
+
+    void onRead(int bytes) {
+        ingestBytes += bytes;
+    }
+
+    void onTag(FlvTag tag) {
+        if (!tag.isVideoFrame()) return;
+        frames++;
+        long delay = System.currentTimeMillis() - (tag.timestamp & 0xFFFFFFFFL);
+        if (delay < baseDelay) baseDelay = delay;
+        maxQueuingMs = Math.max(maxQueuingMs, delay - baseDelay);
+    }
+
+    /**
+     * Evaluates the last interval. Returns the hint to send to the publisher, null if it has
+     * not changed or the interval is too short to judge.
+     *
+     * @param viewerBacklogMs queued media time of the slowest viewer
+     * @param droppedFrames   frames the queues of the current viewers dropped so far
+     */
+    String tick(long viewerBacklogMs, long droppedFrames) {
+        long now = System.currentTimeMillis();
+        long elapsed = now - lastTick;
+        if (elapsed < 500) return null;
+        // viewers that left take their count with them
+        long viewerDrops = Math.max(0, droppedFrames - lastDrops);
+        lastDrops = droppedFrames;
+        int ingestKbps = (int) (ingestBytes * 8 / elapsed);
+        int fps = (int) Math.round(frames * 1000.0 / elapsed);
+        boolean uplinkCongested = maxQueuingMs > UPLINK_CONGESTED_MS;
+        boolean viewersCongested = viewerBacklogMs > viewerCongestedMs || viewerDrops > 0;
+        boolean clear = maxQueuingMs < UPLINK_CLEAR_MS && viewerBacklogMs < viewerClearMs && viewerDrops == 0;
+        lastTick = now;
+        ingestBytes = 0;
+        frames = 0;
+        maxQueuingMs = 0;
+        // a throttled publisher sends fewer frames, the rate it sends at full quality is the reference
+        if (targetKbps == maxKbps) peakFps = Math.max(peakFps, Math.min(fps, 60));
+
+        if (holdTicks > 0) {
+            holdTicks--;
+        } else if (uplinkCongested || viewersCongested) {
+            int next = (int) (targetKbps * 0.7);
+            // the uplink carried this much, encoding for less drains the publisher's socket
+            if (uplinkCongested && ingestKbps > 0) next = Math.min(next, (int) (ingestKbps * 0.85));
+            targetKbps = Math.max(minKbps, next);
+            holdTicks = HOLD_TICKS_AFTER_DECREASE;
+            clearTicks = 0;
+        } else if (clear && ++clearTicks >= CLEAR_TICKS_TO_INCREASE) {
+            targetKbps = Math.min(maxKbps, targetKbps + Math.max(50, targetKbps / 10));
+            clearTicks = 0;
+        } else if (!clear) {
+            clearTicks = 0;
+        }
+
+        int targetFps = targetFps();
+        // small changes are not worth an encoder reconfiguration
+        if (Math.abs(targetKbps - sentKbps) < sentKbps / 20 && targetFps == sentFps) return null;
+        sentKbps = targetKbps;
+        sentFps = targetFps;
+        System.out.println("[BitrateController] " + share + ": " + targetKbps + " kbps, " + (targetFps > 0 ? targetFps + " fps" : "full frame rate")
+                + " (ingest " + ingestKbps + " kbps, viewer backlog " + viewerBacklogMs + " ms, drops " + viewerDrops + ")");
+        return "BITRATE_HINT " + targetKbps + " " + targetFps;
+    }
+
+    /**
+     * 0 leaves the frame rate to the publisher. Far below the maximum bitrate frames get too
+     * coarse, fewer of them keep each one readable.
+     */
+    private int targetFps() {
+        double ratio = (double) targetKbps / maxKbps;
+        if (ratio >= FPS_REDUCTION_THRESHOLD || peakFps == 0) return 0;
+        return Math.max(MIN_FPS, (int) Math.round(peakFps * ratio / FPS_REDUCTION_THRESHOLD));
+    }
+}
@@ -0,0 +1,66 @@
+package xyz.jxmm.screenshare.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of fixed size direct buffers the relay reads publisher data into.
+ */
+final class BufferPool {
+    static final int CHUNK_SIZE = 64 * 1024;
+    // ~64 MB kept around at most, buffers beyond that are left to the GC
+    private static final int MAX_POOLED = 1024;
+
+    private static final BufferPool SHARED = new BufferPool(CHUNK_SIZE, MAX_POOLED);
+
+    private final int chunkSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<PooledBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final AtomicInteger allocated = new AtomicInteger();
+
+    BufferPool(int chunkSize, int maxPooled) {
+        this.chunkSize = chunkSize;
+        this.maxPooled = maxPooled;
+    }
+
+    static BufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * A cleared buffer holding one reference, owned by the caller.
+     */
+    PooledBuffer acquire() {
+        PooledBuffer buf = free.poll();
+        if (buf != null) {
+            pooled.decrementAndGet();
+        } else {
+            buf = new PooledBuffer(this, ByteBuffer.allocateDirect(chunkSize));
+            allocated.incrementAndGet();
+        }
+        buf.reset();
+        return buf;
+    }
+
+    void recycle(PooledBuffer buf) {
+        if (pooled.incrementAndGet() <= maxPooled) {
+            free.add(buf);
+        } else {
+            pooled.decrementAndGet();
+            allocated.decrementAndGet();
+        }
+    }
+
+    /**
+     * Buffers currently alive, pooled or in use.
+     */
+    int allocated() {
+        return allocated.get();
+    }
+
+    int pooled() {
+        return pooled.get();
+    }
+}
@@ -2,6 +2,9 @@ package xyz.jxmm.screenshare.server;
 
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -12,32 +15,100 @@ import java.util.concurrent.ConcurrentHashMap;
  * 4. Forward screen data to viewers
  */
 public class ClientHandler implements Runnable {
+    // 指标按命令名分组，未知命令归为一组，避免任意输入产生无限多的序列
+    private static final Set<String> KNOWN_COMMANDS = Set.of(
+            "LOGIN", "GET_SHARES", "START_SHARE", "STOP_SHARE", "VIEW_SHARE", "SCREEN_DATA", "LEAVE_VIEW",
+            "VIEW_TIMESHIFT", "RECORDINGS", "REPLAY", "EDGE_HELLO", "EDGE_LOAD", "EDGE_PULL", "PING", "PONG", ControlMessage.HELLO);
+    // 写线程空闲这么久后退出，空闲的连接只占用读线程，有消息时再启动写线程
+    private static final long WRITER_IDLE_MS = 1000;
+
+    // 按连接分线程时是客户端 socket，由 NioControlServer 服务时是 connection，另一个为 null
     private final Socket clientSocket;
+    private final NioControlServer.Connection connection;
     private final ConcurrentHashMap<String, ClientHandler> clients;
     private final ConcurrentHashMap<String, String> sharingUsers;
-    private final ConcurrentHashMap<String, ConcurrentHashMap<String, ClientHandler>> viewers;
+    private final ShareRegistry shares;
+    private final EdgeRegistry edges;
+    private final ShareListDispatcher shareList;
+    // 该连接来自边缘节点时不为 null
+    private EdgeRegistry.Edge edge;
     private BufferedReader in;
-    private PrintWriter out;
-    private String username;
+    // 按连接分线程时的待发消息。其他连接的线程也会向本连接发消息 (广播、SHARE_STOPPED)，
+    // 它们只入队，由本连接的写线程写出，客户端不读取时阻塞的只有这个写线程。
+    // 写线程只在有待发消息时运行，见 startWriter
+    private final ControlOutbox outbox;
+    private volatile OutputStream out;
+    // 按连接分线程时 HELLO_OK 之后为 true，消息编码为二进制帧
+    private volatile boolean binary;
+    private volatile String username;
+    // 正在观看的共享，由各共享的 ShareActor 增删；断开时只通知这些共享
+    private final Set<String> watching = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+    // 客户端一段时间没有消息时由 IdleReaper 发送 PING，长时间没有消息则断开
+    private final IdleReaper.Session idle;
+    // 客户端回复过 PONG。不认识 PING 的旧客户端登录后可能一直不发消息，只在写不出去时断开
+    private volatile boolean heartbeats;
+    // 正在处理的请求的 id，reply 带上它；只在处理命令的线程上使用
+    private int replyTo;
 
     public ClientHandler(Socket socket, ConcurrentHashMap<String, ClientHandler> clients,
                          ConcurrentHashMap<String, String> sharingUsers,
-                         ConcurrentHashMap<String, ConcurrentHashMap<String, ClientHandler>> viewers) {
+                         ShareRegistry shares, EdgeRegistry edges, ShareListDispatcher shareList) {
+        this(socket, null, clients, sharingUsers, shares, edges, shareList);
+    }
+
+    /**
+     * 由 {@link NioControlServer} 服务的连接：命令在其事件循环上逐行交给 {@link #handleCommand}，
+     * 连接断开时调用 {@link #disconnected()}
+     */
+    ClientHandler(NioControlServer.Connection connection, ConcurrentHashMap<String, ClientHandler> clients,
+                  ConcurrentHashMap<String, String> sharingUsers,
+                  ShareRegistry shares, EdgeRegistry edges, ShareListDispatcher shareList) {
+        this(null, connection, clients, sharingUsers, shares, edges, shareList);
+    }
+
+    private ClientHandler(Socket socket, NioControlServer.Connection connection,
+                          ConcurrentHashMap<String, ClientHandler> clients,
+                          ConcurrentHashMap<String, String> sharingUsers,
+                          ShareRegistry shares, EdgeRegistry edges, ShareListDispatcher shareList) {
         this.clientSocket = socket;
+        this.connection = connection;
         this.clients = clients;
         this.sharingUsers = sharingUsers;
-        this.viewers = viewers;
+        this.shares = shares;
+        this.edges = edges;
+        this.shareList = shareList;
+        this.outbox = connection == null ? ControlOutbox.fromConfig() : null;
+        this.idle = IdleReaper.shared().register("control", ServerConfig.controlIdleMs(), ServerConfig.controlPingMs(),
+                new IdleReaper.Peer() {
+                    @Override
+                    public void ping() {
+                        send("PING");
+                    }
+
+                    @Override
+                    public boolean reap() {
+                        return reapIdle();
+                    }
+                });
     }
 
     @Override
     public void run() {
         try {
             in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            out = new PrintWriter(clientSocket.getOutputStream(), true);
+            out = new BufferedOutputStream(clientSocket.getOutputStream());
+            // 输出流就绪之前入队的消息 (如登录前的广播) 由此写出
+            startWriter();
 
             String inputLine;
             while ((inputLine = in.readLine()) != null) {
                 handleCommand(inputLine);
+                if (binary()) {
+                    // 客户端收到 HELLO_OK 之前不会再发送，读缓冲中没有属于帧的数据
+                    readFrames();
+                    break;
+                }
             }
         } catch (IOException e) {
             System.err.println("客户端处理异常: " + e.getMessage());
@@ -46,172 +117,489 @@ public class ClientHandler implements Runnable {
         }
     }
 
-    private void handleCommand(String command) {
-        String[] parts = command.split(" ", 3);
-        String cmd = parts[0];
+    void handleCommand(String command) {
+        handle(ControlMessage.text(command));
+    }
+
+    /**
+     * 处理一条控制消息，文本行和二进制帧都经过这里。回复用 {@link #reply}，带上请求 id
+     */
+    void handle(ControlMessage message) {
+        String cmd = message.command();
+        StreamMetrics.command(KNOWN_COMMANDS.contains(cmd) ? cmd : "UNKNOWN").mark(1);
+        replyTo = message.requestId();
+        idle.touch();
 
         switch (cmd) {
+            case ControlMessage.HELLO:
+                // HELLO BIN1，登录前协商二进制帧；回复仍是文本，之后双方都改用帧
+                if (username == null && !binary() && ControlMessage.BINARY_VERSION.equals(message.arg(1))) {
+                    reply("HELLO_OK " + ControlMessage.BINARY_VERSION);
+                    useBinary();
+                } else {
+                    reply("HELLO_DENIED");
+                }
+                break;
             case "LOGIN":
-                System.out.println("[ClientHandler] 收到 LOGIN 命令: " + command);
-                if (parts.length < 2) {
-                    System.out.println("[ClientHandler] LOGIN 命令格式错误: " + command);
-                    out.println("LOGIN_FAILED 格式错误");
+                System.out.println("[ClientHandler] 收到 LOGIN 命令: " + message.line());
+                if (!message.has(1)) {
+                    System.out.println("[ClientHandler] LOGIN 命令格式错误: " + message.line());
+                    reply("LOGIN_FAILED 格式错误");
+                    break;
+                }
+                if (message.arg(1).indexOf(Simulcast.SEPARATOR) >= 0) {
+                    // 流服务器用 <用户名>#<层> 表示同播的各层
+                    reply("LOGIN_FAILED 用户名不能包含 " + Simulcast.SEPARATOR);
                     break;
                 }
-                this.username = parts[1];
+                this.username = message.arg(1);
                 clients.put(username, this);
                 System.out.println("[ClientHandler] 用户 " + username + " 已登录。");
-                out.println("LOGIN_OK " + username);
-                
-                // 用户登录时广播当前共享列表
-                broadcastSharesList();
+                reply("LOGIN_OK " + username);
+
+                // 只把当前共享列表发给登录的用户，其他客户端的列表没有变化
+                shareList.login(this);
                 break;
             case "GET_SHARES":
-                out.println("SHARES " + String.join(",", sharingUsers.keySet()));
+                // GET_SHARES <version>：订阅增量，回复快照；不带版本号的旧客户端直接收到整个列表
+                if (message.has(1)) {
+                    shareList.subscribe(this, replyTo);
+                } else {
+                    reply("SHARES " + String.join(",", sharingUsers.keySet()));
+                }
                 break;
             case "START_SHARE":
+                // START_SHARE <password> [layers]，layers > 1 时发布端同时编码多层 (同播)
                 // 检查参数数量
-                if (parts.length < 2) {
-                    System.out.println("[ClientHandler] START_SHARE 命令格式错误: " + command);
-                    out.println("SHARE_FAILED 格式错误");
+                if (!message.has(1)) {
+                    System.out.println("[ClientHandler] START_SHARE 命令格式错误: " + message.line());
+                    reply("SHARE_FAILED 格式错误");
                     break;
                 }
-                String password = parts[1];
-                sharingUsers.put(username, password);
-                viewers.put(username, new ConcurrentHashMap<>());
+                // 共享状态由该共享的 ShareActor 更新，它也负责通知共享列表
+                shares.open(username).start(this, message.arg(1));
                 System.out.println("用户 " + username + " 开始共享屏幕。");
-                out.println("SHARE_STARTED");
-                    // 广播新的共享列表给所有已连接客户端
-                    broadcastSharesList();
-                // notify StreamServer that this user will publish a binary stream soon
-                try {
-                    StreamServer ss = StreamServer.getInstance();
-                    if (ss != null) ss.addPendingPublisher(username);
-                } catch (Exception e) {
-                    System.err.println("[ClientHandler] Failed to register pending publisher: " + e.getMessage());
+                // 一次性令牌，发布端建立二进制流连接时出示
+                String publishToken = issueStreamToken(StreamHandshake.Role.PUBLISH, username);
+                if (publishToken == null) {
+                    reply("SHARE_STARTED");
+                } else {
+                    // SHARE_STARTED <token> [<layer 1 token> ...]，每层一个流连接
+                    StringBuilder started = new StringBuilder("SHARE_STARTED ").append(publishToken);
+                    for (int layer = 1; layer < shareLayers(message); layer++) {
+                        started.append(' ').append(issueStreamToken(StreamHandshake.Role.PUBLISH, Simulcast.layerName(username, layer)));
+                    }
+                    reply(started.toString());
                 }
                 break;
             case "STOP_SHARE":
-                sharingUsers.remove(username);
-                // 通知所有观看者停止
-                if (viewers.containsKey(username)) {
-                    for (ClientHandler viewer : viewers.get(username).values()) {
-                        viewer.out.println("SHARE_STOPPED " + username);
-                    }
-                    viewers.remove(username);
-                }
+                // 由 ShareActor 通知所有观看者停止
+                ShareActor stopped = shares.get(username);
+                if (stopped != null) stopped.stop(this);
                 System.out.println("用户 " + username + " 停止共享屏幕。");
-                out.println("SHARE_STOPPED");
-                    // 广播新的共享列表
-                    broadcastSharesList();
+                reply("SHARE_STOPPED");
                 break;
             case "VIEW_SHARE":
-                System.out.println("[ClientHandler] 收到 VIEW_SHARE 命令: " + command);
+                System.out.println("[ClientHandler] 收到 VIEW_SHARE 命令: " + message.line());
                 // 检查参数数量
-                if (parts.length < 3) {
-                    System.out.println("[ClientHandler] VIEW_SHARE 命令格式错误: " + command);
-                    out.println("VIEW_DENIED 格式错误");
+                if (!message.has(2)) {
+                    System.out.println("[ClientHandler] VIEW_SHARE 命令格式错误: " + message.line());
+                    reply("VIEW_DENIED 格式错误");
                     break;
                 }
-                String targetUser = parts[1];
-                String providedPassword = parts[2];
+                String targetUser = message.arg(1);
+                String providedPassword = message.rest(2);
                 System.out.println("[ClientHandler] 目标用户: " + targetUser + ", 提供密码: " + providedPassword);
-                System.out.println("[ClientHandler] 当前共享用户列表: " + sharingUsers.keySet());
-                System.out.println("[ClientHandler] 目标用户是否在共享列表中: " + sharingUsers.containsKey(targetUser));
-                if (sharingUsers.containsKey(targetUser)) {
-                    System.out.println("[ClientHandler] 目标用户密码: " + sharingUsers.get(targetUser));
-                    System.out.println("[ClientHandler] 密码是否匹配: " + sharingUsers.get(targetUser).equals(providedPassword));
-                }
-                if (sharingUsers.containsKey(targetUser) && sharingUsers.get(targetUser).equals(providedPassword)) {
-                    System.out.println("[ClientHandler] 密码验证成功");
-                    viewers.get(targetUser).put(username, this);
-                    out.println("VIEW_ACCEPTED " + targetUser);
-                    System.out.println("用户 " + username + " 开始观看 " + targetUser + " 的屏幕。");
-                    // notify StreamServer that this user will connect as a viewer for targetUser
-                    try {
-                        StreamServer ss = StreamServer.getInstance();
-                        if (ss != null) ss.addPendingViewerTarget(targetUser);
-                    } catch (Exception e) {
-                        System.err.println("[ClientHandler] Failed to register pending viewer: " + e.getMessage());
-                    }
-                } else {
-                    System.out.println("[ClientHandler] 密码验证失败，发送VIEW_DENIED");
-                    out.println("VIEW_DENIED");
+                // 密码检查和加入在该共享的 ShareActor 上进行，与 STOP_SHARE 不会交错
+                ShareActor viewed = shares.get(targetUser);
+                if (viewed == null) {
+                    System.out.println("[ClientHandler] 目标用户没有共享过，发送VIEW_DENIED");
+                    reply("VIEW_DENIED");
+                    break;
                 }
+                viewed.view(this, providedPassword, replyTo);
                 break;
             case "SCREEN_DATA":
-                // 接收到屏幕数据，转发给所有观看者
-                String data = parts.length > 1 ? parts[1] : null;
-                if (viewers.containsKey(username)) {
-                    int viewerCount = viewers.get(username).size();
-                    System.out.println("[Server] 转发 SCREEN_DATA 来自 " + username + ", size(base64)=" + (data != null ? data.length() : 0) + ", viewers=" + viewerCount);
-                    for (ClientHandler viewer : viewers.get(username).values()) {
-                        viewer.out.println("SCREEN_DATA " + data);
-                    }
+                // 接收到屏幕数据，转发给所有观看者。只有旧客户端还这样发送，
+                // 没有 FFmpeg 的新客户端经流服务器发送 JPEG 块 (TilePublisher)
+                ShareActor screenShare = shares.get(username);
+                if (screenShare != null) {
+                    screenShare.forward(this, message);
                 } else {
                     System.out.println("[Server] 收到 SCREEN_DATA 来自 " + username + " 但无观看者，忽略。");
                 }
                 break;
             case "LEAVE_VIEW":
                 // 用户离开观看
-                String target = parts.length > 1 ? parts[1] : null;
-                if (target != null && viewers.containsKey(target)) {
-                    viewers.get(target).remove(username);
-                    System.out.println("用户 " + username + " 停止观看 " + target + " 的屏幕。");
+                ShareActor left = shares.get(message.arg(1));
+                if (left != null) left.leave(this);
+                break;
+            case "VIEW_TIMESHIFT":
+                // VIEW_TIMESHIFT <target> <secondsAgo> <password>，从录制中 N 秒前开始观看正在进行的共享
+                if (!message.has(3)) {
+                    reply("VIEW_DENIED 格式错误");
+                    break;
+                }
+                int secondsAgo;
+                try {
+                    secondsAgo = Math.max(0, message.argInt(2));
+                } catch (NumberFormatException e) {
+                    reply("VIEW_DENIED 格式错误");
+                    break;
+                }
+                RecordingSession liveRecording = Recordings.live(message.arg(1));
+                if (liveRecording == null || !message.rest(3).equals(sharingUsers.get(message.arg(1)))) {
+                    reply("VIEW_DENIED");
+                    break;
                 }
+                sendPlaybackToken(liveRecording, secondsAgo);
+                break;
+            case "RECORDINGS":
+                // RECORDINGS <share> [password]，列出该用户的录制会话；和 REPLAY 一样只对共享者本人或持有当前共享密码的用户列出
+                if (!message.has(1) || username == null) {
+                    // 格式错误或未登录同样回复空列表，客户端不必等到超时
+                    reply("RECORDINGS " + (message.has(1) ? message.arg(1) : ""));
+                    break;
+                }
+                String recordedShare = message.arg(1);
+                if (!recordedShare.equals(username)
+                        && !(message.has(2) && message.rest(2).equals(sharingUsers.get(recordedShare)))) {
+                    // 不区分没有录制和无权查看，不透露他人有哪些录制
+                    reply("RECORDINGS " + recordedShare);
+                    break;
+                }
+                reply("RECORDINGS " + recordedShare + " " + String.join(",", Recordings.list(recordedShare)));
+                break;
+            case "REPLAY":
+                // REPLAY <share> <session> [password]，回放一次录制；共享者本人或持有当前共享密码的用户可回放
+                if (!message.has(2) || username == null) {
+                    reply("VIEW_DENIED 格式错误");
+                    break;
+                }
+                String replayShare = message.arg(1);
+                boolean allowed = replayShare.equals(username)
+                        || (message.has(3) && message.rest(3).equals(sharingUsers.get(replayShare)));
+                RecordingSession recording = allowed ? Recordings.open(replayShare, message.arg(2)) : null;
+                if (recording == null) {
+                    reply("VIEW_DENIED");
+                    break;
+                }
+                sendPlaybackToken(recording, -1);
+                break;
+            case "EDGE_HELLO":
+                // EDGE_HELLO <host:port> <secret>，边缘节点注册
+                String secret = ServerConfig.edgeSecret();
+                if (!message.has(2) || secret == null || !secret.equals(message.rest(2)) || edge != null) {
+                    System.out.println("[ClientHandler] 拒绝边缘节点注册: " + remoteAddress());
+                    reply("EDGE_DENIED");
+                    break;
+                }
+                edge = edges.register(this, message.arg(1));
+                reply("EDGE_OK " + ServerConfig.streamPort());
+                break;
+            case "EDGE_LOAD":
+                if (edge != null && message.has(1)) {
+                    try {
+                        edge.load.set(message.argInt(1));
+                    } catch (NumberFormatException e) {
+                        System.out.println("[ClientHandler] EDGE_LOAD 格式错误: " + message.line());
+                    }
+                }
+                break;
+            case "EDGE_PULL":
+                // 边缘节点以观看者身份从源站拉取一路共享
+                if (edge == null || !message.has(1)) break;
+                String pullShare = message.arg(1);
+                String pullToken = sharingUsers.containsKey(pullShare) ? issueStreamToken(StreamHandshake.Role.VIEW, pullShare) : null;
+                reply(pullToken != null ? "EDGE_PULL_OK " + pullShare + " " + pullToken : "EDGE_PULL_FAILED " + pullShare);
+                break;
+            case "PING":
+                reply("PONG");
+                break;
+            case "PONG":
+                heartbeats = true;
                 break;
             default:
-                System.out.println("未知命令: " + command);
+                System.out.println("未知命令: " + message.line());
                 break;
         }
     }
 
     private void cleanup() {
-        boolean wasSharing = sharingUsers.containsKey(username);
-        
         try {
-            if (username != null) {
-                clients.remove(username);
-                if (sharingUsers.containsKey(username)) {
-                    sharingUsers.remove(username);
-                    if (viewers.containsKey(username)) {
-                        for (ClientHandler viewer : viewers.get(username).values()) {
-                            viewer.out.println("SHARE_STOPPED " + username);
-                        }
-                        viewers.remove(username);
-                    }
-                }
-                // 如果是观看者，则从观看列表中移除
-                for (ConcurrentHashMap<String, ClientHandler> v : viewers.values()) {
-                    v.remove(username);
-                }
-                System.out.println("用户 " + username + " 已清理资源。");
+            outbox.close();
+            disconnected();
+        } finally {
+            try {
+                in.close();
+                clientSocket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-            in.close();
-            out.close();
+        }
+    }
+
+    /**
+     * 连接已断开：注销边缘节点，清理该用户的共享和观看状态
+     */
+    void disconnected() {
+        // 之后到达 ShareActor 的 VIEW_SHARE 不再加入，见 watch
+        closed = true;
+        idle.cancel();
+        shareList.unsubscribe(this);
+        if (edge != null) {
+            edges.unregister(edge);
+        }
+        if (username == null) return;
+        clients.remove(username);
+        // 如果在共享则结束共享，共享列表由 ShareActor 通知
+        ShareActor own = shares.get(username);
+        if (own != null) own.stop(this);
+        // 如果是观看者，则离开它观看的共享
+        for (String share : watching) {
+            ShareActor viewed = shares.get(share);
+            if (viewed != null) viewed.leave(this);
+        }
+        System.out.println("用户 " + username + " 已清理资源。");
+    }
+
+    /**
+     * 在 IdleReaper 的线程上调用：control.idle.ms 内没有收到任何消息。未登录的连接和回复过 PONG 的客户端断开，
+     * 断开后由读循环或事件循环照常清理；旧客户端保留，继续发送 PING
+     */
+    private boolean reapIdle() {
+        if (!heartbeats && (username != null || edge != null)) return false;
+        System.out.println("[ClientHandler] 客户端 " + (username != null ? username : remoteAddress()) + " 长时间没有消息，断开连接");
+        disconnect();
+        return true;
+    }
+
+    /**
+     * 关闭连接，可在任意线程调用
+     */
+    private void disconnect() {
+        if (connection != null) {
+            connection.disconnect();
+            return;
+        }
+        try {
             clientSocket.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            // 如果用户之前在共享，则在清理后广播更新的共享列表
-            if (wasSharing) {
-                broadcastSharesList();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * 在 ShareActor 上调用：开始观看 {@code share}。连接已断开时返回 false，不再加入
+     */
+    boolean watch(String share) {
+        watching.add(share);
+        // 先加入再检查，disconnected 先置 closed 再遍历 watching，两边至少有一边看到对方
+        if (closed) {
+            watching.remove(share);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 在 ShareActor 上调用：离开了 {@code share} 或该共享已结束
+     */
+    void unwatch(String share) {
+        watching.remove(share);
+    }
+
+    String username() {
+        return username;
+    }
+
+    /**
+     * 在 ShareActor 上调用：密码验证成功并已加入，向观看者回复连接方式
+     */
+    void viewAccepted(String targetUser, int requestId) {
+        System.out.println("[ClientHandler] 密码验证成功");
+        EdgeRegistry.Edge viewEdge = edges.assign();
+        StreamServer ss = StreamServer.getInstance();
+        if (viewEdge != null && ss != null) {
+            // 有边缘节点时观看者连接负载最低的边缘节点，令牌先经控制连接推送给该节点
+            String edgeToken = ss.newEdgeToken();
+            viewEdge.link.send("EDGE_TOKEN " + edgeToken + " " + targetUser);
+            send("VIEW_ACCEPTED " + targetUser + " " + edgeToken + " " + viewEdge.address, requestId);
+            // 边缘节点不能向发布者请求关键帧，由源站代为请求
+            ss.requestKeyframe(targetUser);
+        } else {
+            // 局域网观看者可以改为加入该共享的组播组，令牌作为后备
+            String multicast = ss != null ? ss.multicastEndpoint(targetUser) : null;
+            if (multicast != null) {
+                send("MULTICAST " + targetUser + " " + multicast, requestId);
+                // 组播接收端从关键帧开始解码，且不经过流服务器，由这里代为请求
+                ss.requestKeyframe(targetUser);
             }
+            // 一次性令牌，观看者建立流连接时出示
+            String viewToken = issueStreamToken(StreamHandshake.Role.VIEW, targetUser);
+            send("VIEW_ACCEPTED " + targetUser + (viewToken != null ? " " + viewToken : ""), requestId);
         }
+        System.out.println("用户 " + username + " 开始观看 " + targetUser + " 的屏幕。");
     }
-    
+
+    /**
+     * 发送一行消息，可在任意线程调用。与 PrintWriter 一样吞掉写入异常，断开的连接由读循环清理
+     */
+    void send(String line) {
+        write(line, null, 0);
+    }
+
+    /**
+     * 发送对请求 {@code requestId} 的回复，可在任意线程调用
+     */
+    void send(String line, int requestId) {
+        write(line, null, requestId);
+    }
+
+    /**
+     * 回复正在处理的请求，二进制帧带上请求 id
+     */
+    private void reply(String line) {
+        write(line, null, replyTo);
+    }
+
+    /**
+     * 转发另一个连接发来的消息，按本连接的协议编码
+     */
+    void forward(ControlMessage message) {
+        write(null, message, 0);
+    }
+
+    private void write(String line, ControlMessage message, int requestId) {
+        ControlOutbox.Kind kind = ControlOutbox.Kind.of(message != null ? message.command() : commandOf(line));
+        if (connection != null) {
+            // 只入队，由连接所在的事件循环写出
+            if (message != null) {
+                connection.forward(message);
+            } else {
+                connection.send(line, requestId, kind);
+            }
+            return;
+        }
+        ByteBuffer data = message != null ? ControlOutbox.encode(message, binary) : ControlOutbox.encode(line, requestId, binary);
+        if (!outbox.offer(data, kind)) {
+            // 客户端长时间不读取，关闭 socket，读循环随之退出并清理
+            System.out.println("[ClientHandler] 客户端 " + username + " 长时间未读取消息，断开连接");
+            disconnect();
+            return;
+        }
+        startWriter();
+    }
+
     /**
-     * 广播当前共享列表给所有已连接的客户端
+     * 有待发消息且没有写线程时启动一个。支持虚拟线程时用虚拟线程，否则是平台线程，
+     * 它在空闲 {@link #WRITER_IDLE_MS} 后退出，按连接分线程时不会长期多占一个线程
      */
-    private void broadcastSharesList() {
-        String sharesMsg = "SHARES " + String.join(",", sharingUsers.keySet());
-        System.out.println("[ClientHandler] 广播共享列表: " + sharesMsg);
-        for (ClientHandler ch : clients.values()) {
+    private void startWriter() {
+        if (out != null && outbox.claimWriter()) {
+            ServerThreads.startLightweight("ClientHandler-Writer-" + clientSocket.getPort(), this::writeLoop);
+        }
+    }
+
+    /**
+     * 按连接分线程时的写线程：逐条写出待发消息，队列空了才 flush，积压时多条消息合并为一次写
+     */
+    private void writeLoop() {
+        try {
+            ByteBuffer next;
+            while ((next = outbox.take(WRITER_IDLE_MS)) != null) {
+                out.write(next.array(), next.arrayOffset() + next.position(), next.remaining());
+                outbox.remove();
+                if (outbox.isEmpty()) out.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("[ClientHandler] 向客户端 " + username + " 发送消息失败: " + e.getMessage());
+            disconnect();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static String commandOf(String line) {
+        int space = line.indexOf(' ');
+        return space < 0 ? line : line.substring(0, space);
+    }
+
+    private boolean binary() {
+        return connection != null ? connection.binary() : binary;
+    }
+
+    /**
+     * HELLO_OK 已入队，之后的消息都编码为二进制帧
+     */
+    private void useBinary() {
+        if (connection != null) {
+            connection.useBinary();
+        } else {
+            binary = true;
+        }
+    }
+
+    private void readFrames() throws IOException {
+        DataInputStream frames = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+        while (true) {
+            int length;
             try {
-                ch.out.println(sharesMsg);
-            } catch (Exception e) {
-                System.err.println("[ClientHandler] 向客户端 " + ch.username + " 发送共享列表失败: " + e.getMessage());
+                length = frames.readInt();
+            } catch (EOFException e) {
+                return;
             }
+            if (length < ControlMessage.HEADER_BYTES || length > ControlMessage.MAX_BYTES) {
+                throw new IOException("非法的帧长度 " + length);
+            }
+            byte[] frame = new byte[length];
+            frames.readFully(frame);
+            ControlMessage message;
+            try {
+                message = ControlMessage.binary(frame, 0, length);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("非法的帧: " + e.getMessage());
+            }
+            handle(message);
+        }
+    }
+
+    private SocketAddress remoteAddress() {
+        return connection != null ? connection.remoteAddress() : clientSocket.getRemoteSocketAddress();
+    }
+
+    private static int shareLayers(ControlMessage message) {
+        if (!message.has(2)) return 1;
+        try {
+            return Math.max(1, Math.min(Simulcast.MAX_LAYERS, Integer.parseInt(message.rest(2).trim())));
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * 向 StreamServer 申请一次性流令牌，StreamServer 未启动时返回 null
+     */
+    private String issueStreamToken(StreamHandshake.Role role, String streamUser) {
+        try {
+            StreamServer ss = StreamServer.getInstance();
+            if (ss == null) return null;
+            return role == StreamHandshake.Role.PUBLISH ? ss.issuePublisherToken(streamUser) : ss.issueViewerToken(streamUser);
+        } catch (Exception e) {
+            System.err.println("[ClientHandler] Failed to issue stream token: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 回放在源站的流服务器上进行，观看者按普通观看的方式用令牌连接
+     */
+    private void sendPlaybackToken(RecordingSession recording, int secondsAgo) {
+        StreamServer ss = StreamServer.getInstance();
+        if (ss == null) {
+            reply("VIEW_DENIED");
+            return;
         }
+        reply("VIEW_ACCEPTED " + recording.share + " " + ss.issuePlaybackToken(recording, secondsAgo));
+        System.out.println("用户 " + username + " 开始回放 " + recording.share + " 的录制 " + recording.name);
     }
 }
\ No newline at end of file
@@ -0,0 +1,421 @@
+package xyz.jxmm.screenshare.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * One message of the control protocol, read from a text line or from a binary frame.
+ * <p>
+ * In the text protocol a message is a line: the command and its fields separated by single spaces,
+ * the last field a command takes holds the rest of the line ({@code VIEW_SHARE <target> <password>}).
+ * A client that sends {@code HELLO BIN1} as its first line and receives {@code HELLO_OK BIN1}
+ * switches the connection to binary frames, in both directions:
+ * <pre>
+ * frame = length:u32 opcode:u8 requestId:u32 field*   (length counts the bytes after itself)
+ * field = length:varint bytes                          (UTF-8, SCREEN_DATA carries the raw image)
+ * </pre>
+ * The command is a table lookup on the opcode and fields only become Strings when they are read,
+ * so a frame is dispatched without scanning or copying it. Replies carry the id of the request
+ * they answer, every other message 0. A command without an opcode travels as opcode 0 with the
+ * whole text line as its only field.
+ */
+abstract class ControlMessage {
+    static final String HELLO = "HELLO";
+    static final String BINARY_VERSION = "BIN1";
+    // frames and text lines alike, legacy SCREEN_DATA carries a whole image
+    static final int MAX_BYTES = 16 * 1024 * 1024;
+    static final int HEADER_BYTES = 1 + 4;
+
+    private static final int TEXT = 0;
+    private static final String[] COMMANDS = new String[64];
+    // fields a command takes, the last one holds the rest of a text line
+    private static final int[] ARITY = new int[64];
+    private static final Map<String, Integer> OPCODES = new HashMap<>();
+    private static final int SCREEN_DATA;
+
+    static {
+        // never renumber, the numbers are the wire format
+        define(1, "LOGIN", 1);
+        define(2, "LOGIN_OK", 1);
+        define(3, "LOGIN_FAILED", 1);
+        define(4, "GET_SHARES", 1);
+        define(5, "SHARES", 1);
+        define(6, "START_SHARE", 2);
+        define(7, "SHARE_STARTED", Integer.MAX_VALUE);
+        define(8, "SHARE_FAILED", 1);
+        define(9, "STOP_SHARE", 1);
+        define(10, "SHARE_STOPPED", 1);
+        define(11, "VIEW_SHARE", 2);
+        define(12, "VIEW_ACCEPTED", 3);
+        define(13, "VIEW_DENIED", 1);
+        define(14, "LEAVE_VIEW", 1);
+        define(15, "MULTICAST", 2);
+        define(16, "SCREEN_DATA", 1);
+        define(17, "VIEW_TIMESHIFT", 3);
+        define(18, "RECORDINGS", 2);
+        define(19, "REPLAY", 3);
+        define(20, "REQUEST_KEYFRAME", 1);
+        define(21, "BITRATE_HINT", 2);
+        define(22, "EDGE_HELLO", 2);
+        define(23, "EDGE_OK", 1);
+        define(24, "EDGE_DENIED", 1);
+        define(25, "EDGE_LOAD", 1);
+        define(26, "EDGE_PULL", 1);
+        define(27, "EDGE_PULL_OK", 2);
+        define(28, "EDGE_PULL_FAILED", 1);
+        define(29, "EDGE_TOKEN", 2);
+        define(30, "SHARES_SNAPSHOT", 2);
+        define(31, "SHARE_ADDED", 2);
+        define(32, "SHARE_REMOVED", 2);
+        // PING and PONG stay without an opcode: as opcode 0 they reach binary clients that predate
+        // them, whose decoders reject opcodes they do not know
+        SCREEN_DATA = OPCODES.get("SCREEN_DATA");
+    }
+
+    private static void define(int opcode, String command, int arity) {
+        COMMANDS[opcode] = command;
+        ARITY[opcode] = arity;
+        OPCODES.put(command, opcode);
+    }
+
+    static ControlMessage text(String line) {
+        return new Text(line);
+    }
+
+    /**
+     * The frame in {@code buf[offset, offset + length)}, without its length prefix. The message
+     * keeps referencing {@code buf}, which must not change afterwards.
+     *
+     * @throws IllegalArgumentException if the frame is malformed
+     */
+    static ControlMessage binary(byte[] buf, int offset, int length) {
+        Binary frame = new Binary(buf, offset, length);
+        if (frame.opcode != TEXT) return frame;
+        if (frame.count != 1) throw new IllegalArgumentException("opcode 0 takes one field");
+        return new Text(frame.arg(1));
+    }
+
+    /**
+     * {@code line} as a frame including its length prefix.
+     */
+    static byte[] frame(String line, int requestId) {
+        int space = line.indexOf(' ');
+        Integer opcode = OPCODES.get(space < 0 ? line : line.substring(0, space));
+        Writer out = new Writer(line.length() + 16);
+        if (opcode == null) {
+            out.header(TEXT, requestId);
+            out.field(line.getBytes(StandardCharsets.UTF_8));
+            return out.finish();
+        }
+        out.header(opcode, requestId);
+        int fields = 0;
+        while (space >= 0) {
+            int start = space + 1;
+            space = ++fields < ARITY[opcode] ? line.indexOf(' ', start) : -1;
+            String field = line.substring(start, space < 0 ? line.length() : space);
+            out.field(opcode == SCREEN_DATA ? decodeImage(field) : field.getBytes(StandardCharsets.UTF_8));
+        }
+        return out.finish();
+    }
+
+    private static byte[] decodeImage(String base64) {
+        try {
+            return Base64.getDecoder().decode(base64);
+        } catch (IllegalArgumentException e) {
+            // the text server forwards whatever it got, so does the binary one
+            return base64.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * The command, e.g. {@code LOGIN}.
+     */
+    abstract String command();
+
+    /**
+     * Id of the request this message answers, or that its reply is to carry; 0 for text.
+     */
+    abstract int requestId();
+
+    /**
+     * Whether field {@code i} is present, the first field after the command is 1.
+     */
+    abstract boolean has(int i);
+
+    /**
+     * Field {@code i}, null if absent.
+     */
+    abstract String arg(int i);
+
+    /**
+     * Field {@code i} and the ones after it as they appear in the text line, null if absent.
+     */
+    abstract String rest(int i);
+
+    /**
+     * The image of a {@code SCREEN_DATA} message, Base64 decoded for text.
+     *
+     * @throws IllegalArgumentException if a text message's field is not Base64
+     */
+    abstract byte[] bytes(int i);
+
+    /**
+     * The message as a text line.
+     */
+    abstract String line();
+
+    /**
+     * The message as a frame with its length prefix, for a binary connection.
+     */
+    abstract byte[] frame();
+
+    /**
+     * Field {@code i} as a number.
+     *
+     * @throws NumberFormatException if absent or not a number
+     */
+    int argInt(int i) {
+        String s = arg(i);
+        if (s == null) throw new NumberFormatException("missing field " + i);
+        return Integer.parseInt(s.trim());
+    }
+
+    private static final class Text extends ControlMessage {
+        private final String line;
+        private byte[] frame;
+
+        Text(String line) {
+            this.line = line;
+        }
+
+        @Override
+        String command() {
+            int space = line.indexOf(' ');
+            return space < 0 ? line : line.substring(0, space);
+        }
+
+        @Override
+        int requestId() {
+            return 0;
+        }
+
+        private int start(int i) {
+            int pos = 0;
+            for (int k = 0; k < i; k++) {
+                int space = line.indexOf(' ', pos);
+                if (space < 0) return -1;
+                pos = space + 1;
+            }
+            return pos;
+        }
+
+        @Override
+        boolean has(int i) {
+            return start(i) >= 0;
+        }
+
+        @Override
+        String arg(int i) {
+            int start = start(i);
+            if (start < 0) return null;
+            int end = line.indexOf(' ', start);
+            return line.substring(start, end < 0 ? line.length() : end);
+        }
+
+        @Override
+        String rest(int i) {
+            int start = start(i);
+            return start < 0 ? null : line.substring(start);
+        }
+
+        @Override
+        byte[] bytes(int i) {
+            String s = arg(i);
+            return s != null ? Base64.getDecoder().decode(s) : null;
+        }
+
+        @Override
+        String line() {
+            return line;
+        }
+
+        @Override
+        byte[] frame() {
+            if (frame == null) frame = frame(line, 0);
+            return frame;
+        }
+    }
+
+    private static final class Binary extends ControlMessage {
+        private final byte[] buf;
+        private final int offset;
+        private final int length;
+        private final int opcode;
+        private final int requestId;
+        // offset and length of field i + 1
+        private int[] starts = new int[4];
+        private int[] lengths = new int[4];
+        private int count;
+        private String line;
+
+        Binary(byte[] buf, int offset, int length) {
+            if (length < HEADER_BYTES) throw new IllegalArgumentException("frame too short");
+            this.buf = buf;
+            this.offset = offset;
+            this.length = length;
+            this.opcode = buf[offset] & 0xFF;
+            if (opcode >= COMMANDS.length || (opcode != TEXT && COMMANDS[opcode] == null)) {
+                throw new IllegalArgumentException("unknown opcode " + opcode);
+            }
+            this.requestId = (buf[offset + 1] & 0xFF) << 24 | (buf[offset + 2] & 0xFF) << 16
+                    | (buf[offset + 3] & 0xFF) << 8 | buf[offset + 4] & 0xFF;
+            int pos = offset + HEADER_BYTES;
+            int end = offset + length;
+            while (pos < end) {
+                int fieldLength = 0;
+                for (int shift = 0; ; shift += 7) {
+                    if (pos == end || shift > 28) throw new IllegalArgumentException("bad field length");
+                    byte b = buf[pos++];
+                    fieldLength |= (b & 0x7F) << shift;
+                    if (b >= 0) break;
+                }
+                if (fieldLength < 0 || fieldLength > end - pos) throw new IllegalArgumentException("field overruns frame");
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                    lengths = Arrays.copyOf(lengths, count * 2);
+                }
+                starts[count] = pos;
+                lengths[count] = fieldLength;
+                count++;
+                pos += fieldLength;
+            }
+        }
+
+        @Override
+        String command() {
+            return COMMANDS[opcode];
+        }
+
+        @Override
+        int requestId() {
+            return requestId;
+        }
+
+        @Override
+        boolean has(int i) {
+            return i >= 1 && i <= count;
+        }
+
+        @Override
+        String arg(int i) {
+            if (!has(i)) return null;
+            if (opcode == SCREEN_DATA) return Base64.getEncoder().encodeToString(bytes(i));
+            return new String(buf, starts[i - 1], lengths[i - 1], StandardCharsets.UTF_8);
+        }
+
+        @Override
+        String rest(int i) {
+            if (!has(i)) return null;
+            if (i == count) return arg(i);
+            StringBuilder s = new StringBuilder(arg(i));
+            for (int k = i + 1; k <= count; k++) s.append(' ').append(arg(k));
+            return s.toString();
+        }
+
+        @Override
+        byte[] bytes(int i) {
+            return has(i) ? Arrays.copyOfRange(buf, starts[i - 1], starts[i - 1] + lengths[i - 1]) : null;
+        }
+
+        @Override
+        int argInt(int i) {
+            if (!has(i)) throw new NumberFormatException("missing field " + i);
+            int pos = starts[i - 1];
+            int end = pos + lengths[i - 1];
+            boolean negative = pos < end && buf[pos] == '-';
+            if (negative) pos++;
+            if (pos == end || end - pos > 9) return super.argInt(i);
+            int value = 0;
+            for (; pos < end; pos++) {
+                int digit = buf[pos] - '0';
+                if (digit < 0 || digit > 9) return super.argInt(i);
+                value = value * 10 + digit;
+            }
+            return negative ? -value : value;
+        }
+
+        @Override
+        String line() {
+            if (line == null) {
+                StringBuilder s = new StringBuilder(command());
+                for (int k = 1; k <= count; k++) s.append(' ').append(arg(k));
+                line = s.toString();
+            }
+            return line;
+        }
+
+        @Override
+        byte[] frame() {
+            byte[] frame = new byte[4 + length];
+            frame[0] = (byte) (length >>> 24);
+            frame[1] = (byte) (length >>> 16);
+            frame[2] = (byte) (length >>> 8);
+            frame[3] = (byte) length;
+            System.arraycopy(buf, offset, frame, 4, length);
+            // forwarded, it answers nothing on the receiving connection
+            Arrays.fill(frame, 5, 9, (byte) 0);
+            return frame;
+        }
+    }
+
+    private static final class Writer {
+        private byte[] buf;
+        private int size;
+
+        Writer(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        void header(int opcode, int requestId) {
+            size = 4;
+            write(opcode);
+            write(requestId >>> 24);
+            write(requestId >>> 16);
+            write(requestId >>> 8);
+            write(requestId);
+        }
+
+        void field(byte[] bytes) {
+            int n = bytes.length;
+            while ((n & ~0x7F) != 0) {
+                write(n & 0x7F | 0x80);
+                n >>>= 7;
+            }
+            write(n);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, size, bytes.length);
+            size += bytes.length;
+        }
+
+        byte[] finish() {
+            int length = size - 4;
+            buf[0] = (byte) (length >>> 24);
+            buf[1] = (byte) (length >>> 16);
+            buf[2] = (byte) (length >>> 8);
+            buf[3] = (byte) length;
+            return size == buf.length ? buf : Arrays.copyOf(buf, size);
+        }
+
+        private void write(int b) {
+            ensure(1);
+            buf[size++] = (byte) b;
+        }
+
+        private void ensure(int n) {
+            if (size + n > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + n));
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package xyz.jxmm.screenshare.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Messages waiting to be written to one control connection, encoded for it. Any thread may
+ * {@link #offer} without blocking; the connection's writer (its event loop, or its writer
+ * thread in {@link ServerConfig.ControlMode#THREAD} mode) drains the queue, so a client that does
+ * not read stalls nobody but itself. A writer thread only runs while there is something to write:
+ * {@link #claimWriter()} says when to start one, {@link #take(long)} lets it retire once idle.
+ * <p>
+ * The queue is bounded by {@link ServerConfig#controlQueueBytes()}. A {@code SHARES} list
+ * replaces one that is still waiting, only the latest list matters. When a message does not fit,
+ * a legacy {@code SCREEN_DATA} image is dropped, anything else means the client is too far
+ * behind: {@link #offer} returns false and the caller closes the connection. So does a client whose
+ * queue has not moved for {@link ServerConfig#controlStallMs()}. The message at the head is always
+ * accepted when the queue is empty, whatever its size.
+ */
+final class ControlOutbox {
+    // the thread per client handler and NioControlServer write text in the platform charset
+    static final Charset CHARSET = Charset.defaultCharset();
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(CHARSET);
+
+    enum Kind {
+        MESSAGE,
+        // the whole share list, a newer one replaces it
+        SHARES,
+        // a legacy image, dropped when the client is behind
+        SCREEN_DATA;
+
+        static Kind of(String command) {
+            switch (command) {
+                case "SHARES":
+                    return SHARES;
+                case "SCREEN_DATA":
+                    return SCREEN_DATA;
+                default:
+                    return MESSAGE;
+            }
+        }
+    }
+
+    private static final class Entry {
+        ByteBuffer data;
+        int size;
+        final Kind kind;
+
+        Entry(ByteBuffer data, Kind kind) {
+            this.data = data;
+            this.size = data.remaining();
+            this.kind = kind;
+        }
+    }
+
+    private final long maxBytes;
+    private final long stallNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+    private long queuedBytes;
+    // last time the writer took something off the queue, or the queue became non-empty
+    private long progressNanos;
+    // a writer thread is running, see claimWriter
+    private boolean writing;
+    private boolean closed;
+
+    ControlOutbox(long maxBytes, long stallMs) {
+        this.maxBytes = maxBytes;
+        this.stallNanos = TimeUnit.MILLISECONDS.toNanos(stallMs);
+    }
+
+    static ControlOutbox fromConfig() {
+        return new ControlOutbox(ServerConfig.controlQueueBytes(), ServerConfig.controlStallMs());
+    }
+
+    /**
+     * {@code line} as a frame carrying {@code requestId}, or as a text line.
+     */
+    static ByteBuffer encode(String line, int requestId, boolean binary) {
+        if (binary) return ByteBuffer.wrap(ControlMessage.frame(line, requestId));
+        byte[] text = line.getBytes(CHARSET);
+        ByteBuffer buf = ByteBuffer.allocate(text.length + LINE_SEPARATOR.length);
+        buf.put(text).put(LINE_SEPARATOR);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * A message another connection sent, re-encoded only if the formats differ.
+     */
+    static ByteBuffer encode(ControlMessage message, boolean binary) {
+        return binary ? ByteBuffer.wrap(message.frame()) : encode(message.line(), 0, false);
+    }
+
+    /**
+     * Queues {@code data} unless the outbox is closed.
+     *
+     * @return false if the client has fallen too far behind and is to be disconnected
+     */
+    boolean offer(ByteBuffer data, Kind kind) {
+        int size = data.remaining();
+        lock.lock();
+        try {
+            if (closed) return true;
+            long now = System.nanoTime();
+            if (queue.isEmpty()) {
+                progressNanos = now;
+            } else if (now - progressNanos > stallNanos) {
+                StreamMetrics.controlOutbound("stalled").mark(1);
+                return false;
+            }
+            if (kind == Kind.SHARES && replaceShares(data)) {
+                StreamMetrics.controlOutbound("coalesced").mark(1);
+                return true;
+            }
+            if (!queue.isEmpty() && queuedBytes + size > maxBytes) {
+                if (kind == Kind.SCREEN_DATA) {
+                    StreamMetrics.controlOutbound("dropped").mark(1);
+                    return true;
+                }
+                StreamMetrics.controlOutbound("overflow").mark(1);
+                return false;
+            }
+            queue.addLast(new Entry(data, kind));
+            queuedBytes += size;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Swaps a waiting share list for the new one. The head may be partially written and is left alone.
+     */
+    private boolean replaceShares(ByteBuffer data) {
+        boolean head = true;
+        for (Entry entry : queue) {
+            if (!head && entry.kind == Kind.SHARES) {
+                queuedBytes += data.remaining() - entry.size;
+                entry.data = data;
+                entry.size = data.remaining();
+                return true;
+            }
+            head = false;
+        }
+        return false;
+    }
+
+    /**
+     * The message to write next, null if there is none. It stays queued until {@link #remove()}.
+     */
+    ByteBuffer peek() {
+        lock.lock();
+        try {
+            Entry head = queue.peekFirst();
+            return head != null ? head.data : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Whether the caller is to start a writer thread: messages wait and no writer runs. Called
+     * after {@link #offer}; a connection without pending messages needs no writer.
+     */
+    boolean claimWriter() {
+        lock.lock();
+        try {
+            if (writing || closed || queue.isEmpty()) return false;
+            writing = true;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Like {@link #peek()} but waits up to {@code idleMillis} for a message. Returns null once the
+     * outbox is closed, or if nothing arrived in time; the writer then retires and the next
+     * {@link #claimWriter()} starts another.
+     */
+    ByteBuffer take(long idleMillis) throws InterruptedException {
+        lock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+            while (queue.isEmpty() && !closed) {
+                if (nanos <= 0) {
+                    writing = false;
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            if (closed) {
+                writing = false;
+                return null;
+            }
+            return queue.peekFirst().data;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The head has been written completely.
+     */
+    void remove() {
+        lock.lock();
+        try {
+            Entry head = queue.pollFirst();
+            if (head != null) queuedBytes -= head.size;
+            progressNanos = System.nanoTime();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Part of the head has been written, the client is still reading.
+     */
+    void progress() {
+        lock.lock();
+        try {
+            progressNanos = System.nanoTime();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return queue.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discards the queue, later offers are ignored and {@link #take(long)} returns null.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            queue.clear();
+            queuedBytes = 0;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
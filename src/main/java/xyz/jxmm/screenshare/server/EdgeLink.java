@@ -0,0 +1,197 @@
+package xyz.jxmm.screenshare.server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Edge side of an origin/edge cascade. Keeps a control connection to the origin
+ * ({@link ServerConfig#edgeOrigin()}), over which it
+ * <ul>
+ *   <li>registers with {@code EDGE_HELLO <advertise> <secret>} and gets {@code EDGE_OK <originStreamPort>},</li>
+ *   <li>reports its viewer count every second with {@code EDGE_LOAD <viewers>},</li>
+ *   <li>receives {@code EDGE_TOKEN <token> <share>} for every viewer the origin sends here,</li>
+ *   <li>asks for {@code EDGE_PULL <share>} the first time a share is needed and gets
+ *       {@code EDGE_PULL_OK <share> <token>} back.</li>
+ * </ul>
+ * A pulled share is an ordinary viewer connection to the origin's stream port; locally it is fed
+ * to the {@link StreamServer} as the share's publisher, so the origin sends each share to an edge
+ * once no matter how many viewers the edge serves. The pull lasts until the share ends.
+ */
+final class EdgeLink implements Runnable {
+    private static final long LOAD_INTERVAL_MS = 1000;
+    private static final long MAX_BACKOFF_MS = 10_000;
+
+    private final StreamServer server;
+    private final String originHost;
+    private final int originControlPort;
+    private final String advertise;
+    private final String secret;
+    // shares with an EDGE_PULL in flight, and the upstream connection of every pulled share
+    private final Set<String> requested = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<String, SocketChannel> upstreams = new ConcurrentHashMap<>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private Writer out;
+    private volatile int originStreamPort;
+    // bumped per control connection, ends the load reporter of the previous one
+    private volatile int session;
+    private volatile boolean running = true;
+
+    EdgeLink(StreamServer server, String origin, String advertise, String secret) {
+        this.server = server;
+        int colon = origin.lastIndexOf(':');
+        this.originHost = colon > 0 ? origin.substring(0, colon) : origin;
+        this.originControlPort = colon > 0 ? Integer.parseInt(origin.substring(colon + 1)) : 9999;
+        this.advertise = advertise;
+        this.secret = secret;
+    }
+
+    @Override
+    public void run() {
+        long backoff = 1000;
+        while (running) {
+            session++;
+            try (Socket socket = new Socket(originHost, originControlPort)) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                writeLock.lock();
+                try {
+                    out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+                } finally {
+                    writeLock.unlock();
+                }
+                send("EDGE_HELLO " + advertise + " " + secret);
+                String line;
+                while ((line = in.readLine()) != null) {
+                    handle(line);
+                    backoff = 1000;
+                }
+                System.out.println("[EdgeLink] Origin closed the control connection.");
+            } catch (IOException e) {
+                System.out.println("[EdgeLink] Origin " + originHost + ":" + originControlPort + " unreachable: " + e.getMessage());
+            } finally {
+                writeLock.lock();
+                try {
+                    out = null;
+                } finally {
+                    writeLock.unlock();
+                }
+                originStreamPort = 0;
+                requested.clear();
+            }
+            if (!running) break;
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+        }
+    }
+
+    private void handle(String line) {
+        String[] parts = line.split(" ");
+        switch (parts[0]) {
+            case "EDGE_OK":
+                originStreamPort = Integer.parseInt(parts[1]);
+                System.out.println("[EdgeLink] Registered with origin as " + advertise + ", origin stream port " + originStreamPort);
+                int current = session;
+                ServerThreads.start("EdgeLink-Load", true, () -> reportLoad(current));
+                break;
+            case "EDGE_DENIED":
+                System.err.println("[EdgeLink] Origin rejected this edge, check edge.secret.");
+                running = false;
+                break;
+            case "EDGE_TOKEN":
+                if (parts.length < 3) break;
+                server.acceptEdgeToken(parts[1], parts[2]);
+                ensurePull(parts[2]);
+                break;
+            case "EDGE_PULL_OK":
+                if (parts.length < 3) break;
+                String share = parts[1];
+                String token = parts[2];
+                ServerThreads.start("EdgeLink-Pull-" + share, true, () -> pull(share, token));
+                break;
+            case "PING":
+                send("PONG");
+                break;
+            case "EDGE_PULL_FAILED":
+                if (parts.length > 1) requested.remove(parts[1]);
+                System.out.println("[EdgeLink] Origin refused to pull " + (parts.length > 1 ? parts[1] : "?"));
+                break;
+            default:
+                // ordinary control traffic such as SHARES broadcasts, not for us
+                break;
+        }
+    }
+
+    private void ensurePull(String share) {
+        SocketChannel upstream = upstreams.get(share);
+        if (upstream != null && upstream.isOpen()) return;
+        if (server.hasPublisher(share) || !requested.add(share)) return;
+        send("EDGE_PULL " + share);
+    }
+
+    private void pull(String share, String token) {
+        SocketChannel ch = null;
+        try {
+            ch = SocketChannel.open(new InetSocketAddress(originHost, originStreamPort));
+            ByteBuffer preamble = ByteBuffer.wrap(StreamHandshake.encode(StreamHandshake.Role.VIEW, token));
+            while (preamble.hasRemaining()) {
+                ch.write(preamble);
+            }
+            upstreams.put(share, ch);
+            server.attachUpstream(share, ch);
+            System.out.println("[EdgeLink] Pulling " + share + " from origin.");
+        } catch (IOException e) {
+            System.out.println("[EdgeLink] Failed to pull " + share + " from origin: " + e.getMessage());
+            if (ch != null) {
+                upstreams.remove(share, ch);
+                try { ch.close(); } catch (IOException ignored) {}
+            }
+        } finally {
+            requested.remove(share);
+        }
+    }
+
+    private void reportLoad(int current) {
+        while (running && session == current) {
+            send("EDGE_LOAD " + StreamMetrics.activeViewers());
+            upstreams.values().removeIf(ch -> !ch.isOpen());
+            try {
+                Thread.sleep(LOAD_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void send(String line) {
+        writeLock.lock();
+        try {
+            if (out == null) return;
+            out.write(line);
+            out.write(System.lineSeparator());
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("[EdgeLink] 向源站发送消息失败: " + e.getMessage());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    void stop() {
+        running = false;
+    }
+}
@@ -0,0 +1,54 @@
+package xyz.jxmm.screenshare.server;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Origin side list of the edges currently connected to the control port.
+ * {@link ClientHandler} sends each accepted viewer to the least loaded edge; an edge reports its
+ * viewer count every second with {@code EDGE_LOAD}.
+ */
+final class EdgeRegistry {
+
+    static final class Edge {
+        // the edge's control connection, tokens are pushed through it
+        final ClientHandler link;
+        // host:port viewers connect to
+        final String address;
+        // viewers as last reported, plus those assigned since
+        final AtomicInteger load = new AtomicInteger();
+
+        Edge(ClientHandler link, String address) {
+            this.link = link;
+            this.address = address;
+        }
+    }
+
+    private final CopyOnWriteArrayList<Edge> edges = new CopyOnWriteArrayList<>();
+
+    Edge register(ClientHandler link, String address) {
+        Edge edge = new Edge(link, address);
+        edges.add(edge);
+        System.out.println("[EdgeRegistry] Edge registered: " + address + ", edges=" + edges.size());
+        return edge;
+    }
+
+    void unregister(Edge edge) {
+        if (edges.remove(edge)) {
+            System.out.println("[EdgeRegistry] Edge gone: " + edge.address + ", edges=" + edges.size());
+        }
+    }
+
+    /**
+     * The least loaded edge with one more viewer accounted to it, null without edges.
+     */
+    Edge assign() {
+        Edge best = null;
+        for (Edge edge : edges) {
+            if (best == null || edge.load.get() < best.load.get()) best = edge;
+        }
+        // counted right away so a burst of VIEW_SHARE is spread before the next report arrives
+        if (best != null) best.load.incrementAndGet();
+        return best;
+    }
+}
@@ -0,0 +1,158 @@
+package xyz.jxmm.screenshare.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Incremental FLV splitter: fed with the regions of pooled chunks a publisher socket was read
+ * into, emits complete {@link FlvTag}s as slices of those chunks without copying the payload.
+ * A stream that does not start with the FLV signature is passed through untouched as
+ * {@link FlvTag#RAW} units.
+ * <p>
+ * Every emitted tag carries one reference that the consumer must release.
+ */
+final class FlvDemuxer {
+    private static final int FILE_HEADER_SIZE = 9;
+    private static final int TAG_HEADER_SIZE = 11;
+    private static final int PREVIOUS_TAG_SIZE = 4;
+    // anything larger is not a tag H264Publisher would produce
+    private static final int MAX_TAG_SIZE = 16 * 1024 * 1024;
+
+    private final String name;
+    // copy of the fixed size part that tells us how long the unit is
+    private final byte[] head = new byte[TAG_HEADER_SIZE];
+    private int headFilled;
+    // slices of the unit collected so far, each chunk retained until the unit is emitted
+    private final List<PooledBuffer> chunks = new ArrayList<>();
+    private final List<int[]> ranges = new ArrayList<>();
+    private int unitSize = -1;
+    private int unitFilled;
+    private boolean headerDone;
+    private boolean passthrough;
+    private int nalLengthSize = 4;
+
+    FlvDemuxer(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Consumes bytes {@code [from, to)} of {@code chunk}. The caller keeps its own reference.
+     */
+    void feed(PooledBuffer chunk, int from, int to, Consumer<FlvTag> sink) {
+        int pos = from;
+        while (pos < to) {
+            if (passthrough) {
+                sink.accept(FlvTag.of(FlvTag.RAW, new PooledBuffer[]{chunk}, new int[]{pos}, new int[]{to - pos}, 0));
+                return;
+            }
+            int n;
+            if (unitSize < 0) {
+                // still collecting the fixed size head
+                int need = (headerDone ? TAG_HEADER_SIZE : FILE_HEADER_SIZE) - headFilled;
+                n = Math.min(need, to - pos);
+                for (int i = 0; i < n; i++) {
+                    head[headFilled + i] = chunk.get(pos + i);
+                }
+                headFilled += n;
+                addSlice(chunk, pos, n);
+                pos += n;
+                if (n < need) return;
+                if (!sizeUnit(sink)) continue;
+            } else {
+                n = Math.min(unitSize - unitFilled, to - pos);
+                addSlice(chunk, pos, n);
+                pos += n;
+            }
+            if (unitFilled == unitSize) {
+                emit(sink);
+            }
+        }
+    }
+
+    private void addSlice(PooledBuffer chunk, int offset, int length) {
+        if (length == 0) return;
+        int last = chunks.size() - 1;
+        if (last >= 0 && chunks.get(last) == chunk) {
+            ranges.get(last)[1] += length;
+        } else {
+            chunk.retain();
+            chunks.add(chunk);
+            ranges.add(new int[]{offset, length});
+        }
+        unitFilled += length;
+    }
+
+    private void emit(Consumer<FlvTag> sink) {
+        int type = headerDone ? head[0] & 0x1F : FlvTag.HEADER;
+        FlvTag tag = buildTag(type);
+        if (tag.type == FlvTag.VIDEO && tag.sequenceHeader) {
+            nalLengthSize = tag.avcNalLengthSize();
+        }
+        headerDone = true;
+        resetUnit();
+        sink.accept(tag);
+    }
+
+    /**
+     * Drops a partially received unit, e.g. when the publisher goes away.
+     */
+    void close() {
+        resetUnit();
+    }
+
+    private FlvTag buildTag(int type) {
+        int count = chunks.size();
+        PooledBuffer[] bufs = new PooledBuffer[count];
+        int[] offsets = new int[count];
+        int[] lengths = new int[count];
+        for (int i = 0; i < count; i++) {
+            bufs[i] = chunks.get(i);
+            offsets[i] = ranges.get(i)[0];
+            lengths[i] = ranges.get(i)[1];
+        }
+        return FlvTag.of(type, bufs, offsets, lengths, nalLengthSize);
+    }
+
+    private void resetUnit() {
+        for (PooledBuffer chunk : chunks) chunk.release();
+        chunks.clear();
+        ranges.clear();
+        headFilled = 0;
+        unitSize = -1;
+        unitFilled = 0;
+    }
+
+    /**
+     * Sizes the current unit from its collected head. Returns false if the stream turned out
+     * not to be FLV and we switched to passthrough.
+     */
+    private boolean sizeUnit(Consumer<FlvTag> sink) {
+        if (!headerDone) {
+            if (head[0] != 'F' || head[1] != 'L' || head[2] != 'V') {
+                return fallBack(sink);
+            }
+            int dataOffset = ((head[5] & 0xFF) << 24) | ((head[6] & 0xFF) << 16) | ((head[7] & 0xFF) << 8) | (head[8] & 0xFF);
+            if (dataOffset < FILE_HEADER_SIZE || dataOffset > 1024) {
+                return fallBack(sink);
+            }
+            unitSize = dataOffset + PREVIOUS_TAG_SIZE;
+        } else {
+            int dataSize = ((head[1] & 0xFF) << 16) | ((head[2] & 0xFF) << 8) | (head[3] & 0xFF);
+            unitSize = TAG_HEADER_SIZE + dataSize + PREVIOUS_TAG_SIZE;
+            if (unitSize > MAX_TAG_SIZE) {
+                return fallBack(sink);
+            }
+        }
+        return true;
+    }
+
+    private boolean fallBack(Consumer<FlvTag> sink) {
+        System.out.println("[FlvDemuxer] Stream of " + name + " is not FLV, forwarding raw bytes.");
+        passthrough = true;
+        FlvTag pending = buildTag(FlvTag.RAW);
+        resetUnit();
+        sink.accept(pending);
+        return false;
+    }
+}
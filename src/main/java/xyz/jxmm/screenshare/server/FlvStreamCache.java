@@ -0,0 +1,149 @@
+package xyz.jxmm.screenshare.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Join cache of one share: FLV file header, onMetaData, sequence headers and every tag since the
+ * last keyframe. A viewer attached through {@link #join} receives these first and can decode
+ * immediately instead of waiting for the next keyframe.
+ * <p>
+ * The cache holds its own reference on every tag it keeps; sinks and fan-out retain what they keep.
+ */
+final class FlvStreamCache {
+    // a GOP larger than this is not cached, late joiners then wait for the next keyframe
+    private static final long MAX_GOP_BYTES = 8L * 1024 * 1024;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private FlvTag header;
+    private FlvTag metadata;
+    private FlvTag videoConfig;
+    private FlvTag audioConfig;
+    private final List<FlvTag> gop = new ArrayList<>();
+    private long gopBytes;
+    private boolean gopValid;
+
+    /**
+     * Records the tag and hands it to the live viewers, atomically with respect to {@link #join}
+     * so a joining viewer sees every tag exactly once.
+     */
+    void publish(FlvTag tag, Consumer<FlvTag> fanOut) {
+        lock.lock();
+        try {
+            update(tag);
+            fanOut.accept(tag);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replays the cached tags to {@code sink}, then runs {@code register} to add the viewer to the
+     * live fan-out before the next tag is published. The GOP may span seconds, the sink must not
+     * hold it against the viewer's latency budget, see {@link ViewerSendQueue#replay}.
+     */
+    void join(Consumer<FlvTag> sink, Runnable register) {
+        lock.lock();
+        try {
+            if (header != null) sink.accept(header);
+            if (metadata != null) sink.accept(metadata);
+            if (audioConfig != null) sink.accept(audioConfig);
+            if (videoConfig != null) sink.accept(videoConfig);
+            if (gopValid) {
+                for (FlvTag tag : gop) sink.accept(tag);
+            }
+            register.run();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hands onMetaData and the sequence headers to {@code sink}: what a viewer already receiving
+     * an FLV stream needs to continue with this one at its next keyframe, see {@link Simulcast}.
+     */
+    void config(Consumer<FlvTag> sink) {
+        lock.lock();
+        try {
+            if (metadata != null) sink.accept(metadata);
+            if (audioConfig != null) sink.accept(audioConfig);
+            if (videoConfig != null) sink.accept(videoConfig);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void update(FlvTag tag) {
+        switch (tag.type) {
+            case FlvTag.HEADER:
+                clear();
+                header = tag.retain();
+                return;
+            case FlvTag.SCRIPT:
+                metadata = replace(metadata, tag);
+                return;
+            case FlvTag.RAW:
+                return;
+            default:
+                break;
+        }
+        if (tag.sequenceHeader) {
+            if (tag.type == FlvTag.VIDEO) {
+                videoConfig = replace(videoConfig, tag);
+                // frames encoded with the old configuration are useless now
+                clearGop();
+            } else {
+                audioConfig = replace(audioConfig, tag);
+            }
+            return;
+        }
+        if (tag.type == FlvTag.VIDEO && tag.keyframe) {
+            clearGop();
+            gopValid = true;
+        }
+        if (!gopValid) return;
+        gop.add(tag.retain());
+        gopBytes += tag.size;
+        if (gopBytes > MAX_GOP_BYTES) {
+            clearGop();
+        }
+    }
+
+    private static FlvTag replace(FlvTag old, FlvTag tag) {
+        if (old != null) old.release();
+        return tag.retain();
+    }
+
+    private void clearGop() {
+        for (FlvTag tag : gop) tag.release();
+        gop.clear();
+        gopBytes = 0;
+        gopValid = false;
+    }
+
+    private void clear() {
+        if (header != null) header.release();
+        if (metadata != null) metadata.release();
+        if (videoConfig != null) videoConfig.release();
+        if (audioConfig != null) audioConfig.release();
+        header = null;
+        metadata = null;
+        videoConfig = null;
+        audioConfig = null;
+        clearGop();
+    }
+
+    /**
+     * Share ended, gives the cached buffers back to the pool.
+     */
+    void close() {
+        lock.lock();
+        try {
+            clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package xyz.jxmm.screenshare.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One unit of an FLV stream as it travels through the relay: the file header or a complete tag
+ * (tag header, body and the trailing PreviousTagSize). Any sequence of units starting with
+ * {@link #HEADER} is itself a valid FLV stream.
+ * <p>
+ * The bytes are not copied: a tag is one or more slices of the {@link PooledBuffer}s the
+ * publisher data was read into. Tags are reference counted, every holder (join cache, viewer
+ * queue, writer) {@link #retain()}s and {@link #release()}s; the last release frees the slices.
+ */
+final class FlvTag {
+    static final int RAW = -1;
+    static final int HEADER = 0;
+    static final int AUDIO = 8;
+    static final int VIDEO = 9;
+    static final int SCRIPT = 18;
+
+    private static final int TAG_HEADER_SIZE = 11;
+    private static final int PREVIOUS_TAG_SIZE = 4;
+
+    final int type;
+    // milliseconds, only meaningful for AUDIO/VIDEO/SCRIPT
+    final int timestamp;
+    final boolean keyframe;
+    // AVCDecoderConfigurationRecord / AudioSpecificConfig
+    final boolean sequenceHeader;
+    // H.264 frame no other frame references (nal_ref_idc == 0), dropping it never breaks decoding
+    final boolean disposable;
+    final int size;
+
+    private final PooledBuffer[] chunks;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final AtomicInteger refCnt = new AtomicInteger(1);
+
+    private FlvTag(int type, int timestamp, boolean keyframe, boolean sequenceHeader, boolean disposable,
+                   PooledBuffer[] chunks, int[] offsets, int[] lengths, int size) {
+        this.type = type;
+        this.timestamp = timestamp;
+        this.keyframe = keyframe;
+        this.sequenceHeader = sequenceHeader;
+        this.disposable = disposable;
+        this.chunks = chunks;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.size = size;
+    }
+
+    /**
+     * Builds a unit from slices and takes a reference on every chunk. The returned tag holds one
+     * reference owned by the caller.
+     *
+     * @param nalLengthSize NALU length prefix size announced by the last AVC sequence header
+     */
+    static FlvTag of(int type, PooledBuffer[] chunks, int[] offsets, int[] lengths, int nalLengthSize) {
+        int size = 0;
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i].retain();
+            size += lengths[i];
+        }
+        FlvTag unit = new FlvTag(type, 0, false, false, false, chunks, offsets, lengths, size);
+        if (type != VIDEO && type != AUDIO && type != SCRIPT) {
+            return unit;
+        }
+        int timestamp = ((unit.byteAt(4) & 0xFF) << 16) | ((unit.byteAt(5) & 0xFF) << 8)
+                | (unit.byteAt(6) & 0xFF) | ((unit.byteAt(7) & 0xFF) << 24);
+        boolean keyframe = false;
+        boolean sequenceHeader = false;
+        boolean disposable = false;
+        int bodySize = size - TAG_HEADER_SIZE - PREVIOUS_TAG_SIZE;
+        if (type == VIDEO && bodySize >= 2) {
+            int flags = unit.byteAt(TAG_HEADER_SIZE);
+            int packetType = unit.byteAt(TAG_HEADER_SIZE + 1);
+            int frameType = (flags >> 4) & 0x0F;
+            int codecId = flags & 0x0F;
+            keyframe = frameType == 1;
+            // codec 7 = AVC, packet type 0 = sequence header, 1 = NALUs
+            sequenceHeader = codecId == 7 && packetType == 0;
+            if (codecId == 7 && packetType == 1 && !keyframe) {
+                disposable = unit.isDisposable(nalLengthSize);
+            }
+        } else if (type == AUDIO && bodySize >= 2) {
+            // sound format 10 = AAC, packet type 0 = sequence header
+            sequenceHeader = ((unit.byteAt(TAG_HEADER_SIZE) >> 4) & 0x0F) == 10 && unit.byteAt(TAG_HEADER_SIZE + 1) == 0;
+        }
+        return new FlvTag(type, timestamp, keyframe, sequenceHeader, disposable, chunks, offsets, lengths, size);
+    }
+
+    /**
+     * lengthSizeMinusOne + 1 of an AVC sequence header tag, 4 if it cannot be read.
+     */
+    int avcNalLengthSize() {
+        // tag header (11) + flags/packet type/composition time (5) + record offset 4
+        int offset = TAG_HEADER_SIZE + 5 + 4;
+        return size > offset + PREVIOUS_TAG_SIZE ? (byteAt(offset) & 0x03) + 1 : 4;
+    }
+
+    /**
+     * True when the frame has slice NALUs and none of them is used for reference.
+     */
+    private boolean isDisposable(int nalLengthSize) {
+        int pos = TAG_HEADER_SIZE + 5;
+        int end = size - PREVIOUS_TAG_SIZE;
+        boolean sawSlice = false;
+        while (pos + nalLengthSize < end) {
+            int len = 0;
+            for (int i = 0; i < nalLengthSize; i++) {
+                len = (len << 8) | (byteAt(pos + i) & 0xFF);
+            }
+            pos += nalLengthSize;
+            if (len <= 0 || pos + len > end) return false;
+            int nal = byteAt(pos);
+            int nalType = nal & 0x1F;
+            int refIdc = (nal >> 5) & 0x03;
+            if (nalType >= 1 && nalType <= 5) {
+                if (refIdc != 0) return false;
+                sawSlice = true;
+            }
+            pos += len;
+        }
+        return sawSlice;
+    }
+
+    /**
+     * Byte at {@code index} of the unit, across slice boundaries.
+     */
+    byte byteAt(int index) {
+        for (int i = 0; i < chunks.length; i++) {
+            if (index < lengths[i]) return chunks[i].get(offsets[i] + index);
+            index -= lengths[i];
+        }
+        throw new IndexOutOfBoundsException();
+    }
+
+    int sliceCount() {
+        return chunks.length;
+    }
+
+    PooledBuffer chunk(int slice) {
+        return chunks[slice];
+    }
+
+    int sliceOffset(int slice) {
+        return offsets[slice];
+    }
+
+    int sliceLength(int slice) {
+        return lengths[slice];
+    }
+
+    FlvTag retain() {
+        if (refCnt.getAndIncrement() <= 0) {
+            refCnt.getAndDecrement();
+            throw new IllegalStateException("retain of released tag");
+        }
+        return this;
+    }
+
+    void release() {
+        if (refCnt.decrementAndGet() == 0) {
+            for (PooledBuffer chunk : chunks) chunk.release();
+        }
+    }
+
+    boolean isVideoFrame() {
+        return type == VIDEO && !sequenceHeader;
+    }
+
+    /**
+     * Units a viewer can never decode without, they are neither dropped nor discarded.
+     */
+    boolean essential() {
+        return type == HEADER || type == SCRIPT || sequenceHeader;
+    }
+}
@@ -0,0 +1,228 @@
+package xyz.jxmm.screenshare.server;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds connections whose peer has gone away without closing them, a client that dropped off
+ * the network leaves a half-open socket that never reads -1. Each connection registers a
+ * {@link Session} and touches it on activity; one thread turns a hashed timer wheel and, once a
+ * session has been quiet for its idle timeout, asks its {@link Peer} to close. Sessions with a
+ * ping interval are asked for a sign of life first.
+ * <p>
+ * Touching only writes the wheel's clock into the session, it never reschedules: a session is
+ * looked at when its deadline comes round and put back at the deadline its last activity
+ * implies. So busy connections cost nothing per message, and every connection that went quiet
+ * in the same tick is evicted in the same pass.
+ */
+final class IdleReaper {
+    static final long TICK_MS = 100;
+    // one turn of the wheel is 51.2 s, later deadlines stay in their slot for further turns
+    private static final int SLOTS = 512;
+
+    private static IdleReaper shared;
+
+    /**
+     * The connection a {@link Session} watches. Both methods run on the reaper's thread and
+     * must not block.
+     */
+    interface Peer {
+        /**
+         * Quiet for the ping interval: ask the peer for a sign of life.
+         */
+        default void ping() {
+        }
+
+        /**
+         * Quiet for the idle timeout: close the connection, or return false to keep it, in which
+         * case it is looked at again after another ping interval (a quarter of the idle timeout
+         * without pings).
+         */
+        boolean reap();
+    }
+
+    /**
+     * One watched connection.
+     */
+    static final class Session {
+        private final IdleReaper reaper;
+        private final String kind;
+        private final long idleTicks;
+        private final long pingTicks;
+        // null once cancelled, so a closed connection is not kept reachable until its deadline
+        private volatile Peer peer;
+        private volatile long lastActive;
+        // reaper thread only
+        private long lastPing;
+        private long deadline;
+
+        private Session(IdleReaper reaper, String kind, long idleMillis, long pingMillis, Peer peer) {
+            this.reaper = reaper;
+            this.kind = kind;
+            this.idleTicks = ticks(idleMillis);
+            this.pingTicks = ticks(pingMillis);
+            this.peer = peer;
+            this.lastActive = reaper != null ? reaper.now : 0;
+        }
+
+        /**
+         * The peer was heard from; any thread.
+         */
+        void touch() {
+            if (reaper != null) lastActive = reaper.now;
+        }
+
+        /**
+         * The connection closed on its own; any thread.
+         */
+        void cancel() {
+            peer = null;
+        }
+    }
+
+    // neither reaped nor pinged, for connections whose timeouts are disabled
+    private static final Session NONE = new Session(null, "none", 0, 0, null);
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayDeque<Session>[] wheel = new ArrayDeque[SLOTS];
+    // registered on other threads, placed on the wheel at the next tick
+    private final Queue<Session> added = new ConcurrentLinkedQueue<>();
+    // ticks since start, written by the reaper thread only
+    private volatile long now;
+
+    /**
+     * A reaper without a thread, {@link #tick()} turns it; see {@link #shared()}.
+     */
+    IdleReaper() {
+        for (int i = 0; i < SLOTS; i++) wheel[i] = new ArrayDeque<>();
+    }
+
+    /**
+     * The reaper of this process, its thread starts on first use.
+     */
+    static synchronized IdleReaper shared() {
+        if (shared == null) {
+            shared = new IdleReaper();
+            Thread t = new Thread(shared::run, "IdleReaper");
+            t.setDaemon(true);
+            t.start();
+        }
+        return shared;
+    }
+
+    /**
+     * Starts watching a connection.
+     *
+     * @param kind       label of the connection type for logs and {@link StreamMetrics#reaped}
+     * @param idleMillis quiet time after which the peer is reaped, 0 to never reap
+     * @param pingMillis quiet time after which, and then at this interval, the peer is pinged; 0 for no pings
+     */
+    Session register(String kind, long idleMillis, long pingMillis, Peer peer) {
+        if (idleMillis <= 0 && pingMillis <= 0) return NONE;
+        Session session = new Session(this, kind, idleMillis, pingMillis, peer);
+        added.offer(session);
+        return session;
+    }
+
+    private void run() {
+        long tickNanos = TimeUnit.MILLISECONDS.toNanos(TICK_MS);
+        long next = System.nanoTime() + tickNanos;
+        while (true) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            // after a long pause the missed ticks run back to back
+            next += tickNanos;
+            try {
+                tick();
+            } catch (RuntimeException e) {
+                System.err.println("[IdleReaper] " + e);
+            }
+        }
+    }
+
+    /**
+     * Advances the wheel by one tick, always on the one thread that turns it.
+     */
+    void tick() {
+        long tick = now + 1;
+        now = tick;
+        Session session;
+        while ((session = added.poll()) != null) {
+            session.deadline = next(session);
+            place(session);
+        }
+        ArrayDeque<Session> slot = wheel[(int) (tick & (SLOTS - 1))];
+        int reaped = 0;
+        for (int n = slot.size(); n > 0; n--) {
+            session = slot.poll();
+            if (session.peer == null) continue;
+            if (session.deadline > tick) {
+                // due on a later turn
+                slot.offer(session);
+                continue;
+            }
+            if (expire(session)) {
+                reaped++;
+            } else {
+                session.deadline = next(session);
+                place(session);
+            }
+        }
+        if (reaped > 0) System.out.println("[IdleReaper] Reaped " + reaped + " idle connections.");
+    }
+
+    /**
+     * Returns true if the session's peer has been reaped.
+     */
+    private boolean expire(Session session) {
+        Peer peer = session.peer;
+        long quiet = now - session.lastActive;
+        try {
+            if (session.idleTicks > 0 && quiet >= session.idleTicks && peer.reap()) {
+                session.peer = null;
+                StreamMetrics.reaped(session.kind).mark(1);
+                return true;
+            }
+            if (session.pingTicks > 0 && quiet >= session.pingTicks && now - session.lastPing >= session.pingTicks) {
+                session.lastPing = now;
+                peer.ping();
+            }
+        } catch (RuntimeException e) {
+            System.err.println("[IdleReaper] " + session.kind + ": " + e);
+        }
+        return false;
+    }
+
+    /**
+     * The next tick {@code session} needs looking at: its idle deadline or its next ping,
+     * whichever comes first.
+     */
+    private long next(Session session) {
+        long lastActive = session.lastActive;
+        long next = Long.MAX_VALUE;
+        if (session.idleTicks > 0) next = lastActive + session.idleTicks;
+        if (session.pingTicks > 0) next = Math.min(next, Math.max(lastActive, session.lastPing) + session.pingTicks);
+        if (next <= now) {
+            // a peer that was kept although it is past its idle timeout
+            next = now + Math.max(1, session.pingTicks > 0 ? session.pingTicks : session.idleTicks / 4);
+        }
+        return next;
+    }
+
+    private void place(Session session) {
+        wheel[(int) (session.deadline & (SLOTS - 1))].offer(session);
+    }
+
+    private static long ticks(long millis) {
+        return millis <= 0 ? 0 : Math.max(1, (millis + TICK_MS - 1) / TICK_MS);
+    }
+}
@@ -0,0 +1,70 @@
+package xyz.jxmm.screenshare.server;
+
+/**
+ * Asks the publisher of one share for an IDR frame, {@code REQUEST_KEYFRAME} on its control
+ * connection, so a viewer that joins or resynchronises does not wait for the end of the GOP.
+ * <p>
+ * Requests are coalesced: while one is on its way (no keyframe forwarded since) further ones are
+ * dropped, the keyframe serves them all; within {@link ServerConfig#keyframeIntervalMs()} of the
+ * last request they are deferred to the next {@link #tick()}, which bounds how often viewers can
+ * make the encoder spend an IDR. Thread safe, requests come from handshakes, viewer queues and
+ * layer selection.
+ */
+final class KeyframeRequester {
+    // a publisher that ignores the request is asked again after this long
+    private static final long OUTSTANDING_TIMEOUT_MS = 2000;
+
+    private final String share;
+    private final StreamServer server;
+    private final long minIntervalMs;
+    private long sentAt;
+    private boolean outstanding;
+    private boolean deferred;
+
+    KeyframeRequester(String share, StreamServer server, long minIntervalMs) {
+        this.share = share;
+        this.server = server;
+        this.minIntervalMs = minIntervalMs;
+    }
+
+    /**
+     * Null when keyframe requests are disabled, and on an edge: its publishers are the origin.
+     */
+    static KeyframeRequester fromConfig(String share, StreamServer server) {
+        long interval = ServerConfig.keyframeIntervalMs();
+        if (interval <= 0 || ServerConfig.edgeOrigin() != null) return null;
+        return new KeyframeRequester(share, server, interval);
+    }
+
+    synchronized void request() {
+        long now = System.currentTimeMillis();
+        if (outstanding && now - sentAt < OUTSTANDING_TIMEOUT_MS) return;
+        if (now - sentAt < minIntervalMs) {
+            deferred = true;
+            return;
+        }
+        send(now);
+    }
+
+    /**
+     * The share's publisher sent a keyframe, whatever was requested before has arrived.
+     */
+    synchronized void onKeyframe() {
+        outstanding = false;
+    }
+
+    /**
+     * Once a second from the share's forwarding path, sends a deferred request once allowed.
+     */
+    synchronized void tick() {
+        long now = System.currentTimeMillis();
+        if (deferred && now - sentAt >= minIntervalMs) send(now);
+    }
+
+    private void send(long now) {
+        sentAt = now;
+        outstanding = true;
+        deferred = false;
+        server.sendToPublisher(share, "REQUEST_KEYFRAME");
+    }
+}
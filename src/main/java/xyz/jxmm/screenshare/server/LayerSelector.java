@@ -0,0 +1,115 @@
+package xyz.jxmm.screenshare.server;
+
+import java.util.function.Consumer;
+
+/**
+ * Picks the {@link Simulcast} layer one viewer receives. A viewer that cannot drain its layer
+ * (backlog or dropped frames) goes down to the best layer its measured drain rate carries; after
+ * a calm period it probes one layer up, and the period doubles whenever a probe fails.
+ * <p>
+ * Switches take effect at the next keyframe of the new layer, preceded by its sequence headers,
+ * so the viewer's decoder sees a clean stream and keeps its timeline: the layers of a share are
+ * encoded from the same capture on the same clock.
+ */
+final class LayerSelector {
+    private static final int INITIAL_PROBE_TICKS = 5;
+    private static final int MAX_PROBE_TICKS = 60;
+    // a switched viewer still drains the old layer's backlog, give that time before judging again
+    private static final int HOLD_TICKS_AFTER_SWITCH = 2;
+    // share of the measured drain rate a layer may need
+    private static final double HEADROOM = 0.8;
+    // congestion this soon after probing up counts against the probe: socket buffers hide an
+    // overloaded viewer for a while before its queue backs up
+    private static final long PROBE_WINDOW_MS = 30_000;
+
+    private final long congestedMs;
+    private final long clearMs;
+    // layer the viewer receives, guarded by this
+    private int current;
+    // layer it switches to at the next keyframe
+    private volatile int desired;
+    // only touched by the thread that ticks the share
+    private long lastTick = System.currentTimeMillis();
+    private long lastDrained;
+    private long lastDropped;
+    private int calmTicks;
+    private int holdTicks;
+    private int probeTicks = INITIAL_PROBE_TICKS;
+    // when the viewer was last moved up, 0 if never
+    private long probedAt;
+
+    LayerSelector(long latencyBudgetMs) {
+        this.congestedMs = latencyBudgetMs / 4;
+        this.clearMs = latencyBudgetMs / 10;
+    }
+
+    /**
+     * Passes a tag of {@code layer} on to {@code sink} if the viewer receives that layer, or
+     * switches over at its keyframe if it is the selected one. Called from every layer's
+     * forwarding path.
+     */
+    synchronized void accept(FlvTag tag, int layer, Simulcast group, Consumer<FlvTag> sink) {
+        if (layer == current) {
+            sink.accept(tag);
+            return;
+        }
+        if (layer != desired || !tag.isVideoFrame() || !tag.keyframe) return;
+        group.sendConfig(layer, sink);
+        sink.accept(tag);
+        current = layer;
+    }
+
+    /**
+     * Once a second on the thread that forwards layer 0.
+     *
+     * @param drained bytes written to the viewer so far
+     * @param backlog queued media time, see {@link ViewerSendQueue#backlogMillis()}
+     * @param dropped frames the viewer's queue dropped so far
+     * @return whether the viewer is to switch, it then waits for a keyframe of the new layer
+     */
+    boolean tick(Simulcast group, long drained, long backlog, long dropped) {
+        long now = System.currentTimeMillis();
+        double drainRate = (drained - lastDrained) * 1000.0 / Math.max(1, now - lastTick);
+        boolean drops = dropped > lastDropped;
+        lastTick = now;
+        lastDrained = drained;
+        lastDropped = dropped;
+        int layer = desired;
+        if (!group.active(layer)) {
+            // its publisher went away
+            desired = group.best();
+            return desired != layer;
+        }
+        if (holdTicks > 0) {
+            holdTicks--;
+            return false;
+        }
+        if (backlog > congestedMs || drops) {
+            // while backlogged the viewer drains as fast as it can, its rate is what it carries
+            int next = group.lower(layer);
+            while (next >= 0 && group.rate(next) > drainRate * HEADROOM && group.lower(next) >= 0) {
+                next = group.lower(next);
+            }
+            calmTicks = 0;
+            if (next < 0) return false;
+            switchTo(next);
+            if (now - probedAt < PROBE_WINDOW_MS) probeTicks = Math.min(probeTicks * 2, MAX_PROBE_TICKS);
+            return true;
+        }
+        if (backlog >= clearMs) {
+            calmTicks = 0;
+            return false;
+        }
+        int up = group.higher(layer);
+        if (++calmTicks < probeTicks || up < 0) return false;
+        switchTo(up);
+        probedAt = now;
+        calmTicks = 0;
+        return true;
+    }
+
+    private void switchTo(int layer) {
+        desired = layer;
+        holdTicks = HOLD_TICKS_AFTER_SWITCH;
+    }
+}
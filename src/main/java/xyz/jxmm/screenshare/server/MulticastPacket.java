@@ -0,0 +1,72 @@
+package xyz.jxmm.screenshare.server;
+
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+/**
+ * Datagram format of the LAN multicast transport. Every FLV unit (file header or tag) is split
+ * into one or more datagrams; the sequence number runs over all datagrams of a share, so a
+ * receiver notices any loss and waits for the next keyframe.
+ * <pre>
+ * offset  size  field
+ * 0       2     magic "SM"
+ * 2       1     version (1)
+ * 3       1     flags, see FIRST / LAST / KEYFRAME / INIT
+ * 4       4     sequence number
+ * 8       ...   fragment of the unit
+ * </pre>
+ * The sender repeats the init units (file header, onMetaData, sequence headers) in front of
+ * every keyframe so receivers can join at any time.
+ */
+public final class MulticastPacket {
+    public static final int HEADER_SIZE = 8;
+    // stays below a 1500 byte Ethernet MTU with IP and UDP headers
+    public static final int MAX_SIZE = 1400;
+
+    // first fragment of a unit
+    public static final int FIRST = 0x01;
+    // last fragment of a unit
+    public static final int LAST = 0x02;
+    // the unit is a video keyframe, receivers resynchronise on it
+    public static final int KEYFRAME = 0x04;
+    // the unit is a repeated init unit
+    public static final int INIT = 0x08;
+
+    private static final byte MAGIC_0 = 'S';
+    private static final byte MAGIC_1 = 'M';
+    private static final byte VERSION = 1;
+
+    private MulticastPacket() {
+    }
+
+    static void putHeader(ByteBuffer packet, int flags, int seq) {
+        packet.put(MAGIC_0).put(MAGIC_1).put(VERSION).put((byte) flags).putInt(seq);
+    }
+
+    /**
+     * True if {@code packet} (position 0, limit = datagram size) is a datagram of this format.
+     */
+    public static boolean isValid(ByteBuffer packet) {
+        return packet.limit() >= HEADER_SIZE && packet.get(0) == MAGIC_0 && packet.get(1) == MAGIC_1
+                && packet.get(2) == VERSION;
+    }
+
+    public static int flags(ByteBuffer packet) {
+        return packet.get(3) & 0xFF;
+    }
+
+    public static int seq(ByteBuffer packet) {
+        return packet.getInt(4);
+    }
+
+    /**
+     * Interface named by {@code name} ({@code lo}, {@code eth0}...), null for the system default.
+     */
+    public static NetworkInterface networkInterface(String name) throws SocketException {
+        if (name == null || name.isEmpty()) return null;
+        NetworkInterface iface = NetworkInterface.getByName(name);
+        if (iface == null) throw new SocketException("no network interface " + name);
+        return iface;
+    }
+}
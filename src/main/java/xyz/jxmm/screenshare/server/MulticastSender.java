@@ -0,0 +1,194 @@
+package xyz.jxmm.screenshare.server;
+
+import xyz.jxmm.screenshare.metrics.Meter;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sends one share to a multicast group, see {@link MulticastPacket}. However many LAN viewers
+ * receive it, the relay sends every datagram once.
+ * <p>
+ * Each share gets its own port on {@link ServerConfig#multicastGroup()}, starting at
+ * {@link ServerConfig#multicastPort()}. Sending happens on the forwarding path like any other
+ * viewer; the channel is non-blocking, a datagram the socket buffer cannot take is lost and
+ * the receivers resynchronise on the next keyframe.
+ */
+final class MulticastSender {
+    private static final ConcurrentHashMap<String, MulticastSender> senders = new ConcurrentHashMap<>();
+    private static final BitSet usedPorts = new BitSet();
+
+    final String share;
+    private final int portOffset;
+    private final InetSocketAddress target;
+    private final DatagramChannel channel;
+    private final ByteBuffer packet = ByteBuffer.allocateDirect(MulticastPacket.MAX_SIZE);
+    private final Meter sent;
+    private final Meter dropped;
+    // init units repeated in front of every keyframe
+    private FlvTag header;
+    private FlvTag metadata;
+    private FlvTag videoConfig;
+    private FlvTag audioConfig;
+    private int seq;
+    private boolean closed;
+
+    private MulticastSender(String share, int portOffset, InetSocketAddress target, DatagramChannel channel) {
+        this.share = share;
+        this.portOffset = portOffset;
+        this.target = target;
+        this.channel = channel;
+        this.sent = StreamMetrics.REGISTRY.meter(StreamMetrics.MULTICAST_BYTES, "share", share);
+        this.dropped = StreamMetrics.REGISTRY.meter(StreamMetrics.MULTICAST_DROPPED, "share", share);
+    }
+
+    /**
+     * Starts multicasting {@code share}. Returns null if multicast is disabled or the channel
+     * cannot be set up; TCP viewers are served either way.
+     */
+    static MulticastSender open(String share) {
+        String group = ServerConfig.multicastGroup();
+        if (group == null) return null;
+        int offset;
+        synchronized (usedPorts) {
+            offset = usedPorts.nextClearBit(0);
+            usedPorts.set(offset);
+        }
+        try {
+            InetSocketAddress target = new InetSocketAddress(InetAddress.getByName(group), ServerConfig.multicastPort() + offset);
+            DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ServerConfig.multicastTtl());
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+            NetworkInterface iface = MulticastPacket.networkInterface(ServerConfig.multicastInterface());
+            if (iface != null) channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, iface);
+            channel.configureBlocking(false);
+            MulticastSender sender = new MulticastSender(share, offset, target, channel);
+            MulticastSender previous = senders.put(share, sender);
+            if (previous != null) previous.close();
+            System.out.println("[MulticastSender] Multicasting " + share + " to " + group + ":" + target.getPort());
+            return sender;
+        } catch (IOException e) {
+            System.err.println("[MulticastSender] 无法组播 " + share + ": " + e.getMessage());
+            releasePort(offset);
+            return null;
+        }
+    }
+
+    /**
+     * {@code group:port} viewers of {@code share} can join, null if it is not multicast.
+     */
+    static String endpoint(String share) {
+        MulticastSender sender = senders.get(share);
+        return sender != null ? sender.target.getHostString() + ":" + sender.target.getPort() : null;
+    }
+
+    private static void releasePort(int offset) {
+        synchronized (usedPorts) {
+            usedPorts.clear(offset);
+        }
+    }
+
+    /**
+     * Called from the forwarding path after the tag went to the join cache.
+     */
+    synchronized void send(FlvTag tag) {
+        if (closed) return;
+        switch (tag.type) {
+            case FlvTag.HEADER:
+                header = replace(header, tag);
+                return;
+            case FlvTag.SCRIPT:
+                metadata = replace(metadata, tag);
+                return;
+            case FlvTag.RAW:
+                return;
+            default:
+                break;
+        }
+        if (tag.sequenceHeader) {
+            if (tag.type == FlvTag.VIDEO) {
+                videoConfig = replace(videoConfig, tag);
+            } else {
+                audioConfig = replace(audioConfig, tag);
+            }
+            return;
+        }
+        try {
+            if (tag.type == FlvTag.VIDEO && tag.keyframe) {
+                if (header != null) sendUnit(header, MulticastPacket.INIT);
+                if (metadata != null) sendUnit(metadata, MulticastPacket.INIT);
+                if (audioConfig != null) sendUnit(audioConfig, MulticastPacket.INIT);
+                if (videoConfig != null) sendUnit(videoConfig, MulticastPacket.INIT);
+                sendUnit(tag, MulticastPacket.KEYFRAME);
+            } else {
+                sendUnit(tag, 0);
+            }
+        } catch (IOException e) {
+            System.out.println("[MulticastSender] Multicast of " + share + " failed: " + e.getMessage());
+            close();
+        }
+    }
+
+    private void sendUnit(FlvTag tag, int flags) throws IOException {
+        int payload = MulticastPacket.MAX_SIZE - MulticastPacket.HEADER_SIZE;
+        int slice = 0;
+        int sliceOffset = 0;
+        for (int done = 0; done < tag.size; ) {
+            int len = Math.min(payload, tag.size - done);
+            int fragmentFlags = flags;
+            if (done == 0) fragmentFlags |= MulticastPacket.FIRST;
+            if (done + len == tag.size) fragmentFlags |= MulticastPacket.LAST;
+            packet.clear();
+            MulticastPacket.putHeader(packet, fragmentFlags, seq++);
+            // copy the fragment out of the tag's slices
+            for (int left = len; left > 0; ) {
+                int n = Math.min(left, tag.sliceLength(slice) - sliceOffset);
+                ByteBuffer src = tag.chunk(slice).duplicate();
+                int start = tag.sliceOffset(slice) + sliceOffset;
+                src.limit(start + n).position(start);
+                packet.put(src);
+                left -= n;
+                sliceOffset += n;
+                if (sliceOffset == tag.sliceLength(slice)) {
+                    slice++;
+                    sliceOffset = 0;
+                }
+            }
+            packet.flip();
+            int size = packet.remaining();
+            if (channel.send(packet, target) == 0) {
+                dropped.mark(1);
+            } else {
+                sent.mark(size);
+            }
+            done += len;
+        }
+    }
+
+    synchronized void close() {
+        if (closed) return;
+        closed = true;
+        senders.remove(share, this);
+        try { channel.close(); } catch (IOException ignored) {}
+        releasePort(portOffset);
+        header = replace(header, null);
+        metadata = replace(metadata, null);
+        videoConfig = replace(videoConfig, null);
+        audioConfig = replace(audioConfig, null);
+        StreamMetrics.REGISTRY.remove(StreamMetrics.MULTICAST_BYTES, "share", share);
+        StreamMetrics.REGISTRY.remove(StreamMetrics.MULTICAST_DROPPED, "share", share);
+    }
+
+    private static FlvTag replace(FlvTag old, FlvTag tag) {
+        if (old != null) old.release();
+        return tag != null ? tag.retain() : null;
+    }
+}
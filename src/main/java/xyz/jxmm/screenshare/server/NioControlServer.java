@@ -0,0 +1,369 @@
+package xyz.jxmm.screenshare.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Selector based control server used by {@link ServerApplication} in {@link ServerConfig.ControlMode#NIO} mode.
+ * One acceptor thread plus a fixed set of {@link NioEventLoop}s serve every control connection. Each
+ * connection is a {@link ClientHandler} fed line by line on the loop that owns it, so commands keep
+ * their order and their semantics; an idle connection costs its channel and its handler, no thread
+ * and no buffers.
+ */
+final class NioControlServer {
+    // limit reads per readiness event so one chatty client cannot starve the loop
+    private static final int MAX_READS_PER_EVENT = 4;
+
+    private final int port;
+    private final NioEventLoop[] loops;
+    private final Function<Connection, ClientHandler> handlers;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running = true;
+
+    /**
+     * @param handlers creates the handler of a new connection, called on the connection's loop
+     */
+    NioControlServer(int port, int loopCount, Function<Connection, ClientHandler> handlers) {
+        this.port = port;
+        this.loops = new NioEventLoop[loopCount];
+        this.handlers = handlers;
+    }
+
+    /**
+     * Runs the accept loop on the calling thread until {@link #stop()}.
+     */
+    void run() {
+        try {
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new NioEventLoop("ControlServer-Loop-" + i);
+                loops[i].start();
+            }
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+            System.out.println("服务器已启动，等待客户端连接... (控制端口" + port + ", " + loops.length + " 个事件循环)");
+            while (running) {
+                dispatch(serverChannel.accept());
+            }
+        } catch (IOException e) {
+            if (running) {
+                System.err.println("服务器异常: " + e.getMessage());
+                e.printStackTrace();
+            }
+        } finally {
+            stop();
+        }
+    }
+
+    private void dispatch(SocketChannel ch) {
+        try {
+            ch.configureBlocking(false);
+            ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        } catch (IOException e) {
+            try { ch.close(); } catch (IOException ignored) {}
+            return;
+        }
+        // connections live as long as their client, each goes to the loop that owns the fewest
+        NioEventLoop loop = loops[0];
+        for (NioEventLoop l : loops) {
+            if (l.load().get() < loop.load().get()) loop = l;
+        }
+        loop.load().incrementAndGet();
+        Connection connection = new Connection(loop, ch);
+        loop.execute(() -> connection.open(handlers));
+    }
+
+    void stop() {
+        running = false;
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException ignored) {
+        }
+        for (NioEventLoop loop : loops) {
+            if (loop != null) loop.shutdown();
+        }
+    }
+
+    /**
+     * One control connection. Reads, command handling and writes happen on its loop;
+     * {@link #send} and {@link #forward} may be called from any thread.
+     */
+    static final class Connection implements NioEventLoop.Handler {
+        private final NioEventLoop loop;
+        private final SocketChannel channel;
+        // lines or frames waiting for the socket, oldest first
+        private final ControlOutbox outbound = ControlOutbox.fromConfig();
+        // a flush task is queued on the loop, senders from other threads need not queue another
+        private final AtomicBoolean flushQueued = new AtomicBoolean();
+        private final SocketAddress remote;
+        private volatile boolean closed;
+        // after HELLO BIN1 both directions carry frames, set on the loop
+        private volatile boolean binary;
+        // loop thread only
+        private SelectionKey key;
+        private ClientHandler handler;
+        private boolean writeInterest;
+        // bytes of a line or frame that has not ended yet, null between them
+        private byte[] partial;
+        private int partialLength;
+        // the last line ended with '\r', a '\n' right after it belongs to the same terminator
+        private boolean skipLf;
+
+        Connection(NioEventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+            SocketAddress address;
+            try {
+                address = channel.getRemoteAddress();
+            } catch (IOException e) {
+                address = null;
+            }
+            this.remote = address;
+        }
+
+        private void open(Function<Connection, ClientHandler> handlers) {
+            try {
+                handler = handlers.apply(this);
+                key = loop.register(channel, SelectionKey.OP_READ, this);
+                System.out.println("[ServerApplication] 新的客户端连接: " + remote);
+            } catch (IOException | RuntimeException e) {
+                closed = true;
+                loop.load().decrementAndGet();
+                try { channel.close(); } catch (IOException ignored) {}
+            }
+        }
+
+        SocketAddress remoteAddress() {
+            return remote;
+        }
+
+        boolean binary() {
+            return binary;
+        }
+
+        /**
+         * The reply to HELLO has been queued, from now on both directions carry frames.
+         * Loop thread only.
+         */
+        void useBinary() {
+            binary = true;
+        }
+
+        /**
+         * Queues one message for the client, a frame carrying {@code requestId} on a binary
+         * connection. Never blocks; errors and a client too far behind close the connection on its loop.
+         */
+        void send(String line, int requestId, ControlOutbox.Kind kind) {
+            if (closed) return;
+            enqueue(ControlOutbox.encode(line, requestId, binary), kind);
+        }
+
+        /**
+         * Queues a message another connection sent, in this connection's format.
+         */
+        void forward(ControlMessage message) {
+            if (closed) return;
+            enqueue(ControlOutbox.encode(message, binary), ControlOutbox.Kind.of(message.command()));
+        }
+
+        private void enqueue(ByteBuffer buf, ControlOutbox.Kind kind) {
+            if (!outbound.offer(buf, kind)) {
+                System.out.println("[ServerApplication] 客户端 " + remote + " 长时间未读取消息，断开连接");
+                disconnect();
+                return;
+            }
+            if (loop.inLoop()) {
+                flush();
+            } else if (flushQueued.compareAndSet(false, true)) {
+                loop.execute(() -> {
+                    flushQueued.set(false);
+                    flush();
+                });
+            }
+        }
+
+        /**
+         * Closes the connection on its loop, may be called from any thread.
+         */
+        void disconnect() {
+            if (loop.inLoop()) {
+                close();
+            } else {
+                loop.execute(this::close);
+            }
+        }
+
+        @Override
+        public void handle(SelectionKey key) throws IOException {
+            if (key.isWritable()) flush();
+            if (key.isValid() && key.isReadable()) read();
+        }
+
+        private void read() throws IOException {
+            for (int i = 0; i < MAX_READS_PER_EVENT && !closed; i++) {
+                ByteBuffer buf = loop.readBuffer();
+                int n = channel.read(buf);
+                if (n < 0) {
+                    close();
+                    return;
+                }
+                if (n == 0) break;
+                buf.flip();
+                boolean full = buf.limit() == buf.capacity();
+                decode(buf);
+                if (!full) break;
+            }
+            if (partialLength == 0) partial = null;
+        }
+
+        private void decode(ByteBuffer buf) {
+            int start = buf.position();
+            int end = buf.limit();
+            if (!binary) start = decodeLines(buf, start, end);
+            // the rest of the buffer, after HELLO switched the connection
+            if (binary && !closed) decodeFrames(buf, start, end);
+            buf.position(end);
+        }
+
+        /**
+         * Hands every complete line in {@code buf} to the handler and keeps the rest. Accepts the
+         * terminators {@link java.io.BufferedReader#readLine()} accepts: "\n", "\r" and "\r\n".
+         * Returns where it stopped: {@code end}, or the end of the line that switched the
+         * connection to frames.
+         */
+        private int decodeLines(ByteBuffer buf, int start, int end) {
+            for (int i = start; i < end && !closed; i++) {
+                byte b = buf.get(i);
+                if (skipLf) {
+                    skipLf = false;
+                    if (b == '\n') {
+                        start = i + 1;
+                        continue;
+                    }
+                }
+                if (b != '\n' && b != '\r') continue;
+                append(buf, start, i);
+                if (closed) return end;
+                skipLf = b == '\r';
+                start = i + 1;
+                String line = new String(partial, 0, partialLength, ControlOutbox.CHARSET);
+                partialLength = 0;
+                // a big legacy frame does not keep its buffer afterwards
+                if (partial.length > 4096) partial = null;
+                handler.handleCommand(line);
+                if (binary) return start;
+            }
+            if (!closed && start < end) append(buf, start, end);
+            return end;
+        }
+
+        /**
+         * Hands every complete frame in {@code buf} to the handler and keeps the rest. A frame's
+         * bytes go to its message, the next frame starts in a new array.
+         */
+        private void decodeFrames(ByteBuffer buf, int start, int end) {
+            if (skipLf && start < end) {
+                // HELLO ended with "\r\n" split across reads
+                skipLf = false;
+                if (buf.get(start) == '\n') start++;
+            }
+            while (start < end && !closed) {
+                if (partialLength < 4) {
+                    int n = Math.min(4 - partialLength, end - start);
+                    append(buf, start, start + n);
+                    start += n;
+                    if (partialLength < 4) return;
+                }
+                int length = (partial[0] & 0xFF) << 24 | (partial[1] & 0xFF) << 16 | (partial[2] & 0xFF) << 8 | partial[3] & 0xFF;
+                if (length < ControlMessage.HEADER_BYTES || length > ControlMessage.MAX_BYTES) {
+                    System.out.println("[ServerApplication] 客户端 " + remote + " 发送了非法的帧长度 " + length + "，断开连接");
+                    close();
+                    return;
+                }
+                if (partial.length < 4 + length) partial = Arrays.copyOf(partial, 4 + length);
+                int n = Math.min(4 + length - partialLength, end - start);
+                append(buf, start, start + n);
+                start += n;
+                if (closed || partialLength < 4 + length) return;
+                ControlMessage message;
+                try {
+                    message = ControlMessage.binary(partial, 4, length);
+                } catch (IllegalArgumentException e) {
+                    System.out.println("[ServerApplication] 客户端 " + remote + " 发送了非法的帧: " + e.getMessage() + "，断开连接");
+                    close();
+                    return;
+                }
+                partial = null;
+                partialLength = 0;
+                handler.handle(message);
+            }
+        }
+
+        private void append(ByteBuffer buf, int from, int to) {
+            int length = to - from;
+            if (partial == null) partial = new byte[Math.max(256, length)];
+            if (partialLength + length > partial.length) {
+                // a frame also holds its length prefix
+                int max = ControlMessage.MAX_BYTES + 4;
+                if (partialLength + length > max) {
+                    System.out.println("[ServerApplication] 客户端 " + remote + " 的命令超过 " + ControlMessage.MAX_BYTES + " 字节，断开连接");
+                    close();
+                    return;
+                }
+                partial = Arrays.copyOf(partial, Math.min(max, Math.max(partial.length * 2, partialLength + length)));
+            }
+            ByteBuffer src = buf.duplicate();
+            src.limit(to).position(from);
+            src.get(partial, partialLength, length);
+            partialLength += length;
+        }
+
+        private void flush() {
+            if (closed || key == null) return;
+            try {
+                ByteBuffer head;
+                while ((head = outbound.peek()) != null) {
+                    if (channel.write(head) > 0 && head.hasRemaining()) outbound.progress();
+                    if (head.hasRemaining()) {
+                        // the socket is full, continue once it is writable
+                        setWriteInterest(true);
+                        return;
+                    }
+                    outbound.remove();
+                }
+                setWriteInterest(false);
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void setWriteInterest(boolean on) {
+            if (writeInterest == on) return;
+            writeInterest = on;
+            key.interestOps(on ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        /**
+         * Loop thread only.
+         */
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            loop.load().decrementAndGet();
+            if (key != null) key.cancel();
+            try { channel.close(); } catch (IOException ignored) {}
+            outbound.close();
+            partial = null;
+            if (handler != null) handler.disconnected();
+        }
+    }
+}
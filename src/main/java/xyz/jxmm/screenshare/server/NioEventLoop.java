@@ -0,0 +1,186 @@
+package xyz.jxmm.screenshare.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Single threaded selector loop.
+ * Channels registered on a loop are only touched from the loop thread; other threads hand work
+ * over with {@link #execute(Runnable)}.
+ */
+class NioEventLoop implements Runnable {
+
+    /**
+     * Attachment of every key registered on the loop.
+     */
+    interface Handler {
+        void handle(SelectionKey key) throws IOException;
+
+        /**
+         * Called on the loop thread when {@link #handle} failed or the loop shuts down.
+         */
+        void close();
+    }
+
+    private final String name;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // delayed tasks ordered by deadline, only used on the loop thread
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    private long timerSeq;
+    // scratch buffer for reads, only used on the loop thread
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    // number of channels owned by this loop, used to pick the least busy loop
+    private final AtomicInteger load = new AtomicInteger();
+    private volatile boolean running = true;
+    private Thread thread;
+
+    NioEventLoop(String name) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+    }
+
+    void start() {
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        // also from the loop thread: a task queued while handling events must not wait for the next event
+        selector.wakeup();
+    }
+
+    /**
+     * Runs {@code task} on the loop after {@code delayMillis}. Loop thread only.
+     */
+    void schedule(Runnable task, long delayMillis) {
+        timers.add(new Timer(System.nanoTime() + delayMillis * 1_000_000L, timerSeq++, task));
+    }
+
+    /**
+     * Loop thread only.
+     */
+    SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException {
+        return channel.register(selector, ops, handler);
+    }
+
+    ByteBuffer readBuffer() {
+        readBuffer.clear();
+        return readBuffer;
+    }
+
+    AtomicInteger load() {
+        return load;
+    }
+
+    String name() {
+        return name;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                Timer next = timers.peek();
+                if (next == null) {
+                    selector.select();
+                } else {
+                    long waitMillis = (next.deadline - System.nanoTime()) / 1_000_000L;
+                    if (waitMillis > 0) {
+                        selector.select(waitMillis);
+                    } else {
+                        selector.selectNow();
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("[" + name + "] select 失败: " + e.getMessage());
+                break;
+            }
+            runTasks();
+            runTimers();
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                Handler handler = (Handler) key.attachment();
+                try {
+                    if (key.isValid()) handler.handle(key);
+                } catch (IOException | CancelledKeyException e) {
+                    handler.close();
+                } catch (RuntimeException e) {
+                    System.err.println("[" + name + "] 处理事件异常: " + e);
+                    handler.close();
+                }
+            }
+        }
+        runTasks();
+        for (SelectionKey key : selector.keys()) {
+            ((Handler) key.attachment()).close();
+        }
+        try { selector.close(); } catch (IOException ignored) {}
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("[" + name + "] 任务执行异常: " + e);
+            }
+        }
+    }
+
+    private void runTimers() {
+        long now = System.nanoTime();
+        Timer timer;
+        while ((timer = timers.peek()) != null && timer.deadline - now <= 0) {
+            timers.poll();
+            try {
+                timer.task.run();
+            } catch (RuntimeException e) {
+                System.err.println("[" + name + "] 定时任务执行异常: " + e);
+            }
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private static final class Timer implements Comparable<Timer> {
+        final long deadline;
+        // keeps timers with the same deadline in scheduling order
+        final long seq;
+        final Runnable task;
+
+        Timer(long deadline, long seq, Runnable task) {
+            this.deadline = deadline;
+            this.seq = seq;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer o) {
+            long d = deadline - o.deadline;
+            if (d != 0) return d < 0 ? -1 : 1;
+            return Long.compare(seq, o.seq);
+        }
+    }
+}
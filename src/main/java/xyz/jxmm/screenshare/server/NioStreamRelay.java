@@ -0,0 +1,604 @@
+package xyz.jxmm.screenshare.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Selector based relay engine used by {@link StreamServer} in {@link ServerConfig.RelayMode#NIO} mode.
+ * One acceptor thread plus a fixed set of {@link NioEventLoop}s serve every publisher and viewer.
+ * All viewers of a share live on the loop that owns the share, so a share is never touched by two threads.
+ */
+class NioStreamRelay {
+    // limit reads per readiness event so one busy publisher cannot starve the loop
+    private static final int MAX_READS_PER_EVENT = 4;
+
+    private final StreamServer server;
+    private final int port;
+    private final NioEventLoop[] loops;
+    private final ConcurrentHashMap<String, Share> shares = new ConcurrentHashMap<>();
+    private ServerSocketChannel serverChannel;
+    // loop that reads the next connection's preamble, handshakes are spread round robin
+    private int nextHandshakeLoop;
+    private volatile boolean running = true;
+
+    NioStreamRelay(StreamServer server, int port, int loopCount) {
+        this.server = server;
+        this.port = port;
+        this.loops = new NioEventLoop[loopCount];
+    }
+
+    /**
+     * Runs the accept loop on the calling thread until {@link #stop()}.
+     */
+    void run() {
+        try {
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new NioEventLoop("StreamServer-Loop-" + i);
+                loops[i].start();
+            }
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            System.out.println("[NioStreamRelay] Listening for streams on port " + port + " with " + loops.length + " event loops");
+            while (running) {
+                SocketChannel ch = serverChannel.accept();
+                System.out.println("[NioStreamRelay] Incoming TCP connection from " + ch.getRemoteAddress());
+                dispatch(ch);
+            }
+        } catch (IOException e) {
+            if (running) e.printStackTrace();
+        } finally {
+            stop();
+        }
+    }
+
+    private void dispatch(SocketChannel ch) {
+        try {
+            ch.configureBlocking(false);
+            ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        } catch (IOException e) {
+            closeQuietly(ch);
+            return;
+        }
+        NioEventLoop loop = loops[nextHandshakeLoop];
+        nextHandshakeLoop = (nextHandshakeLoop + 1) % loops.length;
+        loop.execute(() -> {
+            Handshake handshake = new Handshake(loop, ch);
+            try {
+                handshake.key = loop.register(ch, SelectionKey.OP_READ, handshake);
+                loop.schedule(handshake::expire, StreamHandshake.TIMEOUT_MS);
+            } catch (IOException e) {
+                closeQuietly(ch);
+            }
+        });
+    }
+
+    boolean hasPublisher(String username) {
+        Share share = shares.get(username);
+        return share != null && share.publisher != null;
+    }
+
+    void requestKeyframe(String username) {
+        Share share = shares.get(username);
+        KeyframeRequester keyframes = share != null ? share.keyframes : null;
+        if (keyframes != null) keyframes.request();
+    }
+
+    void attachUpstream(String username, SocketChannel ch) throws IOException {
+        ch.configureBlocking(false);
+        ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        attachPublisher(username, ch);
+    }
+
+    private void assign(StreamTokens.Grant grant, SocketChannel ch) {
+        if (grant == null) {
+            System.out.println("[NioStreamRelay] Invalid or expired stream token, closing connection.");
+            closeQuietly(ch);
+        } else if (grant.recording != null) {
+            // playback blocks on the file and the socket, it runs on a thread of its own
+            server.startPlayback(grant, ch);
+        } else if (grant.role == StreamHandshake.Role.PUBLISH) {
+            attachPublisher(grant.user, ch);
+        } else {
+            attachViewer(grant.user, ch);
+        }
+    }
+
+    private void attachPublisher(String username, SocketChannel ch) {
+        Share share = shareOf(username);
+        share.loop.execute(() -> {
+            if (share.closed) {
+                attachPublisher(username, ch);
+            } else {
+                share.attachPublisher(ch);
+            }
+        });
+    }
+
+    private void attachViewer(String targetUser, SocketChannel ch) {
+        Share share = shares.computeIfAbsent(targetUser, this::newShare);
+        share.loop.execute(() -> {
+            if (share.closed) {
+                // share ended while the task was queued, start over on a fresh one
+                attachViewer(targetUser, ch);
+            } else {
+                share.addViewer(ch);
+            }
+        });
+    }
+
+    private Share shareOf(String username) {
+        String name = Simulcast.baseOf(username);
+        Share base = shares.computeIfAbsent(name, this::newShare);
+        if (name.equals(username)) return base;
+        // layers live on the loop of their share, the share's viewers are only touched there
+        return shares.computeIfAbsent(username, layer -> new Share(layer, base.loop, base));
+    }
+
+    private Share newShare(String username) {
+        NioEventLoop least = loops[0];
+        for (NioEventLoop loop : loops) {
+            if (loop.load().get() < least.load().get()) least = loop;
+        }
+        return new Share(username, least, null);
+    }
+
+    void stop() {
+        running = false;
+        try { if (serverChannel != null) serverChannel.close(); } catch (IOException ignored) {}
+        for (NioEventLoop loop : loops) {
+            if (loop != null) loop.shutdown();
+        }
+    }
+
+    private static void closeQuietly(SocketChannel ch) {
+        try { ch.close(); } catch (IOException ignored) {}
+    }
+
+    /**
+     * Connection whose {@link StreamHandshake} preamble has not arrived yet.
+     */
+    private final class Handshake implements NioEventLoop.Handler {
+        final NioEventLoop loop;
+        final SocketChannel ch;
+        final ByteBuffer preamble = ByteBuffer.allocate(StreamHandshake.SIZE);
+        SelectionKey key;
+        boolean done;
+        StreamHandshake handshake;
+        long redeemDeadline;
+
+        Handshake(NioEventLoop loop, SocketChannel ch) {
+            this.loop = loop;
+            this.ch = ch;
+        }
+
+        @Override
+        public void handle(SelectionKey key) throws IOException {
+            // read exactly the preamble, stream data behind it stays in the socket for the new owner
+            if (ch.read(preamble) == -1) {
+                close();
+                return;
+            }
+            if (preamble.hasRemaining()) return;
+            done = true;
+            // the channel is registered again by its share, possibly on another loop
+            key.cancel();
+            handshake = StreamHandshake.decode(preamble.array());
+            redeemDeadline = System.currentTimeMillis() + server.tokenWaitMillis();
+            redeem();
+        }
+
+        private void redeem() {
+            StreamTokens.Grant grant = handshake != null ? server.redeem(handshake) : null;
+            if (grant == null && handshake != null && System.currentTimeMillis() < redeemDeadline) {
+                loop.schedule(this::redeem, 20);
+                return;
+            }
+            assign(grant, ch);
+        }
+
+        void expire() {
+            if (!done) {
+                System.out.println("[NioStreamRelay] Stream handshake timed out, closing connection.");
+                close();
+            }
+        }
+
+        @Override
+        public void close() {
+            if (done) return;
+            done = true;
+            if (key != null) key.cancel();
+            closeQuietly(ch);
+        }
+    }
+
+    /**
+     * One publisher and its viewers. Only accessed on {@link #loop}.
+     * A simulcast layer is a share of its own whose tags go to the viewers of its {@link #base}.
+     */
+    private final class Share implements NioEventLoop.Handler {
+        final String name;
+        final NioEventLoop loop;
+        // null for layer 0, the share itself
+        final Share base;
+        final int layer;
+        final Simulcast group;
+        final List<Viewer> viewers = new ArrayList<>();
+        final FlvStreamCache cache = new FlvStreamCache();
+        final List<FlvTag> tags = new ArrayList<>();
+        FlvDemuxer demuxer;
+        // pooled direct chunk the publisher is read into, tags reference it instead of copying
+        PooledBuffer chunk;
+        StreamMetrics.Share metrics;
+        StreamRecorder recorder;
+        MulticastSender multicast;
+        BitrateController rate;
+        // volatile for requestKeyframe, which is called off the loop
+        volatile KeyframeRequester keyframes;
+        // volatile for hasPublisher, otherwise only used on the loop
+        volatile SocketChannel publisher;
+        SelectionKey publisherKey;
+        // read-idle timeout of the current publisher channel
+        IdleReaper.Session idle;
+        boolean closed;
+        long lastStatTime = System.currentTimeMillis();
+        int frameCount;
+
+        Share(String name, NioEventLoop loop, Share base) {
+            this.name = name;
+            this.loop = loop;
+            this.base = base;
+            this.layer = Simulcast.layerOf(name);
+            this.group = base != null ? base.group : new Simulcast();
+        }
+
+        void attachPublisher(SocketChannel ch) {
+            System.out.println("[NioStreamRelay] Assigning publisher channel for " + name + " on " + loop.name());
+            if (publisher != null) {
+                System.out.println("[NioStreamRelay] Replacing previous publisher channel for " + name);
+                idle.cancel();
+                publisherKey.cancel();
+                closeQuietly(publisher);
+                releaseInput();
+                loop.load().decrementAndGet();
+            }
+            try {
+                publisherKey = loop.register(ch, SelectionKey.OP_READ, this);
+                publisher = ch;
+                idle = IdleReaper.shared().register("publisher", ServerConfig.streamIdleMs(), 0, () -> {
+                    loop.execute(() -> {
+                        // the channel may have been replaced meanwhile
+                        if (publisher != ch) return;
+                        System.out.println("[NioStreamRelay] Publisher " + name + " sent nothing for " + ServerConfig.streamIdleMs() + " ms, closing.");
+                        close();
+                    });
+                    return true;
+                });
+                demuxer = new FlvDemuxer(name);
+                chunk = BufferPool.shared().acquire();
+                if (metrics == null) {
+                    metrics = StreamMetrics.share(name);
+                    group.attach(layer, cache, metrics.ingest);
+                    // recording, multicast and bitrate hints follow the full quality layer
+                    if (layer == 0) {
+                        recorder = Recordings.start(name);
+                        multicast = MulticastSender.open(name);
+                        rate = BitrateController.fromConfig(name);
+                        keyframes = KeyframeRequester.fromConfig(name, server);
+                    }
+                }
+                loop.load().incrementAndGet();
+            } catch (IOException e) {
+                closeQuietly(ch);
+            }
+        }
+
+        void addViewer(SocketChannel ch) {
+            try {
+                Viewer viewer = new Viewer(this, ch);
+                viewer.key = loop.register(ch, SelectionKey.OP_READ, viewer);
+                viewer.idle = IdleReaper.shared().register("viewer", ServerConfig.streamIdleMs(), 0, viewer::reap);
+                loop.load().incrementAndGet();
+                // header, sequence header and current GOP first, then live tags
+                cache.join(viewer::replay, () -> {
+                    if (!viewer.closed) viewers.add(viewer);
+                });
+                System.out.println("[NioStreamRelay] Adding viewer for target " + name + ", from " + ch.getRemoteAddress());
+                // the cached GOP may be long, a fresh keyframe lets the viewer start close to live
+                requestKeyframe();
+            } catch (IOException e) {
+                closeQuietly(ch);
+            }
+        }
+
+        @Override
+        public void handle(SelectionKey key) throws IOException {
+            for (int i = 0; i < MAX_READS_PER_EVENT; i++) {
+                ByteBuffer buf = chunk.buffer();
+                if (!buf.hasRemaining()) {
+                    chunk.release();
+                    chunk = BufferPool.shared().acquire();
+                    buf = chunk.buffer();
+                }
+                int from = buf.position();
+                int read = publisher.read(buf);
+                if (read == -1) {
+                    System.out.println("[NioStreamRelay] Publisher " + name + " stream ended.");
+                    close();
+                    return;
+                }
+                if (read == 0) break;
+                idle.touch();
+                metrics.ingest.mark(read);
+                if (rate != null) rate.onRead(read);
+                // tags are parsed even without viewers so the join cache stays current
+                tags.clear();
+                demuxer.feed(chunk, from, buf.position(), tags::add);
+                for (FlvTag tag : tags) {
+                    cache.publish(tag, this::fanOut);
+                    if (rate != null) rate.onTag(tag);
+                    if (keyframes != null && tag.isVideoFrame() && tag.keyframe) keyframes.onKeyframe();
+                    if (multicast != null) multicast.send(tag);
+                    // recorded behind the live viewers, the recorder only queues
+                    if (recorder != null) recorder.offer(tag);
+                    if (tag.isVideoFrame()) frameCount++;
+                    tag.release();
+                }
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastStatTime >= 1000) {
+                System.out.println("[NioStreamRelay] " + name + " 转发帧率: " + frameCount + " fps, viewers="
+                        + (base != null ? base : this).viewers.size());
+                frameCount = 0;
+                lastStatTime = now;
+                if (layer == 0) {
+                    for (Viewer viewer : viewers) viewer.selectLayer();
+                }
+                if (rate != null) adaptBitrate();
+                if (keyframes != null) keyframes.tick();
+            }
+        }
+
+        void requestKeyframe() {
+            if (keyframes != null) keyframes.request();
+        }
+
+        private void adaptBitrate() {
+            long backlog = 0;
+            long dropped = 0;
+            for (Viewer viewer : viewers) {
+                backlog = Math.max(backlog, viewer.queue.backlogMillis());
+                dropped += viewer.queue.droppedFrames();
+            }
+            String hint = rate.tick(backlog, dropped);
+            if (hint != null) server.sendToPublisher(name, hint);
+        }
+
+        private void releaseInput() {
+            demuxer.close();
+            chunk.release();
+            chunk = null;
+        }
+
+        private void fanOut(FlvTag tag) {
+            List<Viewer> targets = (base != null ? base : this).viewers;
+            for (int v = targets.size() - 1; v >= 0; v--) {
+                targets.get(v).offer(tag, layer);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            shares.remove(name, this);
+            if (publisher != null) {
+                idle.cancel();
+                publisherKey.cancel();
+                closeQuietly(publisher);
+                releaseInput();
+                loop.load().decrementAndGet();
+            }
+            // notify viewers by closing their channels once their queues are written out
+            for (int v = viewers.size() - 1; v >= 0; v--) {
+                viewers.get(v).finish();
+            }
+            group.detach(layer, cache);
+            if (layer == 0) {
+                // the lower layers have nobody left to serve
+                for (int l = 1; l < Simulcast.MAX_LAYERS; l++) {
+                    Share sub = shares.get(Simulcast.layerName(name, l));
+                    if (sub != null && sub.base == this) sub.close();
+                }
+            }
+            cache.close();
+            if (metrics != null) metrics.close();
+            if (recorder != null) recorder.finish();
+            if (multicast != null) multicast.close();
+            System.out.println("[NioStreamRelay] Publisher " + name + " cleanup completed.");
+        }
+    }
+
+    /**
+     * Viewer channel with its bounded outbound queue. Only accessed on the owning share's loop.
+     */
+    private final class Viewer implements NioEventLoop.Handler {
+        final Share share;
+        final SocketChannel ch;
+        final ViewerSendQueue queue = ViewerSendQueue.fromConfig();
+        final TagWriter writer = new TagWriter();
+        final FlvTag[] batch = new FlvTag[ViewerSendQueue.MAX_BATCH];
+        final StreamMetrics.Viewer metrics;
+        final LayerSelector layers = new LayerSelector(ServerConfig.viewerLatencyBudgetMs());
+        final Consumer<FlvTag> sink = this::enqueue;
+        SelectionKey key;
+        // write-idle timeout, set with key
+        IdleReaper.Session idle;
+        boolean flushScheduled;
+        boolean closed;
+
+        Viewer(Share share, SocketChannel ch) throws IOException {
+            this.share = share;
+            this.ch = ch;
+            this.metrics = StreamMetrics.viewer(share.name, String.valueOf(ch.getRemoteAddress()), queue);
+        }
+
+        /**
+         * On the reaper's thread: queued tags went unwritten for the idle timeout.
+         */
+        boolean reap() {
+            if (queue.stalledMillis() < ServerConfig.streamIdleMs()) return false;
+            share.loop.execute(() -> {
+                if (closed) return;
+                System.out.println("[NioStreamRelay] Viewer of " + share.name + " stopped reading, closing.");
+                close();
+            });
+            return true;
+        }
+
+        /**
+         * Tag of simulcast layer {@code layer}, enqueued if this viewer receives that layer.
+         */
+        void offer(FlvTag tag, int layer) {
+            layers.accept(tag, layer, share.group, sink);
+        }
+
+        void selectLayer() {
+            if (layers.tick(share.group, metrics.egress.getCount(), queue.backlogMillis(), queue.droppedFrames())) {
+                share.requestKeyframe();
+            }
+        }
+
+        void enqueue(FlvTag tag) {
+            enqueued(queue.offer(tag));
+        }
+
+        /**
+         * A tag of the join cache, see {@link FlvStreamCache#join}.
+         */
+        void replay(FlvTag tag) {
+            enqueued(queue.replay(tag));
+        }
+
+        private void enqueued(ViewerSendQueue.Offer result) {
+            switch (result) {
+                case DISCONNECT:
+                    System.out.println("[NioStreamRelay] Viewer of " + share.name + " overflowed its send queue, closing.");
+                    close();
+                    return;
+                case RESYNC:
+                    System.out.println("[NioStreamRelay] Viewer of " + share.name + " fell behind, skipping to the next keyframe.");
+                    share.requestKeyframe();
+                    break;
+                case DROPPED:
+                    return;
+                default:
+                    break;
+            }
+            // a pending OP_WRITE means the socket is full, the loop flushes once it drains
+            if ((key.interestOps() & SelectionKey.OP_WRITE) != 0) return;
+            if (queue.queuedBytes() >= queue.flushBytes()) {
+                flushQuietly();
+            } else if (!flushScheduled) {
+                // tags of the same read and of the next few milliseconds share one write
+                flushScheduled = true;
+                share.loop.schedule(this::scheduledFlush, queue.flushDelayMillis());
+            }
+        }
+
+        private void scheduledFlush() {
+            flushScheduled = false;
+            if (!closed && (key.interestOps() & SelectionKey.OP_WRITE) == 0) flushQuietly();
+        }
+
+        private void flushQuietly() {
+            try {
+                flush();
+            } catch (IOException e) {
+                System.out.println("[NioStreamRelay] Error forwarding to viewer of " + share.name + ": " + e.getMessage());
+                close();
+            }
+        }
+
+        private void flush() throws IOException {
+            int count;
+            while ((count = queue.acquireBatch(batch)) > 0) {
+                boolean partial;
+                try {
+                    int offset = queue.headOffset();
+                    long size = -offset;
+                    for (int i = 0; i < count; i++) size += batch[i].size;
+                    long start = System.nanoTime();
+                    int written = (int) writer.write(ch, batch, count, offset);
+                    metrics.written(written, System.nanoTime() - start);
+                    queue.advance(written);
+                    partial = written < size;
+                } finally {
+                    for (int i = 0; i < count; i++) {
+                        batch[i].release();
+                        batch[i] = null;
+                    }
+                }
+                if (partial) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            if (queue.isDrained()) {
+                close();
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        void finish() {
+            queue.finish();
+            if ((key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    close();
+                }
+            }
+        }
+
+        @Override
+        public void handle(SelectionKey key) throws IOException {
+            if (key.isReadable()) {
+                // viewers never send anything, reading only detects the peer going away
+                if (ch.read(share.loop.readBuffer()) == -1) {
+                    close();
+                    return;
+                }
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush();
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            if (idle != null) idle.cancel();
+            if (key != null) key.cancel();
+            closeQuietly(ch);
+            queue.close();
+            metrics.close();
+            share.viewers.remove(this);
+            share.loop.load().decrementAndGet();
+            // a viewer may connect before the publisher, or after it ended: a share it created
+            // without one goes with its last viewer
+            if (share.publisher == null && share.viewers.isEmpty()) share.close();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package xyz.jxmm.screenshare.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference counted direct buffer handed out by {@link BufferPool}. Publisher reads land in it
+ * once; tags are slices of it and keep it alive until the last viewer has written them.
+ */
+final class PooledBuffer {
+    private final BufferPool pool;
+    private final ByteBuffer buffer;
+    private final AtomicInteger refCnt = new AtomicInteger();
+
+    PooledBuffer(BufferPool pool, ByteBuffer buffer) {
+        this.pool = pool;
+        this.buffer = buffer;
+    }
+
+    /**
+     * The buffer itself; position/limit belong to the publisher filling it. Readers must use
+     * {@link #duplicate()} and absolute offsets.
+     */
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    ByteBuffer duplicate() {
+        return buffer.duplicate();
+    }
+
+    byte get(int index) {
+        return buffer.get(index);
+    }
+
+    void retain() {
+        if (refCnt.getAndIncrement() <= 0) {
+            refCnt.getAndDecrement();
+            throw new IllegalStateException("retain of released buffer");
+        }
+    }
+
+    void release() {
+        int left = refCnt.decrementAndGet();
+        if (left == 0) {
+            pool.recycle(this);
+        } else if (left < 0) {
+            throw new IllegalStateException("buffer released too often");
+        }
+    }
+
+    /**
+     * Pool only: hands the buffer out again with a single reference.
+     */
+    void reset() {
+        buffer.clear();
+        refCnt.set(1);
+    }
+}
@@ -0,0 +1,166 @@
+package xyz.jxmm.screenshare.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Plays a {@link RecordingSession} to a viewer's stream connection, the same FLV byte stream a
+ * live viewer receives. Tags go from the segment files to the socket with
+ * {@link FileChannel#transferTo}, paced by their timestamps so playback runs in real time.
+ * <p>
+ * A time-shifted viewer of a share still being recorded follows the recorder at its distance
+ * and ends with the share; a replay ends at the end of the session.
+ */
+final class RecordingPlayer {
+    private static final int TAG_HEADER_SIZE = 11;
+    private static final int PREVIOUS_TAG_SIZE = 4;
+    private static final long POLL_MS = 20;
+    // a live session that produces nothing for this long is considered gone
+    private static final long STALL_MS = 30_000;
+
+    private final RecordingSession session;
+    // -1 plays the session from its start
+    private final int secondsAgo;
+    private final SocketChannel ch;
+    private final ByteBuffer tagHeader = ByteBuffer.allocate(TAG_HEADER_SIZE);
+    private long startNanos;
+    private int startTimestamp = -1;
+
+    RecordingPlayer(RecordingSession session, int secondsAgo, SocketChannel ch) {
+        this.session = session;
+        this.secondsAgo = secondsAgo;
+        this.ch = ch;
+    }
+
+    void start() {
+        ServerThreads.start("StreamServer-Playback-" + session.share + "-" + ch.socket().getPort(), true, this::play);
+    }
+
+    private void play() {
+        try {
+            // the NIO relay cancelled the handshake key, blocking mode needs the loop to deregister it
+            for (long deadline = System.currentTimeMillis() + 1000; ch.isRegistered() && System.currentTimeMillis() < deadline; ) {
+                Thread.sleep(POLL_MS);
+            }
+            ch.configureBlocking(true);
+            int segment = 0;
+            long position = 0;
+            if (secondsAgo >= 0) {
+                int key = awaitKeyframe();
+                if (key < 0) return;
+                segment = session.keySegment(key);
+                position = session.keyOffset(key);
+                // decoder setup of the segment first, then media from the keyframe on
+                try (FileChannel file = open(segment)) {
+                    transfer(file, 0, session.initEnd(segment));
+                }
+            }
+            System.out.println("[RecordingPlayer] Playing " + session.share + "/" + session.name + " to " + ch.getRemoteAddress()
+                    + (secondsAgo >= 0 ? ", " + secondsAgo + "s ago" : ""));
+            while (playSegment(segment, position)) {
+                segment++;
+                // every segment repeats the file header, the viewer has it already
+                position = -1;
+            }
+        } catch (IOException e) {
+            System.out.println("[RecordingPlayer] Playback of " + session.share + " ended: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try { ch.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    private int awaitKeyframe() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + STALL_MS;
+        int key;
+        while ((key = session.seekBack(secondsAgo)) < 0 && !session.finished() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(POLL_MS);
+        }
+        return key;
+    }
+
+    /**
+     * Sends {@code segment} from {@code position} to its end; 0 starts with the file header,
+     * -1 right behind it.
+     * Returns false when the session has nothing after it.
+     */
+    private boolean playSegment(int segment, long position) throws IOException, InterruptedException {
+        // a segment becomes readable with its first keyframe, before that the file may not exist
+        if (awaitReadable(segment, 1) < 1) return false;
+        try (FileChannel file = open(segment)) {
+            if (position <= 0) {
+                long header = fileHeaderSize(file);
+                // a replay starts the viewer's FLV stream with it, later segments only repeat it
+                if (position == 0) transfer(file, 0, header);
+                position = header;
+            }
+            while (true) {
+                long readable = awaitReadable(segment, position + TAG_HEADER_SIZE);
+                if (readable < position + TAG_HEADER_SIZE) {
+                    // segment complete, go on with the next one unless the recorder stalled
+                    return session.closed(segment);
+                }
+                tagHeader.clear();
+                file.read(tagHeader, position);
+                int type = tagHeader.get(0) & 0x1F;
+                if (type != FlvTag.AUDIO && type != FlvTag.VIDEO && type != FlvTag.SCRIPT) {
+                    // zero filled tail of a segment cut short by a crash
+                    return false;
+                }
+                int dataSize = ((tagHeader.get(1) & 0xFF) << 16) | ((tagHeader.get(2) & 0xFF) << 8) | (tagHeader.get(3) & 0xFF);
+                int timestamp = ((tagHeader.get(4) & 0xFF) << 16) | ((tagHeader.get(5) & 0xFF) << 8)
+                        | (tagHeader.get(6) & 0xFF) | ((tagHeader.get(7) & 0xFF) << 24);
+                long size = TAG_HEADER_SIZE + dataSize + PREVIOUS_TAG_SIZE;
+                if (type != FlvTag.SCRIPT) pace(timestamp);
+                transfer(file, position, size);
+                position += size;
+            }
+        }
+    }
+
+    /**
+     * Waits until {@code segment} has {@code needed} bytes or will not grow anymore, returns its
+     * readable size then; -1 if the segment does not exist.
+     */
+    private long awaitReadable(int segment, long needed) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + STALL_MS;
+        while (true) {
+            long readable = session.readable(segment);
+            if (readable >= needed) return readable;
+            if (session.closed(segment) || System.currentTimeMillis() > deadline) return readable;
+            Thread.sleep(POLL_MS);
+        }
+    }
+
+    private void pace(int timestamp) throws InterruptedException {
+        if (startTimestamp < 0) {
+            startTimestamp = timestamp;
+            startNanos = System.nanoTime();
+            return;
+        }
+        long due = startNanos + (timestamp - startTimestamp) * 1_000_000L;
+        long wait = due - System.nanoTime();
+        if (wait > 1_000_000L) Thread.sleep(wait / 1_000_000L);
+    }
+
+    private FileChannel open(int segment) throws IOException {
+        return FileChannel.open(RecordingSession.segmentPath(session.dir, segment), StandardOpenOption.READ);
+    }
+
+    private long fileHeaderSize(FileChannel file) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(9);
+        file.read(head, 0);
+        return head.getInt(5) + PREVIOUS_TAG_SIZE;
+    }
+
+    private void transfer(FileChannel file, long position, long count) throws IOException {
+        long end = position + count;
+        while (position < end) {
+            position += file.transferTo(position, end - position, ch);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package xyz.jxmm.screenshare.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One recorded publishing session on disk: segment files {@code seg-NNNNN.flv} plus the keyframe
+ * index {@code index.bin}. Shared between the {@link StreamRecorder} writing it and any number
+ * of {@link RecordingPlayer}s reading it, live or after the session ended. Segments are
+ * preallocated and may be longer than their content, the index records where each one ends.
+ * <p>
+ * Every segment starts with the init units (FLV header, onMetaData, sequence headers) followed by
+ * tags from a keyframe on, so a player can start at any indexed keyframe: send the segment's init
+ * region, then everything from the keyframe. The index maps each second of media time to the
+ * last keyframe before its end, a seek is a single array lookup.
+ */
+final class RecordingSession {
+    static final String INDEX_FILE = "index.bin";
+    // timestamp (int), segment (int), offset (long); an end entry carries the segment size as offset
+    private static final int INDEX_ENTRY = 16;
+    private static final int SEGMENT_END = -1;
+
+    final String share;
+    final String name;
+    final Path dir;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private int[] keyTimestamps = new int[256];
+    private int[] keySegments = new int[256];
+    private long[] keyOffsets = new long[256];
+    private int keyCount;
+    // slot s: last keyframe with timestamp < (baseSecond + s + 1) * 1000
+    private int[] slots = new int[64];
+    private int slotCount;
+    private int baseSecond;
+    // sizes of closed segments, the open one is described by openSegment/committed
+    private long[] segmentSizes = new long[16];
+    private int openSegment = -1;
+    private volatile long committed;
+    private volatile int lastTimestamp;
+    private volatile boolean finished;
+
+    RecordingSession(String share, String name, Path dir) {
+        this.share = share;
+        this.name = name;
+        this.dir = dir;
+    }
+
+    static Path segmentPath(Path dir, int segment) {
+        return dir.resolve(String.format("seg-%05d.flv", segment));
+    }
+
+    /**
+     * Loads a finished session from disk.
+     */
+    static RecordingSession load(String share, String name, Path dir) throws IOException {
+        RecordingSession session = new RecordingSession(share, name, dir);
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(dir.resolve(INDEX_FILE)));
+        while (buf.remaining() >= INDEX_ENTRY) {
+            int timestamp = buf.getInt();
+            int segment = buf.getInt();
+            long offset = buf.getLong();
+            if (timestamp == SEGMENT_END) {
+                session.closeSegment(segment, offset);
+            } else {
+                session.addKeyframe(timestamp, segment, offset);
+            }
+        }
+        // a segment without end entry was cut short by a crash, its zero filled tail ends playback
+        int segment = Math.max(0, session.openSegment);
+        while (Files.exists(segmentPath(dir, segment))) {
+            session.closeSegment(segment, Files.size(segmentPath(dir, segment)));
+            segment++;
+        }
+        session.finished = true;
+        return session;
+    }
+
+    /**
+     * Recorder only: records a keyframe and appends it to the on-disk index.
+     */
+    void indexKeyframe(FileChannel index, int timestamp, int segment, long offset) throws IOException {
+        addKeyframe(timestamp, segment, offset);
+        writeEntry(index, timestamp, segment, offset);
+    }
+
+    /**
+     * Recorder only: {@code segment} is complete with {@code size} bytes.
+     */
+    void indexSegmentEnd(FileChannel index, int segment, long size) throws IOException {
+        closeSegment(segment, size);
+        writeEntry(index, SEGMENT_END, segment, size);
+    }
+
+    private static void writeEntry(FileChannel index, int timestamp, int segment, long offset) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY);
+        entry.putInt(timestamp).putInt(segment).putLong(offset).flip();
+        while (entry.hasRemaining()) {
+            index.write(entry);
+        }
+    }
+
+    private void addKeyframe(int timestamp, int segment, long offset) {
+        lock.lock();
+        try {
+            if (keyCount == keyTimestamps.length) {
+                keyTimestamps = Arrays.copyOf(keyTimestamps, keyCount * 2);
+                keySegments = Arrays.copyOf(keySegments, keyCount * 2);
+                keyOffsets = Arrays.copyOf(keyOffsets, keyCount * 2);
+            }
+            int k = keyCount++;
+            keyTimestamps[k] = timestamp;
+            keySegments[k] = segment;
+            keyOffsets[k] = offset;
+            if (k == 0) baseSecond = timestamp / 1000;
+            int slot = Math.max(0, timestamp / 1000 - baseSecond);
+            if (slot >= slots.length) slots = Arrays.copyOf(slots, Math.max(slots.length * 2, slot + 1));
+            // seconds without a keyframe of their own point at the previous one
+            for (int s = slotCount; s < slot; s++) {
+                slots[s] = k - 1;
+            }
+            slots[slot] = k;
+            slotCount = Math.max(slotCount, slot + 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Index of the keyframe to start from {@code secondsAgo} before the newest recorded media,
+     * -1 when nothing is recorded yet.
+     */
+    int seekBack(int secondsAgo) {
+        lock.lock();
+        try {
+            if (keyCount == 0) return -1;
+            int slot = (lastTimestamp - secondsAgo * 1000) / 1000 - baseSecond;
+            if (slot < 0) return 0;
+            return slots[Math.min(slot, slotCount - 1)];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int keySegment(int key) {
+        lock.lock();
+        try {
+            return keySegments[key];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long keyOffset(int key) {
+        lock.lock();
+        try {
+            return keyOffsets[key];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * End of the init region of {@code segment}, i.e. the offset of its first keyframe.
+     * -1 if the segment has no keyframe (yet).
+     */
+    long initEnd(int segment) {
+        lock.lock();
+        try {
+            // segments are indexed in order, a binary search finds the first keyframe of one
+            int lo = 0;
+            int hi = keyCount - 1;
+            int found = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (keySegments[mid] >= segment) {
+                    if (keySegments[mid] == segment) found = mid;
+                    hi = mid - 1;
+                } else {
+                    lo = mid + 1;
+                }
+            }
+            return found < 0 ? -1 : keyOffsets[found];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Recorder only: a new segment is being written.
+     */
+    void openSegment(int segment) {
+        lock.lock();
+        try {
+            committed = 0;
+            openSegment = segment;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Recorder only: {@code size} bytes of the open segment are complete and readable.
+     */
+    void commit(long size, int timestamp) {
+        committed = size;
+        lastTimestamp = timestamp;
+    }
+
+    private void closeSegment(int segment, long size) {
+        lock.lock();
+        try {
+            if (segment >= segmentSizes.length) segmentSizes = Arrays.copyOf(segmentSizes, Math.max(segmentSizes.length * 2, segment + 1));
+            segmentSizes[segment] = size;
+            if (openSegment <= segment) openSegment = segment + 1;
+            committed = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Readable bytes of {@code segment}, -1 if it is not written yet.
+     */
+    long readable(int segment) {
+        lock.lock();
+        try {
+            if (segment < openSegment) return segmentSizes[segment];
+            return segment == openSegment && !finished ? committed : -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * True once {@code segment} will not grow anymore.
+     */
+    boolean closed(int segment) {
+        lock.lock();
+        try {
+            return segment < openSegment || finished;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void finish() {
+        finished = true;
+    }
+
+    boolean finished() {
+        return finished;
+    }
+}
@@ -0,0 +1,123 @@
+package xyz.jxmm.screenshare.server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Where recordings live: {@code <record.dir>/<share>/<session>/}, one directory per publishing
+ * session named after its start time. Keeps track of the sessions currently being recorded so
+ * time-shifted viewers read the live one.
+ */
+final class Recordings {
+    private static final Pattern SESSION_NAME = Pattern.compile("\\d{8}-\\d{6}(-\\d+)?");
+
+    private static final ConcurrentHashMap<String, RecordingSession> live = new ConcurrentHashMap<>();
+
+    private Recordings() {
+    }
+
+    static boolean enabled() {
+        return ServerConfig.recordDir() != null;
+    }
+
+    /**
+     * Starts recording a new session of {@code share}. Returns null if recording is disabled or
+     * the session cannot be created; the share is relayed either way.
+     */
+    static StreamRecorder start(String share) {
+        if (!enabled()) return null;
+        try {
+            Path shareDir = shareDir(share);
+            String base = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+            String name = base;
+            Path dir = shareDir.resolve(name);
+            for (int i = 1; Files.exists(dir); i++) {
+                name = base + "-" + i;
+                dir = shareDir.resolve(name);
+            }
+            Files.createDirectories(dir);
+            RecordingSession session = new RecordingSession(share, name, dir);
+            StreamRecorder recorder = new StreamRecorder(session, ServerConfig.recordSegmentBytes());
+            live.put(share, session);
+            try {
+                recorder.start();
+            } catch (IOException e) {
+                live.remove(share, session);
+                throw e;
+            }
+            System.out.println("[Recordings] Recording " + share + " to " + dir);
+            return recorder;
+        } catch (IOException e) {
+            System.err.println("[Recordings] 无法录制 " + share + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    static void ended(RecordingSession session) {
+        live.remove(session.share, session);
+    }
+
+    /**
+     * The session of {@code share} being recorded right now, null if none.
+     */
+    static RecordingSession live(String share) {
+        return live.get(share);
+    }
+
+    /**
+     * Session names of {@code share}, oldest first.
+     */
+    static List<String> list(String share) {
+        if (!enabled()) return List.of();
+        Path shareDir = shareDir(share);
+        if (!Files.isDirectory(shareDir)) return List.of();
+        List<String> names = new ArrayList<>();
+        try (Stream<Path> dirs = Files.list(shareDir)) {
+            dirs.filter(d -> Files.exists(d.resolve(RecordingSession.INDEX_FILE)))
+                    .map(d -> d.getFileName().toString())
+                    .filter(n -> SESSION_NAME.matcher(n).matches())
+                    .forEach(names::add);
+        } catch (IOException e) {
+            System.err.println("[Recordings] 无法列出 " + share + " 的录制: " + e.getMessage());
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Opens session {@code name} of {@code share} for playback, the live one if it is still
+     * being recorded. Returns null if there is no such session.
+     */
+    static RecordingSession open(String share, String name) {
+        if (!enabled() || !SESSION_NAME.matcher(name).matches()) return null;
+        RecordingSession current = live.get(share);
+        if (current != null && current.name.equals(name)) return current;
+        Path dir = shareDir(share).resolve(name);
+        if (!Files.exists(dir.resolve(RecordingSession.INDEX_FILE))) return null;
+        try {
+            return RecordingSession.load(share, name, dir);
+        } catch (IOException e) {
+            System.err.println("[Recordings] 无法读取录制 " + dir + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static Path shareDir(String share) {
+        // user names become directory names, keep them from escaping the recording directory
+        StringBuilder safe = new StringBuilder();
+        for (char c : share.toCharArray()) {
+            safe.append(Character.isLetterOrDigit(c) || c == '-' || c == '_' ? c : '_');
+        }
+        return Paths.get(ServerConfig.recordDir()).resolve(safe.toString());
+    }
+}
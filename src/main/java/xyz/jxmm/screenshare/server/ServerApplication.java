@@ -14,30 +14,61 @@ import java.util.concurrent.ConcurrentHashMap;
 public class ServerApplication {
     // 存储所有客户端的handler
     private static final ConcurrentHashMap<String, ClientHandler> clients = new ConcurrentHashMap<>();
-    // 存储正在共享屏幕的用户和密码
+    // 存储正在共享屏幕的用户和密码，只由 ShareActor 写入
     private static final ConcurrentHashMap<String, String> sharingUsers = new ConcurrentHashMap<>();
-    // 存储每个共享者的观看者
-    private static final ConcurrentHashMap<String, ConcurrentHashMap<String, ClientHandler>> viewers = new ConcurrentHashMap<>();
+    // 注册到本源站的边缘节点
+    private static final EdgeRegistry edges = new EdgeRegistry();
 
     public static void main(String[] args) {
+        ServerConfig.applyArgs(args);
+        StreamMetrics.start(clients);
         // start stream server for binary H264 streams
+        int streamPort = ServerConfig.streamPort();
+        StreamServer streamServer = null;
         try {
-            StreamServer streamServer = StreamServer.getInstance(10002);
+            streamServer = StreamServer.getInstance(streamPort);
             Thread streamThread = new Thread(streamServer, "StreamServer-Main");
             streamThread.setDaemon(true);
             streamThread.start();
-            System.out.println("StreamServer started on port 10002");
+            System.out.println("StreamServer started on port " + streamPort + " (relay=" + ServerConfig.relayMode()
+                    + ", threads=" + (ServerThreads.virtual() ? "virtual" : "platform") + ")");
         } catch (Exception e) {
             System.err.println("Failed to start StreamServer: " + e.getMessage());
         }
 
-        try (ServerSocket serverSocket = new ServerSocket(9999)) {
-            System.out.println("服务器已启动，等待客户端连接... (控制端口9999)");
+        String origin = ServerConfig.edgeOrigin();
+        if (origin != null) {
+            // 边缘节点：不提供控制端口，只从源站拉流并转发给本地观看者
+            if (streamServer == null) return;
+            System.out.println("边缘节点模式，源站 " + origin + "，对外地址 " + ServerConfig.edgeAdvertise());
+            new EdgeLink(streamServer, origin, ServerConfig.edgeAdvertise(), ServerConfig.edgeSecret()).run();
+            return;
+        }
+
+        // 码率提示经发布者的控制连接下发
+        if (streamServer != null) {
+            streamServer.setPublisherControl((username, line) -> {
+                ClientHandler publisher = clients.get(username);
+                if (publisher != null) publisher.send(line);
+            });
+        }
+
+        ShareListDispatcher shareList = new ShareListDispatcher(sharingUsers, clients, ServerConfig.sharesTickMs());
+        // 每个共享的发布者和观看者由它的 ShareActor 管理
+        ShareRegistry shares = new ShareRegistry(sharingUsers, shareList, ServerConfig.shareThreadCount());
+        int controlPort = ServerConfig.controlPort();
+        if (ServerConfig.controlMode() == ServerConfig.ControlMode.NIO) {
+            new NioControlServer(controlPort, ServerConfig.controlLoopCount(),
+                    connection -> new ClientHandler(connection, clients, sharingUsers, shares, edges, shareList)).run();
+            return;
+        }
+        try (ServerSocket serverSocket = new ServerSocket(controlPort)) {
+            System.out.println("服务器已启动，等待客户端连接... (控制端口" + controlPort + ")");
             while (true) {
                 Socket clientSocket = serverSocket.accept();
                 System.out.println("[ServerApplication] 新的客户端连接: " + clientSocket.getRemoteSocketAddress());
-                ClientHandler clientHandler = new ClientHandler(clientSocket, clients, sharingUsers, viewers);
-                new Thread(clientHandler).start();
+                ClientHandler clientHandler = new ClientHandler(clientSocket, clients, sharingUsers, shares, edges, shareList);
+                ServerThreads.start("ClientHandler-" + clientSocket.getPort(), false, clientHandler);
             }
         } catch (IOException e) {
             System.err.println("服务器异常: " + e.getMessage());
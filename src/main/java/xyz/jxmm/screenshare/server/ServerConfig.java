@@ -0,0 +1,301 @@
+package xyz.jxmm.screenshare.server;
+
+/**
+ * Server side tunables.
+ * Every option is a system property ({@code -Dscreenshare.relay=nio}); {@link ServerApplication}
+ * also accepts the same options as program arguments ({@code --relay=nio}).
+ */
+public final class ServerConfig {
+    public static final String PREFIX = "screenshare.";
+
+    /**
+     * How the stream server moves bytes from publishers to viewers.
+     * THREAD: one blocking forwarding thread per publisher (default, original behaviour)
+     * NIO: a fixed set of selector event loops serving every publisher and viewer
+     */
+    public enum RelayMode { THREAD, NIO }
+
+    /**
+     * How the control server serves its clients.
+     * THREAD: one blocking reader thread per client (default, original behaviour)
+     * NIO: a fixed set of selector event loops serving every control connection
+     */
+    public enum ControlMode { THREAD, NIO }
+
+    /**
+     * What happens when a viewer's send queue is full.
+     * DROP: discard new frames until the next keyframe
+     * DISCONNECT: close the viewer
+     * RESYNC: discard the viewer's backlog and resume at the next keyframe (default)
+     */
+    public enum OverflowPolicy { DROP, DISCONNECT, RESYNC }
+
+    /**
+     * What the per-connection threads of the control and stream servers run on.
+     * PLATFORM: ordinary threads (default)
+     * VIRTUAL: virtual threads, needs a JDK that has them (21+)
+     */
+    public enum ThreadMode { PLATFORM, VIRTUAL }
+
+    private ServerConfig() {
+    }
+
+    public static int controlPort() {
+        return getInt("control.port", 9999);
+    }
+
+    public static int streamPort() {
+        return getInt("stream.port", 10002);
+    }
+
+    public static RelayMode relayMode() {
+        String mode = get("relay", "thread");
+        return "nio".equalsIgnoreCase(mode) ? RelayMode.NIO : RelayMode.THREAD;
+    }
+
+    public static ControlMode controlMode() {
+        String mode = get("control", "thread");
+        return "nio".equalsIgnoreCase(mode) ? ControlMode.NIO : ControlMode.THREAD;
+    }
+
+    public static ThreadMode threadMode() {
+        String mode = get("threads", "platform");
+        return "virtual".equalsIgnoreCase(mode) ? ThreadMode.VIRTUAL : ThreadMode.PLATFORM;
+    }
+
+    /**
+     * Number of event loops used by the NIO relay, defaults to one per core.
+     */
+    public static int relayLoopCount() {
+        return Math.max(1, getInt("relay.loops", Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Number of event loops used by the NIO control server, defaults to one per core.
+     */
+    public static int controlLoopCount() {
+        return Math.max(1, getInt("control.loops", Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Threads shared by the {@link ShareActor}s of the control server, defaults to one per core.
+     */
+    public static int shareThreadCount() {
+        return Math.max(1, getInt("share.threads", Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Upper bound of bytes queued for a single viewer socket.
+     */
+    public static long viewerQueueBytes() {
+        return Math.max(64 * 1024, getInt("viewer.queue.kb", 1024) * 1024L);
+    }
+
+    public static OverflowPolicy viewerOverflowPolicy() {
+        String policy = get("viewer.overflow", "resync");
+        try {
+            return OverflowPolicy.valueOf(policy.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("[ServerConfig] 无效的溢出策略 " + policy + ", 使用 RESYNC");
+            return OverflowPolicy.RESYNC;
+        }
+    }
+
+    /**
+     * Maximum media time a viewer may lag behind the publisher before it is skipped to the next keyframe.
+     */
+    public static long viewerLatencyBudgetMs() {
+        return Math.max(100, getInt("viewer.latency.ms", 1000));
+    }
+
+    /**
+     * Longest a tag waits in a viewer's queue for more tags to share its write, 0 writes
+     * whatever one publisher read produced right away.
+     */
+    public static long viewerFlushMs() {
+        return Math.max(0, getInt("viewer.flush.ms", 2));
+    }
+
+    /**
+     * Queued bytes that make a viewer write without waiting for {@link #viewerFlushMs()}.
+     */
+    public static long viewerFlushBytes() {
+        return Math.max(1, getInt("viewer.flush.kb", 64)) * 1024L;
+    }
+
+    /**
+     * Bytes that may wait for one control client, see {@link ControlOutbox}.
+     */
+    public static long controlQueueBytes() {
+        return Math.max(64, getInt("control.queue.kb", 1024)) * 1024L;
+    }
+
+    /**
+     * How long a control client may leave its queued messages unread before it is disconnected.
+     */
+    public static long controlStallMs() {
+        return Math.max(1000, getInt("control.stall.ms", 15000));
+    }
+
+    /**
+     * How long a control connection may be quiet before it is sent a PING, 0 disables pings.
+     */
+    public static long controlPingMs() {
+        return Math.max(0, getInt("control.ping.ms", 15000));
+    }
+
+    /**
+     * How long a control connection may be quiet before it is closed, 0 never closes one,
+     * see {@link IdleReaper}.
+     */
+    public static long controlIdleMs() {
+        return Math.max(0, getInt("control.idle.ms", 45000));
+    }
+
+    /**
+     * How long a publisher may send nothing, or a viewer's queued tags may go unwritten, before
+     * the stream connection is closed; 0 never closes one.
+     */
+    public static long streamIdleMs() {
+        return Math.max(0, getInt("stream.idle.ms", 30000));
+    }
+
+    /**
+     * How long a stream token issued on the control channel stays valid before the client
+     * must have opened its stream connection.
+     */
+    public static long streamTokenTtlMs() {
+        return Math.max(1000, getInt("stream.token.ttl.ms", 30000));
+    }
+
+    /**
+     * Loopback port of the HTTP metrics endpoint ({@code /metrics}), 0 disables it.
+     */
+    public static int metricsPort() {
+        return getInt("metrics.port", 9180);
+    }
+
+    /**
+     * host:port of the origin's control port. When set this process runs as an edge: it serves
+     * no control clients and pulls shares from the origin for the viewers sent to it.
+     */
+    public static String edgeOrigin() {
+        return get("edge.origin", null);
+    }
+
+    /**
+     * host:port viewers use to reach this edge's stream port.
+     */
+    public static String edgeAdvertise() {
+        return get("edge.advertise", "localhost:" + streamPort());
+    }
+
+    /**
+     * Secret shared by origin and edges. An origin without one accepts no edges.
+     */
+    public static String edgeSecret() {
+        return get("edge.secret", null);
+    }
+
+    /**
+     * IPv4 multicast group shares are additionally sent to, unset disables the multicast transport.
+     */
+    public static String multicastGroup() {
+        return get("multicast.group", null);
+    }
+
+    /**
+     * UDP port of the first multicast share, every further share uses the next one.
+     */
+    public static int multicastPort() {
+        return getInt("multicast.port", 10200);
+    }
+
+    public static int multicastTtl() {
+        return Math.max(0, Math.min(255, getInt("multicast.ttl", 1)));
+    }
+
+    /**
+     * Network interface multicast is sent on ({@code eth0}, {@code lo}...), unset uses the system default.
+     */
+    public static String multicastInterface() {
+        return get("multicast.interface", null);
+    }
+
+    /**
+     * Whether the relay sends publishers {@code BITRATE_HINT}s derived from viewer backlog and
+     * uplink delay, see {@link BitrateController}.
+     */
+    public static boolean bitrateAdaptive() {
+        return Boolean.parseBoolean(get("bitrate.adaptive", "true"));
+    }
+
+    /**
+     * Bitrate hints never go above this; the publisher's encoder starts at the same rate.
+     */
+    public static int bitrateMaxKbps() {
+        return Math.max(100, getInt("bitrate.max.kbps", 2000));
+    }
+
+    public static int bitrateMinKbps() {
+        return Math.max(50, getInt("bitrate.min.kbps", 200));
+    }
+
+    /**
+     * How long changes to the share list are collected before they are broadcast as one, see
+     * {@link ShareListDispatcher}; 0 broadcasts each change on its own.
+     */
+    public static long sharesTickMs() {
+        return Math.max(0, getInt("shares.tick.ms", 50));
+    }
+
+    /**
+     * Least time between two keyframes the relay requests from a publisher, see
+     * {@link KeyframeRequester}; 0 disables the requests.
+     */
+    public static long keyframeIntervalMs() {
+        return Math.max(0, getInt("keyframe.interval.ms", 1000));
+    }
+
+    /**
+     * Directory shares are recorded to, unset disables recording and time-shifted viewing.
+     */
+    public static String recordDir() {
+        return get("record.dir", null);
+    }
+
+    /**
+     * Size of one memory mapped recording segment file.
+     */
+    public static long recordSegmentBytes() {
+        return Math.min(1024, Math.max(4, getInt("record.segment.mb", 64))) * 1024L * 1024;
+    }
+
+    /**
+     * Maps {@code --name=value} program arguments onto {@code screenshare.name} system properties.
+     */
+    static void applyArgs(String[] args) {
+        if (args == null) return;
+        for (String arg : args) {
+            if (!arg.startsWith("--")) continue;
+            int eq = arg.indexOf('=');
+            String name = eq > 0 ? arg.substring(2, eq) : arg.substring(2);
+            String value = eq > 0 ? arg.substring(eq + 1) : "true";
+            System.setProperty(PREFIX + name, value);
+        }
+    }
+
+    static String get(String name, String def) {
+        String value = System.getProperty(PREFIX + name);
+        return value == null || value.isEmpty() ? def : value.trim();
+    }
+
+    static int getInt(String name, int def) {
+        try {
+            return Integer.parseInt(get(name, String.valueOf(def)));
+        } catch (NumberFormatException e) {
+            System.err.println("[ServerConfig] 无效的配置 " + PREFIX + name + ", 使用默认值 " + def);
+            return def;
+        }
+    }
+}
@@ -5,6 +5,9 @@ import xyz.jxmm.screenshare.model.User;
 import java.awt.*;
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
@@ -24,13 +27,30 @@ public class ServerNetworkUtil {
     private static final int SERVER_PORT = 9999;
     private static final int STREAM_PORT = 10002;
 
+    // 设为 false 时不尝试二进制控制协议
+    private static final boolean TRY_BINARY = !"false".equalsIgnoreCase(System.getProperty("screenshare.control.binary"));
+    // 开始共享时请求的同播层数，大于 1 时 ScreenPublisher 按下发的令牌分层编码
+    private static final int SIMULCAST_LAYERS = Integer.getInteger("screenshare.simulcast.layers", 1);
+    // 本服务器立即回复 HELLO_OK 或 HELLO_DENIED，只有不认识 HELLO 的旧服务器会等满
+    private static final int HELLO_TIMEOUT_MS = 500;
+
     private static Socket controlSocket;
     private static PrintWriter out;
     private static BufferedReader in;
+    // 协商为二进制帧后改用这两个流
+    private static volatile boolean binaryControl;
+    private static DataInputStream frameIn;
+    private static OutputStream frameOut;
+    private static final Object frameLock = new Object();
+    private static int lastRequestId;
     private static final CopyOnWriteArrayList<MessageListener> listeners = new CopyOnWriteArrayList<>();
 
     // 用于存储当前共享列表
     private static final AtomicReference<List<String>> currentShares = new AtomicReference<>();
+    // 订阅后的共享列表版本号，按 SHARE_ADDED / SHARE_REMOVED 逐版本更新；-1 表示服务器不支持增量，靠 GET_SHARES 轮询
+    private static volatile long sharesVersion = -1;
+    // 发现版本号不连续，已重新订阅，等待新快照
+    private static volatile boolean sharesResyncing;
     
     // 用于存储登录状态
     private static final AtomicBoolean loggedIn = new AtomicBoolean(false);
@@ -39,9 +59,28 @@ public class ServerNetworkUtil {
     private static Socket viewerStreamSocket;
     private static Socket publisherStreamSocket;
     private static OutputStream publisherStreamOutput;
+    // 控制通道下发的一次性流令牌，连接流服务器时在前导包中发送
+    private static volatile String viewerStreamToken;
+    private static volatile String publisherStreamToken;
+    // 同播时第 1 层起各层的发布令牌
+    private static volatile List<String> publisherLayerTokens = List.of();
+    // VIEW_ACCEPTED 可能指定一个边缘节点作为流服务器
+    private static volatile String viewerStreamHost = SERVER_HOST;
+    private static volatile int viewerStreamPort = STREAM_PORT;
+    // MULTICAST <target> <group:port>：局域网内可改为加入该共享的组播组
+    private static volatile String viewerMulticastTarget;
+    private static volatile String viewerMulticastEndpoint;
+    private static InputStream viewerMulticastInput;
 
     public interface MessageListener {
         void onMessage(String message);
+
+        /**
+         * 二进制控制协议下收到的 SCREEN_DATA 图像，默认转为文本协议的格式交给 {@link #onMessage}
+         */
+        default void onScreenData(byte[] image) {
+            onMessage("SCREEN_DATA " + Base64.getEncoder().encodeToString(image));
+        }
     }
 
     public static void addMessageListener(MessageListener listener) {
@@ -52,10 +91,18 @@ public class ServerNetworkUtil {
         listeners.remove(listener);
     }
 
-    private static void notifyListeners(String message) {
+    private static void notifyListeners(ControlMessage message) {
+        // 二进制帧中的 SCREEN_DATA 是原始图像字节，直接交给监听器，不经过 Base64
+        boolean image = binaryControl && message.command().equals("SCREEN_DATA") && message.has(1);
+        byte[] bytes = image ? message.bytes(1) : null;
+        String line = image ? null : message.line();
         for (MessageListener listener : listeners) {
             try {
-                listener.onMessage(message);
+                if (image) {
+                    listener.onScreenData(bytes);
+                } else {
+                    listener.onMessage(line);
+                }
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -64,9 +111,25 @@ public class ServerNetworkUtil {
 
     public static boolean login(String username) {
         try {
-            controlSocket = new Socket(SERVER_HOST, SERVER_PORT);
-            out = new PrintWriter(controlSocket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(controlSocket.getInputStream()));
+            InputStream controlIn = connectControl();
+            if (TRY_BINARY) {
+                Boolean negotiated = negotiateBinary(controlIn);
+                if (negotiated == null) {
+                    // 迟到的 HELLO_OK 会让服务器改用帧，换一个连接从文本协议开始
+                    controlSocket.close();
+                    controlIn = connectControl();
+                }
+                binaryControl = Boolean.TRUE.equals(negotiated);
+            } else {
+                binaryControl = false;
+            }
+            if (binaryControl) {
+                frameOut = new BufferedOutputStream(controlSocket.getOutputStream());
+                frameIn = new DataInputStream(controlIn);
+            } else {
+                in = new BufferedReader(new InputStreamReader(controlIn));
+            }
+            System.out.println("[ServerNetworkUtil] 控制协议: " + (binaryControl ? "二进制帧" : "文本"));
 
             // 用于等待登录响应的同步机制
             CountDownLatch loginLatch = new CountDownLatch(1);
@@ -75,48 +138,84 @@ public class ServerNetworkUtil {
             // 启动接收消息的线程
             Thread receiverThread = new Thread(() -> {
                 try {
-                    String message;
-                    while ((message = in.readLine()) != null) {
-                        // 减少不必要的日志输出，避免SHARES消息刷屏
-                        if (!message.startsWith("SHARES ")) {
-                            System.out.println("[ServerNetworkUtil] 收到服务器消息: " + message);
+                    ControlMessage received;
+                    while ((received = readControl()) != null) {
+                        String command = received.command();
+                        // 减少不必要的日志输出，避免SHARES消息和心跳刷屏
+                        if (!command.equals("SHARES") && !command.equals("SCREEN_DATA") && !command.equals("PING")) {
+                            System.out.println("[ServerNetworkUtil] 收到服务器消息: " + received.line());
                         }
-                        
-                        // 处理登录响应
-                        if (message.startsWith("LOGIN_OK") || message.startsWith("LOGIN_FAILED")) {
-                            if (message.startsWith("LOGIN_OK")) {
-                                loginSuccess.set(true);
-                                loggedIn.set(true);
-                            }
-                            loginLatch.countDown(); // 通知登录方法可以继续执行
-                            // 登录响应消息也通知给监听器
-                            notifyListeners(message);
-                            continue; // 不再传递给其他监听器
-                        }
-                        
-                        // 处理观看响应
-                        if (message.startsWith("VIEW_ACCEPTED") || message.startsWith("VIEW_DENIED")) {
-                            if (message.startsWith("VIEW_ACCEPTED")) {
+
+                        switch (command) {
+                            case "LOGIN_OK":
+                            case "LOGIN_FAILED":
+                                // 处理登录响应
+                                if (command.equals("LOGIN_OK")) {
+                                    loginSuccess.set(true);
+                                    loggedIn.set(true);
+                                }
+                                loginLatch.countDown(); // 通知登录方法可以继续执行
+                                break;
+                            case "VIEW_ACCEPTED":
+                                // VIEW_ACCEPTED <target> <token> [<host:port>]
+                                viewerStreamToken = received.arg(2);
+                                setViewerStreamEndpoint(received.arg(3));
                                 viewResult.set("VIEW_ACCEPTED");
-                            } else {
+                                break;
+                            case "VIEW_DENIED":
                                 viewResult.set("VIEW_DENIED");
+                                break;
+                            case "SHARE_STARTED": {
+                                // SHARE_STARTED <token> [<layer 1 token> ...]
+                                publisherStreamToken = received.arg(1);
+                                List<String> layerTokens = new ArrayList<>();
+                                for (int i = 2; received.has(i); i++) layerTokens.add(received.arg(i));
+                                publisherLayerTokens = List.copyOf(layerTokens);
+                                // 令牌就绪后才通知 startShare
+                                shareResult.set(command);
+                                break;
                             }
-                            // 观看响应消息也通知给监听器
-                            notifyListeners(message);
-                            continue; // 不再传递给其他监听器
+                            case "SHARE_FAILED":
+                                shareResult.set(command);
+                                break;
+                            case "MULTICAST":
+                                // MULTICAST <target> <group:port>，在 VIEW_ACCEPTED 之前到达
+                                if (received.has(2)) {
+                                    viewerMulticastTarget = received.arg(1);
+                                    viewerMulticastEndpoint = received.arg(2);
+                                }
+                                break;
+                            case "RECORDINGS":
+                                // RECORDINGS <share> <session,...>
+                                recordingsResult.set(received.has(2) ? List.of(received.arg(2).split(",")) : List.of());
+                                break;
+                            case "SHARES":
+                                // 处理共享列表更新消息
+                                currentShares.set(parseShares(received.rest(1)));
+                                break;
+                            case "SHARES_SNAPSHOT":
+                                // SHARES_SNAPSHOT <version> <a,b,...>，订阅的回复，之后只收到增量
+                                try {
+                                    sharesVersion = Long.parseLong(received.arg(1));
+                                } catch (NumberFormatException e) {
+                                    break;
+                                }
+                                currentShares.set(parseShares(received.arg(2)));
+                                sharesResyncing = false;
+                                break;
+                            case "SHARE_ADDED":
+                            case "SHARE_REMOVED":
+                                applySharesDelta(received);
+                                break;
+                            case "PING":
+                                // 连接空闲时服务器发送心跳，回复 PONG 表明本客户端还在
+                                sendControl("PONG");
+                                break;
+                            default:
+                                break;
                         }
-                        
-                        // 处理共享列表更新消息
-                        if (message.startsWith("SHARES ")) {
-                            String sharesStr = message.substring(7);
-                            if (sharesStr.isEmpty()) {
-                                currentShares.set(List.of());
-                            } else {
-                                currentShares.set(List.of(sharesStr.split(",")));
-                            }
-                        }
-                        
-                        notifyListeners(message);
+
+                        notifyListeners(received);
                     }
                 } catch (IOException e) {
                     System.err.println("[ServerNetworkUtil] 接收消息线程异常: " + e.getMessage());
@@ -128,7 +227,7 @@ public class ServerNetworkUtil {
             receiverThread.start();
 
             // 发送登录命令
-            out.println("LOGIN " + username);
+            sendControl("LOGIN " + username);
             
             // 等待登录响应，最多等待5秒
             boolean loginResponseReceived = loginLatch.await(5, TimeUnit.SECONDS);
@@ -139,6 +238,10 @@ public class ServerNetworkUtil {
             }
             
             System.out.println("[ServerNetworkUtil] 登录结果: " + (loginSuccess.get() ? "成功" : "失败"));
+            if (loginSuccess.get()) {
+                // 订阅共享列表的增量；旧服务器忽略版本号，回复整个列表
+                sendControl("GET_SHARES 0");
+            }
             return loginSuccess.get();
         } catch (IOException | InterruptedException e) {
             e.printStackTrace();
@@ -146,13 +249,124 @@ public class ServerNetworkUtil {
         }
     }
 
+    /**
+     * 打开控制连接，返回它的带缓冲输入流；协商前后都读这一个流，缓冲中的字节不会丢
+     */
+    private static InputStream connectControl() throws IOException {
+        controlSocket = new Socket(SERVER_HOST, SERVER_PORT);
+        out = new PrintWriter(controlSocket.getOutputStream(), true);
+        return new BufferedInputStream(controlSocket.getInputStream());
+    }
+
+    /**
+     * 以文本发送 HELLO BIN1，服务器回复 HELLO_OK BIN1 则改用二进制帧，返回 true；其他回复返回 false，继续用文本。
+     * 收到回复前不发送其他命令，之后的字节才是帧。不认识 HELLO 的旧服务器不回复，超时返回 null
+     */
+    private static Boolean negotiateBinary(InputStream controlIn) throws IOException {
+        out.println(ControlMessage.HELLO + " " + ControlMessage.BINARY_VERSION);
+        controlSocket.setSoTimeout(HELLO_TIMEOUT_MS);
+        try {
+            // 回复之后的帧留在 controlIn 的缓冲中，由 frameIn 接着读
+            StringBuilder reply = new StringBuilder();
+            int b;
+            while ((b = controlIn.read()) != -1 && b != '\n') {
+                if (b != '\r') reply.append((char) b);
+            }
+            return ("HELLO_OK " + ControlMessage.BINARY_VERSION).equals(reply.toString());
+        } catch (SocketTimeoutException e) {
+            System.out.println("[ServerNetworkUtil] 服务器不支持二进制控制协议，使用文本协议");
+            return null;
+        } finally {
+            controlSocket.setSoTimeout(0);
+        }
+    }
+
+    private static List<String> parseShares(String shares) {
+        return shares == null || shares.isEmpty() ? List.of() : List.of(shares.split(","));
+    }
+
+    /**
+     * SHARE_ADDED / SHARE_REMOVED &lt;version&gt; &lt;a,b,...&gt;，只在接收线程上调用。版本号不连续说明漏了消息，
+     * 重新订阅取快照，在此之前的增量都丢弃
+     */
+    private static void applySharesDelta(ControlMessage delta) {
+        if (sharesVersion < 0 || sharesResyncing || !delta.has(2)) return;
+        long version;
+        try {
+            version = Long.parseLong(delta.arg(1));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (version != sharesVersion + 1) {
+            System.out.println("[ServerNetworkUtil] 共享列表版本从 " + sharesVersion + " 跳到 " + version + "，重新获取");
+            sharesResyncing = true;
+            sendControl("GET_SHARES " + sharesVersion);
+            return;
+        }
+        List<String> shares = currentShares.get() != null ? new ArrayList<>(currentShares.get()) : new ArrayList<>();
+        List<String> names = parseShares(delta.arg(2));
+        if (delta.command().equals("SHARE_ADDED")) {
+            for (String name : names) {
+                if (!shares.contains(name)) shares.add(name);
+            }
+        } else {
+            shares.removeAll(names);
+        }
+        currentShares.set(List.copyOf(shares));
+        sharesVersion = version;
+    }
+
+    /**
+     * 下一条控制消息，连接关闭时返回 null
+     */
+    private static ControlMessage readControl() throws IOException {
+        if (!binaryControl) {
+            String line = in.readLine();
+            return line != null ? ControlMessage.text(line) : null;
+        }
+        int length;
+        try {
+            length = frameIn.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < ControlMessage.HEADER_BYTES || length > ControlMessage.MAX_BYTES) {
+            throw new IOException("非法的帧长度 " + length);
+        }
+        byte[] frame = new byte[length];
+        frameIn.readFully(frame);
+        try {
+            return ControlMessage.binary(frame, 0, length);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("非法的帧: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 发送一条命令，二进制帧带上递增的请求 id。与 PrintWriter 一样吞掉写入异常
+     */
+    private static void sendControl(String line) {
+        if (!binaryControl) {
+            out.println(line);
+            return;
+        }
+        synchronized (frameLock) {
+            try {
+                frameOut.write(ControlMessage.frame(line, ++lastRequestId));
+                frameOut.flush();
+            } catch (IOException e) {
+                System.err.println("[ServerNetworkUtil] 发送命令失败: " + e.getMessage());
+            }
+        }
+    }
+
     public static boolean isLoggedIn() {
         return loggedIn.get();
     }
 
     public static List<String> getSharedScreens() {
-        // 发送GET_SHARES命令请求最新的共享列表
-        out.println("GET_SHARES");
+        // 已订阅增量时列表随时是最新的；否则发送GET_SHARES命令请求最新的共享列表
+        if (sharesVersion < 0) sendControl("GET_SHARES");
         
         // 直接返回当前存储的共享列表，无需等待
         // 因为共享列表更新应该通过服务器广播消息实时处理
@@ -160,24 +374,102 @@ public class ServerNetworkUtil {
     }
 
     public static boolean startShare(String username, String password, Rectangle captureRect, boolean shareAudio, int fps, Dimension targetResolution) throws IOException {
-        out.println("START_SHARE " + password);
-        return true;
+        return startShare(username, password, captureRect, shareAudio, fps, targetResolution, SIMULCAST_LAYERS);
+    }
+
+    /**
+     * 等待服务器回复 SHARE_STARTED，返回 true 时发布令牌已就绪；SHARE_FAILED 或 5 秒内无回复返回 false
+     *
+     * @param layers 同播层数，大于 1 时 SHARE_STARTED 为每层下发一个令牌，见 {@link #getPublisherLayerTokens()}
+     */
+    public static boolean startShare(String username, String password, Rectangle captureRect, boolean shareAudio, int fps,
+                                     Dimension targetResolution, int layers) throws IOException {
+        shareResult.set(null);
+        sendControl("START_SHARE " + password + (layers > 1 ? " " + layers : ""));
+
+        long startTime = System.currentTimeMillis();
+        while (shareResult.get() == null && (System.currentTimeMillis() - startTime) < 5000) {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        String result = shareResult.get();
+        if (result == null) {
+            System.err.println("[ServerNetworkUtil] 共享请求超时");
+            return false;
+        }
+        System.out.println("[ServerNetworkUtil] 共享请求结果: " + result);
+        return "SHARE_STARTED".equals(result);
     }
 
     public static boolean stopShare(String username) throws IOException {
-        out.println("STOP_SHARE");
+        sendControl("STOP_SHARE");
         return true;
     }
 
     // 用于存储观看请求的结果
     private static final AtomicReference<String> viewResult = new AtomicReference<>();
+    // 最近一次共享请求的结果，SHARE_STARTED 或 SHARE_FAILED
+    private static final AtomicReference<String> shareResult = new AtomicReference<>();
+    // 最近一次 RECORDINGS 查询的结果
+    private static final AtomicReference<List<String>> recordingsResult = new AtomicReference<>();
 
     public static boolean canViewShare(String targetUser, String password) throws IOException {
+        // 发送VIEW_SHARE命令
+        return requestView("VIEW_SHARE " + targetUser + " " + password);
+    }
+
+    /**
+     * 从服务器录制中 {@code secondsAgo} 秒前开始观看正在进行的共享，之后按观看共享的方式连接流服务器
+     */
+    public static boolean canViewTimeShift(String targetUser, String password, int secondsAgo) throws IOException {
+        return requestView("VIEW_TIMESHIFT " + targetUser + " " + secondsAgo + " " + password);
+    }
+
+    /**
+     * 回放一次录制，会话名来自 {@link #listRecordings(String, String)}；回放他人的录制需要其当前共享密码
+     */
+    public static boolean canReplay(String share, String session, String password) throws IOException {
+        return requestView("REPLAY " + share + " " + session + (password != null ? " " + password : ""));
+    }
+
+    /**
+     * 服务器上本人共享 {@code share} 的录制会话，超时返回空列表
+     */
+    public static List<String> listRecordings(String share) {
+        return listRecordings(share, null);
+    }
+
+    /**
+     * 服务器上 {@code share} 的录制会话，超时或无权查看时返回空列表；查看他人的录制需要其当前共享密码
+     */
+    public static List<String> listRecordings(String share, String password) {
+        recordingsResult.set(null);
+        sendControl("RECORDINGS " + share + (password != null ? " " + password : ""));
+        long startTime = System.currentTimeMillis();
+        while (recordingsResult.get() == null && (System.currentTimeMillis() - startTime) < 5000) {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        List<String> result = recordingsResult.get();
+        return result != null ? result : List.of();
+    }
+
+    private static boolean requestView(String command) {
         // 清空之前的结果
         viewResult.set(null);
-        
-        // 发送VIEW_SHARE命令
-        out.println("VIEW_SHARE " + targetUser + " " + password);
+        viewerMulticastTarget = null;
+        viewerMulticastEndpoint = null;
+
+        sendControl(command);
         
         // 等待服务器响应，最多等待5秒
         long startTime = System.currentTimeMillis();
@@ -201,7 +493,7 @@ public class ServerNetworkUtil {
     }
 
     public static void leaveView(String targetUser) {
-        out.println("LEAVE_VIEW " + targetUser);
+        sendControl("LEAVE_VIEW " + targetUser);
     }
 
     // 流相关方法
@@ -209,6 +501,8 @@ public class ServerNetworkUtil {
         try {
             viewerStreamSocket = new Socket();
             viewerStreamSocket.connect(new java.net.InetSocketAddress(host, port), timeoutMs);
+            sendStreamPreamble(viewerStreamSocket, StreamHandshake.Role.VIEW, viewerStreamToken);
+            viewerStreamToken = null;
             System.out.println("[ServerNetworkUtil] 成功连接到流服务器: " + host + ":" + port);
             return true;
         } catch (IOException e) {
@@ -217,7 +511,27 @@ public class ServerNetworkUtil {
         }
     }
 
+    /**
+     * 服务器为 {@code targetUser} 提供组播时加入组播组，{@code timeoutMs} 内收不到数据 (组播未路由到本机等) 返回 false，
+     * 此时应改用 {@link #connectAsViewerToStreamServer}。网卡可用 {@code -Dscreenshare.multicast.interface} 指定
+     */
+    public static boolean joinViewerMulticast(String targetUser, int timeoutMs) {
+        String endpoint = viewerMulticastEndpoint;
+        if (endpoint == null || !targetUser.equals(viewerMulticastTarget)) return false;
+        int colon = endpoint.lastIndexOf(':');
+        try {
+            int port = Integer.parseInt(endpoint.substring(colon + 1));
+            viewerMulticastInput = xyz.jxmm.screenshare.stream.MulticastStreamInput.open(endpoint.substring(0, colon), port,
+                    System.getProperty("screenshare.multicast.interface"), timeoutMs);
+        } catch (RuntimeException e) {
+            System.err.println("[ServerNetworkUtil] 无效的组播地址: " + endpoint);
+            return false;
+        }
+        return viewerMulticastInput != null;
+    }
+
     public static InputStream getViewerStreamInput() {
+        if (viewerMulticastInput != null) return viewerMulticastInput;
         try {
             return viewerStreamSocket != null ? viewerStreamSocket.getInputStream() : null;
         } catch (IOException e) {
@@ -227,6 +541,13 @@ public class ServerNetworkUtil {
     }
 
     public static void disconnectViewerStream() {
+        if (viewerMulticastInput != null) {
+            try {
+                viewerMulticastInput.close();
+            } catch (IOException ignored) {
+            }
+            viewerMulticastInput = null;
+        }
         if (viewerStreamSocket != null) {
             try {
                 viewerStreamSocket.close();
@@ -241,6 +562,8 @@ public class ServerNetworkUtil {
             publisherStreamSocket = new Socket();
             publisherStreamSocket.connect(new java.net.InetSocketAddress(host, port), timeoutMs);
             publisherStreamOutput = publisherStreamSocket.getOutputStream();
+            sendStreamPreamble(publisherStreamSocket, StreamHandshake.Role.PUBLISH, publisherStreamToken);
+            publisherStreamToken = null;
             System.out.println("[ServerNetworkUtil] 成功连接到流服务器作为发布者: " + host + ":" + port);
             return true;
         } catch (IOException e) {
@@ -249,6 +572,59 @@ public class ServerNetworkUtil {
         }
     }
 
+    private static void setViewerStreamEndpoint(String endpoint) {
+        String host = SERVER_HOST;
+        int port = STREAM_PORT;
+        if (endpoint != null) {
+            int colon = endpoint.lastIndexOf(':');
+            try {
+                port = Integer.parseInt(endpoint.substring(colon + 1));
+                host = endpoint.substring(0, colon);
+            } catch (RuntimeException e) {
+                System.err.println("[ServerNetworkUtil] 无效的流服务器地址: " + endpoint);
+            }
+        }
+        viewerStreamHost = host;
+        viewerStreamPort = port;
+    }
+
+    /**
+     * 最近一次 VIEW_ACCEPTED 指定的流服务器主机，未指定时为本服务器
+     */
+    public static String getViewerStreamHost() {
+        return viewerStreamHost;
+    }
+
+    public static int getViewerStreamPort() {
+        return viewerStreamPort;
+    }
+
+    /**
+     * 最近一次 SHARE_STARTED 下发的第 1 层起各层的发布令牌，未使用同播时为空
+     */
+    public static List<String> getPublisherLayerTokens() {
+        return publisherLayerTokens;
+    }
+
+    /**
+     * 最近一次 SHARE_STARTED 下发的发布令牌，尚未使用或未收到时为 null
+     */
+    public static String getPublisherStreamToken() {
+        return publisherStreamToken;
+    }
+
+    /**
+     * 流连接建立后先发送令牌前导包，流服务器据此识别发布者/观看者
+     */
+    private static void sendStreamPreamble(Socket socket, StreamHandshake.Role role, String token) throws IOException {
+        if (token == null) {
+            throw new IOException("没有可用的流令牌");
+        }
+        OutputStream os = socket.getOutputStream();
+        os.write(StreamHandshake.encode(role, token));
+        os.flush();
+    }
+
     public static OutputStream getPublisherStreamOutput() {
         return publisherStreamOutput;
     }
@@ -267,6 +643,9 @@ public class ServerNetworkUtil {
     public static void disconnect() {
         try {
             loggedIn.set(false);
+            binaryControl = false;
+            sharesVersion = -1;
+            sharesResyncing = false;
             if (controlSocket != null) {
                 controlSocket.close();
             }
@@ -0,0 +1,85 @@
+package xyz.jxmm.screenshare.server;
+
+import java.lang.reflect.Method;
+
+/**
+ * Starts the per-connection threads of the servers (control clients, publisher forwarding,
+ * viewer writers, stream handshakes) as platform or virtual threads, see
+ * {@link ServerConfig#threadMode()}.
+ * <p>
+ * Virtual threads are looked up reflectively so the server still builds and runs on JDKs
+ * without them; there the option falls back to platform threads. Threads that mostly wait can
+ * ask for a virtual thread regardless of the option, see {@link #startLightweight}.
+ */
+final class ServerThreads {
+    // Thread.ofVirtual() and Thread.Builder#name / #start, null when the JVM has no virtual threads
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method START;
+    // threads=virtual and the JVM has them
+    private static final boolean VIRTUAL;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method start = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class);
+            start = builder.getMethod("start", Runnable.class);
+        } catch (ReflectiveOperationException e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        START = start;
+        VIRTUAL = ServerConfig.threadMode() == ServerConfig.ThreadMode.VIRTUAL && ofVirtual != null;
+        if (ServerConfig.threadMode() == ServerConfig.ThreadMode.VIRTUAL && !VIRTUAL) {
+            System.err.println("[ServerThreads] 当前 JVM 不支持虚拟线程 (" + System.getProperty("java.version") + "), 使用平台线程");
+        }
+    }
+
+    private ServerThreads() {
+    }
+
+    static boolean virtual() {
+        return VIRTUAL;
+    }
+
+    /**
+     * Starts {@code task} on a new thread. {@code daemon} only applies to platform threads,
+     * virtual threads are always daemon threads.
+     */
+    static Thread start(String name, boolean daemon, Runnable task) {
+        Thread virtual = VIRTUAL ? startVirtual(name, task) : null;
+        return virtual != null ? virtual : startPlatform(name, daemon, task);
+    }
+
+    /**
+     * Starts {@code task} on a virtual thread whenever the JVM has them, whatever
+     * {@link ServerConfig#threadMode()} says, otherwise on a platform daemon thread. For threads
+     * that spend their life waiting on a socket, such as the writer of a control connection.
+     */
+    static Thread startLightweight(String name, Runnable task) {
+        Thread virtual = OF_VIRTUAL != null ? startVirtual(name, task) : null;
+        return virtual != null ? virtual : startPlatform(name, true, task);
+    }
+
+    private static Thread startVirtual(String name, Runnable task) {
+        try {
+            Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name);
+            return (Thread) START.invoke(builder, task);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("[ServerThreads] 启动虚拟线程失败: " + e + ", 使用平台线程");
+            return null;
+        }
+    }
+
+    private static Thread startPlatform(String name, boolean daemon, Runnable task) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(daemon);
+        t.start();
+        return t;
+    }
+}
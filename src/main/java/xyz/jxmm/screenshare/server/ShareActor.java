@@ -0,0 +1,150 @@
+package xyz.jxmm.screenshare.server;
+
+import java.util.LinkedHashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One share of the control server: its publisher, password and viewers. Handlers do not touch
+ * this state, they post events (start, stop, view, leave, screen data) to the share's mailbox,
+ * which runs them one at a time on a thread of the {@link ShareRegistry}'s executor. So a
+ * VIEW_SHARE checks the password and joins against the same state a concurrent STOP_SHARE ends,
+ * without a lock, and busy shares spread over the executor's threads.
+ * <p>
+ * Events posted from one thread run in that order. Replies are sent from the mailbox, so they
+ * only queue on the client's {@link ControlOutbox} and never wait for its socket.
+ * {@code sharingUsers} is the read-only view of the running shares for the share list, recordings
+ * and edges; only share actors write it.
+ */
+final class ShareActor {
+    // events run per turn before the thread moves on to other shares
+    private static final int BATCH = 64;
+
+    final String name;
+    private final Executor executor;
+    private final ConcurrentHashMap<String, String> sharingUsers;
+    private final ShareListDispatcher shareList;
+    private final Queue<Runnable> mailbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    // only accessed by the mailbox, handed from one turn to the next through scheduled
+    private ClientHandler publisher;
+    private String password;
+    private final Set<ClientHandler> viewers = new LinkedHashSet<>();
+
+    ShareActor(String name, Executor executor, ConcurrentHashMap<String, String> sharingUsers,
+               ShareListDispatcher shareList) {
+        this.name = name;
+        this.executor = executor;
+        this.sharingUsers = sharingUsers;
+        this.shareList = shareList;
+    }
+
+    /**
+     * {@code publisher} shares with {@code password}. A second connection of the same user takes
+     * the share over, its viewers stay.
+     */
+    void start(ClientHandler publisher, String password) {
+        tell(() -> {
+            this.publisher = publisher;
+            this.password = password;
+            sharingUsers.put(name, password);
+            shareList.changed();
+        });
+    }
+
+    /**
+     * Ends the share if {@code publisher} still runs it and tells the viewers.
+     */
+    void stop(ClientHandler publisher) {
+        tell(() -> {
+            if (this.publisher != publisher) return;
+            this.publisher = null;
+            this.password = null;
+            sharingUsers.remove(name);
+            for (ClientHandler viewer : viewers) {
+                viewer.unwatch(name);
+                viewer.send("SHARE_STOPPED " + name);
+            }
+            viewers.clear();
+            shareList.changed();
+        });
+    }
+
+    /**
+     * Answers {@code viewer}'s VIEW_SHARE, request {@code requestId}.
+     */
+    void view(ClientHandler viewer, String password, int requestId) {
+        tell(() -> {
+            if (publisher == null || !this.password.equals(password)) {
+                System.out.println("[ShareActor] " + name + " 未在共享或密码错误，发送VIEW_DENIED");
+                viewer.send("VIEW_DENIED", requestId);
+                return;
+            }
+            // a viewer that has disconnected meanwhile is not added
+            if (!viewer.watch(name)) return;
+            viewers.add(viewer);
+            viewer.viewAccepted(name, requestId);
+        });
+    }
+
+    void leave(ClientHandler viewer) {
+        tell(() -> {
+            if (viewers.remove(viewer)) {
+                viewer.unwatch(name);
+                System.out.println("用户 " + viewer.username() + " 停止观看 " + name + " 的屏幕。");
+            }
+        });
+    }
+
+    /**
+     * Legacy {@code SCREEN_DATA} from {@code publisher}, passed to every viewer in its format.
+     */
+    void forward(ClientHandler publisher, ControlMessage message) {
+        tell(() -> {
+            if (this.publisher != publisher || viewers.isEmpty()) {
+                System.out.println("[Server] 收到 SCREEN_DATA 来自 " + name + " 但无观看者，忽略。");
+                return;
+            }
+            System.out.println("[Server] 转发 SCREEN_DATA 来自 " + name + ", viewers=" + viewers.size());
+            // text and binary viewers each get their own format, the image is converted at most once
+            for (ClientHandler viewer : viewers) {
+                viewer.forward(message);
+            }
+        });
+    }
+
+    private void tell(Runnable event) {
+        mailbox.offer(event);
+        schedule();
+    }
+
+    private void schedule() {
+        if (!scheduled.compareAndSet(false, true)) return;
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            // the server is shutting down
+            scheduled.set(false);
+        }
+    }
+
+    private void drain() {
+        for (int i = 0; i < BATCH; i++) {
+            Runnable event = mailbox.poll();
+            if (event == null) break;
+            try {
+                event.run();
+            } catch (RuntimeException e) {
+                System.err.println("[ShareActor] " + name + " 处理事件失败: " + e);
+            }
+        }
+        scheduled.set(false);
+        // events posted after the last poll, or left over from a full batch
+        if (!mailbox.isEmpty()) schedule();
+    }
+}
@@ -0,0 +1,115 @@
+package xyz.jxmm.screenshare.server;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tells control clients who is sharing. Changes to the share map are not broadcast as they
+ * happen: {@link #changed()} schedules one tick, {@link ServerConfig#sharesTickMs()} later, that
+ * compares the map with what was last announced and sends only the difference, so a burst of
+ * START_SHARE / STOP_SHARE / disconnects costs one pass over the clients, and logins cost none.
+ * <p>
+ * A client that subscribes with {@code GET_SHARES <version>} gets {@code SHARES_SNAPSHOT <version>
+ * <a,b,...>}, then per tick {@code SHARE_REMOVED <version> <a,b,...>} and {@code SHARE_ADDED
+ * <version> <a,b,...>}, one version each. A client that sees a version other than the next one has
+ * missed a message and subscribes again. Other clients get the whole list as {@code SHARES
+ * <a,b,...>} after each tick that changed it, and once on login.
+ * <p>
+ * Snapshots, subscriptions and ticks all run on the dispatcher thread, so a subscriber receives
+ * every version after its snapshot exactly once, in order.
+ */
+final class ShareListDispatcher {
+    private final ConcurrentHashMap<String, String> sharingUsers;
+    private final ConcurrentHashMap<String, ClientHandler> clients;
+    private final long tickMs;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "ShareList-Dispatcher");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean tickScheduled = new AtomicBoolean();
+    // dispatcher thread only
+    private final Set<String> announced = new TreeSet<>();
+    private final Set<ClientHandler> subscribers = new HashSet<>();
+    private long version;
+
+    ShareListDispatcher(ConcurrentHashMap<String, String> sharingUsers, ConcurrentHashMap<String, ClientHandler> clients,
+                        long tickMs) {
+        this.sharingUsers = sharingUsers;
+        this.clients = clients;
+        this.tickMs = tickMs;
+    }
+
+    /**
+     * The share map changed, announces the difference at the end of the current tick.
+     */
+    void changed() {
+        if (tickScheduled.compareAndSet(false, true)) {
+            executor.schedule(this::tick, tickMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sends a client that just logged in the list in the {@code SHARES} form.
+     */
+    void login(ClientHandler client) {
+        executor.execute(() -> client.send(legacyList()));
+    }
+
+    /**
+     * Sends {@code client} a snapshot as the reply to request {@code requestId}, then every
+     * change after it.
+     */
+    void subscribe(ClientHandler client, int requestId) {
+        executor.execute(() -> {
+            subscribers.add(client);
+            client.send("SHARES_SNAPSHOT " + version + " " + String.join(",", announced), requestId);
+        });
+    }
+
+    void unsubscribe(ClientHandler client) {
+        executor.execute(() -> subscribers.remove(client));
+    }
+
+    private void tick() {
+        tickScheduled.set(false);
+        try {
+            Set<String> live = new TreeSet<>(sharingUsers.keySet());
+            List<String> removed = new ArrayList<>();
+            for (String share : announced) {
+                if (!live.contains(share)) removed.add(share);
+            }
+            List<String> added = new ArrayList<>();
+            for (String share : live) {
+                if (!announced.contains(share)) added.add(share);
+            }
+            if (removed.isEmpty() && added.isEmpty()) return;
+            announced.removeAll(removed);
+            announced.addAll(added);
+            List<String> deltas = new ArrayList<>(2);
+            if (!removed.isEmpty()) deltas.add("SHARE_REMOVED " + ++version + " " + String.join(",", removed));
+            if (!added.isEmpty()) deltas.add("SHARE_ADDED " + ++version + " " + String.join(",", added));
+            for (ClientHandler subscriber : subscribers) {
+                for (String delta : deltas) subscriber.send(delta);
+            }
+            String list = legacyList();
+            for (ClientHandler client : clients.values()) {
+                if (!subscribers.contains(client)) client.send(list);
+            }
+        } catch (RuntimeException e) {
+            System.err.println("[ShareListDispatcher] 广播共享列表失败: " + e);
+        }
+    }
+
+    private String legacyList() {
+        return "SHARES " + String.join(",", announced);
+    }
+}
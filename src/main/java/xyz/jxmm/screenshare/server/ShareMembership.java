@@ -0,0 +1,77 @@
+package xyz.jxmm.screenshare.server;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Who watches which share: a concurrent set of members per open share. Members are compared by
+ * identity as far as their class does not override {@code equals}, which is the case for
+ * {@link ViewerConnection}.
+ * <p>
+ * {@link #members} reads without any lock, so fan-out never waits for a join or leave; a join
+ * races with {@link #close} only through the map's own per-key atomicity.
+ * <p>
+ * Only the thread-per-publisher stream relay uses this class, where each viewer connection
+ * watches exactly one share and leaves it by name. The control server's viewers belong to each
+ * share's {@link ShareActor}; the NIO relay keeps its viewers confined to the share's loop.
+ *
+ * @param <M> a stream connection in {@link StreamServer}
+ */
+final class ShareMembership<M> {
+    private final Map<String, Set<M>> members = new ConcurrentHashMap<>();
+
+    /**
+     * Lets members join {@code share}. A share that is already open keeps its members.
+     */
+    void open(String share) {
+        members.computeIfAbsent(share, k -> ConcurrentHashMap.newKeySet());
+    }
+
+    /**
+     * @return false if {@code share} is not open
+     */
+    boolean join(String share, M member) {
+        // atomic with close(): a member never lands in a set that was already taken away
+        return members.computeIfPresent(share, (k, set) -> {
+            set.add(member);
+            return set;
+        }) != null;
+    }
+
+    /**
+     * @return false if {@code member} did not belong to {@code share}
+     */
+    boolean leave(String share, M member) {
+        Set<M> set = members.get(share);
+        return set != null && set.remove(member);
+    }
+
+    /**
+     * Ends {@code share} if it has no members, atomically with {@link #join}.
+     *
+     * @return true if it was ended or was not open
+     */
+    boolean closeIfEmpty(String share) {
+        return members.computeIfPresent(share, (k, set) -> set.isEmpty() ? null : set) == null;
+    }
+
+    /**
+     * Ends {@code share}, later joins fail until it is opened again.
+     *
+     * @return its members at that point, empty if it was not open
+     */
+    Set<M> close(String share) {
+        Set<M> set = members.remove(share);
+        return set != null ? set : Collections.emptySet();
+    }
+
+    /**
+     * The current members of {@code share}, a live read-only view, empty if it is not open.
+     */
+    Set<M> members(String share) {
+        Set<M> set = members.get(share);
+        return set != null ? Collections.unmodifiableSet(set) : Collections.emptySet();
+    }
+}
@@ -0,0 +1,44 @@
+package xyz.jxmm.screenshare.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@link ShareActor}s of the control server and the threads they run on, see
+ * {@link ServerConfig#shareThreadCount()}. An actor is created by the first START_SHARE of its
+ * user and kept afterwards, so events never race with its removal; the other commands only look
+ * actors up, a client naming an unknown share creates nothing.
+ */
+final class ShareRegistry {
+    private final ConcurrentHashMap<String, ShareActor> actors = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String> sharingUsers;
+    private final ShareListDispatcher shareList;
+    private final ExecutorService executor;
+
+    ShareRegistry(ConcurrentHashMap<String, String> sharingUsers, ShareListDispatcher shareList, int threads) {
+        this.sharingUsers = sharingUsers;
+        this.shareList = shareList;
+        AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "ShareActor-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * The actor of {@code share}, created on first use; only for the share's own publisher.
+     */
+    ShareActor open(String share) {
+        return actors.computeIfAbsent(share, k -> new ShareActor(k, executor, sharingUsers, shareList));
+    }
+
+    /**
+     * The actor of {@code share}, null if nobody has shared under that name.
+     */
+    ShareActor get(String share) {
+        return share != null ? actors.get(share) : null;
+    }
+}
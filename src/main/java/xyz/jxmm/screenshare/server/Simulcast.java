@@ -0,0 +1,100 @@
+package xyz.jxmm.screenshare.server;
+
+import xyz.jxmm.screenshare.metrics.Meter;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Layers of one share. A simulcast publisher encodes the same capture several times, each at a
+ * lower resolution and bitrate, and publishes every encoding on a stream connection of its own:
+ * layer 0 is the share itself at full quality, layer k the sub-stream {@code <share>#k}.
+ * <p>
+ * Each layer is relayed like a share of its own (demuxer, join cache) but has no viewers of its
+ * own. The share's viewers receive one layer at a time, chosen per viewer by its
+ * {@link LayerSelector}; the relay never transcodes.
+ */
+final class Simulcast {
+    static final int MAX_LAYERS = 3;
+    // user names cannot contain it, see ClientHandler LOGIN
+    static final char SEPARATOR = '#';
+
+    private final AtomicReferenceArray<FlvStreamCache> caches = new AtomicReferenceArray<>(MAX_LAYERS);
+    private final AtomicReferenceArray<Meter> ingest = new AtomicReferenceArray<>(MAX_LAYERS);
+
+    static String layerName(String share, int layer) {
+        return layer == 0 ? share : share + SEPARATOR + layer;
+    }
+
+    static String baseOf(String name) {
+        int i = name.indexOf(SEPARATOR);
+        return i < 0 ? name : name.substring(0, i);
+    }
+
+    static int layerOf(String name) {
+        int i = name.indexOf(SEPARATOR);
+        return i < 0 ? 0 : Integer.parseInt(name.substring(i + 1));
+    }
+
+    /**
+     * Layer {@code layer} is being published; {@code cache} supplies its sequence headers when a
+     * viewer switches to it, {@code meter} its bitrate.
+     */
+    void attach(int layer, FlvStreamCache cache, Meter meter) {
+        ingest.set(layer, meter);
+        caches.set(layer, cache);
+    }
+
+    void detach(int layer, FlvStreamCache cache) {
+        if (caches.compareAndSet(layer, cache, null)) ingest.set(layer, null);
+    }
+
+    boolean active(int layer) {
+        return layer >= 0 && layer < MAX_LAYERS && caches.get(layer) != null;
+    }
+
+    /**
+     * Bytes per second the layer's publisher sent over the last second.
+     */
+    double rate(int layer) {
+        Meter meter = ingest.get(layer);
+        return meter != null ? meter.getRate() : 0;
+    }
+
+    /**
+     * Best quality layer being published, 0 while there is none.
+     */
+    int best() {
+        int up = higher(MAX_LAYERS);
+        return up >= 0 ? up : 0;
+    }
+
+    /**
+     * Next active layer of better quality than {@code layer}, -1 if there is none.
+     */
+    int higher(int layer) {
+        for (int l = layer - 1; l >= 0; l--) {
+            if (active(l)) return l;
+        }
+        return -1;
+    }
+
+    /**
+     * Next active layer of lower quality than {@code layer}, -1 if there is none.
+     */
+    int lower(int layer) {
+        for (int l = layer + 1; l < MAX_LAYERS; l++) {
+            if (active(l)) return l;
+        }
+        return -1;
+    }
+
+    /**
+     * Hands the layer's onMetaData and sequence headers to {@code sink}, what a viewer switching
+     * to it needs before its next keyframe.
+     */
+    void sendConfig(int layer, Consumer<FlvTag> sink) {
+        FlvStreamCache cache = caches.get(layer);
+        if (cache != null) cache.config(sink);
+    }
+}
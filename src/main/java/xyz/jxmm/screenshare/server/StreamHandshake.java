@@ -0,0 +1,93 @@
+package xyz.jxmm.screenshare.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary preamble a client sends first on a stream connection (port 10002), before any FLV data.
+ * It carries the one-time token the control channel handed out with {@code SHARE_STARTED} or
+ * {@code VIEW_ACCEPTED}, so the stream server knows who is connecting without relying on the
+ * order in which connections arrive.
+ * <pre>
+ * offset  size  field
+ * 0       4     magic "SSTK"
+ * 4       1     version (1)
+ * 5       1     role (1 = publish, 2 = view)
+ * 6       16    token
+ * </pre>
+ */
+public final class StreamHandshake {
+    public enum Role { PUBLISH, VIEW }
+
+    public static final int TOKEN_BYTES = 16;
+    public static final int SIZE = 6 + TOKEN_BYTES;
+    // a connection that has not sent its preamble by then is dropped
+    static final int TIMEOUT_MS = 5000;
+
+    private static final byte[] MAGIC = {'S', 'S', 'T', 'K'};
+    private static final byte VERSION = 1;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    final Role role;
+    final String token;
+
+    private StreamHandshake(Role role, String token) {
+        this.role = role;
+        this.token = token;
+    }
+
+    /**
+     * Preamble for {@code token} as received on the control channel.
+     */
+    public static byte[] encode(Role role, String token) {
+        byte[] raw = fromHex(token);
+        if (raw == null) {
+            throw new IllegalArgumentException("invalid stream token: " + token);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(SIZE);
+        buf.put(MAGIC).put(VERSION).put((byte) (role == Role.PUBLISH ? 1 : 2)).put(raw);
+        return buf.array();
+    }
+
+    /**
+     * Parses a complete preamble, null if it is malformed.
+     */
+    static StreamHandshake decode(byte[] preamble) {
+        if (preamble.length != SIZE) return null;
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (preamble[i] != MAGIC[i]) return null;
+        }
+        if (preamble[4] != VERSION) return null;
+        Role role;
+        if (preamble[5] == 1) {
+            role = Role.PUBLISH;
+        } else if (preamble[5] == 2) {
+            role = Role.VIEW;
+        } else {
+            return null;
+        }
+        byte[] raw = new byte[TOKEN_BYTES];
+        System.arraycopy(preamble, 6, raw, 0, TOKEN_BYTES);
+        return new StreamHandshake(role, toHex(raw));
+    }
+
+    static String toHex(byte[] raw) {
+        char[] out = new char[raw.length * 2];
+        for (int i = 0; i < raw.length; i++) {
+            out[i * 2] = HEX[(raw[i] >> 4) & 0x0F];
+            out[i * 2 + 1] = HEX[raw[i] & 0x0F];
+        }
+        return new String(out);
+    }
+
+    private static byte[] fromHex(String token) {
+        if (token == null || token.length() != TOKEN_BYTES * 2) return null;
+        byte[] raw = new byte[TOKEN_BYTES];
+        for (int i = 0; i < TOKEN_BYTES; i++) {
+            int hi = Character.digit(token.charAt(i * 2), 16);
+            int lo = Character.digit(token.charAt(i * 2 + 1), 16);
+            if (hi < 0 || lo < 0) return null;
+            raw[i] = (byte) ((hi << 4) | lo);
+        }
+        return raw;
+    }
+}
@@ -0,0 +1,167 @@
+package xyz.jxmm.screenshare.server;
+
+import xyz.jxmm.screenshare.metrics.Histogram;
+import xyz.jxmm.screenshare.metrics.JmxExporter;
+import xyz.jxmm.screenshare.metrics.Meter;
+import xyz.jxmm.screenshare.metrics.MetricsHttpServer;
+import xyz.jxmm.screenshare.metrics.MetricsRegistry;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Metric names of the relay and the control server, and the per share / per viewer handles the
+ * forwarding paths record into. Both relay modes report the same series.
+ */
+final class StreamMetrics {
+    static final MetricsRegistry REGISTRY = MetricsRegistry.get();
+
+    static final String INGEST_BYTES = "stream_ingest_bytes";
+    static final String EGRESS_BYTES = "stream_viewer_egress_bytes";
+    static final String QUEUE_BYTES = "stream_viewer_queue_bytes";
+    static final String WRITE_SECONDS = "stream_viewer_write_seconds";
+    static final String PUBLISHERS = "stream_publishers_active";
+    static final String VIEWERS = "stream_viewers_active";
+    static final String MULTICAST_BYTES = "stream_multicast_bytes";
+    static final String MULTICAST_DROPPED = "stream_multicast_dropped_packets";
+    static final String CONTROL_CLIENTS = "control_clients_active";
+    static final String CONTROL_COMMANDS = "control_commands";
+    static final String CONTROL_OUTBOUND = "control_outbound_events";
+    static final String REAPED = "connections_reaped";
+
+    private static final AtomicInteger publishers = new AtomicInteger();
+    private static final AtomicInteger viewers = new AtomicInteger();
+
+    static {
+        REGISTRY.describe(INGEST_BYTES, "Bytes received from a publisher.");
+        REGISTRY.describe(EGRESS_BYTES, "Bytes written to a viewer.");
+        REGISTRY.describe(QUEUE_BYTES, "Bytes waiting in a viewer's send queue.");
+        REGISTRY.describe(WRITE_SECONDS, "Duration of a single socket write to a viewer of the share.");
+        REGISTRY.describe(PUBLISHERS, "Publishers currently streaming.");
+        REGISTRY.describe(VIEWERS, "Viewers currently connected to the stream server.");
+        REGISTRY.describe(MULTICAST_BYTES, "Bytes sent to the share's multicast group.");
+        REGISTRY.describe(MULTICAST_DROPPED, "Multicast datagrams the socket buffer could not take.");
+        REGISTRY.describe(CONTROL_CLIENTS, "Logged in control connections.");
+        REGISTRY.describe(CONTROL_COMMANDS, "Control commands handled, by command.");
+        REGISTRY.describe(CONTROL_OUTBOUND, "Control messages coalesced or dropped, and clients disconnected for not reading, by outcome.");
+        REGISTRY.describe(REAPED, "Connections closed because their peer went quiet, by connection type.");
+        REGISTRY.gauge(publishers::get, PUBLISHERS);
+        REGISTRY.gauge(viewers::get, VIEWERS);
+        REGISTRY.gauge(() -> BufferPool.shared().allocated(), "stream_buffer_pool_allocated");
+        REGISTRY.gauge(() -> BufferPool.shared().pooled(), "stream_buffer_pool_free");
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        REGISTRY.gauge(threads::getThreadCount, "jvm_threads_live");
+        REGISTRY.gauge(() -> memory.getHeapMemoryUsage().getUsed(), "jvm_heap_used_bytes");
+    }
+
+    private StreamMetrics() {
+    }
+
+    /**
+     * Registers the control client gauge and starts the exporters: JMX always, the HTTP endpoint
+     * unless {@link ServerConfig#metricsPort()} is 0.
+     */
+    static void start(Map<String, ?> controlClients) {
+        REGISTRY.gauge(controlClients::size, CONTROL_CLIENTS);
+        REGISTRY.addListener(new JmxExporter());
+        int port = ServerConfig.metricsPort();
+        if (port <= 0) return;
+        try {
+            new MetricsHttpServer(REGISTRY, port).start();
+        } catch (IOException e) {
+            System.err.println("[StreamMetrics] 无法启动指标 HTTP 端口 " + port + ": " + e.getMessage());
+        }
+    }
+
+    static int activeViewers() {
+        return viewers.get();
+    }
+
+    static Meter command(String cmd) {
+        return REGISTRY.meter(CONTROL_COMMANDS, "command", cmd);
+    }
+
+    /**
+     * {@code coalesced}, {@code dropped}, {@code overflow} or {@code stalled}, see {@link ControlOutbox}.
+     */
+    static Meter controlOutbound(String outcome) {
+        return REGISTRY.meter(CONTROL_OUTBOUND, "outcome", outcome);
+    }
+
+    /**
+     * {@code control}, {@code publisher} or {@code viewer}, see {@link IdleReaper}.
+     */
+    static Meter reaped(String kind) {
+        return REGISTRY.meter(REAPED, "kind", kind);
+    }
+
+    static Share share(String name) {
+        return new Share(name);
+    }
+
+    static Viewer viewer(String share, String address, ViewerSendQueue queue) {
+        return new Viewer(share, address, queue);
+    }
+
+    /**
+     * Series of one publishing session.
+     */
+    static final class Share {
+        final String name;
+        final Meter ingest;
+        private boolean closed;
+
+        private Share(String name) {
+            this.name = name;
+            this.ingest = REGISTRY.meter(INGEST_BYTES, "share", name);
+            publishers.incrementAndGet();
+        }
+
+        synchronized void close() {
+            if (closed) return;
+            closed = true;
+            publishers.decrementAndGet();
+            REGISTRY.remove(INGEST_BYTES, "share", name);
+            REGISTRY.remove(WRITE_SECONDS, "share", name);
+        }
+    }
+
+    /**
+     * Series of one viewer connection.
+     */
+    static final class Viewer {
+        private final String share;
+        private final String address;
+        final Meter egress;
+        final Histogram writeLatency;
+        private boolean closed;
+
+        private Viewer(String share, String address, ViewerSendQueue queue) {
+            this.share = share;
+            this.address = address;
+            this.egress = REGISTRY.meter(EGRESS_BYTES, "share", share, "viewer", address);
+            // shared with the other viewers of the share, a viewer may connect before the publisher
+            this.writeLatency = REGISTRY.histogram(WRITE_SECONDS, "share", share);
+            REGISTRY.gauge(queue::queuedBytes, QUEUE_BYTES, "share", share, "viewer", address);
+            viewers.incrementAndGet();
+        }
+
+        void written(long bytes, long nanos) {
+            egress.mark(bytes);
+            writeLatency.record(nanos);
+        }
+
+        synchronized void close() {
+            if (closed) return;
+            closed = true;
+            viewers.decrementAndGet();
+            REGISTRY.remove(EGRESS_BYTES, "share", share, "viewer", address);
+            REGISTRY.remove(QUEUE_BYTES, "share", share, "viewer", address);
+        }
+    }
+}
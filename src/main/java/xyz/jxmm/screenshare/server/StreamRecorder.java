@@ -0,0 +1,257 @@
+package xyz.jxmm.screenshare.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Records one publishing session into a {@link RecordingSession}.
+ * <p>
+ * The forwarding path only hands tags over through {@link #offer}, which retains the tag and
+ * queues it; a writer thread of its own copies the slices into memory mapped segment files. A
+ * slow disk therefore never delays the live fan-out: when the queue is full the recorder drops
+ * tags and picks up again at the next keyframe, leaving a gap in the recording only.
+ * <p>
+ * Every segment starts with the current init units and then a keyframe, so it can be played
+ * on its own. Segments are rolled at a keyframe once they hold {@link #SEGMENT_MILLIS} of media
+ * or half of {@link ServerConfig#recordSegmentBytes()}, and whenever the video configuration changes.
+ */
+final class StreamRecorder {
+    private static final long SEGMENT_MILLIS = 60_000;
+    // tags waiting for the disk, they pin pooled chunks until written
+    private static final long MAX_QUEUED_BYTES = 16L * 1024 * 1024;
+
+    final RecordingSession session;
+    private final long segmentBytes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final ArrayDeque<FlvTag> queue = new ArrayDeque<>();
+    private long queuedBytes;
+    private boolean dropping;
+    private boolean finished;
+
+    // writer thread only
+    private FlvTag header;
+    private FlvTag metadata;
+    private FlvTag videoConfig;
+    private FlvTag audioConfig;
+    private FileChannel index;
+    private FileChannel segmentChannel;
+    private MappedByteBuffer segment;
+    private int segmentNumber = -1;
+    private int segmentStart;
+    // init units changed, the next keyframe starts a new segment
+    private boolean rollPending;
+    // nothing but a keyframe can be appended, at the start or after a full segment
+    private boolean awaitKeyframe = true;
+
+    StreamRecorder(RecordingSession session, long segmentBytes) {
+        this.session = session;
+        this.segmentBytes = segmentBytes;
+    }
+
+    void start() throws IOException {
+        index = FileChannel.open(session.dir.resolve(RecordingSession.INDEX_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        ServerThreads.start("StreamRecorder-" + session.share, true, this::writeLoop);
+    }
+
+    /**
+     * Called from the forwarding path, never blocks on the disk.
+     */
+    void offer(FlvTag tag) {
+        if (tag.type == FlvTag.RAW) return;
+        lock.lock();
+        try {
+            if (finished) return;
+            boolean restart = tag.type == FlvTag.VIDEO && tag.keyframe;
+            if (!tag.essential() && (queuedBytes + tag.size > MAX_QUEUED_BYTES || (dropping && !restart))) {
+                if (!dropping) {
+                    System.out.println("[StreamRecorder] Disk too slow for " + session.share + ", skipping to the next keyframe.");
+                }
+                dropping = true;
+                return;
+            }
+            // after a drop the next frame queued is a keyframe, the recording resumes cleanly there
+            if (restart) dropping = false;
+            queue.add(tag.retain());
+            queuedBytes += tag.size;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Publisher ended: the writer records what is queued, then closes the session.
+     */
+    void finish() {
+        lock.lock();
+        try {
+            finished = true;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                FlvTag tag;
+                lock.lock();
+                try {
+                    while (queue.isEmpty() && !finished) {
+                        notEmpty.await(1, TimeUnit.SECONDS);
+                    }
+                    if (queue.isEmpty()) break;
+                    tag = queue.poll();
+                    queuedBytes -= tag.size;
+                } finally {
+                    lock.unlock();
+                }
+                try {
+                    write(tag);
+                } finally {
+                    tag.release();
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("[StreamRecorder] Recording of " + session.share + " failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close();
+        }
+    }
+
+    private void write(FlvTag tag) throws IOException {
+        switch (tag.type) {
+            case FlvTag.HEADER:
+                // publisher restarted its encoder, nothing before this header applies anymore
+                header = replace(header, tag);
+                metadata = replace(metadata, null);
+                videoConfig = replace(videoConfig, null);
+                audioConfig = replace(audioConfig, null);
+                rollPending = true;
+                awaitKeyframe = true;
+                return;
+            case FlvTag.SCRIPT:
+                metadata = replace(metadata, tag);
+                return;
+            default:
+                break;
+        }
+        if (tag.sequenceHeader) {
+            if (tag.type == FlvTag.VIDEO) {
+                videoConfig = replace(videoConfig, tag);
+            } else {
+                audioConfig = replace(audioConfig, tag);
+            }
+            // frames of the new configuration belong behind its init units, in the next segment
+            rollPending = true;
+            awaitKeyframe = true;
+            return;
+        }
+        if (tag.type == FlvTag.VIDEO && tag.keyframe) {
+            if (segment == null || rollPending || tag.timestamp - segmentStart >= SEGMENT_MILLIS
+                    || segment.position() > segmentBytes / 2 || segment.remaining() < tag.size) {
+                roll(tag.timestamp);
+            }
+            if (segment.remaining() < tag.size) {
+                System.out.println("[StreamRecorder] Keyframe of " + tag.size + " bytes does not fit a segment of " + session.share + ", skipped.");
+                awaitKeyframe = true;
+                return;
+            }
+            session.indexKeyframe(index, tag.timestamp, segmentNumber, segment.position());
+            awaitKeyframe = false;
+        } else if (awaitKeyframe || segment.remaining() < tag.size) {
+            // a frame that does not fit waits for the next keyframe to open a new segment
+            awaitKeyframe = true;
+            return;
+        }
+        append(tag);
+        session.commit(segment.position(), tag.timestamp);
+    }
+
+    /**
+     * Closes the current segment and opens the next one, starting with the init units.
+     */
+    private void roll(int timestamp) throws IOException {
+        closeSegment();
+        segmentNumber++;
+        segmentChannel = FileChannel.open(RecordingSession.segmentPath(session.dir, segmentNumber),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        segmentStart = timestamp;
+        rollPending = false;
+        session.openSegment(segmentNumber);
+        if (header != null) append(header);
+        if (metadata != null) append(metadata);
+        if (audioConfig != null) append(audioConfig);
+        if (videoConfig != null) append(videoConfig);
+    }
+
+    private void append(FlvTag tag) {
+        for (int i = 0; i < tag.sliceCount(); i++) {
+            ByteBuffer src = tag.chunk(i).duplicate();
+            int start = tag.sliceOffset(i);
+            src.limit(start + tag.sliceLength(i)).position(start);
+            segment.put(src);
+        }
+    }
+
+    private void closeSegment() throws IOException {
+        if (segment == null) return;
+        long size = segment.position();
+        segment.force();
+        segment = null;
+        session.indexSegmentEnd(index, segmentNumber, size);
+        try {
+            // only cosmetic, the index has the size; fails on Windows while the mapping is alive
+            segmentChannel.truncate(size);
+        } catch (IOException e) {
+            // keep the preallocated file
+        }
+        segmentChannel.close();
+        segmentChannel = null;
+    }
+
+    private void close() {
+        lock.lock();
+        try {
+            finished = true;
+            for (FlvTag tag : queue) tag.release();
+            queue.clear();
+            queuedBytes = 0;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            closeSegment();
+            index.force(true);
+            index.close();
+        } catch (IOException e) {
+            System.out.println("[StreamRecorder] Failed to close recording of " + session.share + ": " + e.getMessage());
+        }
+        header = replace(header, null);
+        metadata = replace(metadata, null);
+        videoConfig = replace(videoConfig, null);
+        audioConfig = replace(audioConfig, null);
+        session.finish();
+        Recordings.ended(session);
+        System.out.println("[StreamRecorder] Recording " + session.name + " of " + session.share + " closed.");
+    }
+
+    private static FlvTag replace(FlvTag old, FlvTag tag) {
+        if (old != null) old.release();
+        return tag != null ? tag.retain() : null;
+    }
+}
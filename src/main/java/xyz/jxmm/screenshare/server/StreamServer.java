@@ -1,39 +1,56 @@
 package xyz.jxmm.screenshare.server;
 
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
 
 /**
  * Simple TCP stream server: accepts publisher connections and viewer connections on the same port.
- * Workflow: client announces intention over control channel, then opens TCP to this port.
+ * Workflow: client announces intention over control channel and receives a one-time token, then
+ * opens TCP to this port and sends the token in a {@link StreamHandshake} preamble.
  * 
  * Based on screego's design principles:
  * 1. Separation of control and streaming channels
- * 2. Publisher/viewer matching through announcement mechanism
+ * 2. Publisher/viewer matching through one-time tokens
  * 3. Efficient stream forwarding
+ *
+ * Forwarding runs either on one thread per publisher (default) or on the selector based
+ * {@link NioStreamRelay}, see {@link ServerConfig#relayMode()}.
  */
 public class StreamServer implements Runnable {
     private final int port;
-    private ServerSocket serverSocket;
+    private ServerSocketChannel serverChannel;
     private volatile boolean running = true;
 
-    // pending publishers announced by control channel (username order)
-    private final ConcurrentLinkedQueue<String> pendingPublishers = new ConcurrentLinkedQueue<>();
-    // pending viewer targets announced by control channel (targetUser order)
-    private final ConcurrentLinkedQueue<String> pendingViewerTargets = new ConcurrentLinkedQueue<>();
+    // stream tokens handed out over the control channel, redeemed by the stream handshake
+    private final StreamTokens tokens = new StreamTokens(ServerConfig.streamTokenTtlMs());
 
     // active publisher socket per username
-    private final Map<String, Socket> publisherSockets = new ConcurrentHashMap<>();
+    private final Map<String, SocketChannel> publisherSockets = new ConcurrentHashMap<>();
     // viewers per publisher username
-    private final Map<String, CopyOnWriteArrayList<Socket>> viewers = new ConcurrentHashMap<>();
+    private final ShareMembership<ViewerConnection> viewers = new ShareMembership<>();
+    // FLV join cache per publisher username, replayed to every new viewer
+    private final Map<String, FlvStreamCache> streamCaches = new ConcurrentHashMap<>();
+    // layers per share; a simulcast layer publishes as <username>#<layer>, its viewers are the share's
+    private final Map<String, Simulcast> simulcasts = new ConcurrentHashMap<>();
+    // keyframe requests per share, present while its publisher is connected
+    private final Map<String, KeyframeRequester> keyframeRequests = new ConcurrentHashMap<>();
+
+    // selector based engine, only used in ServerConfig.RelayMode.NIO
+    private volatile NioStreamRelay nioRelay;
+    // delivers control lines to a publisher's control connection, unset on an edge
+    private volatile BiConsumer<String, String> publisherControl;
+
+    private static final long EDGE_TOKEN_WAIT_MS = 1000;
 
     private static StreamServer instance;
 
@@ -52,119 +69,345 @@ public class StreamServer implements Runnable {
         this.port = port;
     }
 
-    public void addPendingPublisher(String username) {
-        pendingPublishers.add(username);
-        System.out.println("[StreamServer] Pending publisher announced: " + username);
+    /**
+     * Token the publisher {@code username} presents on its stream connection.
+     */
+    public String issuePublisherToken(String username) {
+        System.out.println("[StreamServer] Publisher token issued for " + username);
+        return tokens.issue(StreamHandshake.Role.PUBLISH, username);
+    }
+
+    /**
+     * Token a viewer of {@code targetUser} presents on its stream connection.
+     */
+    public String issueViewerToken(String targetUser) {
+        System.out.println("[StreamServer] Viewer token issued for target " + targetUser);
+        return tokens.issue(StreamHandshake.Role.VIEW, targetUser);
+    }
+
+    /**
+     * Token a viewer of a recording of {@code recording.share} presents on its stream connection.
+     *
+     * @param secondsAgo how far behind the newest recorded media playback starts, -1 for the start
+     */
+    public String issuePlaybackToken(RecordingSession recording, int secondsAgo) {
+        System.out.println("[StreamServer] Playback token issued for " + recording.share + "/" + recording.name);
+        return tokens.issuePlayback(recording, secondsAgo);
+    }
+
+    /**
+     * Viewer token of a viewer the origin sent to this edge, see {@link EdgeLink}.
+     */
+    void acceptEdgeToken(String token, String share) {
+        tokens.grant(token, StreamHandshake.Role.VIEW, share);
+    }
+
+    /**
+     * Token for a viewer this origin sends to one of its edges. It is only registered on the edge.
+     */
+    String newEdgeToken() {
+        return tokens.newToken();
+    }
+
+    /**
+     * Resolves a received handshake to the stream it was issued for, null if it is not valid.
+     */
+    StreamTokens.Grant redeem(StreamHandshake handshake) {
+        return tokens.redeem(handshake);
+    }
+
+    /**
+     * On an edge the origin pushes a viewer's token over the control link while the viewer is
+     * told to connect here, so a viewer may win the race. Its handshake is retried for this long.
+     */
+    long tokenWaitMillis() {
+        return ServerConfig.edgeOrigin() != null ? EDGE_TOKEN_WAIT_MS : 0;
+    }
+
+    /**
+     * {@code group:port} a LAN viewer of {@code username} can join instead of a stream
+     * connection, null if the share is not multicast.
+     */
+    public String multicastEndpoint(String username) {
+        return MulticastSender.endpoint(username);
+    }
+
+    /**
+     * Where {@link BitrateController} hints for a publisher go: (username, line).
+     */
+    public void setPublisherControl(BiConsumer<String, String> publisherControl) {
+        this.publisherControl = publisherControl;
+    }
+
+    /**
+     * Sends {@code line} to the control connection of publisher {@code username}, on the calling
+     * thread so hints reach the publisher in the order they were made. Never blocks: the line only
+     * joins the connection's {@link ControlOutbox}, the forwarding thread or event loop does not
+     * wait for the publisher's socket.
+     */
+    void sendToPublisher(String username, String line) {
+        BiConsumer<String, String> control = publisherControl;
+        if (control != null) control.accept(username, line);
     }
 
-    public void addPendingViewerTarget(String targetUser) {
-        pendingViewerTargets.add(targetUser);
-        System.out.println("[StreamServer] Pending viewer announced for target: " + targetUser);
+    /**
+     * A viewer of {@code share} joined or fell behind and waits for a keyframe, see
+     * {@link KeyframeRequester}. Does nothing while the share has no publisher.
+     */
+    public void requestKeyframe(String share) {
+        NioStreamRelay relay = nioRelay;
+        if (relay != null) {
+            relay.requestKeyframe(share);
+            return;
+        }
+        KeyframeRequester requester = keyframeRequests.get(share);
+        if (requester != null) requester.request();
+    }
+
+    boolean hasPublisher(String username) {
+        NioStreamRelay relay = nioRelay;
+        return relay != null ? relay.hasPublisher(username) : publisherSockets.containsKey(username);
+    }
+
+    /**
+     * Edge only: a stream pulled from the origin becomes the local publisher of {@code username}.
+     */
+    void attachUpstream(String username, SocketChannel ch) throws IOException {
+        NioStreamRelay relay = nioRelay;
+        if (relay != null) {
+            relay.attachUpstream(username, ch);
+        } else {
+            assignPublisherSocket(username, ch);
+        }
     }
 
     @Override
     public void run() {
+        if (ServerConfig.relayMode() == ServerConfig.RelayMode.NIO) {
+            nioRelay = new NioStreamRelay(this, port, ServerConfig.relayLoopCount());
+            nioRelay.run();
+            return;
+        }
         try {
-            serverSocket = new ServerSocket(port);
+            // blocking channels, so publisher reads and viewer writes go straight from/to pooled direct buffers
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
             System.out.println("[StreamServer] Listening for streams on port " + port);
             while (running) {
-                Socket sock = serverSocket.accept();
-                System.out.println("[StreamServer] Incoming TCP connection from " + sock.getRemoteSocketAddress());
-                // decide assignment
-                String publisher = pendingPublishers.poll();
-                if (publisher != null) {
-                    assignPublisherSocket(publisher, sock);
-                    continue;
-                }
-                String target = pendingViewerTargets.poll();
-                if (target != null) {
-                    assignViewerSocket(target, sock);
-                    continue;
-                }
-                // no pending mapping, close
-                System.out.println("[StreamServer] No pending mapping for incoming stream, closing connection.");
-                try { sock.close(); } catch (IOException ignored) {}
+                SocketChannel sock = serverChannel.accept();
+                System.out.println("[StreamServer] Incoming TCP connection from " + sock.getRemoteAddress());
+                // the preamble is read off the accept thread so a slow client cannot hold up the others
+                ServerThreads.start("StreamServer-Handshake", true, () -> handshake(sock));
             }
         } catch (IOException e) {
             if (running) e.printStackTrace();
         } finally {
-            try { if (serverSocket != null) serverSocket.close(); } catch (IOException ignored) {}
+            try { if (serverChannel != null) serverChannel.close(); } catch (IOException ignored) {}
         }
     }
 
-    private void assignPublisherSocket(String username, Socket sock) {
+    private void handshake(SocketChannel sock) {
+        StreamTokens.Grant grant = null;
+        try {
+            // reads through the socket adaptor honour SO_TIMEOUT, reads on the channel itself would not
+            sock.socket().setSoTimeout(StreamHandshake.TIMEOUT_MS);
+            byte[] preamble = new byte[StreamHandshake.SIZE];
+            new DataInputStream(sock.socket().getInputStream()).readFully(preamble);
+            sock.socket().setSoTimeout(0);
+            StreamHandshake handshake = StreamHandshake.decode(preamble);
+            long deadline = System.currentTimeMillis() + tokenWaitMillis();
+            while (handshake != null && (grant = redeem(handshake)) == null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.out.println("[StreamServer] Stream handshake failed: " + e.getMessage());
+            try { sock.close(); } catch (IOException ignored) {}
+            return;
+        }
+        if (grant == null) {
+            System.out.println("[StreamServer] Invalid or expired stream token, closing connection.");
+            try { sock.close(); } catch (IOException ignored) {}
+        } else if (grant.recording != null) {
+            startPlayback(grant, sock);
+        } else if (grant.role == StreamHandshake.Role.PUBLISH) {
+            assignPublisherSocket(grant.user, sock);
+        } else {
+            assignViewerSocket(grant.user, sock);
+        }
+    }
+
+    /**
+     * Plays the recording a viewer token was issued for, in either relay mode.
+     */
+    void startPlayback(StreamTokens.Grant grant, SocketChannel sock) {
+        new RecordingPlayer(grant.recording, grant.secondsAgo, sock).start();
+    }
+
+    private void assignPublisherSocket(String username, SocketChannel sock) {
         System.out.println("[StreamServer] Assigning publisher socket for " + username);
         publisherSockets.put(username, sock);
-        viewers.putIfAbsent(username, new CopyOnWriteArrayList<>());
+        viewers.open(Simulcast.baseOf(username));
         // start forwarding thread for this publisher
-        Thread t = new Thread(() -> forwardFromPublisher(username, sock), "StreamServer-Forward-" + username);
-        t.setDaemon(true);
-        t.start();
+        ServerThreads.start("StreamServer-Forward-" + username, true, () -> forwardFromPublisher(username, sock));
+    }
+
+    private void assignViewerSocket(String targetUser, SocketChannel sock) {
+        System.out.println("[StreamServer] Adding viewer for target " + targetUser + ", from " + sock.socket().getRemoteSocketAddress());
+        ViewerConnection viewer = new ViewerConnection(targetUser, sock, v -> viewerLeft(targetUser, v), () -> requestKeyframe(targetUser));
+        boolean[] joined = new boolean[1];
+        while (!joined[0]) {
+            // a viewer may connect before the publisher, e.g. on an edge still pulling the share
+            FlvStreamCache cache = streamCaches.compute(targetUser, (k, c) -> {
+                viewers.open(k);
+                return c != null ? c : new FlvStreamCache();
+            });
+            // header, sequence header and current GOP first, then live tags; a publisher-less share
+            // whose last viewer left meanwhile is gone, the loop attaches to a fresh one
+            cache.join(viewer::replay, () -> joined[0] = viewer.isClosed() || viewers.join(targetUser, viewer));
+        }
+        viewer.start();
+        // the cached GOP may be long, a fresh keyframe lets the viewer start close to live
+        requestKeyframe(targetUser);
     }
 
-    private void assignViewerSocket(String targetUser, Socket sock) {
-        System.out.println("[StreamServer] Adding viewer for target " + targetUser + ", from " + sock.getRemoteSocketAddress());
-        viewers.putIfAbsent(targetUser, new CopyOnWriteArrayList<>());
-        viewers.get(targetUser).add(sock);
+    /**
+     * A viewer of {@code share} closed. The entries a viewer creates for a share without a
+     * publisher (not connected yet, or already gone when the token was redeemed) go with the
+     * share's last viewer; the publisher's own cleanup removes them otherwise.
+     */
+    private void viewerLeft(String share, ViewerConnection viewer) {
+        viewers.leave(share, viewer);
+        streamCaches.computeIfPresent(share, (k, cache) -> {
+            if (publisherSockets.containsKey(k) || !viewers.closeIfEmpty(k)) return cache;
+            cache.close();
+            return null;
+        });
     }
 
-    private void forwardFromPublisher(String username, Socket pubSock) {
-        try (InputStream in = pubSock.getInputStream()) {
-            byte[] buffer = new byte[8192];
-            int read;
+    private void forwardFromPublisher(String username, SocketChannel pubSock) {
+        String share = Simulcast.baseOf(username);
+        int layer = Simulcast.layerOf(username);
+        Simulcast group = simulcasts.computeIfAbsent(share, k -> new Simulcast());
+        FlvStreamCache cache = streamCaches.computeIfAbsent(username, k -> new FlvStreamCache());
+        FlvDemuxer demuxer = new FlvDemuxer(username);
+        StreamMetrics.Share metrics = StreamMetrics.share(username);
+        group.attach(layer, cache, metrics.ingest);
+        // null unless recording / multicast is enabled; both, like the bitrate hints, follow the full quality layer
+        StreamRecorder recorder = layer == 0 ? Recordings.start(username) : null;
+        MulticastSender multicast = layer == 0 ? MulticastSender.open(username) : null;
+        BitrateController rate = layer == 0 ? BitrateController.fromConfig(username) : null;
+        KeyframeRequester keyframes = layer == 0 ? KeyframeRequester.fromConfig(username, this) : null;
+        if (keyframes != null) keyframeRequests.put(username, keyframes);
+        // a publisher sends at least a keyframe every few seconds, one that sends nothing is gone
+        IdleReaper.Session idle = IdleReaper.shared().register("publisher", ServerConfig.streamIdleMs(), 0, () -> {
+            System.out.println("[StreamServer] Publisher " + username + " sent nothing for " + ServerConfig.streamIdleMs() + " ms, closing.");
+            try { pubSock.close(); } catch (IOException ignored) {}
+            return true;
+        });
+        BufferPool pool = BufferPool.shared();
+        // reads land in pooled direct chunks once, tags and viewer queues only reference them
+        PooledBuffer chunk = pool.acquire();
+        try {
+            List<FlvTag> tags = new ArrayList<>();
             long lastStatTime = System.currentTimeMillis();
             int frameCount = 0;
-            while ((read = in.read(buffer)) != -1) {
-                List<Socket> list = viewers.get(username);
-                if (list == null || list.isEmpty()) {
-                    // swallow data
-                    continue;
+            while (true) {
+                ByteBuffer buf = chunk.buffer();
+                if (!buf.hasRemaining()) {
+                    chunk.release();
+                    chunk = pool.acquire();
+                    buf = chunk.buffer();
                 }
-                long t0 = System.currentTimeMillis();
-                for (Socket v : list) {
-                    try {
-                        OutputStream os = v.getOutputStream();
-                        os.write(buffer, 0, read);
-                        os.flush();
-                    } catch (IOException e) {
-                        System.out.println("[StreamServer] Error forwarding to viewer " + v.getRemoteSocketAddress() + ": " + e.getMessage());
-                        try { v.close(); } catch (IOException ignored) {}
-                        list.remove(v);
-                    }
+                int from = buf.position();
+                int read = pubSock.read(buf);
+                if (read == -1) break;
+                idle.touch();
+                metrics.ingest.mark(read);
+                if (rate != null) rate.onRead(read);
+                // tags are parsed even without viewers so the join cache stays current
+                tags.clear();
+                demuxer.feed(chunk, from, buf.position(), tags::add);
+                for (FlvTag tag : tags) {
+                    cache.publish(tag, t -> fanOut(share, layer, group, t));
+                    if (rate != null) rate.onTag(tag);
+                    if (keyframes != null && tag.isVideoFrame() && tag.keyframe) keyframes.onKeyframe();
+                    if (multicast != null) multicast.send(tag);
+                    // recorded behind the live viewers, the recorder only queues
+                    if (recorder != null) recorder.offer(tag);
+                    if (tag.isVideoFrame()) frameCount++;
+                    tag.release();
                 }
-                long t1 = System.currentTimeMillis();
-                frameCount++;
                 long now = System.currentTimeMillis();
                 if (now - lastStatTime >= 1000) {
-                    System.out.println("[StreamServer] 转发帧率: " + frameCount + " fps, viewers=" + list.size() + ", 写入耗时: " + (t1-t0) + "ms");
+                    Set<ViewerConnection> list = viewers.members(share);
+                    System.out.println("[StreamServer] 转发帧率: " + frameCount + " fps, viewers=" + list.size()
+                            + (layer > 0 ? ", layer " + layer : ""));
                     frameCount = 0;
                     lastStatTime = now;
+                    if (layer == 0) {
+                        for (ViewerConnection v : list) v.selectLayer(group);
+                    }
+                    if (rate != null) adaptBitrate(username, rate, list);
+                    if (keyframes != null) keyframes.tick();
                 }
             }
         } catch (IOException e) {
             System.out.println("[StreamServer] Publisher " + username + " stream ended: " + e.getMessage());
         } finally {
             // cleanup
+            idle.cancel();
+            demuxer.close();
+            chunk.release();
+            metrics.close();
+            if (recorder != null) recorder.finish();
+            if (multicast != null) multicast.close();
+            if (keyframes != null) keyframeRequests.remove(username, keyframes);
+            // viewers on this layer move to another one at its next keyframe, see LayerSelector
+            group.detach(layer, cache);
             try { pubSock.close(); } catch (IOException ignored) {}
             publisherSockets.remove(username);
-            // notify viewers by closing their sockets
-            List<Socket> list = viewers.get(username);
-            if (list != null) {
-                for (Socket v : list) {
-                    try { v.close(); } catch (IOException ignored) {}
+            if (layer == 0) {
+                // notify viewers by closing their sockets once their queues are written out
+                for (ViewerConnection v : viewers.close(username)) {
+                    v.finish();
+                }
+                simulcasts.remove(username, group);
+                // the lower layers have nobody left to serve
+                for (int l = 1; l < Simulcast.MAX_LAYERS; l++) {
+                    SocketChannel layerSock = publisherSockets.get(Simulcast.layerName(username, l));
+                    try { if (layerSock != null) layerSock.close(); } catch (IOException ignored) {}
                 }
-                list.clear();
             }
-            viewers.remove(username);
+            if (streamCaches.remove(username, cache)) cache.close();
             System.out.println("[StreamServer] Publisher " + username + " cleanup completed.");
         }
     }
 
+    private void adaptBitrate(String username, BitrateController rate, Set<ViewerConnection> list) {
+        long backlog = 0;
+        long dropped = 0;
+        for (ViewerConnection v : list) {
+            backlog = Math.max(backlog, v.backlogMillis());
+            dropped += v.droppedFrames();
+        }
+        String hint = rate.tick(backlog, dropped);
+        if (hint != null) sendToPublisher(username, hint);
+    }
+
+    private void fanOut(String share, int layer, Simulcast group, FlvTag tag) {
+        for (ViewerConnection v : viewers.members(share)) {
+            v.send(tag, layer, group);
+        }
+    }
+
     public void stop() {
         running = false;
+        if (nioRelay != null) nioRelay.stop();
         try {
-            if (serverSocket != null) {
-                serverSocket.close();
+            if (serverChannel != null) {
+                serverChannel.close();
             }
         } catch (IOException ignored) {}
     }
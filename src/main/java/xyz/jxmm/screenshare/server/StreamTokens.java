@@ -0,0 +1,93 @@
+package xyz.jxmm.screenshare.server;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One-time tokens that bind a stream connection to the control channel request that announced it.
+ * {@link ClientHandler} issues a token on {@code START_SHARE}/{@code VIEW_SHARE}; the stream
+ * connection presents it in its {@link StreamHandshake} preamble and the token is consumed.
+ * Any number of handshakes can be in flight at once, each is matched by its token alone.
+ */
+final class StreamTokens {
+
+    /**
+     * What a token entitles its holder to: publish {@code user}'s stream or view it, live or
+     * from a {@link #recording}.
+     */
+    static final class Grant {
+        final StreamHandshake.Role role;
+        final String user;
+        final long expiresAt;
+        // viewer of a recording instead of the live share, see RecordingPlayer
+        final RecordingSession recording;
+        final int secondsAgo;
+
+        Grant(StreamHandshake.Role role, String user, long expiresAt, RecordingSession recording, int secondsAgo) {
+            this.role = role;
+            this.user = user;
+            this.expiresAt = expiresAt;
+            this.recording = recording;
+            this.secondsAgo = secondsAgo;
+        }
+    }
+
+    private final SecureRandom random = new SecureRandom();
+    private final ConcurrentHashMap<String, Grant> grants = new ConcurrentHashMap<>();
+    private final long ttlMillis;
+
+    StreamTokens(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    String issue(StreamHandshake.Role role, String user) {
+        String token = newToken();
+        grant(token, role, user);
+        return token;
+    }
+
+    /**
+     * Viewer token for {@code recording}, starting {@code secondsAgo} before its newest media
+     * or, for -1, at its start.
+     */
+    String issuePlayback(RecordingSession recording, int secondsAgo) {
+        String token = newToken();
+        put(token, StreamHandshake.Role.VIEW, recording.share, recording, secondsAgo);
+        return token;
+    }
+
+    /**
+     * A fresh random token, not registered anywhere yet.
+     */
+    String newToken() {
+        byte[] raw = new byte[StreamHandshake.TOKEN_BYTES];
+        random.nextBytes(raw);
+        return StreamHandshake.toHex(raw);
+    }
+
+    /**
+     * Registers a token issued elsewhere, e.g. by the origin for a viewer it sends to this edge.
+     */
+    void grant(String token, StreamHandshake.Role role, String user) {
+        put(token, role, user, null, -1);
+    }
+
+    private void put(String token, StreamHandshake.Role role, String user, RecordingSession recording, int secondsAgo) {
+        long now = System.currentTimeMillis();
+        // tokens nobody redeemed are swept on the next grant
+        grants.values().removeIf(g -> g.expiresAt < now);
+        grants.put(token, new Grant(role, user, now + ttlMillis, recording, secondsAgo));
+    }
+
+    /**
+     * Consumes the token of a handshake. Returns null if it is unknown, expired or was issued
+     * for the other role.
+     */
+    Grant redeem(StreamHandshake handshake) {
+        Grant grant = grants.remove(handshake.token);
+        if (grant == null || grant.expiresAt < System.currentTimeMillis() || grant.role != handshake.role) {
+            return null;
+        }
+        return grant;
+    }
+}
@@ -0,0 +1,90 @@
+package xyz.jxmm.screenshare.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Writes {@link FlvTag} slices straight from the pooled chunks to a viewer channel.
+ * Each viewer owns one writer; it keeps a few views (duplicates) of recently used chunks so
+ * writing normally allocates nothing.
+ * <p>
+ * A batch of tags goes out in one gathering write. Tags demuxed from the same read are
+ * back to back in their chunk, such runs are merged into a single buffer of the gather.
+ */
+final class TagWriter {
+    private static final int CACHED_VIEWS = 8;
+
+    private final PooledBuffer[] viewChunks = new PooledBuffer[CACHED_VIEWS];
+    private final ByteBuffer[] views = new ByteBuffer[CACHED_VIEWS];
+    // batch a cached view was last handed out for, a view is used at most once per gather
+    private final long[] viewBatches = new long[CACHED_VIEWS];
+    private long batch;
+    private int nextSlot;
+    private ByteBuffer[] gather = new ByteBuffer[8];
+
+    /**
+     * Writes the first {@code count} tags, starting at byte {@code offset} of the first one,
+     * as far as the channel accepts.
+     *
+     * @return bytes written
+     */
+    long write(GatheringByteChannel ch, FlvTag[] tags, int count, int offset) throws IOException {
+        batch++;
+        int buffers = 0;
+        int skip = offset;
+        PooledBuffer lastChunk = null;
+        int lastEnd = -1;
+        for (int t = 0; t < count; t++) {
+            FlvTag tag = tags[t];
+            for (int i = 0; i < tag.sliceCount(); i++) {
+                int len = tag.sliceLength(i);
+                if (skip >= len) {
+                    skip -= len;
+                    continue;
+                }
+                PooledBuffer chunk = tag.chunk(i);
+                int start = tag.sliceOffset(i) + skip;
+                int end = tag.sliceOffset(i) + len;
+                skip = 0;
+                if (chunk == lastChunk && start == lastEnd) {
+                    gather[buffers - 1].limit(end);
+                } else {
+                    if (buffers == gather.length) {
+                        ByteBuffer[] grown = new ByteBuffer[buffers * 2];
+                        System.arraycopy(gather, 0, grown, 0, buffers);
+                        gather = grown;
+                    }
+                    ByteBuffer view = view(chunk);
+                    view.limit(end).position(start);
+                    gather[buffers++] = view;
+                    lastChunk = chunk;
+                }
+                lastEnd = end;
+            }
+        }
+        if (buffers == 0) return 0;
+        return buffers == 1 ? ch.write(gather[0]) : ch.write(gather, 0, buffers);
+    }
+
+    private ByteBuffer view(PooledBuffer chunk) {
+        for (int i = 0; i < CACHED_VIEWS; i++) {
+            if (viewChunks[i] == chunk) {
+                // a chunk revisited out of order within one gather needs a second view
+                if (viewBatches[i] == batch) return chunk.duplicate();
+                viewBatches[i] = batch;
+                return views[i];
+            }
+        }
+        int slot = nextSlot;
+        if (viewBatches[slot] == batch) {
+            // the slot to recycle is part of this gather
+            return chunk.duplicate();
+        }
+        nextSlot = (nextSlot + 1) % CACHED_VIEWS;
+        viewChunks[slot] = chunk;
+        views[slot] = chunk.duplicate();
+        viewBatches[slot] = batch;
+        return views[slot];
+    }
+}
@@ -0,0 +1,186 @@
+package xyz.jxmm.screenshare.server;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Viewer socket of the thread-per-publisher relay.
+ * Each viewer owns a {@link ViewerSendQueue} and a writer thread, so a blocked {@code write}
+ * only stalls this viewer and never the publisher's forwarding loop. A viewer whose queued tags
+ * go unwritten for {@link ServerConfig#streamIdleMs()} is closed by the {@link IdleReaper}, which
+ * also ends a {@code write} blocked on a peer that has gone away. While there is nothing to write,
+ * e.g. before the publisher connects, the writer looks for the end of stream once a second instead.
+ */
+class ViewerConnection {
+    private final String target;
+    private final SocketChannel channel;
+    private final SocketAddress address;
+    private final ViewerSendQueue queue;
+    private final TagWriter writer = new TagWriter();
+    // tags of one gathering write, only used by the writer thread
+    private final FlvTag[] batch = new FlvTag[ViewerSendQueue.MAX_BATCH];
+    // whatever a viewer sends is read and dropped by peerClosed()
+    private final byte[] probe = new byte[256];
+    // leaves the share on close, see StreamServer
+    private final Consumer<ViewerConnection> leave;
+    private final StreamMetrics.Viewer metrics;
+    private final LayerSelector layers = new LayerSelector(ServerConfig.viewerLatencyBudgetMs());
+    private final Consumer<FlvTag> sink = this::send;
+    // asks the publisher for a keyframe, see KeyframeRequester
+    private final Runnable keyframeRequest;
+    private final IdleReaper.Session idle;
+    private volatile boolean closed;
+
+    // how long the idle writer waits for the viewer's end of stream, viewers never send anything else
+    private static final int EOF_PROBE_MS = 1;
+
+    ViewerConnection(String target, SocketChannel channel, Consumer<ViewerConnection> leave, Runnable keyframeRequest) {
+        this.target = target;
+        this.channel = channel;
+        this.address = channel.socket().getRemoteSocketAddress();
+        this.leave = leave;
+        this.keyframeRequest = keyframeRequest;
+        this.queue = ViewerSendQueue.fromConfig();
+        this.metrics = StreamMetrics.viewer(target, String.valueOf(address), queue);
+        this.idle = IdleReaper.shared().register("viewer", ServerConfig.streamIdleMs(), 0, this::reap);
+    }
+
+    void start() {
+        ServerThreads.start("StreamServer-Viewer-" + target + "-" + channel.socket().getPort(), true, this::writeLoop);
+    }
+
+    /**
+     * Called from the publisher's forwarding thread, never blocks on the network.
+     */
+    void send(FlvTag tag) {
+        queued(queue.offer(tag));
+    }
+
+    /**
+     * A tag of the join cache, see {@link FlvStreamCache#join}.
+     */
+    void replay(FlvTag tag) {
+        queued(queue.replay(tag));
+    }
+
+    private void queued(ViewerSendQueue.Offer result) {
+        switch (result) {
+            case DISCONNECT:
+                System.out.println("[StreamServer] Viewer " + address + " of " + target + " overflowed its send queue, closing.");
+                close();
+                break;
+            case RESYNC:
+                System.out.println("[StreamServer] Viewer " + address + " of " + target + " fell behind, skipping to the next keyframe.");
+                keyframeRequest.run();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Tag of simulcast layer {@code layer}, passed on if this viewer receives that layer.
+     */
+    void send(FlvTag tag, int layer, Simulcast group) {
+        layers.accept(tag, layer, group, sink);
+    }
+
+    /**
+     * Once a second from layer 0's forwarding thread.
+     */
+    void selectLayer(Simulcast group) {
+        if (layers.tick(group, metrics.egress.getCount(), queue.backlogMillis(), queue.droppedFrames())) {
+            keyframeRequest.run();
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (!closed) {
+                int count = queue.awaitBatch(batch, 1, TimeUnit.SECONDS);
+                if (count == 0) {
+                    if (queue.isDrained() || peerClosed()) break;
+                    continue;
+                }
+                try {
+                    // blocking channel: returns once the whole batch is written
+                    long start = System.nanoTime();
+                    long written = writer.write(channel, batch, count, queue.headOffset());
+                    metrics.written(written, System.nanoTime() - start);
+                    queue.advance((int) written);
+                } finally {
+                    for (int i = 0; i < count; i++) {
+                        batch[i].release();
+                        batch[i] = null;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("[StreamServer] Error forwarding to viewer " + address + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Only on the writer thread, between writes: reads through the socket adaptor, which honours
+     * SO_TIMEOUT where reads on the blocking channel itself would not.
+     */
+    private boolean peerClosed() throws IOException {
+        channel.socket().setSoTimeout(EOF_PROBE_MS);
+        try {
+            return channel.socket().getInputStream().read(probe) == -1;
+        } catch (SocketTimeoutException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Publisher went away: write out what is still queued, then close.
+     */
+    void finish() {
+        queue.finish();
+    }
+
+    long queuedBytes() {
+        return queue.queuedBytes();
+    }
+
+    long backlogMillis() {
+        return queue.backlogMillis();
+    }
+
+    long droppedFrames() {
+        return queue.droppedFrames();
+    }
+
+    /**
+     * On the reaper's thread, see {@link IdleReaper.Peer#reap()}.
+     */
+    private boolean reap() {
+        if (queue.stalledMillis() < ServerConfig.streamIdleMs()) return false;
+        System.out.println("[StreamServer] Viewer " + address + " of " + target + " stopped reading, closing.");
+        close();
+        return true;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    void close() {
+        if (closed) return;
+        closed = true;
+        idle.cancel();
+        queue.close();
+        try { channel.close(); } catch (IOException ignored) {}
+        leave.accept(this);
+        metrics.close();
+    }
+}
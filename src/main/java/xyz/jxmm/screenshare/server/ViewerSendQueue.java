@@ -0,0 +1,416 @@
+package xyz.jxmm.screenshare.server;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded outbound queue of one viewer socket.
+ * The publisher side only ever {@link #offer}s, the viewer's own writer drains with
+ * {@link #acquireBatch}/{@link #advance(int)}, so a slow viewer only delays itself.
+ * The queue retains every tag it holds and releases it once written or discarded.
+ * Units are whole {@link FlvTag}s, so whatever the overflow policy discards the viewer still
+ * receives a well formed FLV stream; {@link FlvTag#essential()} tags are never discarded.
+ * <p>
+ * Besides the byte bound the queue keeps the viewer within a latency budget: past half of it
+ * disposable (non-reference) frames are dropped, past the whole budget the queued frames are
+ * discarded and the viewer skips ahead to the next keyframe.
+ * <p>
+ * A joining viewer is first {@link #replay}ed the share's {@link FlvStreamCache}. Those tags are
+ * behind live by design and only reference the cache's buffers, so they count towards neither
+ * the latency budget nor the byte bound; the viewer only lags once live tags queue up behind them.
+ * <p>
+ * Writers take several tags per write (one gathering write) and coalesce: a batch is due once
+ * {@link #flushBytes()} are queued or the oldest unsent tag has waited {@link #flushDelayMillis()}.
+ */
+final class ViewerSendQueue {
+
+    // tags per gathering write, far below any IOV_MAX even for tags spanning chunks
+    static final int MAX_BATCH = 64;
+
+    enum Offer {
+        QUEUED,
+        // tag discarded: OverflowPolicy.DROP, a disposable frame over the soft budget,
+        // or an inter frame while waiting for the next keyframe
+        DROPPED,
+        // backlog discarded, the viewer resumes at the next keyframe
+        RESYNC,
+        // viewer must be closed, OverflowPolicy.DISCONNECT
+        DISCONNECT
+    }
+
+    private final long maxBytes;
+    private final ServerConfig.OverflowPolicy policy;
+    // how far (media time) the newest queued frame may be ahead of the oldest unsent one
+    private final long latencyBudgetMs;
+    private final long flushBytes;
+    private final long flushDelayMillis;
+    private final ArrayDeque<FlvTag> queue = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private long queuedBytes;
+    // the first replayTags queued tags came from replay(), replayBytes in total
+    private int replayTags;
+    private long replayBytes;
+    // bytes of the head tag already written
+    private int headOffset;
+    // tags at the front the writer acquired and is writing right now
+    private int inFlight;
+    private boolean closed;
+    // no more offers, the writer closes once what is queued has been written
+    private boolean finishing;
+    // backlog was discarded, video frames are dropped until the next keyframe
+    private boolean awaitingKeyframe;
+    private long droppedFrames;
+    // System.nanoTime() the oldest tag not yet taken by the writer was queued, -1 if there is none
+    private long pendingSince = -1;
+    // System.nanoTime() the queue last turned non-empty or the writer last made progress
+    private long stalledSince;
+
+    ViewerSendQueue(long maxBytes, ServerConfig.OverflowPolicy policy, long latencyBudgetMs,
+                    long flushBytes, long flushDelayMillis) {
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+        this.latencyBudgetMs = latencyBudgetMs;
+        this.flushBytes = flushBytes;
+        this.flushDelayMillis = flushDelayMillis;
+    }
+
+    static ViewerSendQueue fromConfig() {
+        return new ViewerSendQueue(ServerConfig.viewerQueueBytes(), ServerConfig.viewerOverflowPolicy(),
+                ServerConfig.viewerLatencyBudgetMs(), ServerConfig.viewerFlushBytes(), ServerConfig.viewerFlushMs());
+    }
+
+    long flushBytes() {
+        return flushBytes;
+    }
+
+    long flushDelayMillis() {
+        return flushDelayMillis;
+    }
+
+    Offer offer(FlvTag tag) {
+        lock.lock();
+        try {
+            if (closed || finishing) return Offer.DISCONNECT;
+            Offer result = Offer.QUEUED;
+            if (tag.isVideoFrame()) {
+                if (awaitingKeyframe) {
+                    if (!tag.keyframe) return dropped();
+                    awaitingKeyframe = false;
+                }
+                long lag = backlogMillis(tag.timestamp);
+                if (lag > latencyBudgetMs) {
+                    // too far behind: throw away the backlog and restart at a keyframe
+                    if (!resync(tag)) return Offer.RESYNC;
+                    result = Offer.RESYNC;
+                } else if (lag > latencyBudgetMs / 2 && tag.disposable) {
+                    return dropped();
+                }
+            }
+            if (liveBytes() + tag.size > maxBytes && !tag.essential()) {
+                switch (policy) {
+                    case DROP:
+                        // later inter frames reference this one, skip them as well
+                        if (tag.isVideoFrame() && !tag.disposable) awaitingKeyframe = true;
+                        return dropped();
+                    case DISCONNECT:
+                        return Offer.DISCONNECT;
+                    case RESYNC:
+                    default:
+                        if (!resync(tag)) return Offer.RESYNC;
+                        result = Offer.RESYNC;
+                        break;
+                }
+            }
+            add(tag);
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a tag of the join cache, ahead of any live tag: never dropped for lag or size.
+     * Once a live tag has been offered this is the same as {@link #offer}.
+     */
+    Offer replay(FlvTag tag) {
+        lock.lock();
+        try {
+            if (closed || finishing) return Offer.DISCONNECT;
+            if (queue.size() != replayTags) return offer(tag);
+            add(tag);
+            replayTags++;
+            replayBytes += tag.size;
+            return Offer.QUEUED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void add(FlvTag tag) {
+        if (queue.isEmpty()) stalledSince = System.nanoTime();
+        queue.add(tag.retain());
+        queuedBytes += tag.size;
+        if (pendingSince < 0) pendingSince = System.nanoTime();
+        // wakes a writer waiting for its first tag or coalescing towards flushBytes
+        if (queue.size() == 1 || (queuedBytes >= flushBytes && queuedBytes - tag.size < flushBytes)) {
+            notEmpty.signal();
+        }
+    }
+
+    /**
+     * Queued bytes not yet written, without the replayed ones.
+     */
+    private long liveBytes() {
+        // queuedBytes already lacks the written part of a replayed head
+        return queuedBytes - replayBytes + (replayTags > 0 ? headOffset : 0);
+    }
+
+    /**
+     * Discards the backlog. Returns true if {@code tag} may still be queued, i.e. it is a keyframe
+     * or not video at all; otherwise video is dropped until the next keyframe.
+     */
+    private boolean resync(FlvTag tag) {
+        discardBacklog();
+        if (tag.isVideoFrame() && !tag.keyframe) {
+            awaitingKeyframe = true;
+            droppedFrames++;
+            return false;
+        }
+        return true;
+    }
+
+    private Offer dropped() {
+        droppedFrames++;
+        return Offer.DROPPED;
+    }
+
+    /**
+     * Media time between the oldest queued live video frame and {@code timestamp}.
+     */
+    private long backlogMillis(int timestamp) {
+        int skip = replayTags;
+        for (FlvTag queued : queue) {
+            if (skip-- > 0) continue;
+            if (queued.isVideoFrame()) {
+                long lag = (timestamp & 0xFFFFFFFFL) - (queued.timestamp & 0xFFFFFFFFL);
+                // a restarted publisher or wrapped clock is not lag
+                return lag > 0 && lag < 3_600_000 ? lag : 0;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Drops everything queued except essential tags and the tags the writer already started on,
+     * cutting those would corrupt what the viewer has received so far.
+     */
+    private void discardBacklog() {
+        int keep = Math.max(inFlight, headOffset > 0 ? 1 : 0);
+        int replayed = replayTags;
+        for (Iterator<FlvTag> it = queue.iterator(); it.hasNext(); ) {
+            FlvTag queued = it.next();
+            boolean started = keep-- > 0;
+            boolean fromReplay = replayed-- > 0;
+            if (!started && !queued.essential()) {
+                queuedBytes -= queued.size;
+                if (fromReplay) {
+                    replayTags--;
+                    replayBytes -= queued.size;
+                }
+                it.remove();
+                queued.release();
+            }
+        }
+    }
+
+    /**
+     * Fills {@code out} with tags from the head, each with an extra reference the caller must
+     * release. Returns how many, 0 when empty. The writer writes them as one batch starting at
+     * {@link #headOffset()} of the first and reports with {@link #advance(int)}.
+     */
+    int acquireBatch(FlvTag[] out) {
+        lock.lock();
+        try {
+            return takeBatch(out);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocking variant of {@link #acquireBatch} for thread-per-viewer writers: waits for a tag,
+     * then until the batch is due. Returns 0 once closed, once finished and drained, or after
+     * the timeout.
+     */
+    int awaitBatch(FlvTag[] out, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (queue.isEmpty() && !closed && !finishing) {
+                if (nanos <= 0) return 0;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            while (!closed && !finishing && queuedBytes < flushBytes && pendingSince >= 0) {
+                long wait = pendingSince + flushDelayMillis * 1_000_000L - System.nanoTime();
+                if (wait <= 0) break;
+                notEmpty.awaitNanos(wait);
+            }
+            if (closed) return 0;
+            return takeBatch(out);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int takeBatch(FlvTag[] out) {
+        int count = 0;
+        for (FlvTag tag : queue) {
+            if (count == out.length) break;
+            out[count++] = tag.retain();
+        }
+        inFlight = count;
+        // whatever did not fit the batch is overdue already
+        pendingSince = count < queue.size() ? 0 : -1;
+        return count;
+    }
+
+    int headOffset() {
+        lock.lock();
+        try {
+            return headOffset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Accounts for {@code written} bytes taken from the front of the queue, releasing every tag
+     * that has been written completely.
+     */
+    void advance(int written) {
+        lock.lock();
+        try {
+            inFlight = 0;
+            queuedBytes -= written;
+            if (written > 0) stalledSince = System.nanoTime();
+            FlvTag head;
+            while (written > 0 && (head = queue.peek()) != null) {
+                int left = head.size - headOffset;
+                if (written < left) {
+                    headOffset += written;
+                    return;
+                }
+                written -= left;
+                queue.poll();
+                head.release();
+                headOffset = 0;
+                if (replayTags > 0) {
+                    replayTags--;
+                    replayBytes -= head.size;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long droppedFrames() {
+        lock.lock();
+        try {
+            return droppedFrames;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Media time between the oldest and the newest queued live video frame, how far behind the
+     * publisher this viewer is.
+     */
+    long backlogMillis() {
+        lock.lock();
+        try {
+            for (Iterator<FlvTag> it = queue.descendingIterator(); it.hasNext(); ) {
+                FlvTag newest = it.next();
+                if (newest.isVideoFrame()) return backlogMillis(newest.timestamp);
+            }
+            return 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long queuedBytes() {
+        lock.lock();
+        try {
+            return queuedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * How long tags have been queued without the writer making any progress, 0 when the queue
+     * is empty. A viewer sends nothing, so this is how a dead one shows, see {@link IdleReaper}.
+     */
+    long stalledMillis() {
+        lock.lock();
+        try {
+            return queue.isEmpty() ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stalledSince);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return queue.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting tags; {@link #isDrained()} turns true once the backlog is written.
+     */
+    void finish() {
+        lock.lock();
+        try {
+            finishing = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isDrained() {
+        lock.lock();
+        try {
+            return closed || (finishing && queue.isEmpty());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            for (FlvTag queued : queue) queued.release();
+            queue.clear();
+            queuedBytes = 0;
+            replayTags = 0;
+            replayBytes = 0;
+            headOffset = 0;
+            pendingSince = -1;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
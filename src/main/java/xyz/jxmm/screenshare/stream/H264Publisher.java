@@ -1,15 +1,20 @@
 package xyz.jxmm.screenshare.stream;
 
+import org.bytedeco.ffmpeg.avcodec.AVCodecContext;
+import org.bytedeco.ffmpeg.avutil.AVFrame;
 import org.bytedeco.ffmpeg.global.avcodec;
 import org.bytedeco.ffmpeg.global.avutil;
 import org.bytedeco.javacv.FFmpegFrameRecorder;
 import org.bytedeco.javacv.FFmpegLogCallback;
 import org.bytedeco.javacv.Frame;
 import org.bytedeco.javacv.Java2DFrameConverter;
+import xyz.jxmm.screenshare.server.ServerNetworkUtil;
+import xyz.jxmm.screenshare.server.StreamHandshake;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.lang.reflect.Field;
 import java.net.Socket;
 
 /**
@@ -18,15 +23,78 @@ import java.net.Socket;
  * 2. FLV container format for streaming
  * 3. Low latency configuration
  * 4. Proper resource management
+ *
+ * The stream server sends {@code BITRATE_HINT <kbps> <fps>} over the control channel when the
+ * relay or the viewers fall behind; the encoder is retargeted before the next frame, so
+ * congestion costs quality instead of delay. It sends {@code REQUEST_KEYFRAME} when a viewer joins
+ * or falls behind; the next frame is then encoded as an IDR frame, which lets the regular GOP be
+ * long without making viewers wait for it. Forcing a frame type needs the recorder's private
+ * encoder state; where that cannot be reached the GOP stays short.
+ * <p>
+ * A late joiner does not depend on the request, which an edge or a disabled
+ * {@code keyframe.interval.ms} never sends: the relay's join cache replays the whole current GOP
+ * outside the viewer's latency budget, see {@code ViewerSendQueue.replay}.
  */
-public class H264Publisher {
+public class H264Publisher implements ScreenPublisher {
+    // 起始码率，也是码率提示的上限
+    static final int VIDEO_BITRATE = 2_000_000;
+    private static final int MIN_BITRATE = 50_000;
+    // 能强制关键帧时的关键帧间隔；观看者需要关键帧时服务器会请求，不必靠短 GOP。
+    // 2Mbps 下 10 秒约 2.5MB，服务器的 GOP 缓存（上限 8MB）能整段补给晚加入的观看者
+    private static final int GOP_SECONDS = 10;
+    // 不能强制关键帧时的关键帧间隔，晚加入的观看者最多等这么久
+    private static final int SHORT_GOP_SECONDS = 2;
+    // FFmpegFrameRecorder 不公开编码器上下文和待编码帧，只能反射读取。
+    // 字段名对应 build.gradle.kts 中的 javacv 1.5.7，升级 javacv 时须核对
+    private static final Field VIDEO_CONTEXT_FIELD = recorderField("video_c");
+    private static final Field PICTURE_FIELD = recorderField("picture");
+
     private final FFmpegFrameRecorder recorder;
     private final Java2DFrameConverter converter = new Java2DFrameConverter();
     private final Socket socket;
     private final OutputStream out;
+    private final int fps;
+    private final int maxBitrate;
+    private final boolean followHints;
+    private final ServerNetworkUtil.MessageListener hintListener = this::onControlMessage;
+    // 控制通道收到、尚未应用到编码器的码率，-1 表示没有
+    private volatile int pendingBitrate = -1;
+    // 码率提示要求的帧率，0 表示按调用方的帧率编码
+    private volatile int hintedFps;
+    // 服务器请求了关键帧，下一帧编码为 IDR
+    private volatile boolean keyframeRequested;
+    // 时间戳的零点，同播各层共用，观看者切换层时时间线连续
+    private final long startNanos;
+    private long nextFrameNanos;
+    // 编码器的 AVCodecContext，找不到时为 null，码率提示随之失效
+    private AVCodecContext videoContext;
+    // 待编码帧的 AVFrame，找不到时为 null，关键帧请求随之失效
+    private AVFrame picture;
 
     public H264Publisher(String host, int port, int width, int height, int fps) throws Exception {
+        this(host, port, ServerNetworkUtil.getPublisherStreamToken(), width, height, fps);
+    }
+
+    /**
+     * @param streamToken 控制通道 SHARE_STARTED 下发的一次性令牌
+     */
+    public H264Publisher(String host, int port, String streamToken, int width, int height, int fps) throws Exception {
+        this(host, port, streamToken, width, height, fps, VIDEO_BITRATE, true, System.nanoTime());
+    }
+
+    /**
+     * 同播的一层，见 {@link SimulcastPublisher}
+     *
+     * @param followHints 是否按 BITRATE_HINT 调整码率，关键帧请求各层都响应
+     * @param clockOrigin 时间戳零点 ({@link System#nanoTime()})
+     */
+    H264Publisher(String host, int port, String streamToken, int width, int height, int fps,
+                  int bitrate, boolean followHints, long clockOrigin) throws Exception {
         System.out.println("[H264Publisher] 初始化H264Publisher...");
+        this.fps = fps;
+        this.maxBitrate = bitrate;
+        this.followHints = followHints;
+        this.startNanos = clockOrigin;
         // 设置 FFmpeg 日志回调，避免 avformat_write_header 错误
         FFmpegLogCallback.set();
         System.out.println("[H264Publisher] FFmpeg日志回调已设置");
@@ -36,6 +104,13 @@ public class H264Publisher {
         System.out.println("[H264Publisher] 套接字连接已创建: " + host + ":" + port);
         this.out = socket.getOutputStream();
         System.out.println("[H264Publisher] 获取输出流成功");
+        if (streamToken == null) {
+            socket.close();
+            throw new IOException("没有可用的流令牌");
+        }
+        // 先发送令牌前导包，流服务器据此识别发布者
+        out.write(StreamHandshake.encode(StreamHandshake.Role.PUBLISH, streamToken));
+        out.flush();
         
         // 创建录制器并设置为使用OutputStream
         recorder = new FFmpegFrameRecorder(out, width, height);
@@ -46,22 +121,51 @@ public class H264Publisher {
         recorder.setPixelFormat(avutil.AV_PIX_FMT_YUV420P);
         recorder.setVideoOption("preset", "ultrafast");
         recorder.setVideoOption("tune", "zerolatency");
-        recorder.setVideoBitrate(2_000_000); // 2Mbps
+        recorder.setVideoBitrate(bitrate); // 默认 2Mbps
+        // 启用 VBV，码率提示才能限制突发；x264 只能在启动时开启 VBV，之后可以调整
+        recorder.setVideoOption("maxrate", String.valueOf(bitrate));
+        recorder.setVideoOption("bufsize", String.valueOf(bitrate));
         recorder.setVideoOption("threads", "2");
-        recorder.setGopSize(fps * 2);
+        // 请求的关键帧编码为 IDR，新观看者可以从它开始解码
+        recorder.setVideoOption("forced-idr", "1");
+        boolean forcedKeyframes = VIDEO_CONTEXT_FIELD != null && PICTURE_FIELD != null;
+        recorder.setGopSize(fps * (forcedKeyframes ? GOP_SECONDS : SHORT_GOP_SECONDS));
         recorder.setVideoQuality(0); // 最高质量
         System.out.println("[H264Publisher] FFmpegFrameRecorder参数已设置");
         recorder.start();
         System.out.println("[H264Publisher] FFmpegFrameRecorder已启动");
+        videoContext = (AVCodecContext) read(VIDEO_CONTEXT_FIELD);
+        picture = (AVFrame) read(PICTURE_FIELD);
+        if (forcedKeyframes && (videoContext == null || picture == null)) {
+            // GOP 只能在启动前设置，这里只能提示
+            System.err.println("[H264Publisher] 启动后读不到 FFmpegFrameRecorder 的编码器状态 (video_c=" + videoContext
+                    + ", picture=" + picture + ")，码率提示或关键帧请求失效，关键帧间隔为 " + GOP_SECONDS + " 秒");
+        }
+        ServerNetworkUtil.addMessageListener(hintListener);
         System.out.println("[H264Publisher] H264Publisher初始化完成");
     }
 
+    @Override
     public synchronized void publishFrame(BufferedImage img) throws Exception {
         if (img == null) {
             System.out.println("[H264Publisher] 尝试发布空图像帧");
             return;
         }
         
+        long now = System.nanoTime();
+        int limit = hintedFps;
+        if (limit > 0 && limit < fps) {
+            // 按提示的帧率跳过多余的帧
+            if (now < nextFrameNanos) return;
+            long interval = 1_000_000_000L / limit;
+            nextFrameNanos = Math.max(nextFrameNanos + interval, now - interval);
+        }
+        int bitrate = pendingBitrate;
+        if (bitrate > 0) {
+            pendingBitrate = -1;
+            applyBitrate(bitrate);
+        }
+
         // System.out.println("[H264Publisher] 开始编码帧...");
         long t0 = System.currentTimeMillis();
         Frame frame = converter.convert(img);
@@ -70,14 +174,84 @@ public class H264Publisher {
             return;
         }
         // System.out.println("[H264Publisher] 图像转换完成");
-        recorder.record(frame);
+        // 时间戳跟随实际时间，跳帧或采集变慢时画面不会快进；服务器也据此判断上行是否拥塞
+        long timestamp = (now - startNanos) / 1000;
+        if (timestamp > recorder.getTimestamp()) recorder.setTimestamp(timestamp);
+        boolean forceKeyframe = keyframeRequested && picture != null;
+        if (forceKeyframe) {
+            keyframeRequested = false;
+            // libx264 把 pict_type 为 I 的帧编码为关键帧 (forced-idr 时为 IDR)
+            picture.pict_type(avutil.AV_PICTURE_TYPE_I);
+        }
+        try {
+            recorder.record(frame);
+        } finally {
+            // 编码器复用同一个 AVFrame，之后的帧恢复由编码器决定类型
+            if (forceKeyframe) picture.pict_type(avutil.AV_PICTURE_TYPE_NONE);
+        }
         // System.out.println("[H264Publisher] 帧记录完成");
         long t1 = System.currentTimeMillis();
         // System.out.println("[H264Publisher] encode+send time=" + (t1-t0) + "ms");
     }
 
+    /**
+     * BITRATE_HINT &lt;kbps&gt; &lt;fps&gt; 和 REQUEST_KEYFRAME，在控制通道的接收线程上调用，只记录，编码线程在下一帧前应用
+     */
+    private void onControlMessage(String message) {
+        if (message.equals("REQUEST_KEYFRAME")) {
+            // 同播各层都响应，观看者切换层时也在等新层的关键帧
+            keyframeRequested = true;
+            return;
+        }
+        // 同播的低层不跟随码率提示，提示针对的是第 0 层
+        if (!followHints || !message.startsWith("BITRATE_HINT ")) return;
+        String[] parts = message.split(" ");
+        try {
+            int kbps = Integer.parseInt(parts[1]);
+            hintedFps = parts.length > 2 ? Math.max(0, Integer.parseInt(parts[2])) : 0;
+            pendingBitrate = Math.max(MIN_BITRATE, Math.min(maxBitrate, kbps * 1000));
+        } catch (RuntimeException e) {
+            System.out.println("[H264Publisher] 无效的码率提示: " + message);
+        }
+    }
+
+    private void applyBitrate(int bitrate) {
+        if (videoContext == null) return;
+        // libx264 在每帧编码前比较这些值，变化时调用 x264_encoder_reconfig
+        videoContext.bit_rate(bitrate);
+        videoContext.rc_max_rate(bitrate);
+        videoContext.rc_buffer_size(bitrate);
+        System.out.println("[H264Publisher] 码率调整为 " + bitrate / 1000 + " kbps" + (hintedFps > 0 ? ", 帧率 " + hintedFps : ""));
+    }
+
+    /**
+     * FFmpegFrameRecorder 的私有字段，找不到时返回 null，对应的码率提示或关键帧请求被忽略
+     */
+    private static Field recorderField(String name) {
+        try {
+            Field field = FFmpegFrameRecorder.class.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.err.println("[H264Publisher] 无法访问 FFmpegFrameRecorder." + name + " (javacv 版本不是 1.5.7?)，"
+                    + "码率提示或关键帧请求失效，关键帧间隔为 " + SHORT_GOP_SECONDS + " 秒: " + e);
+            return null;
+        }
+    }
+
+    private Object read(Field field) {
+        if (field == null) return null;
+        try {
+            return field.get(recorder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    @Override
     public synchronized void stop() {
         System.out.println("[H264Publisher] 停止H264Publisher...");
+        ServerNetworkUtil.removeMessageListener(hintListener);
         try {
             if (recorder != null) recorder.stop();
         } catch (Exception ignored) {}
@@ -0,0 +1,228 @@
+package xyz.jxmm.screenshare.stream;
+
+import xyz.jxmm.screenshare.server.MulticastPacket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FLV stream of a share received over LAN multicast, see {@link MulticastPacket}. A receiver
+ * thread reassembles the datagrams into FLV units; {@link H264Viewer} reads them like a stream
+ * connection.
+ * <p>
+ * Loss is tolerated instead of repaired: a missing datagram discards the unit it belonged to
+ * and everything up to the next keyframe, so the decoder only ever sees complete GOPs. The file
+ * header is passed on once, repeated init units only when they changed.
+ */
+public class MulticastStreamInput extends InputStream {
+    private static final int QUEUED_UNITS = 512;
+    private static final byte[] END = new byte[0];
+
+    private final DatagramChannel channel;
+    private final MembershipKey membership;
+    private final BlockingQueue<byte[]> units = new ArrayBlockingQueue<>(QUEUED_UNITS);
+    private final Thread receiver;
+    private volatile boolean closed;
+    private byte[] current = new byte[0];
+    private int currentPos;
+
+    // receiver thread only
+    private int expectedSeq;
+    private boolean haveSeq;
+    private byte[] unit = new byte[64 * 1024];
+    private int unitSize = -1;
+    private int unitFlags;
+    private boolean headerPassed;
+    private boolean awaitKeyframe = true;
+    private byte[] lastMetadata;
+    private byte[] lastVideoConfig;
+    private byte[] lastAudioConfig;
+    private long lostPackets;
+
+    private MulticastStreamInput(DatagramChannel channel, MembershipKey membership) {
+        this.channel = channel;
+        this.membership = membership;
+        this.receiver = new Thread(this::receiveLoop, "MulticastStreamInput");
+        this.receiver.setDaemon(true);
+    }
+
+    /**
+     * Joins {@code group}:{@code port} and waits up to {@code timeoutMs} for the stream. Returns
+     * null if nothing arrives, e.g. because multicast is not routed to this host; the caller then
+     * falls back to a stream connection.
+     *
+     * @param iface interface name, null for the system default
+     */
+    public static MulticastStreamInput open(String group, int port, String iface, long timeoutMs) {
+        DatagramChannel channel = null;
+        try {
+            InetAddress address = InetAddress.getByName(group);
+            NetworkInterface ni = MulticastPacket.networkInterface(iface);
+            if (ni == null) ni = defaultInterface();
+            channel = DatagramChannel.open(StandardProtocolFamily.INET);
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.bind(new InetSocketAddress(port));
+            MulticastStreamInput in = new MulticastStreamInput(channel, channel.join(address, ni));
+            in.receiver.start();
+            // the first unit passed on is the file header at a keyframe
+            byte[] first = in.units.poll(timeoutMs, TimeUnit.MILLISECONDS);
+            if (first == null || first == END) {
+                System.out.println("[MulticastStreamInput] 组播 " + group + ":" + port + " 无数据，改用 TCP");
+                in.close();
+                return null;
+            }
+            in.current = first;
+            System.out.println("[MulticastStreamInput] 已加入组播 " + group + ":" + port + " (" + ni.getName() + ")");
+            return in;
+        } catch (IOException e) {
+            System.err.println("[MulticastStreamInput] 无法加入组播 " + group + ":" + port + ": " + e.getMessage());
+            if (channel != null) {
+                try { channel.close(); } catch (IOException ignored) {}
+            }
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            try { channel.close(); } catch (IOException ignored) {}
+            return null;
+        }
+    }
+
+    private static NetworkInterface defaultInterface() throws IOException {
+        NetworkInterface fallback = null;
+        for (NetworkInterface ni : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (!ni.isUp() || !ni.supportsMulticast()) continue;
+            if (!ni.isLoopback()) return ni;
+            fallback = ni;
+        }
+        if (fallback == null) throw new IOException("no multicast capable network interface");
+        return fallback;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        int n = read(one, 0, 1);
+        return n < 0 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        while (currentPos == current.length) {
+            if (current == END) return -1;
+            try {
+                current = units.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            currentPos = 0;
+        }
+        int n = Math.min(len, current.length - currentPos);
+        System.arraycopy(current, currentPos, b, off, n);
+        currentPos += n;
+        return n;
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        membership.drop();
+        try { channel.close(); } catch (IOException ignored) {}
+        units.clear();
+        units.offer(END);
+    }
+
+    private void receiveLoop() {
+        ByteBuffer packet = ByteBuffer.allocate(MulticastPacket.MAX_SIZE);
+        try {
+            while (!closed) {
+                packet.clear();
+                channel.receive(packet);
+                packet.flip();
+                if (MulticastPacket.isValid(packet)) onPacket(packet);
+            }
+        } catch (IOException e) {
+            if (!closed) System.err.println("[MulticastStreamInput] 接收组播失败: " + e.getMessage());
+        } finally {
+            System.out.println("[MulticastStreamInput] 接收结束, 丢包 " + lostPackets);
+            if (!closed) {
+                closed = true;
+                units.offer(END);
+            }
+        }
+    }
+
+    private void onPacket(ByteBuffer packet) {
+        int seq = MulticastPacket.seq(packet);
+        int flags = MulticastPacket.flags(packet);
+        if (haveSeq && seq != expectedSeq) {
+            // the unit being collected lost a fragment, and so may any unit referenced later on
+            lostPackets += Math.max(1, seq - expectedSeq);
+            unitSize = -1;
+            awaitKeyframe = true;
+        }
+        haveSeq = true;
+        expectedSeq = seq + 1;
+        if ((flags & MulticastPacket.FIRST) != 0) {
+            unitSize = 0;
+            unitFlags = flags;
+        } else if (unitSize < 0) {
+            return;
+        }
+        int len = packet.remaining() - MulticastPacket.HEADER_SIZE;
+        if (unitSize + len > unit.length) unit = Arrays.copyOf(unit, Math.max(unit.length * 2, unitSize + len));
+        packet.position(MulticastPacket.HEADER_SIZE);
+        packet.get(unit, unitSize, len);
+        unitSize += len;
+        if ((flags & MulticastPacket.LAST) != 0) {
+            onUnit(Arrays.copyOf(unit, unitSize), unitFlags);
+            unitSize = -1;
+        }
+    }
+
+    private void onUnit(byte[] data, int flags) {
+        if (data.length > 0 && data[0] == 'F') {
+            // file header, repeated before every keyframe
+            if (!headerPassed) headerPassed = pass(data);
+            return;
+        }
+        if (!headerPassed || data.length < 11) return;
+        int type = data[0] & 0x1F;
+        if ((flags & MulticastPacket.INIT) != 0) {
+            if (type == 18) {
+                if (!Arrays.equals(data, lastMetadata) && pass(data)) lastMetadata = data;
+            } else if (type == 9) {
+                if (!Arrays.equals(data, lastVideoConfig) && pass(data)) lastVideoConfig = data;
+            } else if (type == 8) {
+                if (!Arrays.equals(data, lastAudioConfig) && pass(data)) lastAudioConfig = data;
+            }
+            return;
+        }
+        if ((flags & MulticastPacket.KEYFRAME) != 0) {
+            awaitKeyframe = !pass(data);
+        } else if (!awaitKeyframe && !pass(data)) {
+            // the reader fell behind, skip ahead like a resync on the relay
+            awaitKeyframe = true;
+        }
+    }
+
+    private boolean pass(byte[] data) {
+        return units.offer(data);
+    }
+}
@@ -0,0 +1,37 @@
+package xyz.jxmm.screenshare.stream;
+
+import xyz.jxmm.screenshare.server.ServerNetworkUtil;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * 共享屏幕的发布端。用 {@link #open} 在开始共享后创建，它选定编码方式：JavaCV 可用时为
+ * {@link H264Publisher}，服务器为同播下发了各层令牌时 (见 {@code -Dscreenshare.simulcast.layers})
+ * 为 {@link SimulcastPublisher}，否则为不依赖 FFmpeg 的 {@link TilePublisher}。它们都经流服务器的
+ * 发布连接发送，控制连接上不再传 {@code SCREEN_DATA} 图像。
+ */
+public interface ScreenPublisher {
+
+    void publishFrame(BufferedImage img) throws Exception;
+
+    void stop();
+
+    /**
+     * 需要先以 {@code ServerNetworkUtil.startShare} 开始共享，发布令牌随 SHARE_STARTED 下发
+     */
+    static ScreenPublisher open(String host, int port, int width, int height, int fps) throws Exception {
+        try {
+            // 加载类时同时加载 FFmpeg 本地库，缺少 JavaCV 或本地库时失败
+            Class.forName("org.bytedeco.ffmpeg.global.avcodec");
+        } catch (ClassNotFoundException | LinkageError e) {
+            System.out.println("[ScreenPublisher] JavaCV 不可用 (" + e + ")，改用 JPEG 块编码");
+            return new TilePublisher(host, port, fps);
+        }
+        int layers = 1 + ServerNetworkUtil.getPublisherLayerTokens().size();
+        if (layers > 1) {
+            return new SimulcastPublisher(host, port, width, height, fps, layers);
+        }
+        // H.264 要求偶数宽高
+        return new H264Publisher(host, port, Math.max(2, width & ~1), Math.max(2, height & ~1), fps);
+    }
+}
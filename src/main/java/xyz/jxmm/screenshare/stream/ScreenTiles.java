@@ -0,0 +1,33 @@
+package xyz.jxmm.screenshare.stream;
+
+/**
+ * 块编码屏幕流的格式，{@link TilePublisher} 写、{@link TileViewer} 读。整个流是普通的 FLV，
+ * 每帧一个视频 tag，codec id 为 1 (FLV 规范中的 JPEG)，帧类型 1 为关键帧、2 为帧间帧；
+ * 流服务器只按帧类型处理，与 H264 流走同一条路径。tag 体：
+ * <pre>
+ * 偏移  长度  字段
+ * 0     1     帧类型 &lt;&lt; 4 | codec id
+ * 1     2     画面宽度
+ * 3     2     画面高度
+ * 5     2     块边长
+ * 7     2     块数 n
+ * 9     ...   n 个块：块序号 (2，按行从左上角起) + JPEG 长度 (4) + JPEG 数据
+ * </pre>
+ * 关键帧包含所有块，帧间帧只包含与上一帧相比变化的块。多字节字段均为大端序。
+ */
+final class ScreenTiles {
+    static final int CODEC_ID = 1;
+    static final int KEYFRAME = 1;
+    static final int INTER_FRAME = 2;
+    static final int TILE_SIZE = 64;
+    static final int FRAME_HEADER_BYTES = 9;
+    static final int TILE_HEADER_BYTES = 6;
+
+    static final int TAG_HEADER_BYTES = 11;
+    static final int VIDEO_TAG = 9;
+    // FLV 文件头 (只有视频) 和第一个 PreviousTagSize
+    static final byte[] FLV_HEADER = {'F', 'L', 'V', 1, 1, 0, 0, 0, 9, 0, 0, 0, 0};
+
+    private ScreenTiles() {
+    }
+}
@@ -0,0 +1,114 @@
+package xyz.jxmm.screenshare.stream;
+
+import xyz.jxmm.screenshare.server.ServerNetworkUtil;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 同播发布：同一画面编码为多层 (全尺寸、1/2、1/4)，每层一个 {@link H264Publisher} 和流连接。
+ * 流服务器按每个观看者的接收能力在关键帧处切换层，弱网观看者得到流畅的低层，服务器不转码。
+ * <p>
+ * 第 0 层在调用线程上编码，其余各层各用一个线程并行缩放和编码；某一低层出错时只停掉该层。
+ * 需要先以 {@code ServerNetworkUtil.startShare(..., layers)} 开始共享，各层令牌随 SHARE_STARTED 下发；
+ * {@link ScreenPublisher#open} 收到各层令牌时自动选用。
+ */
+public class SimulcastPublisher implements ScreenPublisher {
+    // 每层相对上一层的边长比例和码率
+    private static final int[] LAYER_SCALE = {1, 2, 4};
+    private static final int[] LAYER_BITRATE = {H264Publisher.VIDEO_BITRATE, 600_000, 200_000};
+
+    private final List<H264Publisher> layers = new ArrayList<>();
+    private final List<Dimension> sizes = new ArrayList<>();
+    private final ExecutorService encoders;
+
+    /**
+     * @param layerCount 层数 1-3，超出服务器下发的令牌数时按令牌数
+     */
+    public SimulcastPublisher(String host, int port, int width, int height, int fps, int layerCount) throws Exception {
+        List<String> tokens = new ArrayList<>();
+        tokens.add(ServerNetworkUtil.getPublisherStreamToken());
+        tokens.addAll(ServerNetworkUtil.getPublisherLayerTokens());
+        int count = Math.max(1, Math.min(Math.min(layerCount, LAYER_SCALE.length), tokens.size()));
+        long clockOrigin = System.nanoTime();
+        try {
+            for (int i = 0; i < count; i++) {
+                // H.264 要求偶数宽高
+                int w = Math.max(2, width / LAYER_SCALE[i] & ~1);
+                int h = Math.max(2, height / LAYER_SCALE[i] & ~1);
+                layers.add(new H264Publisher(host, port, tokens.get(i), w, h, fps, LAYER_BITRATE[i], i == 0, clockOrigin));
+                sizes.add(new Dimension(w, h));
+                System.out.println("[SimulcastPublisher] 第 " + i + " 层: " + w + "x" + h + ", " + LAYER_BITRATE[i] / 1000 + " kbps");
+            }
+        } catch (Exception e) {
+            for (H264Publisher layer : layers) layer.stop();
+            throw e;
+        }
+        encoders = Executors.newFixedThreadPool(Math.max(1, count - 1), r -> {
+            Thread t = new Thread(r, "SimulcastPublisher-Encoder");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public int layerCount() {
+        return layers.size();
+    }
+
+    @Override
+    public void publishFrame(BufferedImage img) throws Exception {
+        if (img == null) return;
+        List<Future<?>> pending = new ArrayList<>();
+        List<H264Publisher> current = new ArrayList<>(layers);
+        for (int i = 1; i < current.size(); i++) {
+            H264Publisher layer = current.get(i);
+            Dimension size = sizes.get(i);
+            pending.add(encoders.submit(() -> {
+                layer.publishFrame(scale(img, size.width, size.height));
+                return null;
+            }));
+        }
+        current.get(0).publishFrame(img);
+        for (int i = 0; i < pending.size(); i++) {
+            try {
+                pending.get(i).get();
+            } catch (ExecutionException e) {
+                // 低层断开不影响其余各层
+                System.err.println("[SimulcastPublisher] 第 " + (i + 1) + " 层发布失败，停止该层: " + e.getCause());
+                H264Publisher failed = current.get(i + 1);
+                failed.stop();
+                int index = layers.indexOf(failed);
+                layers.remove(index);
+                sizes.remove(index);
+            }
+        }
+    }
+
+    private static BufferedImage scale(BufferedImage img, int width, int height) {
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = scaled.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(img, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return scaled;
+    }
+
+    @Override
+    public void stop() {
+        encoders.shutdownNow();
+        for (H264Publisher layer : layers) layer.stop();
+        layers.clear();
+        sizes.clear();
+    }
+}
@@ -0,0 +1,206 @@
+package xyz.jxmm.screenshare.stream;
+
+import xyz.jxmm.screenshare.server.ServerNetworkUtil;
+import xyz.jxmm.screenshare.server.StreamHandshake;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * 不依赖 FFmpeg 的屏幕发布，JavaCV 不可用时代替 {@link H264Publisher}。画面切成
+ * {@value ScreenTiles#TILE_SIZE}x{@value ScreenTiles#TILE_SIZE} 的块，只有变化的块压缩为 JPEG，
+ * 经流服务器的发布连接发送 (格式见 {@link ScreenTiles})，控制连接上不再传整幅图像。
+ * <p>
+ * 关键帧包含全部块：第一帧、画面尺寸变化、服务器发来 {@code REQUEST_KEYFRAME} 以及每
+ * {@value #GOP_SECONDS} 秒各发送一次。{@code BITRATE_HINT} 只取其中的帧率。
+ */
+public class TilePublisher implements ScreenPublisher {
+    private static final int GOP_SECONDS = 10;
+    private static final float JPEG_QUALITY = 0.75f;
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final int fps;
+    private final ImageWriter jpegWriter;
+    private final ImageWriteParam jpegParam;
+    private final ServerNetworkUtil.MessageListener hintListener = this::onControlMessage;
+    // 码率提示要求的帧率，0 表示按调用方的帧率发送
+    private volatile int hintedFps;
+    // 服务器请求了关键帧，下一帧发送全部块
+    private volatile boolean keyframeRequested;
+    private final long startNanos = System.nanoTime();
+    private long nextFrameNanos;
+    private long lastKeyframeNanos;
+    // 当前帧和上一帧的像素，比较后得出变化的块
+    private BufferedImage canvas;
+    private int[] pixels;
+    private int[] previous;
+    // 一帧的块序号、长度和 JPEG 数据，以及单个块的 JPEG 数据，每帧复用
+    private final ByteArrayOutputStream tiles = new ByteArrayOutputStream(256 * 1024);
+    private final DataOutputStream tilesOut = new DataOutputStream(tiles);
+    private final ByteArrayOutputStream jpeg = new ByteArrayOutputStream(16 * 1024);
+
+    public TilePublisher(String host, int port, int fps) throws IOException {
+        this(host, port, ServerNetworkUtil.getPublisherStreamToken(), fps);
+    }
+
+    /**
+     * @param streamToken 控制通道 SHARE_STARTED 下发的一次性令牌
+     */
+    public TilePublisher(String host, int port, String streamToken, int fps) throws IOException {
+        if (streamToken == null) {
+            throw new IOException("没有可用的流令牌");
+        }
+        this.fps = fps;
+        this.jpegWriter = ImageIO.getImageWritersByFormatName("jpeg").next();
+        this.jpegParam = jpegWriter.getDefaultWriteParam();
+        jpegParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        jpegParam.setCompressionQuality(JPEG_QUALITY);
+        this.socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        this.out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+        // 先发送令牌前导包，流服务器据此识别发布者
+        out.write(StreamHandshake.encode(StreamHandshake.Role.PUBLISH, streamToken));
+        out.write(ScreenTiles.FLV_HEADER);
+        out.flush();
+        ServerNetworkUtil.addMessageListener(hintListener);
+        System.out.println("[TilePublisher] 已连接流服务器: " + host + ":" + port);
+    }
+
+    @Override
+    public synchronized void publishFrame(BufferedImage img) throws IOException {
+        if (img == null) return;
+        long now = System.nanoTime();
+        int limit = hintedFps;
+        if (limit > 0 && limit < fps) {
+            // 按提示的帧率跳过多余的帧
+            if (now < nextFrameNanos) return;
+            long interval = 1_000_000_000L / limit;
+            nextFrameNanos = Math.max(nextFrameNanos + interval, now - interval);
+        }
+        int width = img.getWidth();
+        int height = img.getHeight();
+        boolean keyframe = canvas == null || canvas.getWidth() != width || canvas.getHeight() != height;
+        if (keyframe) {
+            canvas = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            pixels = ((DataBufferInt) canvas.getRaster().getDataBuffer()).getData();
+            previous = new int[pixels.length];
+        }
+        Graphics2D g = canvas.createGraphics();
+        try {
+            g.drawImage(img, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        if (keyframeRequested || now - lastKeyframeNanos >= GOP_SECONDS * 1_000_000_000L) {
+            keyframeRequested = false;
+            keyframe = true;
+        }
+        if (keyframe) lastKeyframeNanos = now;
+
+        int size = ScreenTiles.TILE_SIZE;
+        int columns = (width + size - 1) / size;
+        int rows = (height + size - 1) / size;
+        tiles.reset();
+        int count = 0;
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                int x = column * size;
+                int y = row * size;
+                int w = Math.min(size, width - x);
+                int h = Math.min(size, height - y);
+                if (!keyframe && !changed(x, y, w, h)) continue;
+                encode(canvas.getSubimage(x, y, w, h));
+                tilesOut.writeShort(row * columns + column);
+                tilesOut.writeInt(jpeg.size());
+                jpeg.writeTo(tilesOut);
+                count++;
+            }
+        }
+        System.arraycopy(pixels, 0, previous, 0, pixels.length);
+        // 画面没有变化时不发送
+        if (count == 0) return;
+        writeTag(keyframe, width, height, columns * rows, count, (int) ((now - startNanos) / 1_000_000));
+    }
+
+    private boolean changed(int x, int y, int w, int h) {
+        int width = canvas.getWidth();
+        for (int row = y; row < y + h; row++) {
+            int from = row * width + x;
+            if (!Arrays.equals(pixels, from, from + w, previous, from, from + w)) return true;
+        }
+        return false;
+    }
+
+    private void encode(BufferedImage tile) throws IOException {
+        jpeg.reset();
+        try (MemoryCacheImageOutputStream ios = new MemoryCacheImageOutputStream(jpeg)) {
+            jpegWriter.setOutput(ios);
+            jpegWriter.write(null, new IIOImage(tile, null, null), jpegParam);
+        }
+    }
+
+    private void writeTag(boolean keyframe, int width, int height, int tileCount, int count, int timestamp) throws IOException {
+        if (width > 0xFFFF || height > 0xFFFF || tileCount > 0xFFFF) {
+            throw new IOException("画面过大: " + width + "x" + height);
+        }
+        int bodySize = ScreenTiles.FRAME_HEADER_BYTES + tiles.size();
+        DataOutputStream tag = new DataOutputStream(out);
+        // tag 头：类型、数据长度 (3 字节)、时间戳 (低 3 字节 + 高 1 字节)、流 id
+        tag.writeByte(ScreenTiles.VIDEO_TAG);
+        tag.writeByte(bodySize >> 16);
+        tag.writeShort(bodySize);
+        tag.writeByte(timestamp >> 16);
+        tag.writeShort(timestamp);
+        tag.writeByte(timestamp >> 24);
+        tag.writeByte(0);
+        tag.writeShort(0);
+        tag.writeByte((keyframe ? ScreenTiles.KEYFRAME : ScreenTiles.INTER_FRAME) << 4 | ScreenTiles.CODEC_ID);
+        tag.writeShort(width);
+        tag.writeShort(height);
+        tag.writeShort(ScreenTiles.TILE_SIZE);
+        tag.writeShort(count);
+        tiles.writeTo(tag);
+        tag.writeInt(ScreenTiles.TAG_HEADER_BYTES + bodySize);
+        tag.flush();
+    }
+
+    /**
+     * BITRATE_HINT &lt;kbps&gt; &lt;fps&gt; 和 REQUEST_KEYFRAME，在控制通道的接收线程上调用，只记录，下一帧时应用
+     */
+    private void onControlMessage(String message) {
+        if (message.equals("REQUEST_KEYFRAME")) {
+            keyframeRequested = true;
+            return;
+        }
+        if (!message.startsWith("BITRATE_HINT ")) return;
+        String[] parts = message.split(" ");
+        try {
+            hintedFps = parts.length > 2 ? Math.max(0, Integer.parseInt(parts[2])) : 0;
+        } catch (RuntimeException e) {
+            System.out.println("[TilePublisher] 无效的码率提示: " + message);
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        ServerNetworkUtil.removeMessageListener(hintListener);
+        jpegWriter.dispose();
+        try { out.close(); } catch (IOException ignored) {}
+        try { socket.close(); } catch (IOException ignored) {}
+        System.out.println("[TilePublisher] TilePublisher已停止");
+    }
+}
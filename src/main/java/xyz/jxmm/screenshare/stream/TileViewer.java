@@ -0,0 +1,146 @@
+package xyz.jxmm.screenshare.stream;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Consumer;
+
+/**
+ * {@link TilePublisher} 发布的块编码流的观看端，不依赖 FFmpeg。JPEG 块直接解码到一幅复用的图像中，
+ * 每收到一帧把这幅图像交给 {@code frameConsumer}；图像在下一帧到来时原地更新，不为每帧分配新图像。
+ * 连接后等到第一个关键帧才开始输出。
+ */
+public class TileViewer {
+    // 探测时最多预读的字节数，onMetaData 等 tag 不会超过
+    private static final int PROBE_LIMIT = 64 * 1024;
+
+    private final DataInputStream in;
+    private final Consumer<BufferedImage> frameConsumer;
+    private final ImageReader jpegReader = ImageIO.getImageReadersByFormatName("jpeg").next();
+    private final ImageReadParam readParam = jpegReader.getDefaultReadParam();
+    private final Point tileOrigin = new Point();
+    private volatile boolean running = true;
+    private final Thread readerThread;
+    // 读取线程独占
+    private BufferedImage canvas;
+    private byte[] body = new byte[256 * 1024];
+
+    public TileViewer(InputStream in, Consumer<BufferedImage> frameConsumer) {
+        this.in = new DataInputStream(in);
+        this.frameConsumer = frameConsumer;
+        readerThread = new Thread(this::readLoop, "TileViewer-Reader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    /**
+     * 流中第一个视频 tag 是否为块编码，H264 流返回 false。{@code in} 必须支持 mark，
+     * 探测读取的字节会被退回
+     */
+    public static boolean isTileStream(InputStream in) throws IOException {
+        in.mark(PROBE_LIMIT);
+        try {
+            DataInputStream data = new DataInputStream(in);
+            byte[] header = new byte[ScreenTiles.FLV_HEADER.length];
+            data.readFully(header);
+            if (header[0] != 'F' || header[1] != 'L' || header[2] != 'V') return false;
+            int read = header.length;
+            byte[] tagHeader = new byte[ScreenTiles.TAG_HEADER_BYTES];
+            while (true) {
+                data.readFully(tagHeader);
+                int size = (tagHeader[1] & 0xFF) << 16 | (tagHeader[2] & 0xFF) << 8 | tagHeader[3] & 0xFF;
+                if ((tagHeader[0] & 0x1F) == ScreenTiles.VIDEO_TAG) {
+                    return size > 0 && (data.readUnsignedByte() & 0x0F) == ScreenTiles.CODEC_ID;
+                }
+                read += tagHeader.length + size + 4;
+                if (read + ScreenTiles.TAG_HEADER_BYTES + 1 > PROBE_LIMIT) return false;
+                data.skipNBytes(size + 4);
+            }
+        } finally {
+            in.reset();
+        }
+    }
+
+    private void readLoop() {
+        try {
+            byte[] header = new byte[ScreenTiles.FLV_HEADER.length];
+            in.readFully(header);
+            if (header[0] != 'F' || header[1] != 'L' || header[2] != 'V') {
+                throw new IOException("不是 FLV 流");
+            }
+            byte[] tagHeader = new byte[ScreenTiles.TAG_HEADER_BYTES];
+            while (running) {
+                in.readFully(tagHeader);
+                int size = (tagHeader[1] & 0xFF) << 16 | (tagHeader[2] & 0xFF) << 8 | tagHeader[3] & 0xFF;
+                if (body.length < size) body = new byte[size];
+                in.readFully(body, 0, size);
+                in.skipNBytes(4);
+                if ((tagHeader[0] & 0x1F) != ScreenTiles.VIDEO_TAG || size < ScreenTiles.FRAME_HEADER_BYTES) continue;
+                if ((body[0] & 0x0F) != ScreenTiles.CODEC_ID) continue;
+                if (decode(size)) frameConsumer.accept(canvas);
+            }
+        } catch (EOFException e) {
+            System.out.println("[TileViewer] 流结束");
+        } catch (IOException e) {
+            if (running) System.err.println("[TileViewer] 读取流失败: " + e.getMessage());
+        } finally {
+            jpegReader.dispose();
+        }
+    }
+
+    /**
+     * 把一帧的块解码到 {@link #canvas}，还没有收到关键帧时跳过帧间帧
+     */
+    private boolean decode(int size) throws IOException {
+        boolean keyframe = (body[0] & 0xF0) >> 4 == ScreenTiles.KEYFRAME;
+        int width = readShort(1);
+        int height = readShort(3);
+        int tile = readShort(5);
+        int count = readShort(7);
+        if (width == 0 || height == 0 || tile == 0) throw new IOException("无效的帧头");
+        if (keyframe && (canvas == null || canvas.getWidth() != width || canvas.getHeight() != height)) {
+            canvas = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            readParam.setDestination(canvas);
+        }
+        if (canvas == null || canvas.getWidth() != width || canvas.getHeight() != height) return false;
+        int columns = (width + tile - 1) / tile;
+        int tileCount = columns * ((height + tile - 1) / tile);
+        int pos = ScreenTiles.FRAME_HEADER_BYTES;
+        for (int i = 0; i < count; i++) {
+            if (pos + ScreenTiles.TILE_HEADER_BYTES > size) throw new IOException("块数据不完整");
+            int index = readShort(pos);
+            int length = readShort(pos + 2) << 16 | readShort(pos + 4);
+            pos += ScreenTiles.TILE_HEADER_BYTES;
+            if (index >= tileCount || length < 0 || pos + length > size) throw new IOException("无效的块 " + index);
+            tileOrigin.setLocation(index % columns * tile, index / columns * tile);
+            // JPEG 直接解码到画面的对应位置，不生成块图像
+            readParam.setDestinationOffset(tileOrigin);
+            try (ImageInputStream iis = new MemoryCacheImageInputStream(new ByteArrayInputStream(body, pos, length))) {
+                jpegReader.setInput(iis, true, true);
+                jpegReader.read(0, readParam);
+            }
+            pos += length;
+        }
+        return true;
+    }
+
+    private int readShort(int pos) {
+        return (body[pos] & 0xFF) << 8 | body[pos + 1] & 0xFF;
+    }
+
+    public void stop() {
+        running = false;
+        readerThread.interrupt();
+        try { in.close(); } catch (IOException ignored) {}
+        System.out.println("[TileViewer] TileViewer已停止");
+    }
+}
@@ -3,12 +3,14 @@ package xyz.jxmm.screenshare.ui;
 import org.bytedeco.javacv.FFmpegLogCallback;
 import xyz.jxmm.screenshare.server.ServerNetworkUtil;
 import xyz.jxmm.screenshare.stream.H264Viewer;
+import xyz.jxmm.screenshare.stream.TileViewer;
 
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.Base64;
@@ -29,6 +31,8 @@ public class ViewingFrame extends JFrame {
     private volatile boolean running = true;
     // optional H264 viewer instance when JavaCV is used
     private xyz.jxmm.screenshare.stream.H264Viewer h264Viewer = null;
+    // 发布端没有 FFmpeg 时流中是 JPEG 块，由它解码
+    private TileViewer tileViewer = null;
 
     // 静态初始化块中设置 FFmpeg 日志回调
     static {
@@ -91,6 +95,12 @@ public class ViewingFrame extends JFrame {
             try { h264Viewer.stop(); } catch (Exception ignored) {}
             h264Viewer = null;
         }
+        if (tileViewer != null) {
+            tileViewer.stop();
+            tileViewer = null;
+        }
+        // 组播没有连接可断开，接收线程要显式停止
+        ServerNetworkUtil.disconnectViewerStream();
         dispose();
     }
     private int viewFrameCount = 0;
@@ -107,31 +117,38 @@ public class ViewingFrame extends JFrame {
                 SwingUtilities.invokeLater(() -> {
                     try {
                         System.out.println("[ViewingFrame] 开始连接到流服务器...");
-                        // 确保 viewerStream 已连接
-                        boolean ok = xyz.jxmm.screenshare.server.ServerNetworkUtil.connectAsViewerToStreamServer("localhost", 10002, 5000);
+                        // 局域网内优先加入组播组，收不到数据时改用 TCP
+                        // 流服务器可能是源站指定的边缘节点
+                        boolean ok = xyz.jxmm.screenshare.server.ServerNetworkUtil.joinViewerMulticast(targetUser, 3000)
+                                || xyz.jxmm.screenshare.server.ServerNetworkUtil.connectAsViewerToStreamServer(
+                                xyz.jxmm.screenshare.server.ServerNetworkUtil.getViewerStreamHost(),
+                                xyz.jxmm.screenshare.server.ServerNetworkUtil.getViewerStreamPort(), 5000);
                         System.out.println("[ViewingFrame] 连接流服务器结果: " + ok);
                         if (!ok) {
                             throw new RuntimeException("无法连接到流服务器");
                         }
                         
-                        java.io.InputStream in = xyz.jxmm.screenshare.server.ServerNetworkUtil.getViewerStreamInput();
-                        System.out.println("[ViewingFrame] 获取到输入流: " + (in != null));
-                        if (in == null) {
+                        java.io.InputStream stream = xyz.jxmm.screenshare.server.ServerNetworkUtil.getViewerStreamInput();
+                        System.out.println("[ViewingFrame] 获取到输入流: " + (stream != null));
+                        if (stream == null) {
                             throw new RuntimeException("无法获取输入流");
                         }
+                        BufferedInputStream in = new BufferedInputStream(stream);
+                        if (TileViewer.isTileStream(in)) {
+                            System.out.println("[ViewingFrame] 发布端发送的是 JPEG 块，使用 TileViewer");
+                            tileViewer = new TileViewer(in, img -> {
+                                updateScreen(img);
+                                countFrame("块");
+                            });
+                            return;
+                        }
 
                         try {
                             xyz.jxmm.screenshare.stream.H264Viewer viewer = new xyz.jxmm.screenshare.stream.H264Viewer(in, img -> {
                                 // System.out.println("[ViewingFrame] 接收到解码后的图像帧");
                                 if (img != null) {
                                     updateScreen(img);
-                                    viewFrameCount++;
-                                    long now = System.currentTimeMillis();
-                                    if (now - lastViewStatTime >= 1000) {
-                                        System.out.println("[ViewingFrame] 当前接收帧率(H264): " + viewFrameCount + " fps");
-                                        viewFrameCount = 0;
-                                        lastViewStatTime = now;
-                                    }
+                                    countFrame("H264");
                                 } else {
                                     System.out.println("[ViewingFrame] 接收到空图像帧");
                                 }
@@ -150,25 +167,9 @@ public class ViewingFrame extends JFrame {
             } else if (message.startsWith("SCREEN_DATA")) {
                 // 如果仍在使用旧的SCREEN_DATA机制，则处理它
                 // 但优先使用H264流
-                if (h264Viewer == null) {
+                if (h264Viewer == null && tileViewer == null) {
                     String imageData = message.substring(12);
-                    try {
-                        byte[] imageBytes = Base64.getDecoder().decode(imageData);
-                        ByteArrayInputStream bais = new ByteArrayInputStream(imageBytes);
-                        BufferedImage image = ImageIO.read(bais);
-                        if (image != null) {
-                            updateScreen(image);
-                            viewFrameCount++;
-                            long now = System.currentTimeMillis();
-                            if (now - lastViewStatTime >= 1000) {
-                                System.out.println("[ViewingFrame] 当前接收帧率(SCREEN_DATA): " + viewFrameCount + " fps");
-                                viewFrameCount = 0;
-                                lastViewStatTime = now;
-                            }
-                        }
-                    } catch (IOException ex) {
-                        ex.printStackTrace();
-                    }
+                    showScreenData(Base64.getDecoder().decode(imageData));
                 }
             } else if (message.startsWith("SHARE_STOPPED")) {
                 SwingUtilities.invokeLater(() -> {
@@ -177,8 +178,37 @@ public class ViewingFrame extends JFrame {
                 });
             }
         }
+
+        @Override
+        public void onScreenData(byte[] image) {
+            // 二进制控制协议直接给出图像字节，省去 Base64
+            if (running && h264Viewer == null && tileViewer == null) showScreenData(image);
+        }
+
+        private void showScreenData(byte[] imageBytes) {
+            try {
+                ByteArrayInputStream bais = new ByteArrayInputStream(imageBytes);
+                BufferedImage image = ImageIO.read(bais);
+                if (image != null) {
+                    updateScreen(image);
+                    countFrame("SCREEN_DATA");
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
     };
 
+    private void countFrame(String source) {
+        viewFrameCount++;
+        long now = System.currentTimeMillis();
+        if (now - lastViewStatTime >= 1000) {
+            System.out.println("[ViewingFrame] 当前接收帧率(" + source + "): " + viewFrameCount + " fps");
+            viewFrameCount = 0;
+            lastViewStatTime = now;
+        }
+    }
+
     private void updateScreen(BufferedImage image) {
         SwingUtilities.invokeLater(() -> {
             if (image != null) {
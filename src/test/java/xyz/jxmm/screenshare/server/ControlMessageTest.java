@@ -0,0 +1,159 @@
+package xyz.jxmm.screenshare.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ControlMessageTest {
+
+    @Test
+    void lineRoundTripsThroughAFrame() {
+        ControlMessage message = decode(ControlMessage.frame("VIEW_SHARE alice s3cret", 42));
+
+        assertEquals("VIEW_SHARE", message.command());
+        assertEquals(42, message.requestId());
+        assertEquals("alice", message.arg(1));
+        assertEquals("s3cret", message.arg(2));
+        assertFalse(message.has(3));
+        assertNull(message.arg(3));
+        assertEquals("VIEW_SHARE alice s3cret", message.line());
+    }
+
+    @Test
+    void lastFieldHoldsTheRestOfTheLine() {
+        ControlMessage message = decode(ControlMessage.frame("VIEW_SHARE alice pass with spaces", 1));
+
+        assertEquals("pass with spaces", message.arg(2));
+        assertEquals("pass with spaces", message.rest(2));
+        assertEquals("alice pass with spaces", message.rest(1));
+        // the same fields as the text line
+        ControlMessage text = ControlMessage.text("VIEW_SHARE alice pass with spaces");
+        assertEquals(text.rest(2), message.rest(2));
+    }
+
+    @Test
+    void keepsEmptyFields() {
+        ControlMessage message = decode(ControlMessage.frame("SHARES ", 0));
+
+        assertTrue(message.has(1));
+        assertEquals("", message.arg(1));
+        assertEquals(ControlMessage.text("SHARES ").arg(1), message.arg(1));
+    }
+
+    @Test
+    void commandWithoutOpcodeTravelsAsItsLine() {
+        byte[] frame = ControlMessage.frame("PING", 0);
+        assertEquals(0, frame[4]);
+        ControlMessage message = decode(frame);
+
+        assertEquals("PING", message.command());
+        assertEquals("PING", message.line());
+
+        ControlMessage unknown = decode(ControlMessage.frame("NOT_A_COMMAND a b", 7));
+        assertEquals("NOT_A_COMMAND a b", unknown.line());
+        assertEquals("b", unknown.arg(2));
+    }
+
+    @Test
+    void lengthPrefixCountsTheBytesAfterIt() {
+        byte[] frame = ControlMessage.frame("LOGIN bob", 3);
+        int length = (frame[0] & 0xFF) << 24 | (frame[1] & 0xFF) << 16 | (frame[2] & 0xFF) << 8 | frame[3] & 0xFF;
+
+        assertEquals(frame.length - 4, length);
+        // opcode, request id, then a one byte length and "bob"
+        assertEquals(ControlMessage.HEADER_BYTES + 1 + 3, length);
+    }
+
+    @Test
+    void fieldLengthsBeyondOneByteUseSeveralVarintBytes() {
+        for (int size : new int[]{127, 128, 300, 16_384, 70_000}) {
+            char[] name = new char[size];
+            Arrays.fill(name, 'x');
+            String line = "LOGIN " + new String(name);
+            ControlMessage message = decode(ControlMessage.frame(line, 1));
+
+            assertEquals(size, message.arg(1).length(), "field of " + size);
+            assertEquals(line, message.line());
+        }
+    }
+
+    @Test
+    void screenDataCarriesTheRawImage() {
+        byte[] image = new byte[3000];
+        new Random(7).nextBytes(image);
+        String base64 = Base64.getEncoder().encodeToString(image);
+        byte[] frame = ControlMessage.frame("SCREEN_DATA " + base64, 0);
+
+        // the frame holds the bytes, not their Base64
+        assertTrue(frame.length < image.length + 16);
+        ControlMessage message = decode(frame);
+        assertArrayEquals(image, message.bytes(1));
+        assertEquals(base64, message.arg(1));
+        assertArrayEquals(image, ControlMessage.text("SCREEN_DATA " + base64).bytes(1));
+    }
+
+    @Test
+    void readsNumbersWithoutBuildingStrings() {
+        assertEquals(123, decode(ControlMessage.frame("EDGE_LOAD 123", 0)).argInt(1));
+        assertEquals(-5, decode(ControlMessage.frame("EDGE_LOAD -5", 0)).argInt(1));
+        assertEquals(2_000_000_000, decode(ControlMessage.frame("EDGE_LOAD 2000000000", 0)).argInt(1));
+        assertThrows(NumberFormatException.class, () -> decode(ControlMessage.frame("EDGE_LOAD many", 0)).argInt(1));
+        assertThrows(NumberFormatException.class, () -> decode(ControlMessage.frame("EDGE_LOAD", 0)).argInt(1));
+    }
+
+    @Test
+    void forwardedFrameAnswersNothing() {
+        byte[] frame = ControlMessage.frame("SHARE_STOPPED alice", 9);
+        byte[] forwarded = decode(frame).frame();
+
+        assertEquals(0, decode(forwarded).requestId());
+        assertArrayEquals(Arrays.copyOfRange(frame, 9, frame.length), Arrays.copyOfRange(forwarded, 9, forwarded.length));
+        assertArrayEquals(ControlMessage.frame("SHARE_STOPPED alice", 0), ControlMessage.text("SHARE_STOPPED alice").frame());
+    }
+
+    @Test
+    void rejectsMalformedFrames() {
+        assertThrows(IllegalArgumentException.class, () -> ControlMessage.binary(new byte[]{5, 0, 0}, 0, 3));
+        assertThrows(IllegalArgumentException.class, () -> ControlMessage.binary(new byte[]{99, 0, 0, 0, 0}, 0, 5));
+        // a field claiming more bytes than the frame has
+        assertThrows(IllegalArgumentException.class, () -> ControlMessage.binary(new byte[]{1, 0, 0, 0, 0, 10, 'a'}, 0, 7));
+        // a varint that never ends
+        byte[] endless = {1, 0, 0, 0, 0, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80};
+        assertThrows(IllegalArgumentException.class, () -> ControlMessage.binary(endless, 0, endless.length));
+        // opcode 0 carries exactly one field, the line
+        byte[] twoFields = {0, 0, 0, 0, 0, 1, 'a', 1, 'b'};
+        assertThrows(IllegalArgumentException.class, () -> ControlMessage.binary(twoFields, 0, twoFields.length));
+    }
+
+    @Test
+    void decodesAFrameInsideALargerBuffer() {
+        byte[] frame = ControlMessage.frame("LOGIN_OK carol", 11);
+        byte[] buf = new byte[frame.length + 8];
+        Arrays.fill(buf, (byte) 0x7F);
+        System.arraycopy(frame, 4, buf, 5, frame.length - 4);
+        ControlMessage message = ControlMessage.binary(buf, 5, frame.length - 4);
+
+        assertEquals("LOGIN_OK carol", message.line());
+        assertEquals(11, message.requestId());
+        assertArrayEquals("carol".getBytes(StandardCharsets.UTF_8), message.bytes(1));
+    }
+
+    /**
+     * The message in {@code frame}, after checking its length prefix.
+     */
+    private static ControlMessage decode(byte[] frame) {
+        int length = (frame[0] & 0xFF) << 24 | (frame[1] & 0xFF) << 16 | (frame[2] & 0xFF) << 8 | frame[3] & 0xFF;
+        assertEquals(frame.length - 4, length);
+        return ControlMessage.binary(frame, 4, length);
+    }
+}
@@ -0,0 +1,188 @@
+package xyz.jxmm.screenshare.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ControlOutboxTest {
+    private static final long NEVER_STALLS = 60_000;
+
+    @Test
+    void acceptsMessagesUpToTheBound() {
+        ControlOutbox outbox = new ControlOutbox(100, NEVER_STALLS);
+
+        assertTrue(outbox.offer(bytes(40), ControlOutbox.Kind.MESSAGE));
+        assertTrue(outbox.offer(bytes(60), ControlOutbox.Kind.MESSAGE));
+        // the client is too far behind
+        assertFalse(outbox.offer(bytes(1), ControlOutbox.Kind.MESSAGE));
+    }
+
+    @Test
+    void acceptsAnyMessageIntoAnEmptyOutbox() {
+        ControlOutbox outbox = new ControlOutbox(100, NEVER_STALLS);
+
+        assertTrue(outbox.offer(bytes(500), ControlOutbox.Kind.MESSAGE));
+        assertFalse(outbox.offer(bytes(1), ControlOutbox.Kind.MESSAGE));
+    }
+
+    @Test
+    void dropsImagesThatDoNotFit() {
+        ControlOutbox outbox = new ControlOutbox(100, NEVER_STALLS);
+        outbox.offer(line("SHARE_STOPPED alice"), ControlOutbox.Kind.MESSAGE);
+        outbox.offer(bytes(80), ControlOutbox.Kind.SCREEN_DATA);
+
+        assertTrue(outbox.offer(bytes(80), ControlOutbox.Kind.SCREEN_DATA));
+        assertEquals(2, drain(outbox).size());
+    }
+
+    @Test
+    void aNewShareListReplacesTheWaitingOne() {
+        ControlOutbox outbox = new ControlOutbox(1000, NEVER_STALLS);
+        outbox.offer(line("LOGIN_OK bob"), ControlOutbox.Kind.MESSAGE);
+        outbox.offer(line("SHARES a"), ControlOutbox.Kind.SHARES);
+        outbox.offer(line("VIEW_DENIED"), ControlOutbox.Kind.MESSAGE);
+        outbox.offer(line("SHARES a,b"), ControlOutbox.Kind.SHARES);
+
+        assertEquals(Arrays.asList("LOGIN_OK bob", "SHARES a,b", "VIEW_DENIED"), drain(outbox));
+    }
+
+    @Test
+    void aShareListAtTheHeadIsNotReplaced() {
+        ControlOutbox outbox = new ControlOutbox(1000, NEVER_STALLS);
+        outbox.offer(line("SHARES a"), ControlOutbox.Kind.SHARES);
+        outbox.offer(line("SHARES a,b"), ControlOutbox.Kind.SHARES);
+        outbox.offer(line("SHARES a,b,c"), ControlOutbox.Kind.SHARES);
+
+        // the writer may have started on the head already
+        assertEquals(Arrays.asList("SHARES a", "SHARES a,b,c"), drain(outbox));
+    }
+
+    @Test
+    void aReplacedShareListFreesItsBytes() {
+        ControlOutbox outbox = new ControlOutbox(100, NEVER_STALLS);
+        outbox.offer(bytes(10), ControlOutbox.Kind.MESSAGE);
+        outbox.offer(bytes(80), ControlOutbox.Kind.SHARES);
+        outbox.offer(bytes(10), ControlOutbox.Kind.SHARES);
+
+        assertTrue(outbox.offer(bytes(70), ControlOutbox.Kind.MESSAGE));
+    }
+
+    @Test
+    void aClientThatStopsReadingIsDisconnected() throws InterruptedException {
+        ControlOutbox outbox = new ControlOutbox(1000, 50);
+        outbox.offer(bytes(10), ControlOutbox.Kind.MESSAGE);
+        Thread.sleep(100);
+
+        assertFalse(outbox.offer(bytes(10), ControlOutbox.Kind.MESSAGE));
+    }
+
+    @Test
+    void partialWritesCountAsProgress() throws InterruptedException {
+        ControlOutbox outbox = new ControlOutbox(1000, 200);
+        outbox.offer(bytes(10), ControlOutbox.Kind.MESSAGE);
+        for (int i = 0; i < 4; i++) {
+            Thread.sleep(100);
+            outbox.progress();
+            assertTrue(outbox.offer(bytes(10), ControlOutbox.Kind.MESSAGE));
+        }
+    }
+
+    @Test
+    void closedOutboxIgnoresOffers() throws InterruptedException {
+        ControlOutbox outbox = new ControlOutbox(100, NEVER_STALLS);
+        outbox.offer(bytes(10), ControlOutbox.Kind.MESSAGE);
+        outbox.close();
+
+        assertTrue(outbox.offer(bytes(500), ControlOutbox.Kind.MESSAGE));
+        assertTrue(outbox.isEmpty());
+        assertNull(outbox.take(60_000));
+    }
+
+    @Test
+    void oneWriterRunsWhileMessagesWait() throws InterruptedException {
+        ControlOutbox outbox = new ControlOutbox(1000, NEVER_STALLS);
+        assertFalse(outbox.claimWriter());
+
+        ByteBuffer first = line("LOGIN_OK bob");
+        outbox.offer(first, ControlOutbox.Kind.MESSAGE);
+        assertTrue(outbox.claimWriter());
+        outbox.offer(line("SHARES a"), ControlOutbox.Kind.SHARES);
+        assertFalse(outbox.claimWriter());
+
+        assertSame(first, outbox.take(10));
+        outbox.remove();
+        outbox.take(10);
+        outbox.remove();
+        // idle: the writer retires, the next message starts another
+        assertNull(outbox.take(10));
+        assertFalse(outbox.claimWriter());
+        outbox.offer(line("VIEW_DENIED"), ControlOutbox.Kind.MESSAGE);
+        assertTrue(outbox.claimWriter());
+    }
+
+    @Test
+    void takeWakesUpForANewMessage() throws InterruptedException {
+        ControlOutbox outbox = new ControlOutbox(1000, NEVER_STALLS);
+        ByteBuffer message = line("SHARE_STOPPED alice");
+        Thread offerer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignored) {
+            }
+            outbox.offer(message, ControlOutbox.Kind.MESSAGE);
+        });
+        offerer.start();
+
+        assertSame(message, outbox.take(10_000));
+        offerer.join();
+    }
+
+    @Test
+    void encodesForTheConnectionsProtocol() {
+        ByteBuffer text = ControlOutbox.encode("LOGIN_OK bob", 5, false);
+        assertEquals("LOGIN_OK bob" + System.lineSeparator(), new String(array(text), ControlOutbox.CHARSET));
+
+        ByteBuffer frame = ControlOutbox.encode("LOGIN_OK bob", 5, true);
+        assertArrayEquals(ControlMessage.frame("LOGIN_OK bob", 5), array(frame));
+
+        ControlMessage forwarded = ControlMessage.text("SHARE_STOPPED alice");
+        assertArrayEquals(ControlMessage.frame("SHARE_STOPPED alice", 0), array(ControlOutbox.encode(forwarded, true)));
+    }
+
+    private static ByteBuffer bytes(int size) {
+        return ByteBuffer.wrap(new byte[size]);
+    }
+
+    private static ByteBuffer line(String line) {
+        return ControlOutbox.encode(line, 0, false);
+    }
+
+    /**
+     * Writes out everything queued, returns the lines in the order written.
+     */
+    private static List<String> drain(ControlOutbox outbox) {
+        List<String> lines = new ArrayList<>();
+        ByteBuffer next;
+        while ((next = outbox.peek()) != null) {
+            lines.add(new String(array(next), ControlOutbox.CHARSET).trim());
+            outbox.remove();
+        }
+        return lines;
+    }
+
+    private static byte[] array(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.remaining()];
+        buf.duplicate().get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,106 @@
+package xyz.jxmm.screenshare.server;
+
+/**
+ * FLV streams as {@code H264Publisher} writes them, built byte by byte for the relay's tests.
+ */
+final class FlvBytes {
+    static final byte[] FILE_HEADER = {'F', 'L', 'V', 1, 1, 0, 0, 0, 9, 0, 0, 0, 0};
+
+    private FlvBytes() {
+    }
+
+    /**
+     * A tag with its trailing PreviousTagSize.
+     */
+    static byte[] tag(int type, int timestamp, byte[] body) {
+        byte[] tag = new byte[11 + body.length + 4];
+        tag[0] = (byte) type;
+        tag[1] = (byte) (body.length >> 16);
+        tag[2] = (byte) (body.length >> 8);
+        tag[3] = (byte) body.length;
+        tag[4] = (byte) (timestamp >> 16);
+        tag[5] = (byte) (timestamp >> 8);
+        tag[6] = (byte) timestamp;
+        tag[7] = (byte) (timestamp >> 24);
+        System.arraycopy(body, 0, tag, 11, body.length);
+        int previous = 11 + body.length;
+        tag[tag.length - 4] = (byte) (previous >> 24);
+        tag[tag.length - 3] = (byte) (previous >> 16);
+        tag[tag.length - 2] = (byte) (previous >> 8);
+        tag[tag.length - 1] = (byte) previous;
+        return tag;
+    }
+
+    static byte[] script() {
+        return tag(FlvTag.SCRIPT, 0, new byte[]{2, 0, 10, 'o', 'n', 'M', 'e', 't', 'a', 'D', 'a', 't', 'a'});
+    }
+
+    /**
+     * AVC sequence header announcing {@code nalLengthSize} byte NALU length prefixes.
+     */
+    static byte[] sequenceHeader(int nalLengthSize) {
+        byte[] body = {0x17, 0, 0, 0, 0, 1, 0x42, 0, 0x1e, (byte) (0xFC | (nalLengthSize - 1)), (byte) 0xE0, 0, 0, 1, 0};
+        return tag(FlvTag.VIDEO, 0, body);
+    }
+
+    /**
+     * An AVC frame of one slice NALU ({@code nal_ref_idc} {@code refIdc}) with a 4 byte length prefix.
+     */
+    static byte[] frame(int timestamp, boolean keyframe, int refIdc, int payload) {
+        byte[] nalu = new byte[1 + payload];
+        nalu[0] = (byte) (refIdc << 5 | (keyframe ? 5 : 1));
+        return frame(timestamp, keyframe, 4, nalu);
+    }
+
+    /**
+     * An AVC frame of the given NALUs, each prefixed with its length in {@code nalLengthSize} bytes.
+     */
+    static byte[] frame(int timestamp, boolean keyframe, int nalLengthSize, byte[]... nalus) {
+        int size = 5;
+        for (byte[] nalu : nalus) size += nalLengthSize + nalu.length;
+        byte[] body = new byte[size];
+        body[0] = (byte) ((keyframe ? 0x10 : 0x20) | 7);
+        body[1] = 1;
+        int pos = 5;
+        for (byte[] nalu : nalus) {
+            for (int i = nalLengthSize - 1; i >= 0; i--) body[pos++] = (byte) (nalu.length >> (8 * i));
+            System.arraycopy(nalu, 0, body, pos, nalu.length);
+            pos += nalu.length;
+        }
+        return tag(FlvTag.VIDEO, timestamp, body);
+    }
+
+    static byte[] concat(byte[]... parts) {
+        int size = 0;
+        for (byte[] part : parts) size += part.length;
+        byte[] all = new byte[size];
+        int pos = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, all, pos, part.length);
+            pos += part.length;
+        }
+        return all;
+    }
+
+    /**
+     * {@code bytes} as one unit in a chunk of {@code pool}; the caller releases the tag.
+     */
+    static FlvTag unit(BufferPool pool, int type, byte[] bytes, int nalLengthSize) {
+        PooledBuffer chunk = pool.acquire();
+        try {
+            chunk.buffer().put(bytes);
+            return FlvTag.of(type, new PooledBuffer[]{chunk}, new int[]{0}, new int[]{bytes.length}, nalLengthSize);
+        } finally {
+            chunk.release();
+        }
+    }
+
+    /**
+     * The bytes of {@code tag} across its slices.
+     */
+    static byte[] bytesOf(FlvTag tag) {
+        byte[] bytes = new byte[tag.size];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = tag.byteAt(i);
+        return bytes;
+    }
+}
@@ -0,0 +1,145 @@
+package xyz.jxmm.screenshare.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FlvDemuxerTest {
+    private final BufferPool pool = new BufferPool(BufferPool.CHUNK_SIZE, 64);
+    private final List<FlvTag> tags = new ArrayList<>();
+    private final FlvDemuxer demuxer = new FlvDemuxer("test");
+
+    @AfterEach
+    void releaseEverything() {
+        demuxer.close();
+        for (FlvTag tag : tags) tag.release();
+        // every chunk went back to the pool: neither the demuxer nor a tag leaked a reference
+        assertEquals(pool.allocated(), pool.pooled());
+    }
+
+    @Test
+    void splitsAStreamIntoHeaderAndTags() {
+        byte[] script = FlvBytes.script();
+        byte[] config = FlvBytes.sequenceHeader(4);
+        byte[] key = FlvBytes.frame(40, true, 3, 100);
+        byte[] inter = FlvBytes.frame(80, false, 2, 50);
+        feed(FlvBytes.concat(FlvBytes.FILE_HEADER, script, config, key, inter));
+
+        assertEquals(5, tags.size());
+        assertEquals(FlvTag.HEADER, tags.get(0).type);
+        assertArrayEquals(FlvBytes.FILE_HEADER, FlvBytes.bytesOf(tags.get(0)));
+        assertEquals(FlvTag.SCRIPT, tags.get(1).type);
+        assertArrayEquals(script, FlvBytes.bytesOf(tags.get(1)));
+        assertTrue(tags.get(2).sequenceHeader);
+        assertArrayEquals(config, FlvBytes.bytesOf(tags.get(2)));
+        assertTrue(tags.get(3).keyframe);
+        assertEquals(40, tags.get(3).timestamp);
+        assertArrayEquals(key, FlvBytes.bytesOf(tags.get(3)));
+        assertFalse(tags.get(4).keyframe);
+        assertEquals(80, tags.get(4).timestamp);
+        assertArrayEquals(inter, FlvBytes.bytesOf(tags.get(4)));
+    }
+
+    @Test
+    void reassemblesUnitsSplitAtAnyOffset() {
+        byte[] config = FlvBytes.sequenceHeader(4);
+        byte[] key = FlvBytes.frame(0, true, 3, 30);
+        byte[] stream = FlvBytes.concat(FlvBytes.FILE_HEADER, config, key);
+        for (int split = 1; split < stream.length; split++) {
+            FlvDemuxer splitter = new FlvDemuxer("split");
+            List<FlvTag> units = new ArrayList<>();
+            feed(splitter, units, stream, 0, split);
+            feed(splitter, units, stream, split, stream.length);
+
+            assertEquals(3, units.size(), "split at " + split);
+            assertArrayEquals(FlvBytes.FILE_HEADER, FlvBytes.bytesOf(units.get(0)));
+            assertArrayEquals(config, FlvBytes.bytesOf(units.get(1)));
+            assertArrayEquals(key, FlvBytes.bytesOf(units.get(2)));
+            // the unit the split falls into is two slices, one per chunk, nothing copied
+            int spanned = split < FlvBytes.FILE_HEADER.length ? 0
+                    : split < FlvBytes.FILE_HEADER.length + config.length ? 1 : 2;
+            boolean onBoundary = split == FlvBytes.FILE_HEADER.length || split == FlvBytes.FILE_HEADER.length + config.length;
+            assertEquals(onBoundary ? 1 : 2, units.get(spanned).sliceCount(), "split at " + split);
+            tags.addAll(units);
+        }
+    }
+
+    @Test
+    void reassemblesAStreamFedByteByByte() {
+        byte[] key = FlvBytes.frame(0, true, 3, 20);
+        byte[] inter = FlvBytes.frame(40, false, 0, 20);
+        byte[] stream = FlvBytes.concat(FlvBytes.FILE_HEADER, FlvBytes.sequenceHeader(4), key, inter);
+        for (int i = 0; i < stream.length; i++) feed(demuxer, tags, stream, i, i + 1);
+
+        assertEquals(4, tags.size());
+        assertArrayEquals(key, FlvBytes.bytesOf(tags.get(2)));
+        assertArrayEquals(inter, FlvBytes.bytesOf(tags.get(3)));
+        assertEquals(inter.length, tags.get(3).sliceCount());
+        assertTrue(tags.get(3).disposable);
+    }
+
+    @Test
+    void readsNaluLengthsWithTheSizeTheSequenceHeaderAnnounces() {
+        byte[] nonReference = {0x01, 0, 0, 0};
+        feed(FlvBytes.concat(FlvBytes.FILE_HEADER, FlvBytes.sequenceHeader(2),
+                FlvBytes.frame(40, false, 2, nonReference)));
+
+        assertEquals(3, tags.size());
+        assertTrue(tags.get(2).disposable);
+    }
+
+    @Test
+    void passesAStreamThatIsNotFlvThroughRaw() {
+        byte[] stream = "not an flv stream at all".getBytes();
+        feed(stream);
+
+        int size = 0;
+        for (FlvTag tag : tags) {
+            assertEquals(FlvTag.RAW, tag.type);
+            size += tag.size;
+        }
+        assertEquals(stream.length, size);
+        byte[] joined = new byte[0];
+        for (FlvTag tag : tags) joined = FlvBytes.concat(joined, FlvBytes.bytesOf(tag));
+        assertArrayEquals(stream, joined);
+    }
+
+    @Test
+    void dropsAPartialUnitOnClose() {
+        byte[] config = FlvBytes.sequenceHeader(4);
+        byte[] key = FlvBytes.frame(0, true, 3, 100);
+        feed(FlvBytes.concat(FlvBytes.FILE_HEADER, config, key), 0,
+                FlvBytes.FILE_HEADER.length + config.length + key.length / 2);
+
+        assertEquals(2, tags.size());
+        // releaseEverything closes the demuxer and checks the half tag's chunk went back
+    }
+
+    private void feed(byte[] bytes) {
+        feed(bytes, 0, bytes.length);
+    }
+
+    private void feed(byte[] bytes, int from, int to) {
+        feed(demuxer, tags, bytes, from, to);
+    }
+
+    /**
+     * Feeds {@code bytes[from, to)} as one chunk read, the way a relay reads a publisher socket.
+     */
+    private void feed(FlvDemuxer target, List<FlvTag> sink, byte[] bytes, int from, int to) {
+        PooledBuffer chunk = pool.acquire();
+        try {
+            chunk.buffer().put(bytes, from, to - from);
+            target.feed(chunk, 0, to - from, sink::add);
+        } finally {
+            chunk.release();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package xyz.jxmm.screenshare.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FlvTagTest {
+    // NALU types: 1 non-IDR slice, 5 IDR slice, 6 SEI; the top bits are nal_ref_idc
+    private static final byte[] NON_REFERENCE_SLICE = {0x01, 0, 0};
+    private static final byte[] REFERENCE_SLICE = {0x41, 0, 0};
+    private static final byte[] SEI = {0x06, 0, 0};
+
+    private final BufferPool pool = new BufferPool(BufferPool.CHUNK_SIZE, 16);
+    private final List<FlvTag> tags = new ArrayList<>();
+
+    @AfterEach
+    void releaseTags() {
+        for (FlvTag tag : tags) tag.release();
+        assertEquals(pool.allocated(), pool.pooled());
+    }
+
+    @Test
+    void nonReferenceInterFrameIsDisposable() {
+        assertTrue(video(FlvBytes.frame(40, false, 4, NON_REFERENCE_SLICE), 4).disposable);
+        assertTrue(video(FlvBytes.frame(40, false, 0, 10), 4).disposable);
+    }
+
+    @Test
+    void referenceInterFrameIsNotDisposable() {
+        assertFalse(video(FlvBytes.frame(40, false, 4, REFERENCE_SLICE), 4).disposable);
+        assertFalse(video(FlvBytes.frame(40, false, 2, 10), 4).disposable);
+    }
+
+    @Test
+    void keyframeIsNeverDisposable() {
+        FlvTag key = video(FlvBytes.frame(0, true, 4, NON_REFERENCE_SLICE), 4);
+        assertTrue(key.keyframe);
+        assertFalse(key.disposable);
+    }
+
+    @Test
+    void anyReferenceSliceKeepsTheFrame() {
+        assertFalse(video(FlvBytes.frame(40, false, 4, NON_REFERENCE_SLICE, REFERENCE_SLICE), 4).disposable);
+        assertTrue(video(FlvBytes.frame(40, false, 4, SEI, NON_REFERENCE_SLICE, NON_REFERENCE_SLICE), 4).disposable);
+    }
+
+    @Test
+    void frameWithoutSlicesIsNotDisposable() {
+        assertFalse(video(FlvBytes.frame(40, false, 4, SEI), 4).disposable);
+    }
+
+    @Test
+    void malformedNaluLengthIsNotDisposable() {
+        byte[] tag = FlvBytes.frame(40, false, 4, NON_REFERENCE_SLICE);
+        // NALU length points past the end of the tag
+        tag[11 + 5 + 3] = 100;
+        assertFalse(video(tag, 4).disposable);
+    }
+
+    @Test
+    void naluLengthsAreReadWithTheAnnouncedSize() {
+        byte[] twoByteLengths = FlvBytes.frame(40, false, 2, NON_REFERENCE_SLICE);
+        assertTrue(video(twoByteLengths, 2).disposable);
+        // read as 4 byte lengths the frame makes no sense, and is kept
+        assertFalse(video(twoByteLengths, 4).disposable);
+    }
+
+    @Test
+    void sequenceHeaderIsEssentialAndAnnouncesItsNaluLengthSize() {
+        FlvTag config = video(FlvBytes.sequenceHeader(2), 4);
+        assertTrue(config.sequenceHeader);
+        assertTrue(config.essential());
+        assertFalse(config.isVideoFrame());
+        assertFalse(config.disposable);
+        assertEquals(2, config.avcNalLengthSize());
+    }
+
+    @Test
+    void readsTheExtendedTimestamp() {
+        int timestamp = 0x01_23_45_67;
+        assertEquals(timestamp, video(FlvBytes.frame(timestamp, false, 2, 4), 4).timestamp);
+    }
+
+    @Test
+    void lastReleaseReturnsTheChunk() {
+        FlvTag tag = FlvBytes.unit(pool, FlvTag.VIDEO, FlvBytes.frame(0, true, 3, 4), 4);
+        tag.retain();
+        tag.release();
+        assertEquals(0, pool.pooled());
+        tag.release();
+        assertEquals(1, pool.pooled());
+        assertThrows(IllegalStateException.class, tag::retain);
+    }
+
+    private FlvTag video(byte[] bytes, int nalLengthSize) {
+        FlvTag tag = FlvBytes.unit(pool, FlvTag.VIDEO, bytes, nalLengthSize);
+        tags.add(tag);
+        return tag;
+    }
+}
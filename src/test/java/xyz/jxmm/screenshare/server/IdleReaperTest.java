@@ -0,0 +1,172 @@
+package xyz.jxmm.screenshare.server;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class IdleReaperTest {
+    private static final long TICK = IdleReaper.TICK_MS;
+
+    // turned by the test, one tick() at a time
+    private final IdleReaper reaper = new IdleReaper();
+
+    @Test
+    void reapsASessionOnceItHasBeenQuietForItsTimeout() {
+        Peer peer = new Peer(true);
+        reaper.register("test", 5 * TICK, 0, peer);
+
+        ticks(4);
+        assertEquals(0, peer.reaps);
+        ticks(1);
+        assertEquals(1, peer.reaps);
+        ticks(20);
+        assertEquals(1, peer.reaps);
+    }
+
+    @Test
+    void activityPostponesTheDeadline() {
+        Peer peer = new Peer(true);
+        IdleReaper.Session session = reaper.register("test", 5 * TICK, 0, peer);
+
+        ticks(3);
+        session.touch();
+        ticks(4);
+        assertEquals(0, peer.reaps);
+        ticks(1);
+        assertEquals(1, peer.reaps);
+    }
+
+    @Test
+    void pingsAQuietPeerBeforeReapingIt() {
+        Peer peer = new Peer(true);
+        reaper.register("test", 10 * TICK, 3 * TICK, peer);
+
+        ticks(2);
+        assertEquals(0, peer.pings);
+        ticks(1);
+        assertEquals(1, peer.pings);
+        ticks(6);
+        assertEquals(3, peer.pings);
+        assertEquals(0, peer.reaps);
+        ticks(1);
+        assertEquals(1, peer.reaps);
+    }
+
+    @Test
+    void aPeerThatAnswersIsNeverReaped() {
+        Peer peer = new Peer(true);
+        IdleReaper.Session session = reaper.register("test", 10 * TICK, 3 * TICK, peer);
+
+        for (int i = 0; i < 100; i++) {
+            reaper.tick();
+            // the PONG to every ping
+            if (peer.pings > 0) session.touch();
+        }
+        assertEquals(0, peer.reaps);
+    }
+
+    @Test
+    void aKeptPeerIsLookedAtAgainAfterAQuarterOfItsTimeout() {
+        Peer peer = new Peer(false);
+        reaper.register("test", 8 * TICK, 0, peer);
+
+        ticks(8);
+        assertEquals(1, peer.reaps);
+        ticks(1);
+        assertEquals(1, peer.reaps);
+        ticks(1);
+        assertEquals(2, peer.reaps);
+    }
+
+    @Test
+    void aCancelledSessionIsForgotten() {
+        Peer peer = new Peer(true);
+        reaper.register("test", 5 * TICK, 2 * TICK, peer).cancel();
+
+        ticks(20);
+        assertEquals(0, peer.pings);
+        assertEquals(0, peer.reaps);
+    }
+
+    @Test
+    void sessionsWithoutTimeoutsAreNotWatched() {
+        Peer peer = new Peer(true);
+        IdleReaper.Session session = reaper.register("test", 0, 0, peer);
+        session.touch();
+
+        ticks(100);
+        assertEquals(0, peer.pings);
+        assertEquals(0, peer.reaps);
+    }
+
+    @Test
+    void deadlinesBeyondOneTurnWaitForTheirTurn() {
+        Peer peer = new Peer(true);
+        // 700 ticks, the wheel has 512 slots
+        reaper.register("test", 700 * TICK, 0, peer);
+
+        ticks(699);
+        assertEquals(0, peer.reaps);
+        ticks(1);
+        assertEquals(1, peer.reaps);
+    }
+
+    @Test
+    void sessionsThatWentQuietTogetherAreReapedInOnePass() {
+        Peer[] peers = new Peer[100];
+        for (int i = 0; i < peers.length; i++) {
+            peers[i] = new Peer(true);
+            reaper.register("test-batch", 5 * TICK, 0, peers[i]);
+        }
+        long before = StreamMetrics.reaped("test-batch").getCount();
+
+        ticks(4);
+        for (Peer peer : peers) assertEquals(0, peer.reaps);
+        ticks(1);
+        for (Peer peer : peers) assertEquals(1, peer.reaps);
+        assertEquals(before + peers.length, StreamMetrics.reaped("test-batch").getCount());
+    }
+
+    @Test
+    void aFailingPeerDoesNotStopTheWheel() {
+        Peer failing = new Peer(true) {
+            @Override
+            public boolean reap() {
+                super.reap();
+                throw new IllegalStateException("socket gone");
+            }
+        };
+        Peer peer = new Peer(true);
+        reaper.register("test", 5 * TICK, 0, failing);
+        reaper.register("test", 5 * TICK, 0, peer);
+
+        ticks(5);
+        assertEquals(1, failing.reaps);
+        assertEquals(1, peer.reaps);
+    }
+
+    private void ticks(int n) {
+        for (int i = 0; i < n; i++) reaper.tick();
+    }
+
+    private static class Peer implements IdleReaper.Peer {
+        private final boolean closes;
+        int pings;
+        int reaps;
+
+        Peer(boolean closes) {
+            this.closes = closes;
+        }
+
+        @Override
+        public void ping() {
+            pings++;
+        }
+
+        @Override
+        public boolean reap() {
+            reaps++;
+            return closes;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package xyz.jxmm.screenshare.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Runs the dispatcher behind real {@link ClientHandler}s, each connected over loopback to a
+ * client that reads the lines it is sent.
+ */
+class ShareListDispatcherTest {
+    private static final long TICK_MS = 100;
+
+    private final ConcurrentHashMap<String, String> sharingUsers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ClientHandler> clients = new ConcurrentHashMap<>();
+    private final ShareListDispatcher shareList = new ShareListDispatcher(sharingUsers, clients, TICK_MS);
+    private final ShareRegistry shares = new ShareRegistry(sharingUsers, shareList, 1);
+    private final List<Client> connected = new ArrayList<>();
+
+    @AfterEach
+    void disconnect() throws IOException {
+        for (Client client : connected) client.socket.close();
+    }
+
+    @Test
+    void subscriberGetsASnapshotThenOneVersionPerChange() throws IOException {
+        Client bob = login("bob");
+        assertEquals("SHARES ", bob.next());
+        bob.send("GET_SHARES 0");
+        assertEquals("SHARES_SNAPSHOT 0 ", bob.next());
+
+        share("alice");
+        assertEquals("SHARE_ADDED 1 alice", bob.next());
+
+        unshare("alice");
+        share("carol");
+        assertEquals("SHARE_REMOVED 2 alice", bob.next());
+        assertEquals("SHARE_ADDED 3 carol", bob.next());
+    }
+
+    @Test
+    void aBurstOfChangesIsAnnouncedOnce() throws IOException {
+        Client bob = subscribe("bob");
+        Client eve = login("eve");
+        assertEquals("SHARES ", eve.next());
+
+        // within one tick: only the net difference goes out
+        share("alice");
+        share("carol");
+        share("dave");
+        unshare("alice");
+        assertEquals("SHARE_ADDED 1 carol,dave", bob.next());
+        assertEquals("SHARES carol,dave", eve.next());
+
+        share("erin");
+        assertEquals("SHARE_ADDED 2 erin", bob.next());
+        assertEquals("SHARES carol,dave,erin", eve.next());
+    }
+
+    @Test
+    void aTickWithoutChangesUsesNoVersion() throws IOException {
+        Client bob = subscribe("bob");
+        share("alice");
+        assertEquals("SHARE_ADDED 1 alice", bob.next());
+
+        // shared and stopped again before the tick, and a change that changed nothing
+        share("carol");
+        unshare("carol");
+        shareList.changed();
+        sleep(3 * TICK_MS);
+        share("dave");
+        assertEquals("SHARE_ADDED 2 dave", bob.next());
+    }
+
+    @Test
+    void aLateSubscriberStartsAtTheCurrentVersion() throws IOException {
+        Client bob = subscribe("bob");
+        share("alice");
+        assertEquals("SHARE_ADDED 1 alice", bob.next());
+        share("carol");
+        assertEquals("SHARE_ADDED 2 carol", bob.next());
+
+        Client dave = login("dave");
+        assertEquals("SHARES alice,carol", dave.next());
+        dave.send("GET_SHARES 0");
+        assertEquals("SHARES_SNAPSHOT 2 alice,carol", dave.next());
+
+        unshare("carol");
+        assertEquals("SHARE_REMOVED 3 carol", bob.next());
+        assertEquals("SHARE_REMOVED 3 carol", dave.next());
+    }
+
+    @Test
+    void aLegacyRequestGetsTheWholeList() throws IOException {
+        Client bob = login("bob");
+        assertEquals("SHARES ", bob.next());
+        share("alice");
+        assertEquals("SHARES alice", bob.next());
+
+        bob.send("GET_SHARES");
+        assertEquals("SHARES alice", bob.next());
+    }
+
+    private void share(String name) {
+        sharingUsers.put(name, "pw");
+        shareList.changed();
+    }
+
+    private void unshare(String name) {
+        sharingUsers.remove(name);
+        shareList.changed();
+    }
+
+    private Client subscribe(String name) throws IOException {
+        Client client = login(name);
+        assertEquals("SHARES ", client.next());
+        client.send("GET_SHARES 0");
+        assertEquals("SHARES_SNAPSHOT 0 ", client.next());
+        return client;
+    }
+
+    private Client login(String name) throws IOException {
+        Client client = new Client();
+        connected.add(client);
+        client.send("LOGIN " + name);
+        assertEquals("LOGIN_OK " + name, client.next());
+        return client;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final class Client {
+        final Socket socket;
+        final BufferedReader in;
+        final PrintWriter out;
+
+        Client() throws IOException {
+            Socket server;
+            try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+                socket = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+                server = listener.accept();
+            }
+            ServerThreads.start("ShareListDispatcherTest-Handler", true,
+                    new ClientHandler(server, clients, sharingUsers, shares, new EdgeRegistry(), shareList));
+            socket.setSoTimeout(5000);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), ControlOutbox.CHARSET));
+            out = new PrintWriter(socket.getOutputStream(), true);
+        }
+
+        void send(String line) {
+            out.println(line);
+        }
+
+        String next() throws IOException {
+            return in.readLine();
+        }
+    }
+}
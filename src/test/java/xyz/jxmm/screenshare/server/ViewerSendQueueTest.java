@@ -0,0 +1,255 @@
+package xyz.jxmm.screenshare.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ViewerSendQueueTest {
+    // a frame of this payload is 1000 bytes as a tag
+    private static final int PAYLOAD = 975;
+    private static final int FRAME_BYTES = 1000;
+    private static final long BUDGET_MS = 1000;
+
+    private final BufferPool pool = new BufferPool(BufferPool.CHUNK_SIZE, 64);
+    private final List<ViewerSendQueue> queues = new ArrayList<>();
+
+    @AfterEach
+    void closeQueues() {
+        for (ViewerSendQueue queue : queues) queue.close();
+        // the queue released every tag it held, dropped or discarded
+        assertEquals(pool.allocated(), pool.pooled());
+    }
+
+    @Test
+    void dropPolicySkipsInterFramesUntilTheNextKeyframe() {
+        ViewerSendQueue queue = queue(4 * FRAME_BYTES, ServerConfig.OverflowPolicy.DROP);
+        fillWithFourFrames(queue);
+
+        assertEquals(ViewerSendQueue.Offer.DROPPED, offer(queue, frame(160, false, 2)));
+        drain(queue);
+        // the dropped frame is referenced by what follows, so the next inter frame goes as well
+        assertEquals(ViewerSendQueue.Offer.DROPPED, offer(queue, frame(200, false, 2)));
+        assertEquals(ViewerSendQueue.Offer.QUEUED, offer(queue, frame(240, true, 3)));
+        assertEquals(ViewerSendQueue.Offer.QUEUED, offer(queue, frame(280, false, 2)));
+        assertEquals(2, queue.droppedFrames());
+        assertEquals(2 * FRAME_BYTES, queue.queuedBytes());
+    }
+
+    @Test
+    void dropPolicyKeepsGoingAfterADisposableFrame() {
+        ViewerSendQueue queue = queue(4 * FRAME_BYTES, ServerConfig.OverflowPolicy.DROP);
+        fillWithFourFrames(queue);
+
+        assertEquals(ViewerSendQueue.Offer.DROPPED, offer(queue, frame(160, false, 0)));
+        drain(queue);
+        // nothing references a disposable frame, the stream continues without waiting for a keyframe
+        assertEquals(ViewerSendQueue.Offer.QUEUED, offer(queue, frame(200, false, 2)));
+    }
+
+    @Test
+    void disconnectPolicyGivesUpOnAFullQueue() {
+        ViewerSendQueue queue = queue(4 * FRAME_BYTES, ServerConfig.OverflowPolicy.DISCONNECT);
+        fillWithFourFrames(queue);
+
+        assertEquals(ViewerSendQueue.Offer.DISCONNECT, offer(queue, frame(160, false, 2)));
+    }
+
+    @Test
+    void resyncPolicyDiscardsTheBacklogAndResumesAtAKeyframe() {
+        byte[] config = FlvBytes.sequenceHeader(4);
+        ViewerSendQueue queue = queue(4 * FRAME_BYTES + config.length, ServerConfig.OverflowPolicy.RESYNC);
+        assertEquals(ViewerSendQueue.Offer.QUEUED, offer(queue, config));
+        fillWithFourFrames(queue);
+
+        assertEquals(ViewerSendQueue.Offer.RESYNC, offer(queue, frame(160, false, 2)));
+        // only the sequence header survives, the viewer cannot decode without it
+        assertEquals(config.length, queue.queuedBytes());
+        assertEquals(ViewerSendQueue.Offer.DROPPED, offer(queue, frame(200, false, 2)));
+        assertEquals(ViewerSendQueue.Offer.QUEUED, offer(queue, frame(240, true, 3)));
+        assertEquals(config.length + FRAME_BYTES, queue.queuedBytes());
+    }
+
+    @Test
+    void resyncAtAKeyframeQueuesIt() {
+        ViewerSendQueue queue = queue(4 * FRAME_BYTES, ServerConfig.OverflowPolicy.RESYNC);
+        fillWithFourFrames(queue);
+
+        assertEquals(ViewerSendQueue.Offer.RESYNC, offer(queue, frame(160, true, 3)));
+        assertEquals(FRAME_BYTES, queue.queuedBytes());
+        assertEquals(ViewerSendQueue.Offer.QUEUED, offer(queue, frame(200, false, 2)));
+    }
+
+    @Test
+    void essentialTagsAreQueuedPastTheBound() {
+        ViewerSendQueue queue = queue(4 * FRAME_BYTES, ServerConfig.OverflowPolicy.DROP);
+        fillWithFourFrames(queue);
+
+        byte[] config = FlvBytes.sequenceHeader(4);
+        assertEquals(ViewerSendQueue.Offer.QUEUED, offer(queue, config));
+        assertEquals(4 * FRAME_BYTES + config.length, queue.queuedBytes());
+    }
+
+    @Test
+    void discardKeepsTheTagsTheWriterIsWriting() {
+        ViewerSendQueue queue = queue(4 * FRAME_BYTES, ServerConfig.OverflowPolicy.RESYNC);
+        fillWithFourFrames(queue);
+        FlvTag[] batch = new FlvTag[1];
+        assertEquals(1, queue.acquireBatch(batch));
+        // half of the keyframe is on the wire already
+        queue.advance(FRAME_BYTES / 2);
+
+        assertEquals(ViewerSendQueue.Offer.RESYNC, offer(queue, frame(160, false, 2)));
+        assertEquals(FRAME_BYTES / 2, queue.queuedBytes());
+        assertEquals(FRAME_BYTES / 2, queue.headOffset());
+        batch[0].release();
+    }
+
+    @Test
+    void overHalfTheLatencyBudgetDisposableFramesAreDropped() {
+        ViewerSendQueue queue = queue(100 * FRAME_BYTES, ServerConfig.OverflowPolicy.RESYNC);
+        assertEquals(ViewerSendQueue.Offer.QUEUED, offer(queue, frame(0, true, 3)));
+        assertEquals(ViewerSendQueue.Offer.QUEUED, offer(queue, frame(400, false, 0)));
+
+        assertEquals(ViewerSendQueue.Offer.DROPPED, offer(queue, frame(600, false, 0)));
+        assertEquals(ViewerSendQueue.Offer.QUEUED, offer(queue, frame(600, false, 2)));
+        assertEquals(600, queue.backlogMillis());
+        assertEquals(1, queue.droppedFrames());
+    }
+
+    @Test
+    void overTheLatencyBudgetTheViewerSkipsToTheNextKeyframe() {
+        ViewerSendQueue queue = queue(100 * FRAME_BYTES, ServerConfig.OverflowPolicy.DROP);
+        assertEquals(ViewerSendQueue.Offer.QUEUED, offer(queue, frame(0, true, 3)));
+        assertEquals(ViewerSendQueue.Offer.QUEUED, offer(queue, frame(500, false, 2)));
+
+        assertEquals(ViewerSendQueue.Offer.RESYNC, offer(queue, frame(1100, false, 2)));
+        assertEquals(0, queue.queuedBytes());
+        assertEquals(ViewerSendQueue.Offer.DROPPED, offer(queue, frame(1140, false, 2)));
+        assertEquals(ViewerSendQueue.Offer.QUEUED, offer(queue, frame(1180, true, 3)));
+        assertEquals(0, queue.backlogMillis());
+    }
+
+    @Test
+    void aRestartedClockIsNotLag() {
+        ViewerSendQueue queue = queue(100 * FRAME_BYTES, ServerConfig.OverflowPolicy.RESYNC);
+        assertEquals(ViewerSendQueue.Offer.QUEUED, offer(queue, frame(90_000, true, 3)));
+
+        assertEquals(ViewerSendQueue.Offer.QUEUED, offer(queue, frame(0, false, 0)));
+    }
+
+    @Test
+    void aJoiningViewerGetsTheWholeCachedGop() {
+        FlvStreamCache cache = new FlvStreamCache();
+        byte[] config = FlvBytes.sequenceHeader(4);
+        publish(cache, config);
+        // a 3 s GOP: three times the latency budget and far over the byte bound
+        int frames = 0;
+        for (int ts = 0; ts <= 3000; ts += 40, frames++) publish(cache, frame(ts, ts == 0, 2));
+        ViewerSendQueue queue = queue(4 * FRAME_BYTES, ServerConfig.OverflowPolicy.RESYNC);
+
+        cache.join(tag -> assertEquals(ViewerSendQueue.Offer.QUEUED, queue.replay(tag)), () -> { });
+        cache.close();
+        assertEquals(config.length + frames * FRAME_BYTES, queue.queuedBytes());
+        assertEquals(0, queue.backlogMillis());
+        assertEquals(0, queue.droppedFrames());
+
+        // live tags follow the replay and are held to the budget on their own
+        assertEquals(ViewerSendQueue.Offer.QUEUED, offer(queue, frame(3040, false, 2)));
+        assertEquals(ViewerSendQueue.Offer.QUEUED, offer(queue, frame(4000, false, 2)));
+        assertEquals(config.length + (frames + 2) * FRAME_BYTES, queue.queuedBytes());
+        assertEquals(960, queue.backlogMillis());
+    }
+
+    @Test
+    void aLiveBacklogStillDiscardsTheReplay() {
+        ViewerSendQueue queue = queue(100 * FRAME_BYTES, ServerConfig.OverflowPolicy.RESYNC);
+        for (int ts = 0; ts <= 2000; ts += 40) {
+            assertEquals(ViewerSendQueue.Offer.QUEUED, replay(queue, frame(ts, ts == 0, 2)));
+        }
+        assertEquals(ViewerSendQueue.Offer.QUEUED, offer(queue, frame(2040, false, 2)));
+
+        assertEquals(ViewerSendQueue.Offer.RESYNC, offer(queue, frame(3080, false, 2)));
+        assertEquals(0, queue.queuedBytes());
+    }
+
+    @Test
+    void finishedQueueTakesNoMoreTagsAndDrains() {
+        ViewerSendQueue queue = queue(4 * FRAME_BYTES, ServerConfig.OverflowPolicy.RESYNC);
+        assertEquals(ViewerSendQueue.Offer.QUEUED, offer(queue, frame(0, true, 3)));
+        queue.finish();
+
+        assertEquals(ViewerSendQueue.Offer.DISCONNECT, offer(queue, frame(40, false, 2)));
+        assertFalse(queue.isDrained());
+        drain(queue);
+        assertTrue(queue.isDrained());
+    }
+
+    private ViewerSendQueue queue(long maxBytes, ServerConfig.OverflowPolicy policy) {
+        ViewerSendQueue queue = new ViewerSendQueue(maxBytes, policy, BUDGET_MS, 64 * 1024, 0);
+        queues.add(queue);
+        return queue;
+    }
+
+    /**
+     * A keyframe and three inter frames 40 ms apart, 4000 bytes.
+     */
+    private void fillWithFourFrames(ViewerSendQueue queue) {
+        assertEquals(ViewerSendQueue.Offer.QUEUED, offer(queue, frame(0, true, 3)));
+        for (int ts = 40; ts <= 120; ts += 40) {
+            assertEquals(ViewerSendQueue.Offer.QUEUED, offer(queue, frame(ts, false, 2)));
+        }
+    }
+
+    private static byte[] frame(int timestamp, boolean keyframe, int refIdc) {
+        return FlvBytes.frame(timestamp, keyframe, refIdc, PAYLOAD);
+    }
+
+    private ViewerSendQueue.Offer offer(ViewerSendQueue queue, byte[] bytes) {
+        FlvTag tag = FlvBytes.unit(pool, FlvTag.VIDEO, bytes, 4);
+        try {
+            return queue.offer(tag);
+        } finally {
+            tag.release();
+        }
+    }
+
+    private ViewerSendQueue.Offer replay(ViewerSendQueue queue, byte[] bytes) {
+        FlvTag tag = FlvBytes.unit(pool, FlvTag.VIDEO, bytes, 4);
+        try {
+            return queue.replay(tag);
+        } finally {
+            tag.release();
+        }
+    }
+
+    private void publish(FlvStreamCache cache, byte[] bytes) {
+        FlvTag tag = FlvBytes.unit(pool, FlvTag.VIDEO, bytes, 4);
+        try {
+            cache.publish(tag, t -> { });
+        } finally {
+            tag.release();
+        }
+    }
+
+    /**
+     * Writes everything queued, as a writer whose socket takes it all.
+     */
+    private static void drain(ViewerSendQueue queue) {
+        FlvTag[] batch = new FlvTag[ViewerSendQueue.MAX_BATCH];
+        int count;
+        while ((count = queue.acquireBatch(batch)) > 0) {
+            int written = -queue.headOffset();
+            for (int i = 0; i < count; i++) {
+                written += batch[i].size;
+                batch[i].release();
+            }
+            queue.advance(written);
+        }
+    }
+}